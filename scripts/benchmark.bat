@@ -0,0 +1,7 @@
+java -Xms1024m -Xmx1024m -cp ../build/mymedialite.jar org.mymedialite.benchmark.RecommenderBenchmarks ^
+  --num-users=2000 ^
+  --num-items=1000 ^
+  --density=0.01 ^
+  --skew=1.0
+
+pause
\ No newline at end of file
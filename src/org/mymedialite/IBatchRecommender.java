@@ -0,0 +1,40 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite;
+
+/**
+ * Interface for recommenders that can score many items for a user at once.
+ *
+ * Implementations share the work that predict() repeats for every item, e.g. unboxing the user's latent factors
+ * or joining the user's neighborhood with the items, so scoring a long list of candidate items is much faster
+ * than calling predict() for each of them.
+ * @version 2.03
+ */
+public interface IBatchRecommender extends IRecommender {
+
+  /**
+   * Predict the scores of a given user for several items.
+   * The scores are the ones returned by predict(user_id, item_id), up to rounding.
+   * @param user_id the user ID
+   * @param item_ids the item IDs
+   * @return the predicted scores, in the order of item_ids
+   */
+  double[] predict(int user_id, int[] item_ids);
+
+}
@@ -0,0 +1,76 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.mymedialite.benchmark;
+
+/**
+ * Abstract class for micro-benchmarks.
+ * 
+ * The state needed by the benchmark is created in setUp(), which is not measured.
+ * run() contains the measured code and is called repeatedly by the BenchmarkRunner.
+ * @version 2.03
+ */
+public abstract class Benchmark {
+
+  private String name;
+
+  /**
+   * Create a benchmark.
+   * @param name the name of the benchmark
+   */
+  protected Benchmark(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Get the name of the benchmark.
+   * @return the name of the benchmark
+   */
+  public String name() {
+    return name;
+  }
+
+  /**
+   * Create the state used by the benchmark. This method is not measured.
+   */
+  public void setUp() throws Exception { }
+
+  /**
+   * Release the state used by the benchmark. This method is not measured.
+   */
+  public void tearDown() throws Exception { }
+
+  /**
+   * The number of operations performed by one call of run().
+   * Used to report the time per operation, e.g. per predict() call.
+   * @return the number of operations per invocation
+   */
+  public int operationsPerInvocation() {
+    return 1;
+  }
+
+  /**
+   * Run the measured code once.
+   * @return a value computed from the results; it is consumed by the runner so that the work cannot be optimized away
+   */
+  public abstract double run() throws Exception;
+
+  public String toString() {
+    return name;
+  }
+
+}
@@ -0,0 +1,160 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.mymedialite.benchmark;
+
+import java.io.PrintStream;
+
+/**
+ * Runs benchmarks with warm-up and measurement iterations.
+ *
+ * Each iteration calls Benchmark.run() repeatedly until at least iterationTime milliseconds have passed.
+ * The time per operation is averaged over all measurement iterations; the standard deviation over the
+ * iterations gives an idea of how reliable the numbers are.
+ *
+ * The results of run() are accumulated in a field, so that the JIT compiler cannot remove the measured code.
+ * @version 2.03
+ */
+public class BenchmarkRunner {
+
+  /** Number of warm-up iterations, not measured */
+  public int warmupIterations = 5;
+
+  /** Number of measurement iterations */
+  public int measurementIterations = 10;
+
+  /** Minimum duration of one iteration, in milliseconds */
+  public long iterationTime = 500;
+
+  /** Sink for the results of the measured code */
+  private double sink;
+
+  /**
+   * Results of a benchmark run.
+   */
+  public static class Result {
+    /** The name of the benchmark */
+    public String name;
+
+    /** The mean time per operation, in nanoseconds */
+    public double mean;
+
+    /** The standard deviation of the time per operation over the measurement iterations, in nanoseconds */
+    public double stdDev;
+
+    /** The smallest time per operation of all measurement iterations, in nanoseconds */
+    public double min;
+
+    /** The total number of measured operations */
+    public long operations;
+
+    /**
+     * Get the number of operations per second.
+     * @return the number of operations per second
+     */
+    public double throughput() {
+      return 1E9 / mean;
+    }
+
+    public String toString() {
+      return String.format("%-60s %14.1f ns/op  +- %10.1f  min %14.1f  %14.1f ops/s  (%d ops)", name, mean, stdDev, min, throughput(), operations);
+    }
+  }
+
+  /**
+   * Run a benchmark.
+   * @param benchmark the benchmark to run
+   * @return the results of the measurement iterations
+   */
+  public Result run(Benchmark benchmark) throws Exception {
+    benchmark.setUp();
+    try {
+      for (int i = 0; i < warmupIterations; i++)
+        iteration(benchmark);
+
+      double[] times = new double[measurementIterations];
+      long operations = 0;
+      for (int i = 0; i < measurementIterations; i++) {
+        long[] iteration = iteration(benchmark);
+        times[i] = (double) iteration[0] / iteration[1];
+        operations += iteration[1];
+      }
+
+      Result result = new Result();
+      result.name = benchmark.name();
+      result.operations = operations;
+      result.min = Double.MAX_VALUE;
+      double sum = 0;
+      for (double time : times) {
+        sum += time;
+        result.min = Math.min(result.min, time);
+      }
+      result.mean = sum / times.length;
+      double sum_squares = 0;
+      for (double time : times)
+        sum_squares += (time - result.mean) * (time - result.mean);
+      result.stdDev = times.length > 1 ? Math.sqrt(sum_squares / (times.length - 1)) : 0;
+      return result;
+    } finally {
+      benchmark.tearDown();
+    }
+  }
+
+  /**
+   * Run a benchmark and write the results to a stream.
+   * @param benchmark the benchmark to run
+   * @param out the stream to write to
+   * @return the results of the measurement iterations, or null if the benchmark failed
+   */
+  public Result run(Benchmark benchmark, PrintStream out) {
+    try {
+      Result result = run(benchmark);
+      out.println(result);
+      return result;
+    } catch (Exception e) {
+      out.println(String.format("%-60s FAILED: %s", benchmark.name(), e));
+      return null;
+    }
+  }
+
+  /**
+   * Run one iteration.
+   * @return an array containing the elapsed time in nanoseconds and the number of operations
+   */
+  private long[] iteration(Benchmark benchmark) throws Exception {
+    long min_time = iterationTime * 1000000L;
+    long operations = 0;
+    long start = System.nanoTime();
+    long elapsed;
+    do {
+      sink += benchmark.run();
+      operations += benchmark.operationsPerInvocation();
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < min_time);
+    return new long[] { elapsed, operations };
+  }
+
+  /**
+   * Get the accumulated results of the measured code.
+   * Calling this method makes sure that the results are actually used.
+   * @return the sum of all values returned by Benchmark.run()
+   */
+  public double sink() {
+    return sink;
+  }
+
+}
@@ -0,0 +1,424 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.mymedialite.benchmark;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.mymedialite.IItemAttributeAwareRecommender;
+import org.mymedialite.IIterativeModel;
+import org.mymedialite.IRecommender;
+import org.mymedialite.IUserAttributeAwareRecommender;
+import org.mymedialite.IUserRelationAwareRecommender;
+import org.mymedialite.correlation.BinaryCosine;
+import org.mymedialite.data.EntityMapping;
+import org.mymedialite.data.IPosOnlyFeedback;
+import org.mymedialite.data.IRatings;
+import org.mymedialite.datatype.IBooleanMatrix;
+import org.mymedialite.eval.Items;
+import org.mymedialite.io.RatingData;
+import org.mymedialite.itemrec.BPRMF;
+import org.mymedialite.itemrec.Extensions;
+import org.mymedialite.itemrec.ItemRecommender;
+import org.mymedialite.itemrec.MostPopular;
+import org.mymedialite.itemrec.WRMF;
+import org.mymedialite.ratingprediction.ITimeAwareRatingPredictor;
+import org.mymedialite.ratingprediction.MatrixFactorization;
+import org.mymedialite.ratingprediction.RatingPredictor;
+import org.mymedialite.util.Random;
+import org.mymedialite.util.Recommender;
+
+/**
+ * Micro-benchmarks for the hot paths of the recommenders, see usage() method for more information.
+ *
+ * The benchmarks cover predict() of all rating predictors and item recommenders, ranking with
+ * Extensions.predictItems(), single training iterations of BPRMF, WRMF and MatrixFactorization,
+ * BinaryCosine.computeCorrelations(), RatingData.read() and eval.Items.evaluate().
+ *
+ * All benchmarks run on synthetic data (see SyntheticData) created from a fixed random seed.
+ * @version 2.03
+ */
+public class RecommenderBenchmarks {
+
+  static final String VERSION = "2.03";
+
+  /** Item recommenders whose predict() method is benchmarked */
+  static final String[] ITEM_RECOMMENDERS = {
+    "BPRLinear", "BPRMF", "ItemAttributeKNN", "ItemKNN", "MostPopular", "Random", "SoftMarginRankingMF",
+    "UserAttributeKNN", "UserKNN", "WRMF", "WeightedBPRMF", "WeightedItemAttributeKNN", "WeightedItemKNN",
+    "WeightedUserKNN", "Zero"
+  };
+
+  /** Rating predictors whose predict() method is benchmarked */
+  static final String[] RATING_PREDICTORS = {
+    "BiPolarSlopeOne", "BiasedMatrixFactorization", "CoClustering", "Constant", "FactorWiseMatrixFactorization",
+    "GlobalAverage", "ItemAttributeKNN", "ItemAverage", "ItemKNNCosine", "ItemKNNPearson",
+    "LogisticRegressionMatrixFactorization", "MatrixFactorization", "Random", "SlopeOne", "SocialMF",
+    "TimeAwareBaseline", "TimeAwareBaselineWithFrequencies", "UserAttributeKNN", "UserAverage",
+    "UserItemBaseline", "UserKNNCosine", "UserKNNPearson"
+  };
+
+  // Command-line parameters
+  static SyntheticData data = new SyntheticData();
+  static BenchmarkRunner runner = new BenchmarkRunner();
+  static String filter = "";
+  static int num_attributes = 200;
+  static int attributes_per_entity = 5;
+  static int relations_per_user = 10;
+  static int num_predictions = 10000;
+  static int num_ranked_users = 50;
+  static int num_train_iter = 3;
+
+  static void usage(String message) {
+    System.out.println(message);
+    System.out.println();
+    usage(-1);
+  }
+
+  static void usage(int exit_code) {
+    System.out.println("MyMediaLite recommender benchmarks " + VERSION);
+    System.out.println("  Usage:   benchmark [OPTIONS]");
+    System.out.println();
+    System.out.println("  General OPTIONS:\n" +
+        "   --benchmark=TEXT             only run benchmarks whose name contains TEXT\n" +
+        "   --list                       list the benchmarks and exit\n" +
+        "   --help                       display this usage information and exit\n" +
+        "   --random-seed=N              create the synthetic data from random seed N\n" +
+        "\n" +
+
+      "  Synthetic data:\n" +
+      "   --num-users=N                number of users (default 2000)\n" +
+      "   --num-items=N                number of items (default 1000)\n" +
+      "   --density=NUM                fraction of observed user-item pairs (default 0.01)\n" +
+      "   --skew=NUM                   power law exponent of user activity and item popularity, 0 is uniform (default 1)\n" +
+      "   --num-attributes=N           number of user and item attributes (default 200)\n" +
+      "   --attributes-per-entity=N    number of attributes per user/item (default 5)\n" +
+      "   --relations-per-user=N       average number of social relations per user (default 10)\n" +
+      "\n" +
+
+      "  Measurement:\n" +
+      "   --warmup-iterations=N        number of warm-up iterations (default 5)\n" +
+      "   --iterations=N               number of measurement iterations (default 10)\n" +
+      "   --iteration-time=N           minimum duration of one iteration in milliseconds (default 500)\n" +
+      "   --num-predictions=N          number of user-item pairs per predict() invocation (default 10000)\n" +
+      "   --num-ranked-users=N         number of users per predictItems() invocation (default 50)\n" +
+      "   --train-iter=N               number of training iterations before benchmarking predict() (default 3)\n");
+
+    System.exit(exit_code);
+  }
+
+  public static void main(String[] args) {
+    boolean list = false;
+    for (String arg : args) {
+      int div = arg.indexOf("=") + 1;
+      String name;
+      String value;
+      if (div > 0) {
+        name = arg.substring(0, div);
+        value = arg.substring(div);
+      } else {
+        name = arg;
+        value = null;
+      }
+
+      // String-valued options
+      if (name.equals("--benchmark="))                  filter                       = value;
+
+      // Integer-valued options
+      else if (name.equals("--random-seed="))           data.randomSeed              = Long.parseLong(value);
+      else if (name.equals("--num-users="))             data.numUsers                = Integer.parseInt(value);
+      else if (name.equals("--num-items="))             data.numItems                = Integer.parseInt(value);
+      else if (name.equals("--num-attributes="))        num_attributes               = Integer.parseInt(value);
+      else if (name.equals("--attributes-per-entity=")) attributes_per_entity        = Integer.parseInt(value);
+      else if (name.equals("--relations-per-user="))    relations_per_user           = Integer.parseInt(value);
+      else if (name.equals("--warmup-iterations="))     runner.warmupIterations      = Integer.parseInt(value);
+      else if (name.equals("--iterations="))            runner.measurementIterations = Integer.parseInt(value);
+      else if (name.equals("--iteration-time="))        runner.iterationTime         = Long.parseLong(value);
+      else if (name.equals("--num-predictions="))       num_predictions              = Integer.parseInt(value);
+      else if (name.equals("--num-ranked-users="))      num_ranked_users             = Integer.parseInt(value);
+      else if (name.equals("--train-iter="))            num_train_iter               = Integer.parseInt(value);
+
+      // Double-valued options
+      else if (name.equals("--density="))               data.density                 = Double.parseDouble(value);
+      else if (name.equals("--skew="))                  data.skew                    = Double.parseDouble(value);
+
+      // Boolean options
+      else if (name.equals("--list"))                   list = true;
+      else if (name.equals("--help"))                   usage(0);
+      else usage("Did not understand " + name);
+    }
+
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    for (Benchmark benchmark : createBenchmarks())
+      if (benchmark.name().contains(filter))
+        benchmarks.add(benchmark);
+
+    if (list) {
+      for (Benchmark benchmark : benchmarks)
+        System.out.println(benchmark.name());
+      System.exit(0);
+    }
+
+    System.out.println("Synthetic data: " + data.numUsers + " users, " + data.numItems + " items, density " + data.density
+        + ", skew " + data.skew + ", random seed " + data.randomSeed);
+    System.out.println("Warm-up iterations " + runner.warmupIterations + ", measurement iterations " + runner.measurementIterations
+        + ", iteration time " + runner.iterationTime + " ms");
+    for (Benchmark benchmark : benchmarks)
+      runner.run(benchmark, System.out);
+    System.out.println("sink " + runner.sink());
+  }
+
+  /**
+   * Create all benchmarks.
+   * @return a list of benchmarks
+   */
+  static List<Benchmark> createBenchmarks() {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+    for (final String name : ITEM_RECOMMENDERS)
+      benchmarks.add(new PredictBenchmark("itemrec." + name + ".predict") {
+        IRecommender createRecommender() throws Exception {
+          ItemRecommender recommender = Recommender.createItemRecommender(name);
+          recommender.setFeedback(data.createFeedback(0));
+          return recommender;
+        }
+      });
+
+    for (final String name : RATING_PREDICTORS)
+      benchmarks.add(new PredictBenchmark("ratingprediction." + name + ".predict") {
+        IRecommender createRecommender() throws Exception {
+          RatingPredictor recommender = Recommender.createRatingPredictor(name);
+          if (recommender instanceof ITimeAwareRatingPredictor)
+            recommender.setRatings(data.createTimedRatings(0));
+          else
+            recommender.setRatings(data.createRatings(0));
+          return recommender;
+        }
+      });
+
+    for (final String name : new String[] { "MostPopular", "BPRMF", "ItemKNN", "WRMF" })
+      benchmarks.add(new Benchmark("itemrec.Extensions.predictItems." + name) {
+        IRecommender recommender;
+        Collection<Integer> candidate_items;
+        int[] users;
+
+        public void setUp() throws Exception {
+          ItemRecommender recommender = Recommender.createItemRecommender(name);
+          IPosOnlyFeedback feedback = data.createFeedback(0);
+          recommender.setFeedback(feedback);
+          train(recommender);
+          this.recommender = recommender;
+          candidate_items = feedback.allItems();
+          users = sampleUsers(num_ranked_users);
+        }
+
+        public int operationsPerInvocation() {
+          return users.length;
+        }
+
+        public double run() {
+          double result = 0;
+          for (int user_id : users)
+            result += Extensions.predictItems(recommender, user_id, candidate_items).get(0);
+          return result;
+        }
+      });
+
+    benchmarks.add(new Benchmark("itemrec.BPRMF.iterate") {
+      BPRMF recommender;
+
+      public void setUp() {
+        recommender = new BPRMF();
+        recommender.setFeedback(data.createFeedback(0));
+        recommender.setNumIter(0);
+        recommender.train();
+      }
+
+      public double run() {
+        recommender.iterate();
+        return recommender.getItemFactors().get(0, 0);
+      }
+    });
+
+    benchmarks.add(new Benchmark("itemrec.WRMF.iterate") {
+      WRMF recommender;
+
+      public void setUp() {
+        recommender = new WRMF();
+        recommender.setFeedback(data.createFeedback(0));
+        recommender.setNumIter(0);
+        recommender.train();
+      }
+
+      public double run() {
+        recommender.iterate();
+        return recommender.getItemFactors().get(0, 0);
+      }
+    });
+
+    benchmarks.add(new Benchmark("ratingprediction.MatrixFactorization.iterate") {
+      MatrixFactorization recommender;
+
+      public void setUp() {
+        recommender = new MatrixFactorization();
+        recommender.setRatings(data.createRatings(0));
+        recommender.setNumIter(0);
+        recommender.train();
+      }
+
+      public double run() {
+        recommender.iterate();
+        return recommender.predict(0, 0);
+      }
+    });
+
+    benchmarks.add(new Benchmark("correlation.BinaryCosine.computeCorrelations") {
+      IBooleanMatrix item_matrix;
+
+      public void setUp() {
+        item_matrix = data.createFeedback(0).itemMatrix();
+      }
+
+      public double run() {
+        BinaryCosine cosine = new BinaryCosine(item_matrix.numberOfRows());
+        cosine.computeCorrelations(item_matrix);
+        return cosine.get(0, 1);
+      }
+    });
+
+    benchmarks.add(new Benchmark("io.RatingData.read") {
+      String text;
+      int num_lines;
+
+      public void setUp() {
+        IRatings ratings = data.createRatings(0);
+        StringBuilder builder = new StringBuilder();
+        for (int index = 0; index < ratings.size(); index++)
+          builder.append(ratings.users().getInt(index)).append('\t')
+                 .append(ratings.items().getInt(index)).append('\t')
+                 .append(ratings.get(index)).append('\n');
+        text = builder.toString();
+        num_lines = ratings.size();
+      }
+
+      public int operationsPerInvocation() {
+        return num_lines;
+      }
+
+      public double run() throws Exception {
+        BufferedReader reader = new BufferedReader(new StringReader(text));
+        return RatingData.read(reader, new EntityMapping(), new EntityMapping(), false).size();
+      }
+    });
+
+    benchmarks.add(new Benchmark("eval.Items.evaluate.MostPopular") {
+      MostPopular recommender;
+      IPosOnlyFeedback training;
+      IPosOnlyFeedback test;
+
+      public void setUp() {
+        training = data.createFeedback(0);
+        test = data.createFeedback(1);
+        recommender = new MostPopular();
+        recommender.setFeedback(training);
+        recommender.train();
+      }
+
+      public double run() {
+        return Items.evaluate(recommender, test, training, null, null).get("AUC");
+      }
+    });
+
+    return benchmarks;
+  }
+
+  /**
+   * Benchmark for the predict() method of a recommender.
+   * One operation is one predict() call.
+   */
+  static abstract class PredictBenchmark extends Benchmark {
+
+    IRecommender recommender;
+    int[] users;
+    int[] items;
+
+    PredictBenchmark(String name) {
+      super(name);
+    }
+
+    abstract IRecommender createRecommender() throws Exception;
+
+    public void setUp() throws Exception {
+      recommender = createRecommender();
+      if (recommender instanceof IItemAttributeAwareRecommender)
+        ((IItemAttributeAwareRecommender) recommender).setItemAttributes(
+            data.createAttributes(data.numItems, num_attributes, attributes_per_entity, 2));
+      if (recommender instanceof IUserAttributeAwareRecommender)
+        ((IUserAttributeAwareRecommender) recommender).setUserAttributes(
+            data.createAttributes(data.numUsers, num_attributes, attributes_per_entity, 3));
+      if (recommender instanceof IUserRelationAwareRecommender)
+        ((IUserRelationAwareRecommender) recommender).setUserRelation(data.createUserRelation(relations_per_user, 4));
+      train(recommender);
+
+      Random random = new Random(data.randomSeed);
+      users = new int[num_predictions];
+      items = new int[num_predictions];
+      for (int i = 0; i < num_predictions; i++) {
+        users[i] = random.nextInt(data.numUsers);
+        items[i] = random.nextInt(data.numItems);
+      }
+    }
+
+    public int operationsPerInvocation() {
+      return users.length;
+    }
+
+    public double run() {
+      double result = 0;
+      for (int i = 0; i < users.length; i++)
+        result += recommender.predict(users[i], items[i]);
+      return result;
+    }
+  }
+
+  /**
+   * Train a recommender, with a reduced number of iterations for iterative models.
+   * @param recommender the recommender to train
+   */
+  static void train(IRecommender recommender) {
+    if (recommender instanceof IIterativeModel)
+      ((IIterativeModel) recommender).setNumIter(num_train_iter);
+    recommender.train();
+  }
+
+  /**
+   * Pick users for ranking benchmarks, spread evenly over all user IDs.
+   * @param n the number of users
+   * @return an array of user IDs
+   */
+  static int[] sampleUsers(int n) {
+    n = Math.min(n, data.numUsers);
+    int[] users = new int[n];
+    for (int i = 0; i < n; i++)
+      users[i] = (int) ((long) i * data.numUsers / n);
+    return users;
+  }
+
+}
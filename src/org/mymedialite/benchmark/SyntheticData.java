@@ -0,0 +1,214 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.mymedialite.benchmark;
+
+import java.util.Arrays;
+import org.mymedialite.data.IPosOnlyFeedback;
+import org.mymedialite.data.IRatings;
+import org.mymedialite.data.PosOnlyFeedback;
+import org.mymedialite.data.Ratings;
+import org.mymedialite.data.SyntheticDataGenerator;
+import org.mymedialite.data.TimedRatings;
+import org.mymedialite.datatype.SparseBooleanMatrix;
+import org.mymedialite.util.Random;
+
+/**
+ * Creates synthetic datasets for benchmarks.
+ *
+ * The number of users and items and the density of the user-item matrix can be chosen freely.
+ * The skew parameter is the exponent of a power law (Zipf) distribution over user activity and
+ * item popularity: 0 gives uniformly distributed events, larger values concentrate the events on
+ * fewer users and items. User and item 0 are the most active/popular ones.
+ *
+ * The events are drawn from SyntheticDataGenerator; repeated user-item pairs are dropped.
+ * All methods are deterministic for a given random seed.
+ * @version 2.03
+ */
+public class SyntheticData {
+
+  /** The number of users */
+  public int numUsers = 2000;
+
+  /** The number of items */
+  public int numItems = 1000;
+
+  /** The fraction of user-item pairs that are observed */
+  public double density = 0.01;
+
+  /** The exponent of the power law distributions of user activity and item popularity */
+  public double skew = 1.0;
+
+  /** The random seed */
+  public long randomSeed = 1;
+
+  /**
+   * Get the number of events (user-item pairs) in a dataset.
+   * @return the number of events
+   */
+  public int numEvents() {
+    return (int) Math.max(1, Math.min((long) numUsers * numItems, Math.round(density * numUsers * numItems)));
+  }
+
+  /**
+   * Create positive-only feedback.
+   * @param seed_offset added to the random seed, e.g. to create test data that is different from the training data
+   * @return the feedback data
+   */
+  public IPosOnlyFeedback createFeedback(int seed_offset) {
+    PosOnlyFeedback<SparseBooleanMatrix> feedback = null;
+    try {
+      feedback = new PosOnlyFeedback<SparseBooleanMatrix>(SparseBooleanMatrix.class);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    SyntheticDataGenerator.Events events = createGenerator(seed_offset).events();
+    int num_events = numEvents();
+    while (feedback.size() < num_events && events.next())
+      if (!feedback.userMatrix().get(events.user, events.item))
+        feedback.add(events.user, events.item);
+    return feedback;
+  }
+
+  /**
+   * Create rating data on a scale from 1 to 5.
+   * The ratings follow the latent factor model of SyntheticDataGenerator.
+   * @param seed_offset added to the random seed
+   * @return the rating data
+   */
+  public IRatings createRatings(int seed_offset) {
+    return createRatings(seed_offset, false);
+  }
+
+  /**
+   * Create rating data with timestamps on a scale from 1 to 5.
+   * The timestamps are spread over two years.
+   * @param seed_offset added to the random seed
+   * @return the rating data, of type TimedRatings
+   */
+  public IRatings createTimedRatings(int seed_offset) {
+    return createRatings(seed_offset, true);
+  }
+
+  private IRatings createRatings(int seed_offset, boolean timed) {
+    SparseBooleanMatrix seen = new SparseBooleanMatrix();
+    SyntheticDataGenerator.Events events = createGenerator(seed_offset).events();
+    int num_events = numEvents();
+    Ratings ratings = timed ? new TimedRatings() : new Ratings();
+    while (ratings.size() < num_events && events.next()) {
+      if (seen.get(events.user, events.item))
+        continue;
+      seen.set(events.user, events.item, true);
+      if (timed)
+        ((TimedRatings) ratings).add(events.user, events.item, events.rating(), events.time());
+      else
+        ratings.add(events.user, events.item, events.rating());
+    }
+    return ratings;
+  }
+
+  /**
+   * Create a generator for the events.
+   * Repeated user-item pairs are skipped by the callers, so the generator is asked for more events than needed.
+   */
+  private SyntheticDataGenerator createGenerator(int seed_offset) {
+    SyntheticDataGenerator generator = new SyntheticDataGenerator();
+    generator.numUsers = numUsers;
+    generator.numItems = numItems;
+    generator.userSkew = skew;
+    generator.itemSkew = skew;
+    generator.shuffleIDs = false;
+    generator.numEvents = 20L * numEvents();
+    generator.randomSeed = randomSeed + seed_offset;
+    return generator;
+  }
+
+  /**
+   * Create binary attributes, e.g. for items.
+   * Attribute popularity follows the same power law as the events.
+   * @param num_entities the number of entities (rows)
+   * @param num_attributes the number of attributes (columns)
+   * @param attributes_per_entity the number of attributes per entity
+   * @param seed_offset added to the random seed
+   * @return the attribute matrix
+   */
+  public SparseBooleanMatrix createAttributes(int num_entities, int num_attributes, int attributes_per_entity, int seed_offset) {
+    SparseBooleanMatrix attributes = new SparseBooleanMatrix();
+    Random random = new Random(randomSeed + seed_offset);
+    double[] attribute_cdf = powerLawCDF(num_attributes, skew);
+    attributes_per_entity = Math.min(attributes_per_entity, num_attributes);
+    for (int e = 0; e < num_entities; e++)
+      while (attributes.get(e).size() < attributes_per_entity)
+        attributes.set(e, sample(attribute_cdf, random), true);
+    return attributes;
+  }
+
+  /**
+   * Create a symmetric binary relation over users, e.g. a social network.
+   * @param relations_per_user the average number of relations per user
+   * @param seed_offset added to the random seed
+   * @return the relation matrix
+   */
+  public SparseBooleanMatrix createUserRelation(int relations_per_user, int seed_offset) {
+    SparseBooleanMatrix relation = new SparseBooleanMatrix();
+    relation.grow(numUsers, numUsers);
+    Random random = new Random(randomSeed + seed_offset);
+    double[] user_cdf = powerLawCDF(numUsers, skew);
+    long num_relations = (long) numUsers * relations_per_user / 2;
+    for (long r = 0; r < num_relations; r++) {
+      int u = random.nextInt(numUsers);
+      int v = sample(user_cdf, random);
+      if (u == v)
+        continue;
+      relation.set(u, v, true);
+      relation.set(v, u, true);
+    }
+    return relation;
+  }
+
+  /**
+   * Compute the cumulative distribution function of a power law over n ranks.
+   * @param n the number of ranks
+   * @param exponent the exponent, 0 for a uniform distribution
+   * @return the CDF, with the last entry being 1
+   */
+  static double[] powerLawCDF(int n, double exponent) {
+    double[] cdf = new double[n];
+    double sum = 0;
+    for (int k = 0; k < n; k++) {
+      sum += Math.pow(k + 1, -exponent);
+      cdf[k] = sum;
+    }
+    for (int k = 0; k < n; k++)
+      cdf[k] /= sum;
+    return cdf;
+  }
+
+  /**
+   * Draw a rank from a CDF.
+   * @param cdf the cumulative distribution function
+   * @param random the random number generator
+   * @return the rank
+   */
+  static int sample(double[] cdf, Random random) {
+    int pos = Arrays.binarySearch(cdf, random.nextDouble());
+    if (pos < 0)
+      pos = -pos - 1;
+    return Math.min(pos, cdf.length - 1);
+  }
+
+}
@@ -0,0 +1,6 @@
+/**
+ * Provides a small harness for micro-benchmarks of recommender hot paths.
+ * 
+ * The benchmarks run on synthetic data, so that the numbers are reproducible and comparable between changes.
+ */
+package org.mymedialite.benchmark;
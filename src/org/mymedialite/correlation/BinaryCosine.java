@@ -20,11 +20,13 @@ package org.mymedialite.correlation;
 
 import it.unimi.dsi.fastutil.ints.IntList;
 
+import java.util.Arrays;
 import java.util.HashSet;
 
 import org.mymedialite.datatype.IBooleanMatrix;
 import org.mymedialite.datatype.SymmetricMatrix;
 import org.mymedialite.util.Memory;
+import org.mymedialite.util.Parallel;
 
 /**
  * Class for storing cosine similarities.
@@ -59,6 +61,88 @@ public final class BinaryCosine extends BinaryDataCorrelationMatrix {
     return cm;
   }
 
+  /**
+   * Creates a sparse matrix of the k highest cosine similarities of each entity from given data.
+   *
+   * Instead of computing all pairs, the overlaps of an entity are counted by going over the other entities
+   * that share each of its attributes (an inverted index of the columns), so entities without common attributes
+   * cost nothing. The k highest similarities of each entity are selected with a bounded heap.
+   * The entities are processed in parallel.
+   *
+   * @param vectors the boolean data, rows contain the entities to correlate
+   * @param k the number of neighbors to keep per entity, Integer.MAX_VALUE for all positively correlated ones
+   * @param num_threads the number of threads, 0 for the number of available processors
+   * @return the sparse similarity matrix, with the same values as the dense one for the stored entries
+   */
+  public static SparseCorrelations createSparse(IBooleanMatrix vectors, final int k, int num_threads) {
+    final int num_entities = vectors.numberOfRows();
+    final int num_columns = vectors.numberOfColumns();
+
+    // Entries by row and by column in compressed arrays
+    final int[] row_offsets = new int[num_entities + 1];
+    for (int x = 0; x < num_entities; x++)
+      row_offsets[x + 1] = row_offsets[x] + vectors.numEntriesByRow(x);
+    final int[] row_entries = new int[row_offsets[num_entities]];
+    final int[] column_offsets = new int[num_columns + 1];
+    for (int x = 0; x < num_entities; x++) {
+      IntList row = vectors.getEntriesByRow(x);
+      for (int n = 0; n < row.size(); n++) {
+        row_entries[row_offsets[x] + n] = row.getInt(n);
+        column_offsets[row.getInt(n) + 1]++;
+      }
+    }
+    for (int c = 0; c < num_columns; c++)
+      column_offsets[c + 1] += column_offsets[c];
+    final int[] column_entries = new int[row_entries.length];
+    int[] fill = Arrays.copyOf(column_offsets, num_columns);
+    for (int x = 0; x < num_entities; x++)
+      for (int n = row_offsets[x]; n < row_offsets[x + 1]; n++)
+        column_entries[fill[row_entries[n]]++] = x;
+
+    final int[][] neighbor_ids = new int[num_entities][];
+    final float[][] neighbor_values = new float[num_entities][];
+    num_threads = Parallel.numThreads(num_threads);
+    final int[][] overlaps = new int[num_threads][];
+    final int[][] touched = new int[num_threads][];
+    final SparseCorrelations.TopK[] top_ks = new SparseCorrelations.TopK[num_threads];
+    Parallel.forRange(0, num_entities, 256, num_threads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        if (overlaps[thread_id] == null) {
+          overlaps[thread_id] = new int[num_entities];
+          touched[thread_id] = new int[num_entities];
+          top_ks[thread_id] = new SparseCorrelations.TopK(Math.min(k, num_entities));
+        }
+        int[] overlap = overlaps[thread_id];
+        int[] touched_entities = touched[thread_id];
+        SparseCorrelations.TopK top_k = top_ks[thread_id];
+
+        for (int x = begin; x < end; x++) {
+          int num_touched = 0;
+          for (int n = row_offsets[x]; n < row_offsets[x + 1]; n++) {
+            int column = row_entries[n];
+            for (int m = column_offsets[column]; m < column_offsets[column + 1]; m++) {
+              int y = column_entries[m];
+              if (y != x && overlap[y]++ == 0)
+                touched_entities[num_touched++] = y;
+            }
+          }
+
+          top_k.clear();
+          int num_entries_x = row_offsets[x + 1] - row_offsets[x];
+          for (int t = 0; t < num_touched; t++) {
+            int y = touched_entities[t];
+            int num_entries_y = row_offsets[y + 1] - row_offsets[y];
+            top_k.offer(y, (float) (overlap[y] / Math.sqrt(num_entries_x * num_entries_y)));
+            overlap[y] = 0;
+          }
+          neighbor_ids[x] = top_k.ids();
+          neighbor_values[x] = top_k.values();
+        }
+      }
+    });
+    return SparseCorrelations.create(num_entities, neighbor_ids, neighbor_values);
+  }
+
   /**
    */
   public void computeCorrelations(IBooleanMatrix entityData) {
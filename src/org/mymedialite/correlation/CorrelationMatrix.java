@@ -155,7 +155,7 @@ public class CorrelationMatrix extends SymmetricMatrix<Float> {
   /**
    * Get all entities that are positively correlated to an entity, sorted by correlation.
    * @param entity_id the entity ID
-   * @return a sorted list of all entities that are positively correlated to entity_id
+   * @return a list of all entities that are positively correlated to entity_id, the most correlated first
    */
   public IntList getPositivelyCorrelatedEntities(int entity_id) {
     List<Neighbor> result = new ArrayList<Neighbor>();
@@ -165,7 +165,7 @@ public class CorrelationMatrix extends SymmetricMatrix<Float> {
         result.add(neighbor);
       }
     }
-    Collections.sort(result);    
+    Collections.sort(result, Collections.reverseOrder());
     IntList ids = new IntArrayList(result.size());
     for(int i = 0; i <result.size() ; i++) {
       ids.add(result.get(i).id);
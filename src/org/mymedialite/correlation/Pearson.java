@@ -18,6 +18,7 @@
 package org.mymedialite.correlation;
 
 import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 
 import java.util.List;
@@ -94,10 +95,11 @@ public class Pearson extends RatingCorrelationMatrix {
     IntList ratings2 = (entityType == EntityType.USER) ? ratings.byUser().get(j) : ratings.byItem().get(j);
 
     // get common ratings for the two entities
-    IntSet e1 = (entityType == EntityType.USER) ? ratings.getItems(ratings1) : ratings.getUsers(ratings1);
     IntSet e2 = (entityType == EntityType.USER) ? ratings.getItems(ratings2) : ratings.getUsers(ratings2);
-
-    e1.retainAll(e2);
+    IntSet e1 = new IntOpenHashSet();
+    for (int other_entity_id : (entityType == EntityType.USER) ? ratings.getItems(ratings1) : ratings.getUsers(ratings1))
+      if (e2.contains(other_entity_id))
+        e1.add(other_entity_id);
 
     int n = e1.size();
     if (n < 2)
@@ -0,0 +1,314 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.correlation;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import org.mymedialite.datatype.CompressedSparseRows;
+
+/**
+ * Correlation matrix that stores only the strongest positive correlations of each entity.
+ *
+ * The entries are kept in compressed sparse row format with the values in a primitive array.
+ * The store is symmetric: if entity j is among the k most correlated entities of i,
+ * the entry is stored in the rows of both i and j. All other correlations are read as 0,
+ * except for the diagonal, which is 1. Only the values of stored entries can be changed.
+ * @version 2.03
+ */
+public class SparseCorrelations extends CorrelationMatrix {
+
+  private final CompressedSparseRows structure;
+  private final float[] values;
+
+  /**
+   * Create a store from its structure and values.
+   * @param structure the positions of the entries
+   * @param values the correlation values by position, must have the length structure.size()
+   */
+  public SparseCorrelations(CompressedSparseRows structure, float[] values) {
+    super(0);
+    if (structure.numberOfRows() != structure.numberOfColumns())
+      throw new IllegalArgumentException("the structure must be square");
+    if (values.length != structure.size())
+      throw new IllegalArgumentException("there must be one value per entry");
+    this.structure = structure;
+    this.values = values;
+    this.numEntities = structure.numberOfRows();
+  }
+
+  /**
+   * Keep the k most positively correlated entities of each entity of a correlation matrix.
+   * @param correlation the correlation matrix
+   * @param k the number of neighbors to keep per entity
+   * @return the sparse correlations
+   */
+  public static SparseCorrelations create(CorrelationMatrix correlation, int k) {
+    if (k < 0)
+      throw new IllegalArgumentException("k must be at least 0: " + k);
+    int num_entities = correlation.numberOfRows();
+    int[][] neighbor_ids = new int[num_entities][];
+    float[][] neighbor_values = new float[num_entities][];
+    TopK top_k = new TopK(Math.min(k, num_entities));
+    for (int i = 0; i < num_entities; i++) {
+      top_k.clear();
+      for (int j = 0; j < num_entities; j++) {
+        float value = correlation.get(i, j);
+        if (j != i && value > 0)
+          top_k.offer(j, value);
+      }
+      neighbor_ids[i] = top_k.ids();
+      neighbor_values[i] = top_k.values();
+    }
+    return create(num_entities, neighbor_ids, neighbor_values);
+  }
+
+  /**
+   * Create a store from the neighbors of each entity.
+   * @param num_entities the number of entities
+   * @param neighbor_ids the IDs of the neighbors of each entity
+   * @param neighbor_values the positive correlations with the neighbors of each entity
+   * @return the sparse correlations, with each entry also stored in the row of the neighbor
+   */
+  static SparseCorrelations create(int num_entities, int[][] neighbor_ids, float[][] neighbor_values) {
+    int size = 0;
+    for (int[] ids : neighbor_ids)
+      size += 2 * ids.length;
+    int[] rows = new int[size];
+    int[] columns = new int[size];
+    float[] entry_values = new float[size];
+    int n = 0;
+    for (int i = 0; i < num_entities; i++)
+      for (int k = 0; k < neighbor_ids[i].length; k++) {
+        int j = neighbor_ids[i][k];
+        float value = neighbor_values[i][k];
+        rows[n] = i;
+        columns[n] = j;
+        entry_values[n++] = value;
+        rows[n] = j;
+        columns[n] = i;
+        entry_values[n++] = value;
+      }
+
+    int[] positions = new int[size];
+    CompressedSparseRows structure = new CompressedSparseRows(num_entities, num_entities, rows, columns, positions);
+    float[] values = new float[structure.size()];
+    for (n = 0; n < size; n++)
+      values[positions[n]] = entry_values[n];
+    return new SparseCorrelations(structure, values);
+  }
+
+  /**
+   * Get the positions of the entries.
+   * @return the structure of the store
+   */
+  public CompressedSparseRows structure() {
+    return structure;
+  }
+
+  /**
+   * Get the correlation value at a position of the structure.
+   * @param position the position
+   * @return the correlation value
+   */
+  public float value(int position) {
+    return values[position];
+  }
+
+  @Override
+  public int numberOfRows() {
+    return numEntities;
+  }
+
+  @Override
+  public int numberOfColumns() {
+    return numEntities;
+  }
+
+  @Override
+  public Float get(int i, int j) {
+    if (i == j)
+      return 1.0F;
+    int pos = structure.find(i, j);
+    return pos == -1 ? 0.0F : values[pos];
+  }
+
+  @Override
+  public void set(int i, int j, Float value) {
+    if (i == j)
+      return;
+    int pos1 = structure.find(i, j);
+    int pos2 = structure.find(j, i);
+    if (pos1 == -1 || pos2 == -1)
+      throw new UnsupportedOperationException("Entry (" + i + ", " + j + ") is not stored");
+    values[pos1] = value;
+    values[pos2] = value;
+  }
+
+  /**
+   * Add entities without any stored correlations.
+   */
+  @Override
+  public void grow(int num_rows, int num_columns) {
+    if (num_rows != num_columns)
+      throw new IllegalArgumentException("num_rows must equal num_columns for symmetric matrices");
+    numEntities = Math.max(numEntities, num_rows);
+  }
+
+  @Override
+  public IntList getPositivelyCorrelatedEntities(int entity_id) {
+    int[] neighbors = sortedRow(entity_id, false);
+    return IntArrayList.wrap(neighbors);
+  }
+
+  /**
+   * Get the k nearest neighbors of a given entity.
+   * Only the stored neighbors are returned, so there may be fewer than k.
+   * @param entity_id the numerical ID of the entity
+   * @param k the neighborhood size
+   * @return an array containing the numerical IDs of the k nearest neighbors
+   */
+  @Override
+  public int[] getNearestNeighbors(int entity_id, int k) {
+    int[] neighbors = sortedRow(entity_id, true);
+    return neighbors.length > k ? Arrays.copyOf(neighbors, k) : neighbors;
+  }
+
+  /**
+   * Sort the stored neighbors of an entity by descending correlation.
+   * @param entity_id the entity ID
+   * @param descending_ids if true, ties are sorted by descending ID, otherwise by ascending ID
+   * @return the neighbor IDs
+   */
+  private int[] sortedRow(int entity_id, boolean descending_ids) {
+    if (entity_id >= structure.numberOfRows())
+      return new int[0];
+    int start = structure.rowStart(entity_id);
+    long[] keys = new long[structure.rowEnd(entity_id) - start];
+    for (int n = 0; n < keys.length; n++) {
+      // For positive floats, the bit patterns have the same order as the values
+      int id = structure.column(start + n);
+      keys[n] = ((long) (Integer.MAX_VALUE - Float.floatToIntBits(values[start + n])) << 32) | (descending_ids ? Integer.MAX_VALUE - id : id);
+    }
+    Arrays.sort(keys);
+    int[] neighbors = new int[keys.length];
+    for (int n = 0; n < keys.length; n++)
+      neighbors[n] = descending_ids ? Integer.MAX_VALUE - (int) keys[n] : (int) keys[n];
+    return neighbors;
+  }
+
+  @Override
+  public void write(PrintWriter writer) {
+    writer.println(numEntities);
+    for (int i = 0; i < structure.numberOfRows(); i++)
+      for (int pos = structure.rowStart(i); pos < structure.rowEnd(i); pos++)
+        if (structure.column(pos) > i)
+          writer.println(i + " " + structure.column(pos) + " " + values[pos]);
+  }
+
+  /**
+   * Bounded selection of the neighbors with the highest positive correlations.
+   * Of several neighbors with the same correlation, the ones with the higher IDs are kept.
+   */
+  static final class TopK {
+    private final int capacity;
+    private int[] ids;
+    private float[] values;
+    private int size;
+
+    /**
+     * Create an empty selection.
+     * @param capacity the maximum number of neighbors to keep
+     */
+    TopK(int capacity) {
+      this.capacity = capacity;
+      this.ids = new int[Math.min(capacity, 16)];
+      this.values = new float[ids.length];
+    }
+
+    /** Remove all neighbors. */
+    void clear() {
+      size = 0;
+    }
+
+    /**
+     * Offer a neighbor.
+     * @param id the neighbor ID
+     * @param value the correlation
+     */
+    void offer(int id, float value) {
+      if (capacity == 0)
+        return;
+      if (size < capacity) {
+        if (size == ids.length) {
+          int new_length = (int) Math.min(capacity, 2L * ids.length);
+          ids = Arrays.copyOf(ids, new_length);
+          values = Arrays.copyOf(values, new_length);
+        }
+        // Sift up in the min-heap
+        int pos = size++;
+        while (pos > 0) {
+          int parent = (pos - 1) / 2;
+          if (!less(id, value, ids[parent], values[parent]))
+            break;
+          ids[pos] = ids[parent];
+          values[pos] = values[parent];
+          pos = parent;
+        }
+        ids[pos] = id;
+        values[pos] = value;
+      } else if (less(ids[0], values[0], id, value)) {
+        // Replace the weakest neighbor and sift down
+        int pos = 0;
+        while (true) {
+          int child = 2 * pos + 1;
+          if (child >= size)
+            break;
+          if (child + 1 < size && less(ids[child + 1], values[child + 1], ids[child], values[child]))
+            child++;
+          if (!less(ids[child], values[child], id, value))
+            break;
+          ids[pos] = ids[child];
+          values[pos] = values[child];
+          pos = child;
+        }
+        ids[pos] = id;
+        values[pos] = value;
+      }
+    }
+
+    private static boolean less(int id1, float value1, int id2, float value2) {
+      return value1 < value2 || (value1 == value2 && id1 < id2);
+    }
+
+    /** @return the IDs of the kept neighbors, in no particular order */
+    int[] ids() {
+      return Arrays.copyOf(ids, size);
+    }
+
+    /** @return the correlations of the kept neighbors, in the order of ids() */
+    float[] values() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+
+}
@@ -18,6 +18,8 @@
 
 package org.mymedialite.data;
 
+import it.unimi.dsi.fastutil.ints.IntList;
+
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
@@ -29,10 +31,42 @@ import java.util.List;
 public interface ITimedDataSet extends IDataSet, Comparator<Integer> {
 
   /**
-   * the item entries.
+   * the time entries.
+   * The Date objects are created on access; use time(int) to avoid that.
    */
   List<Date> times();
 
+  /**
+   * Get the time of an entry.
+   * @param index the index of the entry
+   * @return the time in milliseconds since the epoch
+   */
+  long time(int index);
+
+  /**
+   * Get the indices of all entries in chronological order.
+   * Entries with the same time are in the order of their indices.
+   * The list is built on first access and must not be modified.
+   * @return the indices sorted by time
+   */
+  IntList chronologicalIndex();
+
+  /**
+   * Get the day of each entry, relative to the earliest time in the dataset.
+   * A day is a period of 24 hours starting at the earliest time.
+   * The array is built on first access and must not be modified.
+   * @return the days by entry index
+   */
+  int[] days();
+
+  /**
+   * Get the bin of each entry, i.e. its day divided by the bin size.
+   * The array is built on first access and must not be modified.
+   * @param bin_size the bin size in days
+   * @return the bins by entry index
+   */
+  int[] bins(int bin_size);
+
   /**
    * earliest time.
    */
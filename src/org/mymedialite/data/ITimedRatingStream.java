@@ -0,0 +1,64 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.data;
+
+import java.io.IOException;
+
+/**
+ * A stream of rating events in chronological order.
+ *
+ * The stream is a cursor: call next() to move to the next event, then read its fields.
+ * For positive-only feedback, the rating is ignored.
+ * @version 2.03
+ */
+public interface ITimedRatingStream {
+
+  /**
+   * Move to the next event.
+   * A stream that reads from a growing source may return true again after it has returned false.
+   * @return true if there is a next event, false if no event is available
+   * @throws IOException if the event source cannot be read
+   */
+  boolean next() throws IOException;
+
+  /**
+   * Get the user ID of the current event.
+   * @return the user ID
+   */
+  int user();
+
+  /**
+   * Get the item ID of the current event.
+   * @return the item ID
+   */
+  int item();
+
+  /**
+   * Get the rating of the current event.
+   * @return the rating value
+   */
+  double rating();
+
+  /**
+   * Get the time of the current event.
+   * @return the time in milliseconds since the Unix epoch
+   */
+  long time();
+
+}
@@ -38,4 +38,13 @@ public interface ITimedRatings extends IRatings, ITimedDataSet {
    */
   void add(int user_id, int item_id, double rating, Date time);
 
+  /**
+   * Add a rating event including time information.
+   * @param user_id the user ID
+   * @param item_id the item ID
+   * @param rating the rating value
+   * @param time the time of the rating event in milliseconds since the epoch
+   */
+  void add(int user_id, int item_id, double rating, long time);
+
 }
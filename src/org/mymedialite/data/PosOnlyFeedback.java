@@ -112,8 +112,8 @@ public class PosOnlyFeedback<T extends IBooleanMatrix> extends DataSet implement
   public void remove(int user_id, int item_id) {
     Integer index;
     while((index = tryGetIndex(user_id, item_id)) != null) {
-      users.remove(index);
-      items.remove(index);
+      users.removeInt(index);
+      items.removeInt(index);
     }
 
     if (userMatrix != null) userMatrix.set(user_id, item_id, false);
@@ -130,7 +130,7 @@ public class PosOnlyFeedback<T extends IBooleanMatrix> extends DataSet implement
     users.remove(index);
     items.remove(index);
 
-    if (tryGetIndex(user_id, item_id) == -1) {
+    if (tryGetIndex(user_id, item_id) == null) {
       if (userMatrix != null) userMatrix.set(user_id, item_id, false);
       if (itemMatrix != null) itemMatrix.set(item_id, user_id, false);
     }
@@ -205,20 +205,54 @@ public class Ratings extends DataSet implements IRatings {
     }
   }
 
+  /**
+   * Remove the rating at the specified index.
+   * The last rating takes the place of the removed one, so that the user and item indices can be kept
+   * up to date in time linear in the number of ratings of the users and items involved.
+   * @param index the rating index
+   */
   public void removeAt(int index) {
-    users.remove(index);
-    items.remove(index);
-    values.removeDouble(index);
+    int last = size() - 1;
+    int user_id = users.getInt(index);
+    int item_id = items.getInt(index);
+    int last_user_id = users.getInt(last);
+    int last_item_id = items.getInt(last);
+    if (index != last) {
+      users.set(index, last_user_id);
+      items.set(index, last_item_id);
+      values.set(index, values.getDouble(last));
+    }
+    users.removeInt(last);
+    items.removeInt(last);
+    values.removeDouble(last);
+
+    if (byUser != null) {
+      byUser.get(user_id).rem(index);
+      if (index != last)
+        replace(byUser.get(last_user_id), last, index);
+    }
+    if (byItem != null) {
+      byItem.get(item_id).rem(index);
+      if (index != last)
+        replace(byItem.get(last_item_id), last, index);
+    }
+  }
+
+  private static void replace(IntList indices, int old_index, int new_index) {
+    indices.set(indices.indexOf(old_index), new_index);
   }
 
   @Override
   public void removeUser(int user_id) {
     for (int index = 0; index < size(); index++)
       if (users.getInt(index) == user_id) {
-        users.remove(index);
-        items.remove(index);
-        values.remove(index);
+        users.removeInt(index);
+        items.removeInt(index);
+        values.removeDouble(index);
+        index--;
       }
+    byUser = null;
+    byItem = null;
     if (maxUserID == user_id)
       maxUserID--;
   }
@@ -227,10 +261,13 @@ public class Ratings extends DataSet implements IRatings {
   public void removeItem(int item_id) {
     for (int index = 0; index < size(); index++)
       if (items.getInt(index) == item_id) {
-        users.remove(index);
-        items.remove(index);
-        values.remove(index);
+        users.removeInt(index);
+        items.removeInt(index);
+        values.removeDouble(index);
+        index--;
       }
+    byUser = null;
+    byItem = null;
     if (maxItemID == item_id)
       maxItemID--;
   }       
@@ -21,9 +21,7 @@ import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
-import java.util.EnumSet;
 import java.util.List;
 
 /**
@@ -64,8 +62,7 @@ public class RatingsChronologicalSplit implements ISplit<ITimedRatings> {
    * Create a chronological split of rating prediction data.
    * 
    * If ratings have exactly the same date and time, and they are close to the threshold between
-   * train and test, there is no guaranteed order between them (ties are broken according to how the
-   * sorting procedure sorts the ratings).
+   * train and test, the rating with the smaller index is assigned to the training part.
    * 
    * @param ratings the dataset
    * @param ratio the ratio of ratings to use for validation
@@ -75,10 +72,7 @@ public class RatingsChronologicalSplit implements ISplit<ITimedRatings> {
     if (ratio <= 0 && ratio >= 1)
       throw new IllegalArgumentException("ratio must be between 0 and 1");
 
-    List<Integer> chronological_index = new ArrayList<Integer>();
-    for(int i=0; i < ratings.size(); i++) chronological_index.add(i);
-    
-    Collections.sort(chronological_index, ratings);
+    IntList chronological_index = ratings.chronologicalIndex();
     int num_test_ratings  = (int) Math.round(ratings.size() * ratio);
     int num_train_ratings = ratings.size() - num_test_ratings;
     
@@ -86,12 +80,12 @@ public class RatingsChronologicalSplit implements ISplit<ITimedRatings> {
 
     IntList train_indices = new IntArrayList(num_train_ratings);
     for (int i = 0; i < num_train_ratings; i++)
-      train_indices.add(chronological_index.get(i));
+      train_indices.add(chronological_index.getInt(i));
 
     // Assign indices to test part
     IntList test_indices  = new IntArrayList(num_test_ratings);
     for (int i = 0; i < num_test_ratings; i++)
-        test_indices.add(chronological_index.get(i + num_train_ratings));
+        test_indices.add(chronological_index.getInt(i + num_train_ratings));
     
     // Create split data structures
     train = new ArrayList<ITimedRatings>();
@@ -115,10 +109,12 @@ public class RatingsChronologicalSplit implements ISplit<ITimedRatings> {
     if (split_time.after(ratings.latestTime()))
       throw new IllegalArgumentException("split_time must be before the latest event : the data set");
 
+    long split_millis = split_time.getTime();
+
     // Determine size of split
     int count = 0;
     for (int i = 0; i < ratings.size(); i++)
-      if (ratings.times().get(i).before(split_time))    
+      if (ratings.time(i) < split_millis)
         count++;
       
     // Create indices
@@ -126,13 +122,11 @@ public class RatingsChronologicalSplit implements ISplit<ITimedRatings> {
     IntList test_indices  = new IntArrayList(ratings.size() - count);
 
     // Assign ratings to where they belong
-    int trainCount = 0;
-    int testCount = 0;    
     for (int i = 0; i < ratings.size(); i++)
-      if (ratings.times().get(i).before(split_time))
-        train_indices.set(trainCount++, i);
+      if (ratings.time(i) < split_millis)
+        train_indices.add(i);
       else
-        test_indices.set(testCount++, i);
+        test_indices.add(i);
 
     // Create split data structures
     train = new ArrayList<ITimedRatings>();
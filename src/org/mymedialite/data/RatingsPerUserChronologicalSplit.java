@@ -21,8 +21,6 @@ import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
 import java.util.List;
 
 /**
@@ -50,12 +48,12 @@ public class RatingsPerUserChronologicalSplit implements ISplit<ITimedRatings> {
   /**
    * 
    */
-  public List<ITimedRatings> train; 
+  public List<ITimedRatings> train = new ArrayList<ITimedRatings>();
 
   /**
    * 
    */
-  public List<ITimedRatings> test;
+  public List<ITimedRatings> test = new ArrayList<ITimedRatings>();
 
   @Override
   public List<ITimedRatings> train() {
@@ -71,8 +69,7 @@ public class RatingsPerUserChronologicalSplit implements ISplit<ITimedRatings> {
    * Create a chronological split of rating prediction data.
    * 
    * If ratings have exactly the same date and time, and they are close to the threshold between
-   * train and test, there is no guaranteed order between them (ties are broken according to how the
-   * sorting procedure sorts the ratings).
+   * train and test, the rating with the smaller index is assigned to the training part.
    * 
    * @param ratings the dataset
    * @param ratio the ratio of ratings to use for validation (per user)
@@ -84,23 +81,22 @@ public class RatingsPerUserChronologicalSplit implements ISplit<ITimedRatings> {
 
     IntList train_indices = new IntArrayList();
     IntList test_indices  = new IntArrayList();
+    int[] offsets = new int[ratings.maxUserID() + 2];
+    int[] chronological_index = chronologicalIndexByUser(ratings, offsets);
 
     // For every user, perform the split and assign the ratings accordingly
-    for (int u : ratings.allUsers()) {
-
-      List<Integer> chronological_index = ratings.byUser().get(u);
-      Collections.sort(chronological_index, ratings);
-
-      int num_test_ratings  = (int) Math.round(ratings.byUser().get(u).size() * ratio);
-      int num_train_ratings = ratings.byUser().get(u).size() - num_test_ratings;
+    for (int u = 0; u <= ratings.maxUserID(); u++) {
+      int num_ratings = offsets[u + 1] - offsets[u];
+      int num_test_ratings  = (int) Math.round(num_ratings * ratio);
+      int num_train_ratings = num_ratings - num_test_ratings;
      
       // Assign indices to training part
       for (int i = 0; i < num_train_ratings; i++)
-        train_indices.add(chronological_index.get(i));
+        train_indices.add(chronological_index[offsets[u] + i]);
 
       // Assign indices to test part
       for (int i = 0; i < num_test_ratings; i++)
-        test_indices.add(chronological_index.get(i + num_train_ratings));
+        test_indices.add(chronological_index[offsets[u] + i + num_train_ratings]);
     }
 
     // Create split data structures
@@ -112,8 +108,7 @@ public class RatingsPerUserChronologicalSplit implements ISplit<ITimedRatings> {
    * Create a chronological split of rating prediction data.
    * 
    * If ratings have exactly the same date and time, and they are close to the threshold between
-   * train and test, there is no guaranteed order between them (ties are broken according to how the
-   * sorting procedure sorts the ratings).
+   * train and test, the rating with the smaller index is assigned to the training part.
    * 
    * @param ratings the dataset
    * @param num_test_ratings_per_user the number of test ratings (per user)
@@ -121,23 +116,22 @@ public class RatingsPerUserChronologicalSplit implements ISplit<ITimedRatings> {
   public RatingsPerUserChronologicalSplit(ITimedRatings ratings, int num_test_ratings_per_user) {
     IntList train_indices = new IntArrayList();
     IntList test_indices  = new IntArrayList();
+    int[] offsets = new int[ratings.maxUserID() + 2];
+    int[] chronological_index = chronologicalIndexByUser(ratings, offsets);
 
     // For every user, perform the split and assign the ratings accordingly
-    for (int u : ratings.allUsers()) {
-
-      List<Integer> chronological_index = ratings.byUser().get(u);
-      Collections.sort(chronological_index, ratings);
-
-      int num_test_ratings  = Math.min(num_test_ratings_per_user, ratings.byUser().get(u).size());
-      int num_train_ratings = ratings.byUser().get(u).size() - num_test_ratings;
+    for (int u = 0; u <= ratings.maxUserID(); u++) {
+      int num_ratings = offsets[u + 1] - offsets[u];
+      int num_test_ratings  = Math.min(num_test_ratings_per_user, num_ratings);
+      int num_train_ratings = num_ratings - num_test_ratings;
 
       // Assign indices to training part
       for (int i = 0; i < num_train_ratings; i++)
-        train_indices.add(chronological_index.get(i));
+        train_indices.add(chronological_index[offsets[u] + i]);
 
       // Assign indices to test part
       for (int i = 0; i < num_test_ratings; i++)
-        test_indices.add(chronological_index.get(i + num_train_ratings));
+        test_indices.add(chronological_index[offsets[u] + i + num_train_ratings]);
     }
 
     // Create split data structures
@@ -145,5 +139,26 @@ public class RatingsPerUserChronologicalSplit implements ISplit<ITimedRatings> {
     test.add(new TimedRatingsProxy(ratings, test_indices));
   }
 
-}
+  /**
+   * Group the chronological index of a dataset by user.
+   * The ratings of a user keep their chronological order.
+   * @param ratings the dataset
+   * @param offsets receives the start of each user's ratings, must have maxUserID() + 2 entries
+   * @return the rating indices, grouped by user and sorted by time within each user
+   */
+  static int[] chronologicalIndexByUser(ITimedRatings ratings, int[] offsets) {
+    for (int index = 0; index < ratings.size(); index++)
+      offsets[ratings.users().getInt(index) + 1]++;
+    for (int u = 0; u < offsets.length - 1; u++)
+      offsets[u + 1] += offsets[u];
+
+    int[] result = new int[ratings.size()];
+    int[] fill = new int[offsets.length - 1];
+    for (int index : ratings.chronologicalIndex()) {
+      int u = ratings.users().getInt(index);
+      result[offsets[u] + fill[u]++] = index;
+    }
+    return result;
+  }
 
+}
@@ -0,0 +1,449 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.mymedialite.data;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import org.mymedialite.datatype.SparseBooleanMatrix;
+import org.mymedialite.util.Random;
+
+/**
+ * Generator for large synthetic datasets, see usage() method for more information.
+ *
+ * User activity and item popularity follow power law (Zipf) distributions with configurable exponents.
+ * Ratings are created from a latent factor model: global mean plus user and item bias plus the scalar
+ * product of user and item factors plus Gaussian noise, rounded to the rating scale.
+ * Timestamps increase with the event number and are spread evenly over the configured period,
+ * so the events come out in chronological order.
+ * The ratings and timestamps do not change the sequence of user-item pairs, so positive-only feedback
+ * and ratings created with the same settings contain the same pairs.
+ *
+ * The events are streamed: the latent factors and biases are derived from a hash of the entity ID,
+ * and users and items are sampled by inverting the (continuous) power law CDF, so the memory needed
+ * does not depend on the number of users, items or events. This makes it possible to write datasets
+ * with 10^9 events to disk.
+ * The in-memory methods are limited to Integer.MAX_VALUE events.
+ *
+ * As in real interaction logs, a user-item pair may occur more than once.
+ * All output is deterministic for a given random seed.
+ * @version 2.03
+ */
+public class SyntheticDataGenerator {
+
+  /** Number of events after which the write methods check the writer for errors */
+  private static final long CHECK_INTERVAL = 1 << 16;
+
+  /** The number of users */
+  public int numUsers = 1000;
+
+  /** The number of items */
+  public int numItems = 1000;
+
+  /** The number of events to generate */
+  public long numEvents = 100000;
+
+  /** Exponent of the power law distribution of user activity; 0 gives uniform activity */
+  public double userSkew = 1.0;
+
+  /** Exponent of the power law distribution of item popularity; 0 gives uniform popularity */
+  public double itemSkew = 1.0;
+
+  /** If true, the most active users/popular items get scattered IDs; otherwise ID 0 is the most active/popular */
+  public boolean shuffleIDs = true;
+
+  /** Number of latent factors of the rating model */
+  public int numFactors = 5;
+
+  /** Standard deviation of the latent factors */
+  public double factorStdDev = 0.4;
+
+  /** Standard deviation of the user and item biases */
+  public double biasStdDev = 0.5;
+
+  /** Standard deviation of the rating noise */
+  public double noiseStdDev = 0.5;
+
+  /** The minimum rating */
+  public double minRating = 1;
+
+  /** The maximum rating */
+  public double maxRating = 5;
+
+  /** The rating step, e.g. 1 for integer ratings; 0 for continuous ratings */
+  public double ratingStep = 1;
+
+  /** The time of the first event, in milliseconds since the Unix epoch */
+  public long startTime = 1104537600000L; // 2005-01-01
+
+  /** The period over which the events are spread, in milliseconds */
+  public long duration = 2L * 365 * 24 * 60 * 60 * 1000;
+
+  /** The random seed */
+  public long randomSeed = 1;
+
+  /**
+   * A cursor over the generated events.
+   *
+   * The same object is used for all events, call next() to move to the next event.
+   */
+  public class Events {
+
+    private Random random = new Random(randomSeed);
+    private long index = -1;
+    private long user_multiplier = multiplier(numUsers);
+    private long item_multiplier = multiplier(numItems);
+
+    /** The user ID of the current event */
+    public int user;
+
+    /** The item ID of the current event */
+    public int item;
+
+    /**
+     * Move to the next event.
+     * @return true if there is a next event, false if all events have been generated
+     */
+    public boolean next() {
+      if (index + 1 >= numEvents)
+        return false;
+      index++;
+      user = scatter(samplePowerLaw(numUsers, userSkew, random.nextDouble()), numUsers, user_multiplier);
+      item = scatter(samplePowerLaw(numItems, itemSkew, random.nextDouble()), numItems, item_multiplier);
+      return true;
+    }
+
+    /**
+     * Get the number of the current event.
+     * @return the number of the current event, starting with 0
+     */
+    public long index() {
+      return index;
+    }
+
+    /**
+     * Get the rating of the current event.
+     * @return the rating
+     */
+    public double rating() {
+      return SyntheticDataGenerator.this.rating(user, item, noiseStdDev * gaussian(randomSeed, 2, index, 0));
+    }
+
+    /**
+     * Get the time of the current event.
+     * @return the time in milliseconds since the Unix epoch
+     */
+    public long time() {
+      return startTime + (long) ((double) index / numEvents * duration);
+    }
+  }
+
+  /**
+   * Get a cursor over the events.
+   * Each call starts a new pass over the same events.
+   * @return the events
+   */
+  public Events events() {
+    return new Events();
+  }
+
+  /**
+   * Create positive-only feedback in memory.
+   * @return the feedback data
+   */
+  public IPosOnlyFeedback createPosOnlyFeedback() {
+    checkInMemorySize();
+    PosOnlyFeedback<SparseBooleanMatrix> feedback;
+    try {
+      feedback = new PosOnlyFeedback<SparseBooleanMatrix>(SparseBooleanMatrix.class);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    Events events = events();
+    while (events.next())
+      feedback.add(events.user, events.item);
+    return feedback;
+  }
+
+  /**
+   * Create rating data in memory.
+   * @return the rating data
+   */
+  public IRatings createRatings() {
+    checkInMemorySize();
+    Ratings ratings = new Ratings();
+    Events events = events();
+    while (events.next())
+      ratings.add(events.user, events.item, events.rating());
+    return ratings;
+  }
+
+  /**
+   * Create rating data with time information in memory.
+   * @return the rating data
+   */
+  public ITimedRatings createTimedRatings() {
+    checkInMemorySize();
+    TimedRatings ratings = new TimedRatings();
+    Events events = events();
+    while (events.next())
+      ratings.add(events.user, events.item, events.rating(), events.time());
+    return ratings;
+  }
+
+  /**
+   * Write positive-only feedback in the format read by io.ItemData: one user-item pair per line.
+   * @param writer the writer to write to
+   * @throws IOException if the writer reports an error
+   */
+  public void writePosOnlyFeedback(PrintWriter writer) throws IOException {
+    Events events = events();
+    for (long count = 1; events.next(); count++) {
+      writer.print(events.user);
+      writer.print('\t');
+      writer.println(events.item);
+      if (count % CHECK_INTERVAL == 0)
+        checkError(writer);
+    }
+    checkError(writer);
+  }
+
+  /**
+   * Write rating data in the format read by io.RatingData: user, item and rating per line.
+   * @param writer the writer to write to
+   * @throws IOException if the writer reports an error
+   */
+  public void writeRatings(PrintWriter writer) throws IOException {
+    Events events = events();
+    for (long count = 1; events.next(); count++) {
+      writer.print(events.user);
+      writer.print('\t');
+      writer.print(events.item);
+      writer.print('\t');
+      writer.println(formatRating(events.rating()));
+      if (count % CHECK_INTERVAL == 0)
+        checkError(writer);
+    }
+    checkError(writer);
+  }
+
+  /**
+   * Write rating data with time information in the format read by io.TimedRatingData:
+   * user, item, rating and seconds since the Unix epoch per line.
+   * @param writer the writer to write to
+   * @throws IOException if the writer reports an error
+   */
+  public void writeTimedRatings(PrintWriter writer) throws IOException {
+    Events events = events();
+    for (long count = 1; events.next(); count++) {
+      writer.print(events.user);
+      writer.print('\t');
+      writer.print(events.item);
+      writer.print('\t');
+      writer.print(formatRating(events.rating()));
+      writer.print('\t');
+      writer.println(events.time() / 1000);
+      if (count % CHECK_INTERVAL == 0)
+        checkError(writer);
+    }
+    checkError(writer);
+  }
+
+  /**
+   * Flush a writer and check whether it has encountered an error, as PrintWriter does not throw.
+   */
+  private static void checkError(PrintWriter writer) throws IOException {
+    if (writer.checkError())
+      throw new IOException("Error writing data");
+  }
+
+  /**
+   * Compute the rating of a user for an item, following the latent factor model.
+   * @param user_id the user ID
+   * @param item_id the item ID
+   * @param noise the noise to add
+   * @return the rating, rounded to the rating scale
+   */
+  double rating(int user_id, int item_id, double noise) {
+    double rating = (minRating + maxRating) / 2
+        + biasStdDev * gaussian(randomSeed, 0, user_id, -1)
+        + biasStdDev * gaussian(randomSeed, 1, item_id, -1)
+        + noise;
+    for (int f = 0; f < numFactors; f++)
+      rating += factorStdDev * gaussian(randomSeed, 0, user_id, f) * factorStdDev * gaussian(randomSeed, 1, item_id, f);
+    if (ratingStep > 0)
+      rating = minRating + Math.round((rating - minRating) / ratingStep) * ratingStep;
+    return Math.max(minRating, Math.min(maxRating, rating));
+  }
+
+  private String formatRating(double rating) {
+    if (ratingStep > 0 && ratingStep == Math.rint(ratingStep) && minRating == Math.rint(minRating))
+      return Long.toString((long) rating);
+    return Double.toString(rating);
+  }
+
+  private void checkInMemorySize() {
+    if (numEvents > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Too many events to keep in memory: " + numEvents + ", use the write methods instead");
+  }
+
+  /**
+   * Draw a rank from a power law distribution by inverting its continuous CDF.
+   * @param n the number of ranks
+   * @param exponent the exponent of the power law, 0 for a uniform distribution
+   * @param u a uniformly distributed number in [0, 1)
+   * @return a rank between 0 and n - 1, 0 being the most likely one
+   */
+  static int samplePowerLaw(int n, double exponent, double u) {
+    double x;
+    if (Math.abs(exponent - 1) < 1E-9)
+      x = Math.exp(u * Math.log(n + 1));
+    else
+      x = Math.pow((Math.pow(n + 1, 1 - exponent) - 1) * u + 1, 1 / (1 - exponent));
+    return Math.max(0, Math.min(n - 1, (int) x - 1));
+  }
+
+  /**
+   * Map a rank to an ID using a bijection on 0..n-1.
+   */
+  private int scatter(int rank, int n, long multiplier) {
+    if (!shuffleIDs)
+      return rank;
+    long id = (rank * multiplier + randomSeed) % n;
+    return (int) (id < 0 ? id + n : id);
+  }
+
+  /**
+   * Find a multiplier that is coprime to n, so that scatter() is a bijection.
+   */
+  private static long multiplier(int n) {
+    long m = 2654435761L % Math.max(n, 1);
+    while (gcd(m, n) != 1)
+      m++;
+    return m;
+  }
+
+  private static long gcd(long a, long b) {
+    while (b != 0) {
+      long t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
+  }
+
+  /**
+   * Get a standard normal number that is a deterministic function of its arguments.
+   * Used to derive latent factors and biases without storing them.
+   */
+  static double gaussian(long seed, int type, long id, int factor) {
+    long h = mix(seed * 31 + type);
+    h = mix(h ^ id);
+    h = mix(h ^ (factor + 1));
+    double u1 = ((h >>> 11) + 1) / 9007199254740993.0; // in (0, 1]
+    double u2 = (mix(h) >>> 11) / 9007199254740992.0;  // in [0, 1)
+    return Math.sqrt(-2 * Math.log(u1)) * Math.cos(2 * Math.PI * u2);
+  }
+
+  /**
+   * SplitMix64 finalizer.
+   */
+  private static long mix(long z) {
+    z += 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  static void usage(String message) {
+    System.out.println(message);
+    System.out.println();
+    usage(-1);
+  }
+
+  static void usage(int exit_code) {
+    System.out.println("MyMediaLite synthetic data generator 2.03");
+    System.out.println("  Usage:   generate_data --output-file=FILE [OPTIONS]");
+    System.out.println();
+    System.out.println("  OPTIONS:\n" +
+        "   --output-file=FILE           write the data to FILE, - for STDOUT\n" +
+        "   --type=posonly|ratings|timed write positive-only feedback, ratings, or ratings with timestamps (default: ratings)\n" +
+        "   --num-users=N                number of users (default 1000)\n" +
+        "   --num-items=N                number of items (default 1000)\n" +
+        "   --num-events=N               number of events (default 100000)\n" +
+        "   --user-skew=NUM              power law exponent of user activity, 0 is uniform (default 1)\n" +
+        "   --item-skew=NUM              power law exponent of item popularity, 0 is uniform (default 1)\n" +
+        "   --num-factors=N              number of latent factors of the rating model (default 5)\n" +
+        "   --noise=NUM                  standard deviation of the rating noise (default 0.5)\n" +
+        "   --random-seed=N              initialize the random number generator with N\n" +
+        "   --help                       display this usage information and exit\n");
+    System.exit(exit_code);
+  }
+
+  public static void main(String[] args) throws IOException {
+    SyntheticDataGenerator generator = new SyntheticDataGenerator();
+    String output_file = null;
+    String type = "ratings";
+
+    for (String arg : args) {
+      int div = arg.indexOf("=") + 1;
+      String name;
+      String value;
+      if (div > 0) {
+        name = arg.substring(0, div);
+        value = arg.substring(div);
+      } else {
+        name = arg;
+        value = null;
+      }
+
+      if (name.equals("--output-file="))      output_file           = value;
+      else if (name.equals("--type="))        type                  = value;
+      else if (name.equals("--num-users="))   generator.numUsers    = Integer.parseInt(value);
+      else if (name.equals("--num-items="))   generator.numItems    = Integer.parseInt(value);
+      else if (name.equals("--num-events="))  generator.numEvents   = Long.parseLong(value);
+      else if (name.equals("--num-factors=")) generator.numFactors  = Integer.parseInt(value);
+      else if (name.equals("--random-seed=")) generator.randomSeed  = Long.parseLong(value);
+      else if (name.equals("--user-skew="))   generator.userSkew    = Double.parseDouble(value);
+      else if (name.equals("--item-skew="))   generator.itemSkew    = Double.parseDouble(value);
+      else if (name.equals("--noise="))       generator.noiseStdDev = Double.parseDouble(value);
+      else if (name.equals("--help"))         usage(0);
+      else usage("Did not understand " + name);
+    }
+    if (output_file == null)
+      usage("--output-file=FILE is missing");
+
+    PrintWriter writer;
+    if (output_file.equals("-"))
+      writer = new PrintWriter(System.out);
+    else
+      writer = new PrintWriter(new BufferedWriter(new FileWriter(output_file), 1 << 16));
+
+    if (type.equals("posonly"))
+      generator.writePosOnlyFeedback(writer);
+    else if (type.equals("ratings"))
+      generator.writeRatings(writer);
+    else if (type.equals("timed"))
+      generator.writeTimedRatings(writer);
+    else
+      usage("Unknown data type: " + type);
+    writer.close();
+  }
+
+}
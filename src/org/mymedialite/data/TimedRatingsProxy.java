@@ -19,13 +19,8 @@ package org.mymedialite.data;
 
 import it.unimi.dsi.fastutil.ints.IntList;
 
-import java.util.Collections;
-import java.util.Date;
-import java.util.List;
-
 import org.mymedialite.datatype.DoubleListProxy;
 import org.mymedialite.datatype.IntListProxy;
-import org.mymedialite.datatype.ListProxy;
 
 /**
  * Data structure that allows access to selected entries of a timed rating data structure.
@@ -33,33 +28,40 @@ import org.mymedialite.datatype.ListProxy;
  */
 public class TimedRatingsProxy extends TimedRatings {
 
+  private final ITimedRatings ratings;
+  private final IntList indices;
+
   /**
    * Create a TimedRatingsProxy object.
    * @param ratings a ratings data structure
    * @param indices an index list pointing to entries in the ratings
    */
   public TimedRatingsProxy(ITimedRatings ratings, IntList indices) {
-    
+    this.ratings = ratings;
+    this.indices = indices;
+
     users  = new IntListProxy(ratings.users(), indices);
     items  = new IntListProxy(ratings.items(), indices);
     values = new DoubleListProxy(ratings.values(), indices);
-    times  = new ListProxy<Date>(ratings.times(), indices);
+    times  = null;
 
     maxUserID = ratings.maxUserID();
     maxItemID = ratings.maxItemID();
     maxRating = ratings.maxRating();
     minRating = ratings.minRating();
 
-    Date maxTime = new Date();
-    maxTime.setTime(Long.MAX_VALUE);
-    Date minTime = new Date();
-    maxTime.setTime(0L);
-    
-    // TODO check this
-    earliestTime = size() > 0 ? Collections.min(times) : maxTime;
-    latestTime   = size() > 0 ? Collections.max(times) : minTime;
+    for (int index = 0; index < indices.size(); index++) {
+      long time = time(index);
+      if (time < earliestTime)
+        earliestTime = time;
+      if (time > latestTime)
+        latestTime = time;
+    }
+  }
 
+  @Override
+  public long time(int index) {
+    return ratings.time(indices.getInt(index));
   }
 
 }
-
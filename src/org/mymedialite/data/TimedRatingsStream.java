@@ -0,0 +1,68 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.data;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+
+/**
+ * A stream over the ratings of a dataset in chronological order.
+ * @version 2.03
+ */
+public class TimedRatingsStream implements ITimedRatingStream {
+
+  private final ITimedRatings ratings;
+  private final IntList chronological_index;
+  private int pos = -1;
+  private int index = -1;
+
+  /**
+   * Create a stream over a dataset.
+   * The dataset must not be modified while the stream is used.
+   * @param ratings the ratings
+   */
+  public TimedRatingsStream(ITimedRatings ratings) {
+    this.ratings = ratings;
+    this.chronological_index = ratings.chronologicalIndex();
+  }
+
+  public boolean next() {
+    if (pos + 1 >= chronological_index.size())
+      return false;
+    pos++;
+    index = chronological_index.getInt(pos);
+    return true;
+  }
+
+  public int user() {
+    return ratings.users().getInt(index);
+  }
+
+  public int item() {
+    return ratings.items().getInt(index);
+  }
+
+  public double rating() {
+    return ratings.get(index);
+  }
+
+  public long time() {
+    return ratings.time(index);
+  }
+
+}
@@ -0,0 +1,155 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.datatype;
+
+import java.util.Arrays;
+
+/**
+ * The structure of a sparse matrix in compressed sparse row (CSR) format.
+ *
+ * The non-empty entries of each row are stored as a sorted block of column IDs in one array,
+ * so that an entry is identified by its position in that array.
+ * The values are kept by the user of this class in primitive arrays of length size(), indexed by position.
+ * The structure cannot be changed after it has been created.
+ * @version 2.03
+ */
+public class CompressedSparseRows {
+
+  /** Start position of each row, with one more entry for the end of the last row */
+  private final int[] rowOffsets;
+
+  /** Column ID by position, sorted within each row */
+  private final int[] columns;
+
+  private final int numColumns;
+
+  /**
+   * Create the structure from a list of entries.
+   * Entries may occur several times; each distinct entry gets one position.
+   * @param num_rows the number of rows
+   * @param num_columns the number of columns
+   * @param rows the row IDs of the entries
+   * @param columns the column IDs of the entries
+   * @param positions if not null, receives the position of each entry, must have the same length as rows
+   */
+  public CompressedSparseRows(int num_rows, int num_columns, int[] rows, int[] columns, int[] positions) {
+    if (rows.length != columns.length)
+      throw new IllegalArgumentException("rows and columns must have the same length");
+    this.numColumns = num_columns;
+
+    // Group the entries by row ...
+    int[] row_starts = new int[num_rows + 1];
+    for (int row : rows)
+      row_starts[row + 1]++;
+    for (int row = 0; row < num_rows; row++)
+      row_starts[row + 1] += row_starts[row];
+    long[] keys = new long[rows.length];
+    int[] fill = Arrays.copyOf(row_starts, num_rows);
+    for (int k = 0; k < rows.length; k++) {
+      if (columns[k] < 0 || columns[k] >= num_columns)
+        throw new IllegalArgumentException("column " + columns[k] + " is out of range");
+      keys[fill[rows[k]]++] = ((long) columns[k] << 32) | k;
+    }
+
+    // ... then sort each row by column and drop the repeated entries
+    this.rowOffsets = new int[num_rows + 1];
+    int[] row_columns = new int[rows.length];
+    int size = 0;
+    for (int row = 0; row < num_rows; row++) {
+      Arrays.sort(keys, row_starts[row], row_starts[row + 1]);
+      int last_column = -1;
+      for (int k = row_starts[row]; k < row_starts[row + 1]; k++) {
+        int column = (int) (keys[k] >>> 32);
+        if (column != last_column) {
+          row_columns[size++] = column;
+          last_column = column;
+        }
+        if (positions != null)
+          positions[(int) keys[k]] = size - 1;
+      }
+      rowOffsets[row + 1] = size;
+    }
+    this.columns = Arrays.copyOf(row_columns, size);
+  }
+
+  /**
+   * Get the number of rows.
+   * @return the number of rows
+   */
+  public int numberOfRows() {
+    return rowOffsets.length - 1;
+  }
+
+  /**
+   * Get the number of columns.
+   * @return the number of columns
+   */
+  public int numberOfColumns() {
+    return numColumns;
+  }
+
+  /**
+   * Get the number of non-empty entries.
+   * @return the number of non-empty entries
+   */
+  public int size() {
+    return columns.length;
+  }
+
+  /**
+   * Get the first position of a row.
+   * @param row the row ID
+   * @return the position of the first entry of the row
+   */
+  public int rowStart(int row) {
+    return rowOffsets[row];
+  }
+
+  /**
+   * Get the end position of a row.
+   * @param row the row ID
+   * @return the position after the last entry of the row
+   */
+  public int rowEnd(int row) {
+    return rowOffsets[row + 1];
+  }
+
+  /**
+   * Get the column ID at a position.
+   * @param position the position
+   * @return the column ID
+   */
+  public int column(int position) {
+    return columns[position];
+  }
+
+  /**
+   * Find the position of an entry.
+   * @param row the row ID
+   * @param column the column ID
+   * @return the position of the entry, -1 if the entry is empty or out of range
+   */
+  public int find(int row, int column) {
+    if (row < 0 || row >= rowOffsets.length - 1)
+      return -1;
+    int pos = Arrays.binarySearch(columns, rowOffsets[row], rowOffsets[row + 1], column);
+    return pos >= 0 ? pos : -1;
+  }
+
+}
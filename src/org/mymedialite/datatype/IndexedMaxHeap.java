@@ -0,0 +1,289 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.mymedialite.datatype;
+
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import java.util.Arrays;
+
+/**
+ * Binary max-heap over integer IDs with double priorities, backed by primitive arrays.
+ *
+ * The heap keeps the position of every ID, so that the priority of an ID can be changed in O(log n).
+ * The top n entries can be read in O(n log n) without modifying the heap.
+ * Entries with equal priority are ordered by ascending ID.
+ * IDs are zero-based; the arrays grow as needed.
+ * @version 2.03
+ */
+public class IndexedMaxHeap {
+
+  /** Priority by ID */
+  private double[] priority;
+
+  /** Heap position by ID, -1 if the ID is not in the heap */
+  private int[] position;
+
+  /** IDs in heap order */
+  private int[] heap;
+
+  /** Number of entries in the heap */
+  private int size;
+
+  /**
+   * Create an empty heap.
+   * @param capacity the initial capacity (number of IDs)
+   */
+  public IndexedMaxHeap(int capacity) {
+    capacity = Math.max(capacity, 1);
+    priority = new double[capacity];
+    position = new int[capacity];
+    Arrays.fill(position, -1);
+    heap = new int[capacity];
+  }
+
+  /**
+   * Get the number of entries.
+   * @return the number of entries
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Check whether an ID is in the heap.
+   * @param id the ID
+   * @return true if the ID is in the heap
+   */
+  public boolean contains(int id) {
+    return id >= 0 && id < position.length && position[id] != -1;
+  }
+
+  /**
+   * Get the priority of an ID.
+   * @param id the ID
+   * @return the priority, 0 if the ID is not in the heap
+   */
+  public double get(int id) {
+    return contains(id) ? priority[id] : 0;
+  }
+
+  /**
+   * Get the ID with the highest priority.
+   * @return the ID with the highest priority, -1 if the heap is empty
+   */
+  public int peek() {
+    return size == 0 ? -1 : heap[0];
+  }
+
+  /**
+   * Insert an ID or change its priority.
+   * @param id the ID
+   * @param value the new priority
+   */
+  public void set(int id, double value) {
+    if (id < 0)
+      throw new IllegalArgumentException("id must be non-negative: " + id);
+    if (id >= position.length)
+      grow(id + 1);
+
+    int pos = position[id];
+    if (pos == -1) {
+      priority[id] = value;
+      heap[size] = id;
+      position[id] = size;
+      size++;
+      siftUp(size - 1);
+    } else {
+      double old_value = priority[id];
+      priority[id] = value;
+      if (value > old_value)
+        siftUp(pos);
+      else
+        siftDown(pos);
+    }
+  }
+
+  /**
+   * Add a value to the priority of an ID, inserting it if necessary.
+   * @param id the ID
+   * @param delta the value to add
+   */
+  public void add(int id, double delta) {
+    set(id, get(id) + delta);
+  }
+
+  /**
+   * Remove an ID from the heap.
+   * @param id the ID
+   */
+  public void remove(int id) {
+    if (!contains(id))
+      return;
+    int pos = position[id];
+    size--;
+    position[id] = -1;
+    if (pos == size)
+      return;
+    int last = heap[size];
+    heap[pos] = last;
+    position[last] = pos;
+    siftUp(pos);
+    siftDown(position[last]);
+  }
+
+  /**
+   * Multiply all priorities with a positive factor.
+   * The order of the entries does not change, so this takes O(n) time without any reordering.
+   * @param factor the factor, must be greater than 0
+   */
+  public void scale(double factor) {
+    if (!(factor > 0))
+      throw new IllegalArgumentException("factor must be greater than 0: " + factor);
+    for (int pos = 0; pos < size; pos++)
+      priority[heap[pos]] *= factor;
+  }
+
+  /**
+   * Get the IDs with the highest priorities, in descending order.
+   * @param n the number of IDs to return
+   * @return an array of at most n IDs
+   */
+  public int[] top(int n) {
+    return top(n, null);
+  }
+
+  /**
+   * Get the IDs with the highest priorities, in descending order, skipping a set of IDs.
+   *
+   * The heap is explored from the root with a second, small heap of candidate positions,
+   * so the cost is O((n + k) log(n + k)), where k is the number of skipped IDs that rank above
+   * the n-th result, independent of the total number of entries.
+   *
+   * @param n the number of IDs to return
+   * @param ignore_ids IDs that must not be returned, may be null
+   * @return an array of at most n IDs
+   */
+  public int[] top(int n, IntCollection ignore_ids) {
+    n = Math.min(n, size);
+    int[] result = new int[n];
+    if (n == 0)
+      return result;
+
+    int[] candidates = new int[16]; // heap positions, ordered like the main heap
+    int num_candidates = 1;
+    candidates[0] = 0;
+    int count = 0;
+    while (count < n && num_candidates > 0) {
+      // Pop the best candidate
+      int pos = candidates[0];
+      num_candidates--;
+      candidates[0] = candidates[num_candidates];
+      siftDownCandidates(candidates, num_candidates, 0);
+
+      int id = heap[pos];
+      if (ignore_ids == null || !ignore_ids.contains(id))
+        result[count++] = id;
+
+      // Its children become candidates
+      for (int child = 2 * pos + 1; child <= 2 * pos + 2 && child < size; child++) {
+        if (num_candidates == candidates.length)
+          candidates = Arrays.copyOf(candidates, 2 * candidates.length);
+        candidates[num_candidates] = child;
+        siftUpCandidates(candidates, num_candidates);
+        num_candidates++;
+      }
+    }
+    return count == n ? result : Arrays.copyOf(result, count);
+  }
+
+  private void grow(int min_capacity) {
+    int capacity = Math.max(min_capacity, 2 * position.length);
+    int old_capacity = position.length;
+    priority = Arrays.copyOf(priority, capacity);
+    position = Arrays.copyOf(position, capacity);
+    Arrays.fill(position, old_capacity, capacity, -1);
+    heap = Arrays.copyOf(heap, capacity);
+  }
+
+  /** true if ID a ranks before ID b */
+  private boolean before(int a, int b) {
+    return priority[a] > priority[b] || (priority[a] == priority[b] && a < b);
+  }
+
+  private void siftUp(int pos) {
+    int id = heap[pos];
+    while (pos > 0) {
+      int parent = (pos - 1) / 2;
+      if (!before(id, heap[parent]))
+        break;
+      heap[pos] = heap[parent];
+      position[heap[pos]] = pos;
+      pos = parent;
+    }
+    heap[pos] = id;
+    position[id] = pos;
+  }
+
+  private void siftDown(int pos) {
+    int id = heap[pos];
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= size)
+        break;
+      if (child + 1 < size && before(heap[child + 1], heap[child]))
+        child++;
+      if (!before(heap[child], id))
+        break;
+      heap[pos] = heap[child];
+      position[heap[pos]] = pos;
+      pos = child;
+    }
+    heap[pos] = id;
+    position[id] = pos;
+  }
+
+  private void siftUpCandidates(int[] candidates, int i) {
+    int pos = candidates[i];
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (!before(heap[pos], heap[candidates[parent]]))
+        break;
+      candidates[i] = candidates[parent];
+      i = parent;
+    }
+    candidates[i] = pos;
+  }
+
+  private void siftDownCandidates(int[] candidates, int num_candidates, int i) {
+    if (num_candidates == 0)
+      return;
+    int pos = candidates[i];
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= num_candidates)
+        break;
+      if (child + 1 < num_candidates && before(heap[candidates[child + 1]], heap[candidates[child]]))
+        child++;
+      if (!before(heap[candidates[child]], heap[pos]))
+        break;
+      candidates[i] = candidates[child];
+      i = child;
+    }
+    candidates[i] = pos;
+  }
+
+}
@@ -191,6 +191,43 @@ public class MatrixExtensions {
     return result;
   }
 
+  /**
+   * Compute the scalar product between a primitive vector and a row of the matrix.
+   * @param matrix the matrix
+   * @param i the row ID
+   * @param vector the numeric vector
+   * @return the scalar product of row i and the vector
+   */
+  public static double rowScalarProduct(Matrix<Double> matrix, int i, double[] vector) {
+    if (i >= matrix.dim1)
+      throw new IllegalArgumentException("i too big: " + i + ", dim1 is " + matrix.dim1);
+    if (vector.length != matrix.dim2)
+      throw new IllegalArgumentException("wrong vector size: " + vector.length + ", dim2 is " + matrix.dim2);
+
+    Object[] data = matrix.data;
+    int offset = i * matrix.dim2;
+    double result = 0.0;
+    for (int j = 0; j < vector.length; j++)
+      result += (Double) data[offset + j] * vector[j];
+    return result;
+  }
+
+  /**
+   * Copy a row of the matrix into a primitive array.
+   * @param matrix the matrix
+   * @param i the row ID
+   * @return the values of row i
+   */
+  public static double[] rowToArray(Matrix<Double> matrix, int i) {
+    if (i >= matrix.dim1)
+      throw new IllegalArgumentException("i too big: " + i + ", dim1 is " + matrix.dim1);
+
+    double[] row = new double[matrix.dim2];
+    for (int j = 0; j < matrix.dim2; j++)
+      row[j] = (Double) matrix.data[i * matrix.dim2 + j];
+    return row;
+  }
+
   /**
    * Compute the scalar product between two rows of two matrices.
    * @param matrix1 the first matrix
@@ -79,5 +79,68 @@ public class VectorExtensions {
     for (int i = 0; i < vector.size(); i++) 
       vector.set(i, rnd.nextNormal(mean, stddev));
   }
+
+  /**
+   * Find the indices of the n largest values of an array.
+   *
+   * The values are selected with a min-heap of size n in O(|values| log n); equal values are ordered by index.
+   *
+   * @param values the values
+   * @param n the number of indices
+   * @param ignore if not null, the indices at which ignore is true are skipped
+   * @return at most n indices, largest value first
+   */
+  public static int[] topIndices(double[] values, int n, boolean[] ignore) {
+    // The root of the heap is the worst of the best n indices so far
+    int[] heap = new int[Math.max(0, Math.min(n, values.length))];
+    int size = 0;
+    for (int index = 0; index < values.length && heap.length > 0; index++) {
+      if (ignore != null && index < ignore.length && ignore[index])
+        continue;
+      if (size < heap.length) {
+        int pos = size++;
+        while (pos > 0) {
+          int parent = (pos - 1) >>> 1;
+          if (!worse(values, index, heap[parent]))
+            break;
+          heap[pos] = heap[parent];
+          pos = parent;
+        }
+        heap[pos] = index;
+      } else if (worse(values, heap[0], index)) {
+        siftDown(values, heap, size, index);
+      }
+    }
+
+    // Take the worst index off the heap until it is empty
+    int[] top_indices = new int[size];
+    while (size > 0) {
+      top_indices[size - 1] = heap[0];
+      size--;
+      siftDown(values, heap, size, heap[size]);
+    }
+    return top_indices;
+  }
+
+  private static void siftDown(double[] values, int[] heap, int size, int index) {
+    int pos = 0;
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= size)
+        break;
+      if (child + 1 < size && worse(values, heap[child + 1], heap[child]))
+        child++;
+      if (!worse(values, heap[child], index))
+        break;
+      heap[pos] = heap[child];
+      pos = child;
+    }
+    if (size > 0)
+      heap[pos] = index;
+  }
+
+  private static boolean worse(double[] values, int index1, int index2) {
+    return values[index1] < values[index2] || (values[index1] == values[index2] && index1 > index2);
+  }
   
 }
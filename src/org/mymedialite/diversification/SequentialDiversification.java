@@ -19,30 +19,40 @@
 package org.mymedialite.diversification;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import org.mymedialite.correlation.CorrelationMatrix;
-import org.mymedialite.data.WeightedItem;
+import org.mymedialite.correlation.SparseCorrelations;
+import org.mymedialite.datatype.CompressedSparseRows;
 
 /**
  * Sequential Diversification.
  * 
+ * The items are picked one by one. The similarity of each remaining item to the items picked so far
+ * is kept in an array that is updated with the similarities of each newly picked item,
+ * so a round takes linear time (plus a re-sort for the rank merge) instead of recomputing all sums.
+ * With a SparseCorrelations store, only the stored neighbors of the picked item are visited.
+ * 
  * Literature:
  *   Cai-Nicolas Ziegler, Sean McNee, Joseph A. Konstan, Georg Lausen:
  *   Improving Recommendation Lists Through Topic Diversification.
  *   WWW 2005
+ *
+ *   Jaime Carbonell, Jade Goldstein:
+ *   The Use of MMR, Diversity-Based Reranking for Reordering Documents and Producing Summaries.
+ *   SIGIR 1998
  *   
  * @version 2.03
  */
 public class SequentialDiversification {
 
+  /** The item similarities, null if sparse similarities are used */
   public CorrelationMatrix itemCorrelations;
 
+  /** The sparse item similarities, null if a correlation matrix is used */
+  public SparseCorrelations sparseItemCorrelations;
+
   /**
    * Constructor.
    * @param itemCorrelation the similarity measure to use for diversification
@@ -51,6 +61,14 @@ public class SequentialDiversification {
     itemCorrelations = itemCorrelation;
   }
 
+  /**
+   * Constructor.
+   * @param itemCorrelation the sparse similarities to use for diversification
+   */
+  public SequentialDiversification(SparseCorrelations itemCorrelation) {
+    sparseItemCorrelations = itemCorrelation;
+  }
+
   /**
    * Diversify an item list.
    * @param item_list a list of items
@@ -60,41 +78,240 @@ public class SequentialDiversification {
   public List<Integer> diversifySequential(List<Integer> item_list, double diversificationParameter) {
     if(item_list.size() == 0) throw new IllegalArgumentException();
 
-    Map<Integer, Integer> item_rank_by_rating = new HashMap<Integer, Integer>();
-    for (int i = 0; i < item_list.size(); i++)
-      item_rank_by_rating.put(item_list.get(i), i);
-
-    List<Integer> diversified_item_list = new ArrayList<Integer>();
-    int top_item = item_list.get(0);
-    diversified_item_list.add(top_item);
-
-    Set<Integer> item_set = new HashSet<Integer>(item_list);
-    item_set.remove(top_item);
-    while (item_set.size() > 0) {
-      // Rank remaining items by diversity
-      List<WeightedItem> items_by_diversity = new ArrayList<WeightedItem>();
-      for (int item_id : item_set) {
-        double similarity = similarity(item_id, diversified_item_list, itemCorrelations);
-        items_by_diversity.add(new WeightedItem(item_id, similarity));
+    int[] items = new int[item_list.size()];
+    for (int i = 0; i < items.length; i++)
+      items[i] = item_list.get(i);
+
+    int[] diversified_items = diversifySequential(items, diversificationParameter, items.length);
+    List<Integer> diversified_item_list = new ArrayList<Integer>(diversified_items.length);
+    for (int item_id : diversified_items)
+      diversified_item_list.add(item_id);
+    return diversified_item_list;
+  }
+
+  /**
+   * Diversify an item array by merging the rating rank and the dissimilarity rank.
+   *
+   * In each round, the remaining items are ranked by their similarity sum to the items picked so far,
+   * and the item with the lowest weighted sum of its position in the input and its dissimilarity rank
+   * is picked. Ties go to the less similar item. The first item of the input is always picked first.
+   *
+   * @param items the distinct item IDs, best rated first
+   * @param diversificationParameter the diversification parameter (higher means more diverse)
+   * @param n the number of items to pick
+   * @return the first n items of the diversified list
+   */
+  public int[] diversifySequential(int[] items, double diversificationParameter, int n) {
+    if (items.length == 0) throw new IllegalArgumentException();
+    n = Math.min(n, items.length);
+    Candidates candidates = new Candidates(items);
+    double[] similarity = new double[items.length];
+    int[] result = new int[n];
+    if (n == 0)
+      return result;
+
+    // The remaining positions ordered by similarity sum, then by input position
+    int[] order = new int[items.length - 1];
+    for (int pos = 1; pos < items.length; pos++)
+      order[pos - 1] = pos;
+    int num_remaining = order.length;
+    int[] buffer = new int[order.length];
+
+    int next = 0;
+    for (int k = 0; k < n; k++) {
+      result[k] = items[next];
+      candidates.remove(next);
+      int num_found = candidates.similarities(items[next]);
+      for (int m = 0; m < num_found; m++)
+        similarity[candidates.found[m]] += candidates.foundValues[m];
+      if (k == n - 1)
+        break;
+
+      // Drop the picked item and restore the order
+      int num_kept = 0;
+      for (int r = 0; r < num_remaining; r++)
+        if (order[r] != next)
+          order[num_kept++] = order[r];
+      num_remaining = num_kept;
+      System.arraycopy(order, 0, buffer, 0, num_remaining);
+      sortBySimilarity(order, 0, num_remaining, similarity, buffer);
+
+      // order[r] has the dissimilarity rank r
+      double best_score = Double.POSITIVE_INFINITY;
+      for (int r = 0; r < num_remaining; r++) {
+        double score = order[r] * (1 - diversificationParameter) + r * diversificationParameter;
+        if (score < best_score) {
+          best_score = score;
+          next = order[r];
+        }
       }
-      Collections.sort(items_by_diversity);
+    }
+    return result;
+  }
 
-      List<WeightedItem> items_by_merged_rank = new ArrayList<WeightedItem>();
-      for (int i = 0; i < items_by_diversity.size(); i++) {
-        int item_id = items_by_diversity.get(i).item_id;
-        // i is the dissimilarity rank
-        // TODO adjust for ties
-        double score = item_rank_by_rating.get(item_id) * (1 - diversificationParameter) + i * diversificationParameter;
+  /**
+   * Diversify an item array by maximal marginal relevance (MMR).
+   *
+   * In each round, the item with the highest
+   * lambda * score - (1 - lambda) * (maximum similarity to the items picked so far) is picked.
+   * Ties go to the item that comes first in the input.
+   *
+   * @param items the distinct item IDs
+   * @param scores the relevance scores of the items
+   * @param lambda the weight of the relevance (lower means more diverse)
+   * @param n the number of items to pick
+   * @return the first n items of the diversified list
+   */
+  public int[] diversifyMMR(int[] items, double[] scores, double lambda, int n) {
+    if (items.length != scores.length)
+      throw new IllegalArgumentException("items and scores must have the same length");
+    n = Math.min(n, items.length);
+    Candidates candidates = new Candidates(items);
 
-        items_by_merged_rank.add(new WeightedItem(item_id, score));
+    // Similarities that are not stored are 0
+    double[] max_similarity = new double[items.length];
+    if (sparseItemCorrelations == null)
+      Arrays.fill(max_similarity, Double.NEGATIVE_INFINITY);
+
+    int[] result = new int[n];
+    for (int k = 0; k < n; k++) {
+      int next = -1;
+      double best_score = Double.NEGATIVE_INFINITY;
+      for (int pos = 0; pos < items.length; pos++) {
+        if (candidates.isRemoved(pos))
+          continue;
+        double score = lambda * scores[pos];
+        if (k > 0)
+          score -= (1 - lambda) * max_similarity[pos];
+        if (next == -1 || score > best_score) {
+          best_score = score;
+          next = pos;
+        }
       }
-      Collections.sort(items_by_merged_rank);
 
-      int next_item_id = items_by_merged_rank.get(0).item_id;
-      diversified_item_list.add(next_item_id);
-      item_set.remove(next_item_id);
+      result[k] = items[next];
+      candidates.remove(next);
+      int num_found = candidates.similarities(items[next]);
+      for (int m = 0; m < num_found; m++) {
+        int pos = candidates.found[m];
+        max_similarity[pos] = Math.max(max_similarity[pos], candidates.foundValues[m]);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Sort positions by similarity, then by position, with a merge sort that skips the merge of ranges
+   * that are already in order, so the nearly sorted order of the next round is restored quickly.
+   * @param positions the positions to sort
+   * @param from the first index to sort
+   * @param to the index after the last index to sort
+   * @param similarity the similarity by position
+   * @param buffer a copy of positions in the sorted range
+   */
+  private static void sortBySimilarity(int[] positions, int from, int to, double[] similarity, int[] buffer) {
+    if (to - from < 16) {
+      for (int k = from + 1; k < to; k++) {
+        int pos = positions[k];
+        int l = k;
+        while (l > from && before(similarity, pos, positions[l - 1])) {
+          positions[l] = positions[l - 1];
+          l--;
+        }
+        positions[l] = pos;
+      }
+      return;
+    }
+
+    // Sort both halves into the buffer, then merge them back
+    int mid = (from + to) >>> 1;
+    sortBySimilarity(buffer, from, mid, similarity, positions);
+    sortBySimilarity(buffer, mid, to, similarity, positions);
+    if (!before(similarity, buffer[mid], buffer[mid - 1])) {
+      System.arraycopy(buffer, from, positions, from, to - from);
+      return;
+    }
+    for (int k = from, p = from, q = mid; k < to; k++)
+      if (q >= to || (p < mid && !before(similarity, buffer[q], buffer[p])))
+        positions[k] = buffer[p++];
+      else
+        positions[k] = buffer[q++];
+  }
+
+  private static boolean before(double[] similarity, int pos1, int pos2) {
+    return similarity[pos1] < similarity[pos2] || (similarity[pos1] == similarity[pos2] && pos1 < pos2);
+  }
+
+  /**
+   * The candidate items of one diversification, with the similarity lookup of a picked item.
+   */
+  private final class Candidates {
+    final int[] items;
+    final boolean[] removed;
+
+    // Positions and similarities found by the last call of similarities()
+    final int[] found;
+    final double[] foundValues;
+
+    // Item IDs in ascending order and their positions, for the sparse lookup
+    int[] sortedItems;
+    int[] sortedPositions;
+
+    Candidates(int[] items) {
+      this.items = items;
+      this.removed = new boolean[items.length];
+      this.found = new int[items.length];
+      this.foundValues = new double[items.length];
+      if (sparseItemCorrelations != null) {
+        long[] keys = new long[items.length];
+        for (int pos = 0; pos < items.length; pos++)
+          keys[pos] = ((long) items[pos] << 32) | pos;
+        Arrays.sort(keys);
+        sortedItems = new int[items.length];
+        sortedPositions = new int[items.length];
+        for (int k = 0; k < keys.length; k++) {
+          sortedItems[k] = (int) (keys[k] >>> 32);
+          sortedPositions[k] = (int) keys[k];
+        }
+      }
+    }
+
+    boolean isRemoved(int pos) {
+      return removed[pos];
+    }
+
+    void remove(int pos) {
+      removed[pos] = true;
+    }
+
+    /**
+     * Find the similarities of an item to the remaining candidates.
+     * @param item_id the item ID
+     * @return the number of entries written to found and foundValues
+     */
+    int similarities(int item_id) {
+      int num_found = 0;
+      if (sparseItemCorrelations == null) {
+        int num_entities = itemCorrelations.numberOfRows();
+        for (int pos = 0; pos < items.length; pos++)
+          if (!removed[pos]) {
+            found[num_found] = pos;
+            foundValues[num_found++] = item_id < num_entities && items[pos] < num_entities ? itemCorrelations.get(item_id, items[pos]) : 0;
+          }
+      } else {
+        if (item_id >= sparseItemCorrelations.numberOfRows())
+          return 0;
+        CompressedSparseRows structure = sparseItemCorrelations.structure();
+        for (int p = structure.rowStart(item_id); p < structure.rowEnd(item_id); p++) {
+          int k = Arrays.binarySearch(sortedItems, structure.column(p));
+          if (k >= 0 && !removed[sortedPositions[k]]) {
+            found[num_found] = sortedPositions[k];
+            foundValues[num_found++] = sparseItemCorrelations.value(p);
+          }
+        }
+      }
+      return num_found;
     }
-    return diversified_item_list;
   }
 
   /**
@@ -118,10 +335,15 @@ public class SequentialDiversification {
    * @return the intra-set similarity of the collection
    */
   public static double similarity(Collection<Integer> items, CorrelationMatrix item_correlation) {
+    int[] item_ids = new int[items.size()];
+    int k = 0;
+    for (int item_id : items)
+      item_ids[k++] = item_id;
+
     double similarity = 0;
-    for (int i = 0; i < items.size(); i++)
-      for (int j = i + 1; j < items.size(); j++)
-        similarity += item_correlation.get(i, j);
+    for (int i = 0; i < item_ids.length; i++)
+      for (int j = i + 1; j < item_ids.length; j++)
+        similarity += item_correlation.get(item_ids[i], item_ids[j]);
 
     return similarity;
   }
@@ -22,8 +22,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.mymedialite.IBatchRecommender;
 import org.mymedialite.IRecommender;
 import org.mymedialite.ratingprediction.RatingPredictor;
+import org.mymedialite.util.Parallel;
 
 /**
  * Abstract class for combining several prediction methods.
@@ -36,6 +38,13 @@ public abstract class Ensemble implements IRecommender {
    */
   public List<IRecommender> recommenders = new ArrayList<IRecommender>();
 
+  /**
+   * The number of threads used for training the recommenders, 0 for the number of available processors.
+   * The recommenders are trained concurrently if this is not 1; recommenders that share training data
+   * should then only be trained concurrently if the data is not modified and its indices have been built.
+   */
+  public int numThreads = 1;
+
   private double max_rating_value = 5;
   private double min_rating_value = 1;
 
@@ -107,8 +116,30 @@ public abstract class Ensemble implements IRecommender {
    * 
    */
   public void train() {
-    for (IRecommender recommender : recommenders)
-      recommender.train();
+    final List<IRecommender> recommenders = this.recommenders;
+    Parallel.forRange(0, recommenders.size(), 1, numThreads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        for (int i = begin; i < end; i++)
+          recommenders.get(i).train();
+      }
+    });
+  }
+
+  /**
+   * Predict the scores of a user for several items with one recommender,
+   * in one call if the recommender is an IBatchRecommender.
+   * @param recommender the recommender
+   * @param user_id the user ID
+   * @param item_ids the item IDs
+   * @return the predicted scores, in the order of item_ids
+   */
+  protected static double[] predict(IRecommender recommender, int user_id, int[] item_ids) {
+    if (recommender instanceof IBatchRecommender)
+      return ((IBatchRecommender) recommender).predict(user_id, item_ids);
+    double[] scores = new double[item_ids.length];
+    for (int i = 0; i < item_ids.length; i++)
+      scores[i] = recommender.predict(user_id, item_ids[i]);
+    return scores;
   }
   
 }
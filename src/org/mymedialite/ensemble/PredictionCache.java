@@ -0,0 +1,302 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.ensemble;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import org.mymedialite.IRecommender;
+import org.mymedialite.data.IRatings;
+import org.mymedialite.util.Parallel;
+
+/**
+ * Cache of the predictions of several recommenders for a set of ratings, stored in a binary file.
+ *
+ * The file holds a 16 byte header (magic number, version, number of rows, number of prediction columns),
+ * then the user IDs, item IDs and ratings of the rows, then one column of float predictions per recommender,
+ * all in little-endian byte order. Each column is memory-mapped on its own,
+ * so blending experiments read the predictions without loading the file or running the recommenders again.
+ * A column can be appended for a new recommender without touching the existing ones.
+ *
+ * Each column holds at most 2^29 rows.
+ * @version 2.03
+ */
+public class PredictionCache {
+
+  private static final int MAGIC = 0x4D4D4C50;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+
+  private final IntBuffer users;
+  private final IntBuffer items;
+  private final FloatBuffer ratings;
+  private final FloatBuffer[] columns;
+
+  private PredictionCache(IntBuffer users, IntBuffer items, FloatBuffer ratings, FloatBuffer[] columns) {
+    this.users = users;
+    this.items = items;
+    this.ratings = ratings;
+    this.columns = columns;
+  }
+
+  /**
+   * Get the number of rows.
+   * @return the number of rows
+   */
+  public int size() {
+    return ratings.limit();
+  }
+
+  /**
+   * Get the number of prediction columns.
+   * @return the number of recommenders whose predictions are cached
+   */
+  public int numberOfColumns() {
+    return columns.length;
+  }
+
+  /**
+   * Get the user ID of a row.
+   * @param row the row
+   * @return the user ID
+   */
+  public int user(int row) {
+    return users.get(row);
+  }
+
+  /**
+   * Get the item ID of a row.
+   * @param row the row
+   * @return the item ID
+   */
+  public int item(int row) {
+    return items.get(row);
+  }
+
+  /**
+   * Get the rating of a row.
+   * @param row the row
+   * @return the rating
+   */
+  public float rating(int row) {
+    return ratings.get(row);
+  }
+
+  /**
+   * Get a cached prediction.
+   * @param column the prediction column
+   * @param row the row
+   * @return the prediction of the column's recommender for the row
+   */
+  public float prediction(int column, int row) {
+    return columns[column].get(row);
+  }
+
+  /**
+   * Open a prediction cache file.
+   * @param file the file
+   * @return the cache, backed by read-only mappings of the file
+   * @throws IOException if the file cannot be read or is not a prediction cache
+   */
+  public static PredictionCache open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      IntBuffer header = map(channel, FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).asIntBuffer();
+      int num_rows = checkHeader(header, channel.size(), file);
+      int num_columns = header.get(3);
+
+      IntBuffer users = map(channel, FileChannel.MapMode.READ_ONLY, columnOffset(num_rows, 0), 4L * num_rows).asIntBuffer();
+      IntBuffer items = map(channel, FileChannel.MapMode.READ_ONLY, columnOffset(num_rows, 1), 4L * num_rows).asIntBuffer();
+      FloatBuffer ratings = map(channel, FileChannel.MapMode.READ_ONLY, columnOffset(num_rows, 2), 4L * num_rows).asFloatBuffer();
+      FloatBuffer[] columns = new FloatBuffer[num_columns];
+      for (int c = 0; c < num_columns; c++)
+        columns[c] = map(channel, FileChannel.MapMode.READ_ONLY, columnOffset(num_rows, 3 + c), 4L * num_rows).asFloatBuffer();
+      return new PredictionCache(users, items, ratings, columns);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Write the predictions of several recommenders for a set of ratings to a new cache file.
+   * The recommenders must have been trained. Each recommender scores the rows user by user, on several threads.
+   * @param file the file, will be overwritten
+   * @param ratings the ratings, e.g. a holdout or a test set
+   * @param recommenders the recommenders
+   * @param num_threads the number of threads, 0 for the number of available processors
+   * @throws IOException if the file cannot be written
+   */
+  public static void write(File file, IRatings ratings, List<IRecommender> recommenders, int num_threads) throws IOException {
+    int num_rows = ratings.size();
+    if (num_rows > Integer.MAX_VALUE / 4)
+      throw new IllegalArgumentException("Too many ratings for one cache file: " + num_rows);
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(0);
+      raf.setLength(columnOffset(num_rows, 3 + recommenders.size()));
+      FileChannel channel = raf.getChannel();
+
+      MappedByteBuffer user_column = map(channel, FileChannel.MapMode.READ_WRITE, columnOffset(num_rows, 0), 4L * num_rows);
+      MappedByteBuffer item_column = map(channel, FileChannel.MapMode.READ_WRITE, columnOffset(num_rows, 1), 4L * num_rows);
+      MappedByteBuffer rating_column = map(channel, FileChannel.MapMode.READ_WRITE, columnOffset(num_rows, 2), 4L * num_rows);
+      IntBuffer users = user_column.asIntBuffer();
+      IntBuffer items = item_column.asIntBuffer();
+      FloatBuffer rating_values = rating_column.asFloatBuffer();
+      for (int row = 0; row < num_rows; row++) {
+        users.put(row, ratings.users().getInt(row));
+        items.put(row, ratings.items().getInt(row));
+        rating_values.put(row, (float) ratings.get(row));
+      }
+      user_column.force();
+      item_column.force();
+      rating_column.force();
+
+      for (int c = 0; c < recommenders.size(); c++)
+        writeColumn(channel, num_rows, 3 + c, recommenders.get(c), users, items, num_threads).force();
+
+      // The header is written last, so that it never describes data that is not on disk
+      MappedByteBuffer header = map(channel, FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      header.putInt(0, MAGIC);
+      header.putInt(4, VERSION);
+      header.putInt(8, num_rows);
+      header.putInt(12, recommenders.size());
+      header.force();
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Append the predictions of another recommender to a cache file.
+   * The file is extended before anything is mapped, so it must not be open as a PredictionCache
+   * on systems that cannot resize mapped files, e.g. Windows.
+   * The column count in the header is only increased after the new column has been written to disk.
+   * @param file the cache file
+   * @param recommender the recommender, must have been trained
+   * @param num_threads the number of threads, 0 for the number of available processors
+   * @throws IOException if the file cannot be read or written, or is not a prediction cache
+   */
+  public static void appendColumn(File file, IRecommender recommender, int num_threads) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+
+      // Read the header without mapping it, as the file cannot be resized while a mapping is open on some systems
+      ByteBuffer header_bytes = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      while (header_bytes.hasRemaining())
+        if (channel.read(header_bytes, header_bytes.position()) < 0)
+          break;
+      header_bytes.rewind();
+      IntBuffer header_values = header_bytes.asIntBuffer();
+      int num_rows = checkHeader(header_values, channel.size(), file);
+      int num_columns = header_values.get(3);
+
+      raf.setLength(columnOffset(num_rows, 4 + num_columns));
+      IntBuffer users = map(channel, FileChannel.MapMode.READ_ONLY, columnOffset(num_rows, 0), 4L * num_rows).asIntBuffer();
+      IntBuffer items = map(channel, FileChannel.MapMode.READ_ONLY, columnOffset(num_rows, 1), 4L * num_rows).asIntBuffer();
+      writeColumn(channel, num_rows, 3 + num_columns, recommender, users, items, num_threads).force();
+
+      MappedByteBuffer header = map(channel, FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      header.putInt(12, num_columns + 1);
+      header.force();
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Compute the predictions of a recommender and write them to a column.
+   * The rows are grouped by user, so that each user's items are scored in one batch.
+   * @return the mapping of the column, to be forced to disk by the caller
+   */
+  private static MappedByteBuffer writeColumn(FileChannel channel, int num_rows, int column, final IRecommender recommender,
+      IntBuffer users, IntBuffer items, int num_threads) throws IOException {
+    MappedByteBuffer column_buffer = map(channel, FileChannel.MapMode.READ_WRITE, columnOffset(num_rows, column), 4L * num_rows);
+    final FloatBuffer predictions = column_buffer.asFloatBuffer();
+
+    // Sort the rows by user
+    long[] keys = new long[num_rows];
+    for (int row = 0; row < num_rows; row++)
+      keys[row] = ((long) users.get(row) << 32) | row;
+    Arrays.sort(keys);
+    final int[] rows = new int[num_rows];
+    final int[] item_ids = new int[num_rows];
+    for (int k = 0; k < num_rows; k++) {
+      rows[k] = (int) keys[k];
+      item_ids[k] = items.get(rows[k]);
+    }
+    int num_users = 0;
+    final int[] user_starts = new int[num_rows + 1];
+    final int[] user_ids = new int[num_rows];
+    for (int k = 0; k < num_rows; k++)
+      if (k == 0 || (int) (keys[k] >>> 32) != user_ids[num_users - 1]) {
+        user_starts[num_users] = k;
+        user_ids[num_users++] = (int) (keys[k] >>> 32);
+      }
+    user_starts[num_users] = num_rows;
+
+    Parallel.forRange(0, num_users, 64, num_threads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        for (int u = begin; u < end; u++) {
+          int start = user_starts[u];
+          int[] user_items = Arrays.copyOfRange(item_ids, start, user_starts[u + 1]);
+          double[] scores = Ensemble.predict(recommender, user_ids[u], user_items);
+          for (int k = 0; k < scores.length; k++)
+            predictions.put(rows[start + k], (float) scores[k]);
+        }
+      }
+    });
+    return column_buffer;
+  }
+
+  private static int checkHeader(IntBuffer header, long file_size, File file) throws IOException {
+    if (file_size < HEADER_SIZE || header.get(0) != MAGIC)
+      throw new IOException("Not a prediction cache: " + file);
+    if (header.get(1) != VERSION)
+      throw new IOException("Unsupported prediction cache version " + header.get(1) + ": " + file);
+    int num_rows = header.get(2);
+    if (file_size < columnOffset(num_rows, 3 + header.get(3)))
+      throw new IOException("Truncated prediction cache: " + file);
+    return num_rows;
+  }
+
+  private static long columnOffset(int num_rows, int column) {
+    return HEADER_SIZE + 4L * num_rows * column;
+  }
+
+  private static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long size) throws IOException {
+    MappedByteBuffer buffer = channel.map(mode, position, size);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    return buffer;
+  }
+
+}
@@ -0,0 +1,262 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.ensemble;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mymedialite.IBatchRecommender;
+import org.mymedialite.IRecommender;
+import org.mymedialite.eval.RatingPredictionEvaluationResults;
+import org.mymedialite.eval.Ratings;
+import org.mymedialite.io.Model;
+import org.mymedialite.util.Parallel;
+
+/**
+ * Stacked ensemble: a linear regression on the predictions of several recommenders.
+ *
+ * The blending model is fitted to the cached predictions of the trained recommenders for held-out ratings,
+ * and can be evaluated on cached predictions for test ratings. Different blends can be tried
+ * on the same cache files without training or running the recommenders again:
+ * <pre>
+ *   ensemble.train();
+ *   PredictionCache.write(holdout_file, holdout, ensemble.recommenders, 0);
+ *   PredictionCache.write(test_file, test, ensemble.recommenders, 0);
+ *   ensemble.fit(PredictionCache.open(holdout_file));
+ *   System.out.println(ensemble.evaluate(PredictionCache.open(test_file)));
+ * </pre>
+ * The column c of the caches must hold the predictions of the c-th recommender.
+ *
+ * This recommender does NOT support incremental updates.
+ * @version 2.03
+ */
+public class StackedEnsemble extends Ensemble implements IBatchRecommender {
+
+  private static final String VERSION = "2.03";
+
+  /**
+   * Regularization of the blending weights (not of the intercept).
+   */
+  public double regularization = 0.001;
+
+  /** The intercept of the blending model */
+  protected double intercept;
+
+  /** The blending weight of each recommender */
+  protected double[] weights = new double[0];
+
+  /**
+   * Fit the blending model to cached predictions for held-out ratings by ridge regression.
+   * The rows are processed in blocks on numThreads threads.
+   * @param holdout the cached predictions and ratings
+   */
+  public void fit(final PredictionCache holdout) {
+    final int num_columns = holdout.numberOfColumns();
+    final int size = num_columns + 1;
+    int num_threads = Parallel.numThreads(numThreads);
+    final double[][] gram = new double[num_threads][size * size];
+    final double[][] products = new double[num_threads][size];
+
+    Parallel.forRange(0, holdout.size(), 4096, num_threads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        double[] thread_gram = gram[thread_id];
+        double[] thread_products = products[thread_id];
+        double[] x = new double[size];
+        x[0] = 1;
+        for (int row = begin; row < end; row++) {
+          for (int c = 0; c < num_columns; c++)
+            x[c + 1] = holdout.prediction(c, row);
+          double rating = holdout.rating(row);
+          for (int k1 = 0; k1 < size; k1++) {
+            thread_products[k1] += x[k1] * rating;
+            for (int k2 = k1; k2 < size; k2++)
+              thread_gram[k1 * size + k2] += x[k1] * x[k2];
+          }
+        }
+      }
+    });
+
+    double[][] a = new double[size][size];
+    double[] b = new double[size];
+    for (int t = 0; t < num_threads; t++)
+      for (int k1 = 0; k1 < size; k1++) {
+        b[k1] += products[t][k1] / holdout.size();
+        for (int k2 = k1; k2 < size; k2++)
+          a[k1][k2] += gram[t][k1 * size + k2] / holdout.size();
+      }
+    for (int k1 = 0; k1 < size; k1++) {
+      if (k1 > 0)
+        a[k1][k1] += regularization;
+      for (int k2 = 0; k2 < k1; k2++)
+        a[k1][k2] = a[k2][k1];
+    }
+    double[] solution = WeightedEnsemble.solve(a, b);
+
+    double[] weights = new double[num_columns];
+    System.arraycopy(solution, 1, weights, 0, num_columns);
+    this.intercept = solution[0];
+    this.weights = weights;
+  }
+
+  /**
+   * Predict the rating of a row of a prediction cache from its cached predictions.
+   * @param cache the cache
+   * @param row the row
+   * @return the blended prediction
+   */
+  public double predict(PredictionCache cache, int row) {
+    double result = intercept;
+    for (int c = 0; c < weights.length; c++)
+      result += weights[c] * cache.prediction(c, row);
+    return clip(result);
+  }
+
+  /**
+   * Evaluate the blending model on cached predictions for test ratings.
+   * @param test the cached predictions and ratings
+   * @return the RMSE, MAE, NMAE and CBD of the blended predictions
+   */
+  public RatingPredictionEvaluationResults evaluate(PredictionCache test) {
+    double min_rating = getMinRatingValue();
+    double max_rating = getMaxRatingValue();
+    double rmse = 0;
+    double mae  = 0;
+    double cbd  = 0;
+    for (int row = 0; row < test.size(); row++) {
+      double prediction = predict(test, row);
+      double error = prediction - test.rating(row);
+      rmse += error * error;
+      mae  += Math.abs(error);
+      cbd  += Ratings.computeCBD(test.rating(row), prediction, min_rating, max_rating);
+    }
+    mae  = mae / test.size();
+    rmse = Math.sqrt(rmse / test.size());
+    cbd  = cbd / test.size();
+
+    RatingPredictionEvaluationResults result = new RatingPredictionEvaluationResults();
+    result.put("RMSE", rmse);
+    result.put("MAE", mae);
+    result.put("NMAE", mae / (max_rating - min_rating));
+    result.put("CBD", cbd);
+    return result;
+  }
+
+  /**
+   * 
+   */
+  public double predict(int user_id, int item_id) {
+    checkWeights();
+    double result = intercept;
+    for (int r = 0; r < weights.length; r++)
+      result += weights[r] * recommenders.get(r).predict(user_id, item_id);
+    return clip(result);
+  }
+
+  /**
+   * Predict the ratings of a given user for several items.
+   * Each recommender scores all items in one call if it is an IBatchRecommender.
+   * @param user_id the user ID
+   * @param item_ids the item IDs
+   * @return the predicted ratings, in the order of item_ids
+   */
+  public double[] predict(int user_id, int[] item_ids) {
+    checkWeights();
+    double[] result = new double[item_ids.length];
+    for (int i = 0; i < result.length; i++)
+      result[i] = intercept;
+    for (int r = 0; r < weights.length; r++) {
+      double[] scores = predict(recommenders.get(r), user_id, item_ids);
+      double weight = weights[r];
+      for (int i = 0; i < result.length; i++)
+        result[i] += weight * scores[i];
+    }
+    for (int i = 0; i < result.length; i++)
+      result[i] = clip(result[i]);
+    return result;
+  }
+
+  private void checkWeights() {
+    if (weights.length != recommenders.size())
+      throw new IllegalStateException("The blending model has " + weights.length + " weights, but there are " + recommenders.size() + " recommenders");
+  }
+
+  private double clip(double prediction) {
+    if (prediction > getMaxRatingValue())
+      return getMaxRatingValue();
+    if (prediction < getMinRatingValue())
+      return getMinRatingValue();
+    return prediction;
+  }
+
+  @Override
+  public void saveModel(String filename) throws IOException {
+    PrintWriter writer = Model.getWriter(filename, this.getClass(), VERSION);
+    saveModel(writer);
+    writer.flush();
+    writer.close();
+  }
+
+  @Override
+  public void saveModel(PrintWriter writer) throws IOException {
+    checkWeights();
+    writer.println(recommenders.size());
+    writer.println(intercept);
+    for (int i = 0; i < recommenders.size(); i++) {
+      recommenders.get(i).saveModel("model-" + i + ".txt");
+      writer.println(recommenders.get(i).getClass().getName() + " " + weights[i]);
+    }
+  }
+
+  @Override
+  public void loadModel(String filename) throws IOException {
+    BufferedReader reader = Model.getReader(filename, this.getClass());
+    loadModel(reader);
+    reader.close();
+  }
+
+  @Override
+  public void loadModel(BufferedReader reader) throws IOException {
+    int numberOfComponents = Integer.parseInt(reader.readLine());
+    double intercept = Double.parseDouble(reader.readLine());
+
+    double[] weights = new double[numberOfComponents];
+    List<IRecommender> recommenders = new ArrayList<IRecommender>();
+
+    for (int i = 0; i < numberOfComponents; i++) {
+      String[] data = reader.readLine().split(" ");
+
+      try {
+        Class<?> c = Class.forName(data[0]);
+        recommenders.add((IRecommender) c.getDeclaredConstructor().newInstance());
+      } catch (Exception e) {
+        throw new IOException("Unable to create recommender " + data[0], e);
+      }
+      recommenders.get(i).loadModel("model-" + i + ".txt");
+      weights[i] = Double.parseDouble(data[1]);
+    }
+
+    this.intercept = intercept;
+    this.weights = weights;
+    this.recommenders = recommenders;
+  }
+
+}
@@ -25,16 +25,23 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 
+import it.unimi.dsi.fastutil.ints.IntList;
+
+import org.mymedialite.IBatchRecommender;
 import org.mymedialite.IRecommender;
+import org.mymedialite.data.IRatings;
 import org.mymedialite.io.Model;
+import org.mymedialite.util.Parallel;
 
 /**
  * Combining several predictors with a weighted ensemble.
  * 
+ * The weights can be set by hand or fitted to held-out ratings with fitWeights().
+ *
  * This recommender does NOT support incremental updates.
  * @version 2.03
  */
-public class WeightedEnsemble extends Ensemble {
+public class WeightedEnsemble extends Ensemble implements IBatchRecommender {
 
   private static final String VERSION = "2.03";
   
@@ -48,26 +55,182 @@ public class WeightedEnsemble extends Ensemble {
    */
   protected double weight_sum;
 
+  /**
+   * Regularization for fitting the weights, added to the diagonal of the mean squared prediction matrix.
+   */
+  public double regularization = 0.001;
+
+  /** The component weights divided by their sum */
+  private double[] normalized_weights;
+
   /**
    * 
    */
   public void train() {
-    for (IRecommender recommender : recommenders)
-      recommender.train();
+    super.train();
+    updateWeights();
+  }
 
-    for(double weight : weights)
+  /**
+   * Update the cached weights after the list of weights has been changed.
+   */
+  public void updateWeights() {
+    if (weights.size() != recommenders.size())
+      throw new IllegalArgumentException("There must be one weight per recommender");
+    double weight_sum = 0;
+    for (double weight : weights)
       weight_sum += weight;
+    double[] normalized_weights = new double[weights.size()];
+    for (int i = 0; i < normalized_weights.length; i++)
+      normalized_weights[i] = weights.get(i) / weight_sum;
+    this.weight_sum = weight_sum;
+    this.normalized_weights = normalized_weights;
   }
 
   /**
    * 
    */
   public double predict(int user_id, int item_id) {
+    if (normalized_weights == null)
+      updateWeights();
+    double[] weights = normalized_weights;
     double result = 0;
-    for (int i = 0; i < recommenders.size(); i++)
-      result += weights.get(i) * recommenders.get(i).predict(user_id, item_id);
+    for (int i = 0; i < weights.length; i++)
+      result += weights[i] * recommenders.get(i).predict(user_id, item_id);
+
+    return result;
+  }
+
+  /**
+   * Predict the scores of a given user for several items.
+   * Each recommender scores all items in one call if it is an IBatchRecommender,
+   * then the score vectors are blended.
+   * @param user_id the user ID
+   * @param item_ids the item IDs
+   * @return the predicted scores, in the order of item_ids
+   */
+  public double[] predict(int user_id, int[] item_ids) {
+    if (normalized_weights == null)
+      updateWeights();
+    double[] weights = normalized_weights;
+    double[] result = new double[item_ids.length];
+    for (int r = 0; r < weights.length; r++) {
+      double[] scores = predict(recommenders.get(r), user_id, item_ids);
+      double weight = weights[r];
+      for (int i = 0; i < result.length; i++)
+        result[i] += weight * scores[i];
+    }
+    return result;
+  }
+
+  /**
+   * Fit the weights to held-out ratings by least squares.
+   *
+   * The recommenders must have been trained. The weights minimize the squared error of the blended predictions,
+   * plus regularization times their squared norm, subject to summing up to one.
+   * The held-out users are split into blocks, which are scored in parallel with numThreads threads;
+   * each thread sums up the products of the predictions of its blocks, and the sums are merged at the end.
+   *
+   * @param holdout the held-out ratings
+   */
+  public void fitWeights(final IRatings holdout) {
+    final int num_recommenders = recommenders.size();
+    final List<IntList> by_user = holdout.byUser();
+    int num_threads = Parallel.numThreads(numThreads);
+    final double[][] gram = new double[num_threads][num_recommenders * num_recommenders];
+    final double[][] products = new double[num_threads][num_recommenders];
+
+    Parallel.forRange(0, by_user.size(), 64, num_threads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        double[] thread_gram = gram[thread_id];
+        double[] thread_products = products[thread_id];
+        double[][] scores = new double[num_recommenders][];
+        for (int user_id = begin; user_id < end; user_id++) {
+          IntList indices = by_user.get(user_id);
+          if (indices.size() == 0)
+            continue;
+          int[] item_ids = new int[indices.size()];
+          for (int k = 0; k < item_ids.length; k++)
+            item_ids[k] = holdout.items().getInt(indices.getInt(k));
+          for (int r = 0; r < num_recommenders; r++)
+            scores[r] = predict(recommenders.get(r), user_id, item_ids);
 
-    return result / weight_sum;
+          for (int k = 0; k < item_ids.length; k++) {
+            double rating = holdout.get(indices.getInt(k));
+            for (int r1 = 0; r1 < num_recommenders; r1++) {
+              double score = scores[r1][k];
+              thread_products[r1] += score * rating;
+              for (int r2 = r1; r2 < num_recommenders; r2++)
+                thread_gram[r1 * num_recommenders + r2] += score * scores[r2][k];
+            }
+          }
+        }
+      }
+    });
+
+    // Solve the normal equations with a Lagrange multiplier for the sum of the weights
+    int size = num_recommenders + 1;
+    double[][] a = new double[size][size];
+    double[] b = new double[size];
+    for (int t = 0; t < num_threads; t++)
+      for (int r1 = 0; r1 < num_recommenders; r1++) {
+        b[r1] += products[t][r1] / holdout.size();
+        for (int r2 = r1; r2 < num_recommenders; r2++)
+          a[r1][r2] += gram[t][r1 * num_recommenders + r2] / holdout.size();
+      }
+    for (int r1 = 0; r1 < num_recommenders; r1++) {
+      a[r1][r1] += regularization;
+      for (int r2 = 0; r2 < r1; r2++)
+        a[r1][r2] = a[r2][r1];
+      a[r1][num_recommenders] = 1;
+      a[num_recommenders][r1] = 1;
+    }
+    b[num_recommenders] = 1;
+    double[] solution = solve(a, b);
+
+    List<Double> weights = new ArrayList<Double>(num_recommenders);
+    for (int r = 0; r < num_recommenders; r++)
+      weights.add(solution[r]);
+    this.weights = weights;
+    updateWeights();
+  }
+
+  /**
+   * Solve a system of linear equations by Gaussian elimination with partial pivoting.
+   * @param a the coefficient matrix, will be overwritten
+   * @param b the right-hand side, will be overwritten
+   * @return the solution
+   */
+  static double[] solve(double[][] a, double[] b) {
+    int n = b.length;
+    for (int col = 0; col < n; col++) {
+      int pivot = col;
+      for (int row = col + 1; row < n; row++)
+        if (Math.abs(a[row][col]) > Math.abs(a[pivot][col]))
+          pivot = row;
+      if (Math.abs(a[pivot][col]) < 1e-12)
+        throw new IllegalArgumentException("The weights cannot be fitted: the predictions are linearly dependent");
+      double[] swap_row = a[col]; a[col] = a[pivot]; a[pivot] = swap_row;
+      double swap = b[col]; b[col] = b[pivot]; b[pivot] = swap;
+
+      for (int row = col + 1; row < n; row++) {
+        double factor = a[row][col] / a[col][col];
+        if (factor == 0)
+          continue;
+        for (int k = col; k < n; k++)
+          a[row][k] -= factor * a[col][k];
+        b[row] -= factor * b[col];
+      }
+    }
+
+    double[] x = new double[n];
+    for (int row = n - 1; row >= 0; row--) {
+      double sum = b[row];
+      for (int k = row + 1; k < n; k++)
+        sum -= a[row][k] * x[k];
+      x[row] = sum / a[row][row];
+    }
+    return x;
   }
 
   @Override
@@ -119,6 +282,7 @@ public class WeightedEnsemble extends Ensemble {
 
       this.weights = weights;
       this.recommenders = recommenders;
+      updateWeights();
     }
   
 }
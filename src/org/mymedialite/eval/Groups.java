@@ -118,6 +118,9 @@ public class Groups {
         System.err.println();
     }
 
+    for (String measure : Items.getMeasures())
+      result.put(measure, result.get(measure) / num_groups);
+
     result.put("num_groups", (double)num_groups);
     result.put("num_lists",  (double)num_groups);
     result.put("num_items",  (double)candidate_items.size());
@@ -17,7 +17,11 @@
 
 package org.mymedialite.eval;
 
-import java.util.ArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -26,10 +30,7 @@ import java.util.List;
 import org.mymedialite.IRecommender;
 import org.mymedialite.data.IPosOnlyFeedback;
 import org.mymedialite.datatype.SparseBooleanMatrix;
-import org.mymedialite.eval.measures.AUC;
-import org.mymedialite.eval.measures.NDCG;
-import org.mymedialite.eval.measures.PrecisionAndRecall;
-import org.mymedialite.eval.measures.ReciprocalRank;
+import org.mymedialite.datatype.VectorExtensions;
 
 /**
  * Evaluation class for filtered item recommendation.
@@ -63,6 +64,10 @@ public class ItemsFiltered {
   /**
    * Evaluation for rankings of filtered items.
    * 
+   * For each user, the candidate items are ranked once. The ranking for each attribute of the user's test items
+   * is the ranking of all candidate items, restricted to the items that have the attribute.
+   * The restrictions are applied with bitsets over the item IDs, so all attributes of a user are evaluated
+   * in a single pass over the ranking. Items with equal scores are ranked by ascending item ID.
    * 
    * @param recommender item recommender
    * @param test test cases
@@ -83,7 +88,45 @@ public class ItemsFiltered {
       List<Integer> candidate_items,
       boolean repeated_events) throws Exception {
 
+    // The distinct candidate items in ascending order
+    IntOpenHashSet candidate_set = new IntOpenHashSet(candidate_items);
+    final int[] candidates = candidate_set.toIntArray();
+    Arrays.sort(candidates);
+    int max_item_id = candidates.length > 0 ? candidates[candidates.length - 1] : -1;
+    int num_words = (max_item_id >> 6) + 1;
+
+    // The candidate items of each attribute as bitsets over the item IDs
     SparseBooleanMatrix items_by_attribute = (SparseBooleanMatrix) item_attributes.transpose();
+    int num_attributes = items_by_attribute.numberOfRows();
+    long[][] attribute_items = new long[num_attributes][];
+    int[] attribute_sizes = new int[num_attributes];
+    for (int attribute_id = 0; attribute_id < num_attributes; attribute_id++) {
+      long[] bits = new long[num_words];
+      for (int item_id : items_by_attribute.get(attribute_id))
+        if (item_id <= max_item_id && candidate_set.contains(item_id)) {
+          bits[item_id >>> 6] |= 1L << item_id;
+          attribute_sizes[attribute_id]++;
+        }
+      attribute_items[attribute_id] = bits;
+    }
+
+    double[] scores = new double[candidates.length];
+
+    // Statistics of the attributes of the current user, by slot
+    int[] attribute_slots = new int[num_attributes];
+    Arrays.fill(attribute_slots, -1);
+    IntArrayList user_attributes = new IntArrayList();
+    int[] num_correct         = new int[0];
+    int[] num_in_train        = new int[0];
+    int[] num_ignored_correct = new int[0];
+    int[] num_ranked          = new int[0];
+    int[] hit_count           = new int[0];
+    int[] hits_at_5           = new int[0];
+    int[] hits_at_10          = new int[0];
+    long[] num_correct_pairs  = new long[0];
+    double[] avg_prec_sum     = new double[0];
+    double[] dcg              = new double[0];
+    double[] rr               = new double[0];
 
     int num_users = 0;
     int num_lists = 0;
@@ -99,68 +142,135 @@ public class ItemsFiltered {
     result.put("recall@10", 0.0);
     
     // TODO explore parallel processing options
-    OUTER:
-      for (int user_id : test_users) {
-        HashMap<Integer, Collection<Integer>> filtered_items = getFilteredItems(user_id, test, item_attributes);
-        int last_user_id = -1;
-
-        for (int attribute_id : filtered_items.keySet()) {
-          HashSet<Integer> filtered_candidate_items = new HashSet<Integer>(items_by_attribute.get(attribute_id));
-          filtered_candidate_items.retainAll(candidate_items);
-
-          HashSet<Integer> correct_items = new HashSet<Integer>(filtered_items.get(attribute_id));
-          correct_items.retainAll(filtered_candidate_items);
-
-          // the number of candidate items for this user
-          HashSet<Integer> candidate_items_in_train = new HashSet<Integer>(train.userMatrix().get(user_id));
-          candidate_items_in_train.retainAll(filtered_candidate_items);
-          int num_eval_items = filtered_candidate_items.size() - candidate_items_in_train.size();
-
-          // skip all users that have 0 or #filtered_candidate_items test items
-          if (correct_items.size() == 0)
-            continue OUTER;
-          if (num_eval_items - correct_items.size() == 0)
-            continue OUTER;
-
-          // evaluation
-          List<Integer> prediction_list = org.mymedialite.itemrec.Extensions.predictItems(recommender, user_id, filtered_candidate_items);
-          Collection<Integer> ignore_items = repeated_events ? new ArrayList<Integer>() : train.userMatrix().get(user_id);
-
-          double auc  = AUC.compute(prediction_list, correct_items, ignore_items);
-          double map  = PrecisionAndRecall.AP(prediction_list, correct_items, ignore_items);
-          double ndcg = NDCG.compute(prediction_list, correct_items, ignore_items);
-          double rr   = ReciprocalRank.compute(prediction_list, correct_items, ignore_items);
-          int[] positions = new int[] { 5, 10 };
-          HashMap<Integer, Double> prec = PrecisionAndRecall.precisionAt(prediction_list, correct_items, ignore_items, positions);
-          HashMap<Integer, Double> recall = PrecisionAndRecall.recallAt(prediction_list, correct_items, ignore_items, positions);
-
-          // counting stats
-          num_lists++;
-          if (last_user_id != user_id) {
-            last_user_id = user_id;
-            num_users++;
+    for (int user_id : test_users) {
+      IntCollection test_items = test.userMatrix().get(user_id);
+      IntCollection train_items = train.userMatrix().get(user_id);
+
+      // The attributes of the user's test items, and the number of correct items for each attribute
+      for (int attribute_id : user_attributes)
+        attribute_slots[attribute_id] = -1;
+      user_attributes.clear();
+      for (int item_id : test_items)
+        for (int attribute_id : item_attributes.get(item_id))
+          if (attribute_slots[attribute_id] == -1) {
+            attribute_slots[attribute_id] = user_attributes.size();
+            user_attributes.add(attribute_id);
           }
+      int num_user_attributes = user_attributes.size();
+      if (num_user_attributes == 0)
+        continue;
+      if (num_correct.length < num_user_attributes) {
+        int capacity = Math.max(num_user_attributes, 2 * num_correct.length);
+        num_correct         = new int[capacity];
+        num_in_train        = new int[capacity];
+        num_ignored_correct = new int[capacity];
+        num_ranked          = new int[capacity];
+        hit_count           = new int[capacity];
+        hits_at_5           = new int[capacity];
+        hits_at_10          = new int[capacity];
+        num_correct_pairs   = new long[capacity];
+        avg_prec_sum        = new double[capacity];
+        dcg                 = new double[capacity];
+        rr                  = new double[capacity];
+      }
+      Arrays.fill(num_correct,         0, num_user_attributes, 0);
+      Arrays.fill(num_in_train,        0, num_user_attributes, 0);
+      Arrays.fill(num_ignored_correct, 0, num_user_attributes, 0);
+      Arrays.fill(num_ranked,          0, num_user_attributes, 0);
+      Arrays.fill(hit_count,           0, num_user_attributes, 0);
+      Arrays.fill(hits_at_5,           0, num_user_attributes, 0);
+      Arrays.fill(hits_at_10,          0, num_user_attributes, 0);
+      Arrays.fill(num_correct_pairs,   0, num_user_attributes, 0);
+      Arrays.fill(avg_prec_sum,        0, num_user_attributes, 0);
+      Arrays.fill(dcg,                 0, num_user_attributes, 0);
+      Arrays.fill(rr,                  0, num_user_attributes, 0);
+      for (int item_id : test_items)
+        if (candidate_set.contains(item_id))
+          for (int attribute_id : item_attributes.get(item_id))
+            num_correct[attribute_slots[attribute_id]]++;
+
+      // Rank all candidate items once
+      for (int k = 0; k < candidates.length; k++)
+        scores[k] = recommender.predict(user_id, candidates[k]);
+      int[] ranking = VectorExtensions.topIndices(scores, scores.length, null);
+
+      // Evaluate the ranking of each attribute's items in one pass
+      for (int k : ranking) {
+        int item_id = candidates[k];
+        int word = item_id >>> 6;
+        long bit = 1L << item_id;
+        boolean in_train = train_items.contains(item_id);
+        boolean ignored  = in_train && !repeated_events;
+        boolean correct  = test_items.contains(item_id);
 
-          // result bookkeeping
-          result.put("AUC",       result.get("AUC")       + auc);
-          result.put("MAP",       result.get("MAP")       + map);
-          result.put("NDCG",      result.get("NDCG")      + ndcg);
-          result.put("MRR",       result.get("MRR")       + rr);
-          result.put("prec@5",    result.get("prec@5")    + prec.get(5));
-          result.put("prec@10",   result.get("prec@10")   + prec.get(10));
-          result.put("recall@5",  result.get("recall@5")  + recall.get(5));
-          result.put("recall@10", result.get("recall@10") + recall.get(10));
-          
-          if (prediction_list.size() != filtered_candidate_items.size())
-            throw new Exception("Not all items have been ranked.");
-
-          if (num_lists % 5000 == 0)
-            System.err.print(".");
-          if (num_lists % 300000 == 0)
-            System.err.println();
+        for (int slot = 0; slot < num_user_attributes; slot++) {
+          if ((attribute_items[user_attributes.getInt(slot)][word] & bit) == 0)
+            continue;
+          if (in_train)
+            num_in_train[slot]++;
+          if (ignored) {
+            if (correct)
+              num_ignored_correct[slot]++;
+            continue;
+          }
+          int rank = ++num_ranked[slot];
+          if (!correct) {
+            num_correct_pairs[slot] += hit_count[slot];
+            continue;
+          }
+          hit_count[slot]++;
+          avg_prec_sum[slot] += (double) hit_count[slot] / rank;
+          dcg[slot] += Math.log(2) / Math.log(rank + 1);
+          if (rr[slot] == 0)
+            rr[slot] = 1.0 / rank;
+          if (rank <= 5)
+            hits_at_5[slot]++;
+          if (rank <= 10)
+            hits_at_10[slot]++;
         }
       }
 
+      boolean user_evaluated = false;
+      for (int slot = 0; slot < num_user_attributes; slot++) {
+        // skip all attributes that have 0 or #filtered_candidate_items test items
+        int num_eval_items = attribute_sizes[user_attributes.getInt(slot)] - num_in_train[slot];
+        if (num_correct[slot] == 0)
+          continue;
+        if (num_eval_items - num_correct[slot] == 0)
+          continue;
+
+        int num_correct_items = num_correct[slot] - num_ignored_correct[slot];
+        long num_eval_pairs = (long) (num_ranked[slot] - num_correct_items) * num_correct_items;
+        double auc  = num_eval_pairs == 0 ? 0.5 : (double) num_correct_pairs[slot] / num_eval_pairs;
+        double map  = hit_count[slot] != 0 ? avg_prec_sum[slot] / hit_count[slot] : 0;
+        double idcg = 0;
+        for (int i = 0; i < num_correct[slot]; i++)
+          idcg += Math.log(2) / Math.log(i + 2);
+        double ndcg = dcg[slot] / idcg;
+
+        // counting stats
+        num_lists++;
+        user_evaluated = true;
+
+        // result bookkeeping
+        result.put("AUC",       result.get("AUC")       + auc);
+        result.put("MAP",       result.get("MAP")       + map);
+        result.put("NDCG",      result.get("NDCG")      + ndcg);
+        result.put("MRR",       result.get("MRR")       + rr[slot]);
+        result.put("prec@5",    result.get("prec@5")    + hits_at_5[slot] / 5.0);
+        result.put("prec@10",   result.get("prec@10")   + hits_at_10[slot] / 10.0);
+        result.put("recall@5",  result.get("recall@5")  + (double) hits_at_5[slot] / num_correct[slot]);
+        result.put("recall@10", result.get("recall@10") + (double) hits_at_10[slot] / num_correct[slot]);
+
+        if (num_lists % 5000 == 0)
+          System.err.print(".");
+        if (num_lists % 300000 == 0)
+          System.err.println();
+      }
+      if (user_evaluated)
+        num_users++;
+    }
+
     for (String measure : Items.getMeasures())
       result.put(measure, result.get(measure) / num_lists);
     
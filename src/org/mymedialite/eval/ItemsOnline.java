@@ -17,17 +17,19 @@
 
 package org.mymedialite.eval;
 
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import org.mymedialite.IRecommender;
 import org.mymedialite.itemrec.IIncrementalItemRecommender;
+import org.mymedialite.util.Parallel;
 import org.mymedialite.util.Utils;
 import org.mymedialite.data.IPosOnlyFeedback;
-import org.mymedialite.data.PosOnlyFeedback;
-import org.mymedialite.datatype.SparseBooleanMatrix;
+import org.mymedialite.data.ITimedDataSet;
 
 /**
  * Online evaluation for rankings of items
@@ -37,6 +39,9 @@ public class ItemsOnline {
 
   //TODO consider micro- (by item) and macro-averaging (by user, the current thing); repeated events
 
+  // The measures in the order of Items.getMeasures()
+  private static final String[] MEASURES = { "AUC", "prec@5", "prec@10", "MAP", "recall@5", "recall@10", "NDCG", "MRR" };
+
   /**
    * Online evaluation for rankings of items.
    * @param recommender the item recommender to be evaluated
@@ -55,96 +60,197 @@ public class ItemsOnline {
       List<Integer> candidate_items,
       CandidateItems candidate_item_mode) {
 
+    return evaluate(recommender, test, training, test_users, candidate_items, candidate_item_mode, 1, 1);
+  }
+
+  /**
+   * Online evaluation for rankings of items.
+   *
+   * The test events are processed in chronological order if the test data has time information,
+   * and in random order otherwise. Each event is evaluated as a ranking of the candidate items for its user,
+   * leaving out the items the user has in the training data, and then fed back to the recommender.
+   *
+   * The events are processed in batches. The events of a batch are scored in parallel against the state of
+   * the recommender before the batch, and then fed back in their original order.
+   * With a batch size of 1, each event is scored after all previous events have been fed back.
+   * Scoring on more than one thread requires that the recommender's predict() method can be called
+   * concurrently while the recommender is not updated.
+   *
+   * @param recommender the item recommender to be evaluated
+   * @param test test cases
+   * @param training training data (must be connected to the recommender's training data)
+   * @param test_users a list of all test user IDs, null for all users in the test data
+   * @param candidate_items a list of all candidate item IDs
+   * @param candidate_item_mode the mode used to determine the candidate items
+   * @param num_threads the number of threads used for scoring, 0 for the number of available processors
+   * @param batch_size the number of events that are scored before they are fed back
+   * @return a dictionary containing the evaluation results (averaged by user)
+   */
+  public static HashMap<String, Double> evaluate(
+      final IRecommender recommender,
+      IPosOnlyFeedback test,
+      IPosOnlyFeedback training,
+      List<Integer> test_users,
+      List<Integer> candidate_items,
+      CandidateItems candidate_item_mode,
+      int num_threads,
+      int batch_size) {
+
     if (!(recommender instanceof IIncrementalItemRecommender))
       throw new IllegalArgumentException("recommender must be of type IIncrementalItemRecommender");
-    
+    if (batch_size < 1)
+      throw new IllegalArgumentException("batch_size must be at least 1: " + batch_size);
+
     IIncrementalItemRecommender incremental_recommender = (IIncrementalItemRecommender)recommender;
-   
+
     // prepare candidate items once to avoid recreating them
     if(candidate_item_mode.equals(CandidateItems.TRAINING))
       candidate_items = training.allItems();
-    
+
     else if(candidate_item_mode.equals(CandidateItems.TEST))
       candidate_items = test.allItems();
-   
+
     else if(candidate_item_mode.equals(CandidateItems.OVERLAP))
       candidate_items = new ArrayList<Integer>(Utils.intersect(test.allItems(), training.allItems()));
-       
+
     else if(candidate_item_mode.equals(CandidateItems.UNION))
       candidate_items = new ArrayList<Integer>(Utils.union(test.allItems(), training.allItems()));
- 
-    candidate_item_mode = CandidateItems.EXPLICIT;
-    
-    // For better handling, move test data points into arrays.
-    int[] users = new int[test.size()];
-    int[] items = new int[test.size()];
-    int pos = 0;
-    for (int user_id : test.userMatrix().nonEmptyColumnIDs()) {
-      for (int item_id : test.userMatrix().get(user_id)) {
-        users[pos] = user_id;
-        items[pos] = item_id;
-        pos++;
-      }
+
+    else if (candidate_items == null)
+      throw new IllegalArgumentException("candidate_items == null!");
+
+    final int[] candidates = new int[candidate_items.size()];
+    IntOpenHashSet candidate_set = new IntOpenHashSet(candidates.length);
+    for (int k = 0; k < candidates.length; k++) {
+      candidates[k] = candidate_items.get(k);
+      candidate_set.add(candidates[k]);
     }
+    IntOpenHashSet test_user_set = new IntOpenHashSet(test_users != null ? test_users : test.allUsers());
 
-    // Random order of the test data points.
-    List<Integer> random_index = new ArrayList<Integer>(test.size());
-    for (int index = 0; index < random_index.size(); index++) random_index.add(index, index);
-    Collections.shuffle(random_index);
-
-    HashMap<Integer, HashMap<String, Double>> results_by_user = new HashMap<Integer, HashMap<String, Double>>();
-
-    for (int index : random_index) {
-      if (test_users.contains(users[index]) && candidate_items.contains(items[index])) {
-        // Evaluate user.
-        PosOnlyFeedback<SparseBooleanMatrix> current_test = null;
-        try {
-          current_test = new PosOnlyFeedback<SparseBooleanMatrix>(SparseBooleanMatrix.class);
-        } catch (Exception e) {
-          e.printStackTrace();
-        }
-        current_test.add(users[index], items[index]);
-        HashMap<String, Double> current_result = evaluate(recommender, current_test, training, current_test.allUsers(), candidate_items,candidate_item_mode);
-
-        if (current_result.get("num_users") == 1) {
-          HashMap<String, Double> result = results_by_user.get(users[index]);
-          if (results_by_user.containsKey(users[index])) {
-            for (String measure : Items.getMeasures()) {
-              result.put(measure, result.get(measure) + current_result.get(measure));
-            }
-            result.put("num_items", result.get("num_items") + 1); 
-          } else {
-            results_by_user.put(users[index], current_result);
-            current_result.put("num_items", 1D); 
-            current_result.remove("num_users"); 
-          }
+    // Chronological order if available, random order otherwise
+    IntList order = test instanceof ITimedDataSet ? ((ITimedDataSet) test).chronologicalIndex() : test.randomIndex();
+
+    final int[] users = new int[batch_size];
+    final int[] items = new int[batch_size];
+    final IntCollection[] ignore_items = new IntCollection[batch_size];
+    final boolean[] evaluated = new boolean[batch_size];
+    final double[] measures = new double[batch_size * MEASURES.length];
+
+    // Sums of the measures and the number of evaluated events by user
+    HashMap<Integer, double[]> results_by_user = new HashMap<Integer, double[]>();
+    int num_lists = 0;
+
+    for (int begin = 0; begin < order.size(); begin += batch_size) {
+      int batch_end = Math.min(order.size(), begin + batch_size);
+      final int num_events = batch_end - begin;
+
+      // Fetch the training items of the users before scoring, because fetching may modify the training data
+      for (int k = 0; k < num_events; k++) {
+        int index = order.getInt(begin + k);
+        users[k] = test.users().getInt(index);
+        items[k] = test.items().getInt(index);
+        ignore_items[k] = null;
+        if (test_user_set.contains(users[k]) && candidate_set.contains(items[k])) {
+          IntCollection user_items = training.userMatrix().get(users[k]);
+          if (!user_items.contains(items[k]))
+            ignore_items[k] = user_items;
         }
       }
 
-      // Update recommender
-      incremental_recommender.addFeedback(users[index], items[index]);
-    }
+      Parallel.forRange(0, num_events, 1, num_threads, new Parallel.RangeBody() {
+        public void run(int k_begin, int k_end, int thread_id) {
+          for (int k = k_begin; k < k_end; k++)
+            evaluated[k] = ignore_items[k] != null
+                && evaluate(recommender, users[k], items[k], candidates, ignore_items[k], measures, k * MEASURES.length);
+        }
+      });
 
-    HashMap<String, Double> results = new HashMap<String, Double>();
-    for (String measure : Items.getMeasures())
-      results.put(measure, 0D);
+      for (int k = 0; k < num_events; k++) {
+        if (evaluated[k]) {
+          double[] result = results_by_user.get(users[k]);
+          if (result == null) {
+            result = new double[MEASURES.length + 1];
+            results_by_user.put(users[k], result);
+          }
+          for (int m = 0; m < MEASURES.length; m++)
+            result[m] += measures[k * MEASURES.length + m];
+          result[MEASURES.length]++;
+          num_lists++;
+        }
 
-    for (int u : results_by_user.keySet()) {
-      HashMap<String, Double> userResult = results_by_user.get(u);
-      for (String measure : Items.getMeasures()) {
-        results.put(measure, userResult.get(measure) / userResult.get("num_items"));
+        // Update recommender
+        incremental_recommender.addFeedback(users[k], items[k]);
       }
     }
 
-    for (String measure : Items.getMeasures()) {
-      results.put(measure, results.get(measure) / results_by_user.size());
+    HashMap<String, Double> results = new ItemRecommendationEvaluationResults();
+    for (int m = 0; m < MEASURES.length; m++) {
+      double sum = 0;
+      for (double[] result : results_by_user.values())
+        sum += result[m] / result[MEASURES.length];
+      results.put(MEASURES[m], results_by_user.size() > 0 ? sum / results_by_user.size() : 0);
     }
 
     results.put("num_users", new Double(results_by_user.size()));
-    results.put("num_items", new Double(candidate_items.size()));
-    results.put("num_lists", new Double(test.size())); // FIXME this is not exact
+    results.put("num_items", new Double(candidates.length));
+    results.put("num_lists", new Double(num_lists));
 
     return results;
   }
 
+  /**
+   * Evaluate the ranking of the candidate items for one event.
+   *
+   * The rank of the event's item is its expected rank if ties are broken at random.
+   * The measures are the ones computed by Items.evaluate() for a single relevant item.
+   *
+   * @param recommender the item recommender
+   * @param user_id the user ID
+   * @param item_id the item ID of the event
+   * @param candidates the candidate item IDs
+   * @param ignore_items the items that are not ranked
+   * @param measures the array to store the measures in
+   * @param offset the position of the first measure in the array
+   * @return false if there are no other items to rank the item against
+   */
+  static boolean evaluate(
+      IRecommender recommender,
+      int user_id,
+      int item_id,
+      int[] candidates,
+      IntCollection ignore_items,
+      double[] measures,
+      int offset) {
+
+    double score = recommender.predict(user_id, item_id);
+    int num_eval_items = 0;
+    int num_better = 0;
+    int num_ties = 0;
+    for (int candidate_item_id : candidates) {
+      if (ignore_items.contains(candidate_item_id))
+        continue;
+      num_eval_items++;
+      if (candidate_item_id == item_id)
+        continue;
+      double candidate_score = recommender.predict(user_id, candidate_item_id);
+      if (candidate_score > score)
+        num_better++;
+      else if (candidate_score == score)
+        num_ties++;
+    }
+    if (num_eval_items < 2)
+      return false;
+
+    double rank = num_better + 0.5 * num_ties;
+    measures[offset]     = 1 - rank / (num_eval_items - 1);   // AUC
+    measures[offset + 1] = rank < 5 ? 1.0 / 5 : 0;            // prec@5
+    measures[offset + 2] = rank < 10 ? 1.0 / 10 : 0;          // prec@10
+    measures[offset + 3] = 1 / (rank + 1);                    // MAP
+    measures[offset + 4] = rank < 5 ? 1 : 0;                  // recall@5
+    measures[offset + 5] = rank < 10 ? 1 : 0;                 // recall@10
+    measures[offset + 6] = Math.log(2) / Math.log(rank + 2);  // NDCG
+    measures[offset + 7] = 1 / (rank + 1);                    // MRR
+    return true;
+  }
+
 }
@@ -18,9 +18,13 @@
 
 package org.mymedialite.eval;
 
+import it.unimi.dsi.fastutil.ints.IntList;
+
 import org.mymedialite.data.IRatings;
+import org.mymedialite.data.ITimedRatings;
 import org.mymedialite.ratingprediction.IIncrementalRatingPredictor;
 import org.mymedialite.ratingprediction.IRatingPredictor;
+import org.mymedialite.util.Parallel;
 
 /**
  * Online evaluation for rating prediction.
@@ -41,6 +45,28 @@ public class RatingsOnline {
    * @return a Dictionary containing the evaluation results
    */
   public static RatingPredictionEvaluationResults evaluateOnline(IRatingPredictor recommender, IRatings ratings) {
+    return evaluateOnline(recommender, ratings, 1, 1);
+  }
+
+  /**
+   * Online evaluation for rating prediction.
+   * 
+   * Every rating that is tested is added to the training set afterwards.
+   * The ratings are processed in chronological order if they have time information, and in random order otherwise.
+   * 
+   * The ratings are processed in batches. The ratings of a batch are predicted in parallel by the state of the
+   * recommender before the batch, and then added in their original order.
+   * With a batch size of 1, each rating is predicted after all previous ratings have been added.
+   * Predicting on more than one thread requires that the recommender's predict() method can be called
+   * concurrently while the recommender is not updated.
+   * 
+   * @param recommender rating predictor
+   * @param ratings Test cases
+   * @param num_threads the number of threads used for predicting, 0 for the number of available processors
+   * @param batch_size the number of ratings that are predicted before they are added
+   * @return a Dictionary containing the evaluation results
+   */
+  public static RatingPredictionEvaluationResults evaluateOnline(final IRatingPredictor recommender, final IRatings ratings, int num_threads, int batch_size) {
     if (recommender == null)
       throw new IllegalArgumentException("recommender is null!");
 
@@ -49,6 +75,9 @@ public class RatingsOnline {
 
     if (!(recommender instanceof IIncrementalRatingPredictor))
       throw new IllegalArgumentException("recommender must be of type IIncrementalRatingPredictor");
+
+    if (batch_size < 1)
+      throw new IllegalArgumentException("batch_size must be at least 1: " + batch_size);
     
     IIncrementalRatingPredictor incremental_recommender = (IIncrementalRatingPredictor)recommender;   
 
@@ -56,15 +85,33 @@ public class RatingsOnline {
     double mae  = 0;
     double cbd  = 0;
 
-    // Iterate in random order
-    for (int index : ratings.randomIndex()) {
-      double prediction = recommender.predict(ratings.users().get(index), ratings.items().get(index));
-      double error = prediction - ratings.get(index);
+    // Iterate in chronological order if available, in random order otherwise
+    final IntList order = ratings instanceof ITimedRatings ? ((ITimedRatings) ratings).chronologicalIndex() : ratings.randomIndex();
+    final double[] predictions = new double[batch_size];
+
+    for (int begin = 0; begin < order.size(); begin += batch_size) {
+      final int batch_begin = begin;
+      int batch_end = Math.min(order.size(), begin + batch_size);
+
+      Parallel.forRange(batch_begin, batch_end, 64, num_threads, new Parallel.RangeBody() {
+        public void run(int k_begin, int k_end, int thread_id) {
+          for (int k = k_begin; k < k_end; k++) {
+            int index = order.getInt(k);
+            predictions[k - batch_begin] = recommender.predict(ratings.users().getInt(index), ratings.items().getInt(index));
+          }
+        }
+      });
+
+      for (int k = batch_begin; k < batch_end; k++) {
+        int index = order.getInt(k);
+        double prediction = predictions[k - batch_begin];
+        double error = prediction - ratings.get(index);
 
-      rmse += error * error;
-      mae  += Math.abs(error);
-      cbd  += Ratings.computeCBD(ratings.get(index), prediction, ratings.minRating(), ratings.maxRating());
-      incremental_recommender.addRating(ratings.users().get(index), ratings.items().get(index), ratings.get(index));
+        rmse += error * error;
+        mae  += Math.abs(error);
+        cbd  += Ratings.computeCBD(ratings.get(index), prediction, ratings.minRating(), ratings.maxRating());
+        incremental_recommender.addRating(ratings.users().getInt(index), ratings.items().getInt(index), ratings.get(index));
+      }
     }
     
     mae  = mae / ratings.size();
@@ -0,0 +1,439 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.eval;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mymedialite.IRecommender;
+import org.mymedialite.data.ITimedRatingStream;
+import org.mymedialite.itemrec.IIncrementalItemRecommender;
+import org.mymedialite.ratingprediction.IIncrementalRatingPredictor;
+
+/**
+ * Streaming training and prequential evaluation of incremental recommenders.
+ *
+ * The trainer reads events in chronological order and passes them to the recommender in micro-batches,
+ * using addRating()/updateRating() of IIncrementalRatingPredictor or addFeedback() of IIncrementalItemRecommender.
+ * Before a batch is applied, each of its events is used to test the recommender ("test-then-train"),
+ * so every event is predicted by a model that has not seen it yet.
+ *
+ * If a window is set, events that are older than the window, relative to the latest event, are forgotten:
+ * they are removed from the recommender with removeRating()/removeFeedback(),
+ * unless the same user-item pair has occurred again in the meantime.
+ *
+ * Rating predictors are evaluated by RMSE, MAE and NMAE.
+ * Item recommenders are evaluated by the rank of the event's item among all items seen so far,
+ * leaving out the other items of the user that are in the model: AUC, MRR and recall@N.
+ * For item recommenders, only events of known users with new user-item pairs are evaluated.
+ * With a fading factor below 1, the weight of older errors decays exponentially.
+ *
+ * The trainer can be run several times, e.g. on a stream that reads from a growing log file.
+ * @version 2.03
+ */
+public class StreamingTrainer {
+
+  /** The number of events that are applied to the recommender at once */
+  public int batchSize = 1000;
+
+  /** Events older than this many milliseconds before the latest event are forgotten, 0 to keep all events */
+  public long windowMillis = 0;
+
+  /** If true, evaluate each event before training on it */
+  public boolean evaluate = true;
+
+  /** The weight of the previous errors when an error is added, 1 for a plain average */
+  public double fadingFactor = 1.0;
+
+  /** The list length N for the recall@N of item recommenders */
+  public int topN = 10;
+
+  private final IRecommender recommender;
+  private final IIncrementalRatingPredictor rating_predictor;
+  private final IIncrementalItemRecommender item_recommender;
+
+  // The current batch
+  private int[] batch_users = new int[16];
+  private int[] batch_items = new int[16];
+  private double[] batch_ratings = new double[16];
+  private long[] batch_times = new long[16];
+  private int batch_count;
+
+  // The number of the latest event of each user-item pair in the model
+  private final HashMap<Long, Long> latest_events = new HashMap<Long, Long>();
+
+  // The items of each user in the model, for item recommenders
+  private final List<IntOpenHashSet> user_items = new ArrayList<IntOpenHashSet>();
+
+  // The events in the window, as a ring buffer
+  private int[] window_users = new int[16];
+  private int[] window_items = new int[16];
+  private long[] window_times = new long[16];
+  private long[] window_events = new long[16];
+  private int window_start;
+  private int window_count;
+
+  // The users and items seen so far
+  private boolean[] known_users = new boolean[16];
+  private boolean[] known_items = new boolean[16];
+  private final IntArrayList known_item_list = new IntArrayList();
+
+  // Statistics
+  private long num_events;
+  private long num_evaluated;
+  private long num_forgotten;
+  private long latest_time = Long.MIN_VALUE;
+  private long update_nanos;
+  private long evaluation_nanos;
+  private double weight_sum;
+  private double squared_error_sum;
+  private double absolute_error_sum;
+  private double auc_sum;
+  private double reciprocal_rank_sum;
+  private double hit_sum;
+
+  /**
+   * Create a streaming trainer.
+   * @param recommender the recommender, must be an IIncrementalRatingPredictor or an IIncrementalItemRecommender
+   */
+  public StreamingTrainer(IRecommender recommender) {
+    if (recommender == null)
+      throw new IllegalArgumentException("recommender is null!");
+    if (recommender instanceof IIncrementalRatingPredictor) {
+      rating_predictor = (IIncrementalRatingPredictor) recommender;
+      item_recommender = null;
+    } else if (recommender instanceof IIncrementalItemRecommender) {
+      rating_predictor = null;
+      item_recommender = (IIncrementalItemRecommender) recommender;
+    } else {
+      throw new IllegalArgumentException("recommender must be of type IIncrementalRatingPredictor or IIncrementalItemRecommender");
+    }
+    this.recommender = recommender;
+  }
+
+  /**
+   * Process all available events of a stream.
+   * The last, possibly incomplete batch is applied before the method returns.
+   * @param events the events, in chronological order
+   * @return the number of events read
+   * @throws IOException if the stream cannot be read
+   */
+  public long run(ITimedRatingStream events) throws IOException {
+    long count = 0;
+    while (events.next()) {
+      add(events.user(), events.item(), events.rating(), events.time());
+      count++;
+    }
+    flush();
+    return count;
+  }
+
+  /**
+   * Add one event.
+   * The event is applied to the recommender when the batch is full or when flush() is called.
+   * @param user_id the user ID
+   * @param item_id the item ID
+   * @param rating the rating value, ignored for item recommenders
+   * @param time the time in milliseconds since the Unix epoch
+   */
+  public void add(int user_id, int item_id, double rating, long time) {
+    if (batch_count == batch_users.length) {
+      int capacity = 2 * batch_count;
+      batch_users   = Arrays.copyOf(batch_users, capacity);
+      batch_items   = Arrays.copyOf(batch_items, capacity);
+      batch_ratings = Arrays.copyOf(batch_ratings, capacity);
+      batch_times   = Arrays.copyOf(batch_times, capacity);
+    }
+    batch_users[batch_count]   = user_id;
+    batch_items[batch_count]   = item_id;
+    batch_ratings[batch_count] = rating;
+    batch_times[batch_count]   = time;
+    batch_count++;
+
+    if (batch_count >= batchSize)
+      flush();
+  }
+
+  /**
+   * Evaluate and apply the current batch, then forget the events that have left the window.
+   */
+  public void flush() {
+    if (batch_count == 0)
+      return;
+
+    if (evaluate) {
+      long start = System.nanoTime();
+      if (rating_predictor != null)
+        evaluateRatings();
+      else
+        evaluateItems();
+      evaluation_nanos += System.nanoTime() - start;
+    }
+
+    long start = System.nanoTime();
+    if (rating_predictor != null)
+      applyRatings();
+    else
+      applyFeedback();
+    forget();
+    update_nanos += System.nanoTime() - start;
+
+    for (int k = 0; k < batch_count; k++) {
+      markKnown(batch_users[k], batch_items[k]);
+      latest_time = Math.max(latest_time, batch_times[k]);
+    }
+    batch_count = 0;
+  }
+
+  private void evaluateRatings() {
+    for (int k = 0; k < batch_count; k++) {
+      double error = rating_predictor.predict(batch_users[k], batch_items[k]) - batch_ratings[k];
+      weight_sum         = 1                  + fadingFactor * weight_sum;
+      squared_error_sum  = error * error      + fadingFactor * squared_error_sum;
+      absolute_error_sum = Math.abs(error)    + fadingFactor * absolute_error_sum;
+      num_evaluated++;
+    }
+  }
+
+  private void evaluateItems() {
+    for (int k = 0; k < batch_count; k++) {
+      int user_id = batch_users[k];
+      int item_id = batch_items[k];
+      if (user_id >= known_users.length || !known_users[user_id])
+        continue;
+      if (item_id >= known_items.length || !known_items[item_id])
+        continue;
+      IntOpenHashSet items = user_id < user_items.size() ? user_items.get(user_id) : null;
+      if (items != null && items.contains(item_id))
+        continue;
+
+      // Expected rank of the item if ties are broken at random
+      double score = recommender.predict(user_id, item_id);
+      int num_candidates = 0;
+      int num_better = 0;
+      int num_ties = 0;
+      for (int pos = 0; pos < known_item_list.size(); pos++) {
+        int other_item_id = known_item_list.getInt(pos);
+        if (other_item_id == item_id || (items != null && items.contains(other_item_id)))
+          continue;
+        num_candidates++;
+        double other_score = recommender.predict(user_id, other_item_id);
+        if (other_score > score)
+          num_better++;
+        else if (other_score == score)
+          num_ties++;
+      }
+      double rank = num_better + 0.5 * num_ties;
+
+      weight_sum          = 1                                                 + fadingFactor * weight_sum;
+      auc_sum             = (num_candidates == 0 ? 1 : 1 - rank / num_candidates) + fadingFactor * auc_sum;
+      reciprocal_rank_sum = 1 / (rank + 1)                                    + fadingFactor * reciprocal_rank_sum;
+      hit_sum             = (rank < topN ? 1 : 0)                             + fadingFactor * hit_sum;
+      num_evaluated++;
+    }
+  }
+
+  private void applyRatings() {
+    for (int k = 0; k < batch_count; k++) {
+      long event = num_events++;
+      Long previous_event = latest_events.put(key(batch_users[k], batch_items[k]), event);
+      if (previous_event == null)
+        rating_predictor.addRating(batch_users[k], batch_items[k], batch_ratings[k]);
+      else
+        rating_predictor.updateRating(batch_users[k], batch_items[k], batch_ratings[k]);
+      addToWindow(batch_users[k], batch_items[k], batch_times[k], event);
+    }
+  }
+
+  private void applyFeedback() {
+    // Collect the new items of each user, so that they can be added at once
+    Map<Integer, List<Integer>> new_items = new LinkedHashMap<Integer, List<Integer>>();
+    for (int k = 0; k < batch_count; k++) {
+      int user_id = batch_users[k];
+      int item_id = batch_items[k];
+      long event = num_events++;
+      Long previous_event = latest_events.put(key(user_id, item_id), event);
+      if (previous_event == null) {
+        userItems(user_id).add(item_id);
+        List<Integer> items = new_items.get(user_id);
+        if (items == null) {
+          items = new ArrayList<Integer>();
+          new_items.put(user_id, items);
+        }
+        items.add(item_id);
+      }
+      addToWindow(user_id, item_id, batch_times[k], event);
+    }
+
+    for (Map.Entry<Integer, List<Integer>> entry : new_items.entrySet())
+      if (entry.getValue().size() == 1)
+        item_recommender.addFeedback(entry.getKey(), entry.getValue().get(0));
+      else
+        item_recommender.addFeedback(entry.getKey(), entry.getValue());
+  }
+
+  private void forget() {
+    if (windowMillis <= 0 || window_count == 0)
+      return;
+    long batch_latest_time = latest_time;
+    for (int k = 0; k < batch_count; k++)
+      batch_latest_time = Math.max(batch_latest_time, batch_times[k]);
+    long threshold = batch_latest_time - windowMillis;
+
+    while (window_count > 0 && window_times[window_start] < threshold) {
+      int user_id = window_users[window_start];
+      int item_id = window_items[window_start];
+      long event  = window_events[window_start];
+      window_start = (window_start + 1) % window_users.length;
+      window_count--;
+
+      // Only forget the pair if it has not occurred again
+      Long key = key(user_id, item_id);
+      Long latest_event = latest_events.get(key);
+      if (latest_event == null || latest_event != event)
+        continue;
+      latest_events.remove(key);
+      if (rating_predictor != null) {
+        rating_predictor.removeRating(user_id, item_id);
+      } else {
+        user_items.get(user_id).remove(item_id);
+        item_recommender.removeFeedback(user_id, item_id);
+      }
+      num_forgotten++;
+    }
+  }
+
+  private void addToWindow(int user_id, int item_id, long time, long event) {
+    if (windowMillis <= 0)
+      return;
+    if (window_count == window_users.length) {
+      // Grow the ring buffer, moving the events into chronological order
+      int capacity = 2 * window_count;
+      int[] users   = new int[capacity];
+      int[] items   = new int[capacity];
+      long[] times  = new long[capacity];
+      long[] events = new long[capacity];
+      for (int k = 0; k < window_count; k++) {
+        int pos = (window_start + k) % window_users.length;
+        users[k]  = window_users[pos];
+        items[k]  = window_items[pos];
+        times[k]  = window_times[pos];
+        events[k] = window_events[pos];
+      }
+      window_users  = users;
+      window_items  = items;
+      window_times  = times;
+      window_events = events;
+      window_start  = 0;
+    }
+    int pos = (window_start + window_count) % window_users.length;
+    window_users[pos]  = user_id;
+    window_items[pos]  = item_id;
+    window_times[pos]  = time;
+    window_events[pos] = event;
+    window_count++;
+  }
+
+  private void markKnown(int user_id, int item_id) {
+    if (user_id >= known_users.length)
+      known_users = Arrays.copyOf(known_users, Math.max(user_id + 1, 2 * known_users.length));
+    known_users[user_id] = true;
+    if (item_id >= known_items.length)
+      known_items = Arrays.copyOf(known_items, Math.max(item_id + 1, 2 * known_items.length));
+    if (!known_items[item_id]) {
+      known_items[item_id] = true;
+      known_item_list.add(item_id);
+    }
+  }
+
+  private IntOpenHashSet userItems(int user_id) {
+    while (user_items.size() <= user_id)
+      user_items.add(null);
+    IntOpenHashSet items = user_items.get(user_id);
+    if (items == null) {
+      items = new IntOpenHashSet();
+      user_items.set(user_id, items);
+    }
+    return items;
+  }
+
+  private static Long key(int user_id, int item_id) {
+    return ((long) user_id << 32) | (item_id & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Get the number of events that are currently in the model.
+   * @return the number of distinct user-item pairs that have been applied and not forgotten
+   */
+  public int size() {
+    return latest_events.size();
+  }
+
+  /**
+   * Get the results so far.
+   *
+   * Besides the evaluation measures, the results contain the number of events, evaluated events and
+   * forgotten events, the time spent on updates and evaluation in seconds,
+   * and the update throughput in events per second.
+   * @return the results
+   */
+  public HashMap<String, Double> results() {
+    HashMap<String, Double> results;
+    if (rating_predictor != null) {
+      results = new RatingPredictionEvaluationResults();
+      double mae = absolute_error_sum / weight_sum;
+      results.put("RMSE", Math.sqrt(squared_error_sum / weight_sum));
+      results.put("MAE",  mae);
+      results.put("NMAE", mae / (rating_predictor.getMaxRating() - rating_predictor.getMinRating()));
+    } else {
+      results = new HashMap<String, Double>();
+      results.put("AUC", auc_sum / weight_sum);
+      results.put("MRR", reciprocal_rank_sum / weight_sum);
+      results.put("recall@" + topN, hit_sum / weight_sum);
+    }
+    results.put("num_events",         (double) num_events);
+    results.put("num_evaluated",      (double) num_evaluated);
+    results.put("num_forgotten",      (double) num_forgotten);
+    results.put("update_seconds",     update_nanos / 1E9);
+    results.put("evaluation_seconds", evaluation_nanos / 1E9);
+    results.put("events_per_second",  num_events / (update_nanos / 1E9));
+    return results;
+  }
+
+  /**
+   *
+   */
+  public String toString() {
+    return "StreamingTrainer"
+        + " batch_size="    + batchSize
+        + " window_millis=" + windowMillis
+        + " evaluate="      + evaluate
+        + " fading_factor=" + fadingFactor
+        + " top_n="         + topN;
+  }
+
+}
@@ -58,8 +58,9 @@ public class ReciprocalRank {
       if (ignore_items.contains(item_id))
         continue;
 
-      if (correct_items.contains(ranked_items.get(pos++)))
-        return (double) 1 / (pos);
+      pos++;
+      if (correct_items.contains(item_id))
+        return (double) 1 / pos;
     }
 
     return 0;
@@ -17,13 +17,7 @@
 
 package org.mymedialite.grouprec;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
-
 import org.mymedialite.IRecommender;
-import org.mymedialite.data.WeightedItem;
 
 /**
  * Group recommender that averages user scores.
@@ -41,26 +35,16 @@ public class Average extends GroupRecommender {
   /**
    * 
    */
-  public List<Integer> rankItems(Collection<Integer> users, Collection<Integer> items) {
-    List<WeightedItem> average_scores = new ArrayList<WeightedItem>(items.size());
-
-    for (int i : items) {
-      WeightedItem weightedItem = new WeightedItem(i, 0.0);
-      for (int u : users) {
-        // TODO consider taking CanPredict into account
-        weightedItem.weight += recommender.predict(u, i);
-      }
-      weightedItem.weight = weightedItem.weight / users.size();
-      average_scores.add(i, weightedItem);
-    }
-    
-    Collections.sort(average_scores, Collections.reverseOrder());
-    List<Integer> ranked_items = new ArrayList<Integer>(average_scores.size());
-    for (int i=0; i<average_scores.size(); i++) {
-      ranked_items.add(i, average_scores.get(i).item_id);
+  protected double[] aggregate(int[] users, int[] items, double[] scores) {
+    double[] average_scores = new double[items.length];
+    for (int u = 0; u < users.length; u++) {
+      int offset = u * items.length;
+      for (int i = 0; i < items.length; i++)
+        average_scores[i] += scores[offset + i];
     }
-    
-    return ranked_items;
+    for (int i = 0; i < items.length; i++)
+      average_scores[i] /= users.length;
+
+    return average_scores;
   }
 }
-
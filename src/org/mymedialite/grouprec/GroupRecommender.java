@@ -17,12 +17,21 @@
 
 package org.mymedialite.grouprec;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import org.mymedialite.IBatchRecommender;
 import org.mymedialite.IRecommender;
+import org.mymedialite.datatype.VectorExtensions;
+import org.mymedialite.util.Parallel;
 
 /**
  * Base class for group recommenders.
+ *
+ * The user scores are computed in one batched pass by scoreItems(), optionally in parallel across the group members,
+ * and then aggregated to group scores by the concrete group recommender.
+ * If the underlying recommender is an IBatchRecommender, each member's scores are computed by one batch call.
+ * Several group recommenders that use the same underlying recommender can share the scores of one pass.
  * @version 2.03
  */
 public abstract class GroupRecommender implements IGroupRecommender {
@@ -32,6 +41,12 @@ public abstract class GroupRecommender implements IGroupRecommender {
    */
   protected IRecommender recommender;
 
+  /**
+   * The number of threads used for scoring, 0 for the number of available processors.
+   * Scoring on more than one thread requires that the underlying recommender's predict() method can be called concurrently.
+   */
+  public int numThreads = 1;
+
   /**
    * Constructor that takes the underlying recommender that will be used.
    * @param recommender the underlying recommender
@@ -42,6 +57,115 @@ public abstract class GroupRecommender implements IGroupRecommender {
 
   /**
    */
-  public abstract List<Integer> rankItems(Collection<Integer> users, Collection<Integer> items);
+  public List<Integer> rankItems(Collection<Integer> users, Collection<Integer> items) {
+    return rankItems(users, items, items.size());
+  }
+
+  /**
+   * Get the top-ranked items for a given group of users.
+   * @param users the users
+   * @param items the items to be ranked
+   * @param n the number of items to return
+   * @return a ranked list of at most n items, highest-ranking item comes first
+   */
+  public List<Integer> rankItems(Collection<Integer> users, Collection<Integer> items, int n) {
+    int[] user_ids = toArray(users);
+    int[] item_ids = toArray(items);
+    return rankItems(user_ids, item_ids, scoreItems(recommender, user_ids, item_ids, numThreads), n);
+  }
+
+  /**
+   * Rank items for a given group of users, using precomputed user scores.
+   * @param users the users
+   * @param items the items to be ranked
+   * @param scores the user scores as returned by scoreItems()
+   * @return a ranked list of items, highest-ranking item comes first
+   */
+  public List<Integer> rankItems(int[] users, int[] items, double[] scores) {
+    return rankItems(users, items, scores, items.length);
+  }
+
+  /**
+   * Get the top-ranked items for a given group of users, using precomputed user scores.
+   * @param users the users
+   * @param items the items to be ranked
+   * @param scores the user scores as returned by scoreItems()
+   * @param n the number of items to return
+   * @return a ranked list of at most n items, highest-ranking item comes first
+   */
+  public List<Integer> rankItems(int[] users, int[] items, double[] scores, int n) {
+    return rank(items, aggregate(users, items, scores), n);
+  }
+
+  /**
+   * Aggregate the user scores to group scores.
+   * @param users the users
+   * @param items the items
+   * @param scores the user scores as returned by scoreItems()
+   * @return the group score of each item, in the order of the items
+   */
+  protected abstract double[] aggregate(int[] users, int[] items, double[] scores);
+
+  /**
+   * Compute the scores of all given users for all given items.
+   * The users are scored in parallel.
+   * @param recommender the recommender that produces the user-wise item scores
+   * @param users the users
+   * @param items the items
+   * @param num_threads the number of threads, 0 for the number of available processors
+   * @return the scores, user by user: the score of the u-th user for the i-th item is at position u * items.length + i
+   */
+  public static double[] scoreItems(final IRecommender recommender, final int[] users, final int[] items, int num_threads) {
+    final double[] scores = new double[users.length * items.length];
+    Parallel.forRange(0, users.length, 1, num_threads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        for (int u = begin; u < end; u++) {
+          int offset = u * items.length;
+          if (recommender instanceof IBatchRecommender) {
+            double[] user_scores = ((IBatchRecommender) recommender).predict(users[u], items);
+            System.arraycopy(user_scores, 0, scores, offset, items.length);
+          } else {
+            for (int i = 0; i < items.length; i++)
+              // TODO consider taking CanPredict into account
+              scores[offset + i] = recommender.predict(users[u], items[i]);
+          }
+        }
+      }
+    });
+    return scores;
+  }
+
+  /**
+   * Rank items by their group scores.
+   *
+   * If only some of the items are requested, they are selected with a min-heap of size n in O(|I| log n),
+   * and only the selected items are sorted.
+   * Items with equal scores keep their original order.
+   *
+   * @param items the items
+   * @param group_scores the group score of each item
+   * @param n the number of items to return
+   * @return a ranked list of at most n items, highest-ranking item comes first
+   */
+  protected static List<Integer> rank(int[] items, double[] group_scores, int n) {
+    int[] positions = VectorExtensions.topIndices(group_scores, n, null);
+    List<Integer> ranked_items = new ArrayList<Integer>(positions.length);
+    for (int i : positions)
+      ranked_items.add(items[i]);
+    return ranked_items;
+  }
+
+  /**
+   * Copy a collection of IDs into an array.
+   * @param ids the IDs
+   * @return an array containing the IDs in iteration order
+   */
+  protected static int[] toArray(Collection<Integer> ids) {
+    int[] array = new int[ids.size()];
+    int pos = 0;
+    for (int id : ids)
+      array[pos++] = id;
+    return array;
+  }
 
 }
\ No newline at end of file
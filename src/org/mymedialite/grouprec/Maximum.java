@@ -17,12 +17,8 @@
 
 package org.mymedialite.grouprec;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 import org.mymedialite.IRecommender;
-import org.mymedialite.data.WeightedItem;
 
 /**
  * Group recommender that takes the maximum user score as the group score.
@@ -39,26 +35,15 @@ public class Maximum extends GroupRecommender {
 
   /**
    */
-  public List<Integer> rankItems(Collection<Integer> users, Collection<Integer> items) {
-    List<WeightedItem> maximum_scores = new ArrayList<WeightedItem>(items.size());
-
-    for (int i : items) {
-      WeightedItem weightedItem = new WeightedItem(i, Double.MIN_VALUE);
-      for (int u : users) {
-        // TODO consider taking CanPredict into account
-        weightedItem.weight = Math.max(weightedItem.weight, recommender.predict(u, i));
-      }
-      weightedItem.weight = weightedItem.weight / users.size();
-      maximum_scores.add(i, weightedItem);
-    }
-
-    Collections.sort(maximum_scores, Collections.reverseOrder());
-    List<Integer> ranked_items = new ArrayList<Integer>(maximum_scores.size());
-    for (int i=0; i<maximum_scores.size(); i++) {
-      ranked_items.add(i, maximum_scores.get(i).item_id);
+  protected double[] aggregate(int[] users, int[] items, double[] scores) {
+    double[] maximum_scores = new double[items.length];
+    Arrays.fill(maximum_scores, Double.NEGATIVE_INFINITY);
+    for (int u = 0; u < users.length; u++) {
+      int offset = u * items.length;
+      for (int i = 0; i < items.length; i++)
+        maximum_scores[i] = Math.max(maximum_scores[i], scores[offset + i]);
     }
 
-    return ranked_items;
+    return maximum_scores;
   }
 }
-
@@ -17,12 +17,8 @@
 
 package org.mymedialite.grouprec;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 import org.mymedialite.IRecommender;
-import org.mymedialite.data.WeightedItem;
 
 /**
  * Group recommender that takes the minimum user score as the group score.
@@ -33,31 +29,21 @@ public class Minimum extends GroupRecommender {
   /**
    * 
    */
-  public Minimum(IRecommender recommender) { 
+  public Minimum(IRecommender recommender) {
     super(recommender);
   }
 
   /**
    */
-  public List<Integer> rankItems(Collection<Integer> users, Collection<Integer> items) {
-    List<WeightedItem> minimum_scores = new ArrayList<WeightedItem>(items.size());
-
-    for (int i : items) {
-      WeightedItem weightedItem = new WeightedItem(i, Double.MIN_VALUE);
-      for (int u : users) {
-        // TODO consider taking CanPredict into account
-        weightedItem.weight = Math.min(weightedItem.weight, recommender.predict(u, i));
-      }
-      weightedItem.weight = weightedItem.weight / users.size();
-      minimum_scores.add(i, weightedItem);
-    }
-
-    Collections.sort(minimum_scores, Collections.reverseOrder());
-    List<Integer> ranked_items = new ArrayList<Integer>(minimum_scores.size());
-    for (int i=0; i<minimum_scores.size(); i++) {
-      ranked_items.add(i, minimum_scores.get(i).item_id);
+  protected double[] aggregate(int[] users, int[] items, double[] scores) {
+    double[] minimum_scores = new double[items.length];
+    Arrays.fill(minimum_scores, Double.POSITIVE_INFINITY);
+    for (int u = 0; u < users.length; u++) {
+      int offset = u * items.length;
+      for (int i = 0; i < items.length; i++)
+        minimum_scores[i] = Math.min(minimum_scores[i], scores[offset + i]);
     }
 
-    return ranked_items;    
+    return minimum_scores;
   }
 }
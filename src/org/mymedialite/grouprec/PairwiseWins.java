@@ -17,17 +17,16 @@
 
 package org.mymedialite.grouprec;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 
 import org.mymedialite.IRecommender;
-import org.mymedialite.data.WeightedItem;
+import org.mymedialite.util.Parallel;
 
 /**
  * A simple Condorcet-style voting mechanism.
- * runtime complexity O(|U| |I|^2)
+ *
+ * Each user votes for an item once for every item that the user scores lower.
+ * The wins are counted from the users' sorted scores, so the runtime complexity is O(|U| |I| log |I|).
  * @version 2.03
  */
 public class PairwiseWins extends GroupRecommender {
@@ -42,40 +41,48 @@ public class PairwiseWins extends GroupRecommender {
   /**
    * 
    */
-  public List<Integer> rankItems(Collection<Integer> users, Collection<Integer> items) {
-    Double[][] scores_by_user = new Double[users.size()][items.size()];
+  protected double[] aggregate(final int[] users, final int[] items, final double[] scores) {
+    int num_threads = Math.min(Parallel.numThreads(numThreads), Math.max(1, users.length));
+    final int[][] wins_by_thread = new int[num_threads][items.length];
 
-    Integer[] users_array = users.toArray(new Integer[users.size()]);
-    Integer[] items_array = items.toArray(new Integer[items.size()]);
-
-    for (int u = 0; u < users.size(); u++) {
-      for (int i = 0; i < items.size(); i++) {
-        int user_id = users_array[u];
-        int item_id = items_array[i];
-        scores_by_user[u][i] = recommender.predict(user_id, item_id);
-      }
-    }
-    
-    List<WeightedItem> wins_by_item = new ArrayList<WeightedItem>(items.size());
-    
-    for (int u = 0; u < users.size(); u++) {
-      for (int i = 0; i < items.size(); i++) {
-        WeightedItem weightedItem = new WeightedItem(i, Double.MIN_VALUE);
-        for (int j = 0; j < items.size(); j++) {
-          if (scores_by_user[u][i] > scores_by_user[u][j]) {
-            weightedItem.weight += 1.0;
-          }
+    Parallel.forRange(0, users.length, 1, num_threads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        int[] wins = wins_by_thread[thread_id];
+        double[] sorted_scores = new double[items.length];
+        for (int u = begin; u < end; u++) {
+          int offset = u * items.length;
+          System.arraycopy(scores, offset, sorted_scores, 0, items.length);
+          Arrays.sort(sorted_scores);
+          for (int i = 0; i < items.length; i++)
+            wins[i] += countLower(sorted_scores, scores[offset + i]);
         }
-        wins_by_item.add(i, weightedItem);
       }
-    }
+    });
 
-    Collections.sort(wins_by_item, Collections.reverseOrder());
-    List<Integer> ranked_items = new ArrayList<Integer>(wins_by_item.size());
-    for (int i=0; i<wins_by_item.size(); i++) {
-      ranked_items.add(i, wins_by_item.get(i).item_id);
-    }
+    double[] wins_by_item = new double[items.length];
+    for (int[] wins : wins_by_thread)
+      for (int i = 0; i < items.length; i++)
+        wins_by_item[i] += wins[i];
 
-    return ranked_items;
+    return wins_by_item;
+  }
+
+  /**
+   * Count the scores that are lower than a given score.
+   * @param sorted_scores scores in ascending order, as sorted by Arrays.sort()
+   * @param score the score
+   * @return the number of scores that are lower than the given score
+   */
+  static int countLower(double[] sorted_scores, double score) {
+    int low = 0;
+    int high = sorted_scores.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (sorted_scores[middle] < score)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
   }
 }
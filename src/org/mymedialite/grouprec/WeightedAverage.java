@@ -17,13 +17,7 @@
 
 package org.mymedialite.grouprec;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
 import org.mymedialite.IRecommender;
-import org.mymedialite.data.WeightedItem;
 import org.mymedialite.itemrec.ItemRecommender;
 
 /**
@@ -39,32 +33,18 @@ public class WeightedAverage extends GroupRecommender {
   /**
    *
    */
-  public List<Integer> rankItems(Collection<Integer> users, Collection<Integer> items) {
+  protected double[] aggregate(int[] users, int[] items, double[] scores) {
     ItemRecommender item_recommender = (ItemRecommender) recommender;
-    HashMap<Integer, Integer> user_weights = new HashMap<Integer, Integer>();
-    for (int user_id : users) {
-      user_weights.put(user_id, item_recommender.getFeedback().userMatrix().getEntriesByRow(user_id).size());
-    }  
-    
-    List<WeightedItem> average_scores = new ArrayList<WeightedItem>(items.size());
-
-    for (int item_id : items) {
-      WeightedItem weightedItem = new WeightedItem(item_id, 0.0);
-      for (int user_id : users) {
-        // TODO consider taking CanPredict into account
-        weightedItem.weight += user_weights.get(user_id) * recommender.predict(user_id, item_id);
-      }
-      weightedItem.weight = weightedItem.weight / users.size();
-      average_scores.add(item_id, weightedItem);
-    }
-    
-    Collections.sort(average_scores, Collections.reverseOrder());
-    List<Integer> ranked_items = new ArrayList<Integer>(average_scores.size());
-    for (int i=0; i<average_scores.size(); i++) {
-      ranked_items.add(i, average_scores.get(i).item_id);
+    double[] average_scores = new double[items.length];
+    for (int u = 0; u < users.length; u++) {
+      int user_weight = item_recommender.getFeedback().userMatrix().getEntriesByRow(users[u]).size();
+      int offset = u * items.length;
+      for (int i = 0; i < items.length; i++)
+        average_scores[i] += user_weight * scores[offset + i];
     }
-    
-    return ranked_items;
+    for (int i = 0; i < items.length; i++)
+      average_scores[i] /= users.length;
+
+    return average_scores;
   }
 }
-
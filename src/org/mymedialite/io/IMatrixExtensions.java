@@ -48,6 +48,20 @@ public class IMatrixExtensions {
     }
   }
   
+  /**
+   * Write a dense matrix of doubles, stored row by row, to a PrintWriter object.
+   * The format is the same as for an IMatrix.
+   * @param writer a PrintWriter
+   * @param matrix the rows of the matrix, all of the same length
+   * @param num_columns the number of columns
+   */
+  public static void writeMatrix(PrintWriter writer, double[][] matrix, int num_columns) {
+    writer.println(matrix.length + " " + num_columns);
+    for (int i = 0; i < matrix.length; i++)
+      for (int j = 0; j < num_columns; j++)
+        writer.println(i + " " + j + " " + matrix[i][j]);
+  }
+
   /**
    * Write a sparse matrix of doubles to a PrintWriter object.
    * @param writer a PrintWriter
@@ -93,6 +107,38 @@ public class IMatrixExtensions {
     return matrix;
   }
 
+  /**
+   * Read a dense matrix of doubles from a BufferedReader object into rows of primitive arrays.
+   * @param reader the BufferedReader object to read from
+   * @return the rows of the matrix
+   */
+  public static double[][] readDoubleArrays(BufferedReader reader) throws IOException {
+    String[] numbers = reader.readLine().split(" ");
+    int dim1 = Integer.parseInt(numbers[0]);
+    int dim2 = Integer.parseInt(numbers[1]);
+    double[][] matrix = new double[dim1][dim2];
+
+    long length = (long) dim1 * dim2;
+    for (long n = 0; n < length; n++) {
+      String line = reader.readLine();
+      numbers = line.split(" ");
+      if(numbers.length != 3)
+        throw new IOException("Expected three fields: " + line);
+
+      int i = Integer.parseInt(numbers[0]);
+      int j = Integer.parseInt(numbers[1]);
+      double v = Double.parseDouble(numbers[2]);
+
+      if (i >= dim1)
+        throw new IOException("i = " + i + " >= " + dim1);
+      if (j >= dim2)
+        throw new IOException("j = " + j + " >= " + dim2);
+
+      matrix[i][j] = v;
+    }
+    return matrix;
+  }
+
   /**
    * Read a matrix from a BufferedReader object.
    * @param reader the BufferedReader object to read from
@@ -21,7 +21,6 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Date;
 
 import org.mymedialite.data.IEntityMapping;
 import org.mymedialite.data.ITimedRatings;
@@ -77,13 +76,11 @@ public class MovieLensRatingData {
       int item_id = item_mapping.toInternalID(tokens[1]);
       double rating = Double.parseDouble(tokens[2]);
       long seconds = Long.parseLong(tokens[3]);
-      Date date = new Date();
-      date.setTime(seconds * 1000);
       
       // TODO check about timezone
       //var offset = TimeZone.CurrentTimeZone.GetUtcOffset(time);
       //date -= offset;
-      ratings.add(user_id, item_id, rating, date);
+      ratings.add(user_id, item_id, rating, seconds * 1000);
     }
     return ratings;
   }
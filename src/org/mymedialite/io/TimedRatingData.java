@@ -24,7 +24,6 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.regex.Pattern;
 
 import org.mymedialite.data.IEntityMapping;
@@ -73,7 +72,6 @@ public class TimedRatingData {
       reader.readLine();
 
     TimedRatings ratings = new TimedRatings();
-    Integer unix_time;
 
     String line;
     while ((line = reader.readLine()) != null) {
@@ -89,53 +87,8 @@ public class TimedRatingData {
       int item_id = item_mapping.toInternalID(tokens[1]);
       double rating = Double.parseDouble(tokens[2]);
       
-      String dateString;
-      if(tokens.length > 4 ) {
-        dateString = tokens[3] + " " + tokens[4];
-      } else {
-        dateString = tokens[3];
-      }
- 
-      if (dateString.startsWith("\"") && dateString.endsWith("\"")) {
-        dateString = dateString.substring(1, dateString.length() - 1);
-      }
+      ratings.add(user_id, item_id, rating, parseTime(tokens));
 
-      if (dateString.length() == 19) {  // format "yyyy-mm-dd hh:mm:ss" 
-        String[] date_time_tokens = dateString.split("[\\s-:]");
-        Calendar calendar = Calendar.getInstance();
-        calendar.set(
-            Integer.parseInt(date_time_tokens[0]),
-            Integer.parseInt(date_time_tokens[1]) - 1,
-            Integer.parseInt(date_time_tokens[2]),
-            Integer.parseInt(date_time_tokens[3]),
-            Integer.parseInt(date_time_tokens[4]),
-            Integer.parseInt(date_time_tokens[5])
-        );
-        
-        ratings.add(user_id, item_id, rating, calendar.getTime());
-      
-      } else if (dateString.length() == 10) {  // format "yyyy-mm-dd"
-        String[] date_time_tokens = dateString.split("[\\s-:]");
-        Calendar calendar = Calendar.getInstance();
-        calendar.set(
-            Integer.parseInt(date_time_tokens[0]),
-            Integer.parseInt(date_time_tokens[1]),
-            Integer.parseInt(date_time_tokens[2])
-        );
-        
-        ratings.add(user_id, item_id, rating, calendar.getTime());
-
-      } else if ((unix_time = Utils.parseInteger(dateString)) != null) {  // unsigned integer value, interpreted as seconds since Unix epoch
-        Date date = new Date();
-        date.setTime((long)unix_time * 1000);
-        ratings.add(user_id, item_id, rating, date);
-      
-      } else {
-        SimpleDateFormat dateFormat = new SimpleDateFormat();
-        Date date = dateFormat.parse(dateString);
-        ratings.add(user_id, item_id, rating, date);
-      }
-      
       if (ratings.size() % 200000 == 199999)
         System.err.print(".");
       if (ratings.size() % 12000000 == 11999999)
@@ -144,4 +97,61 @@ public class TimedRatingData {
     return ratings;
   }
  
+  /**
+   * Parse the time of a rating.
+   * Supported formats are "yyyy-mm-dd hh:mm:ss", "yyyy-mm-dd", seconds since the Unix epoch,
+   * and the default format of SimpleDateFormat.
+   * @param tokens the columns of the line; the time starts in the fourth column and may span two columns
+   * @return the time in milliseconds since the Unix epoch
+   * @throws ParseException if the time cannot be parsed
+   */
+  static long parseTime(String[] tokens) throws ParseException {
+    Integer unix_time;
+    String dateString;
+    if(tokens.length > 4 ) {
+      dateString = tokens[3] + " " + tokens[4];
+    } else {
+      dateString = tokens[3];
+    }
+ 
+    if (dateString.startsWith("\"") && dateString.endsWith("\"")) {
+      dateString = dateString.substring(1, dateString.length() - 1);
+    }
+
+    if ((unix_time = Utils.parseInteger(dateString)) != null) {  // unsigned integer value, interpreted as seconds since Unix epoch
+      return (long) unix_time * 1000;
+
+    } else if (dateString.length() == 19) {  // format "yyyy-mm-dd hh:mm:ss" 
+      String[] date_time_tokens = dateString.split("[\\s-:]");
+      Calendar calendar = Calendar.getInstance();
+      calendar.clear();
+      calendar.set(
+          Integer.parseInt(date_time_tokens[0]),
+          Integer.parseInt(date_time_tokens[1]) - 1,
+          Integer.parseInt(date_time_tokens[2]),
+          Integer.parseInt(date_time_tokens[3]),
+          Integer.parseInt(date_time_tokens[4]),
+          Integer.parseInt(date_time_tokens[5])
+      );
+      
+      return calendar.getTimeInMillis();
+    
+    } else if (dateString.length() == 10) {  // format "yyyy-mm-dd"
+      String[] date_time_tokens = dateString.split("[\\s-:]");
+      Calendar calendar = Calendar.getInstance();
+      calendar.clear();
+      calendar.set(
+          Integer.parseInt(date_time_tokens[0]),
+          Integer.parseInt(date_time_tokens[1]) - 1,
+          Integer.parseInt(date_time_tokens[2])
+      );
+      
+      return calendar.getTimeInMillis();
+
+    } else {
+      SimpleDateFormat dateFormat = new SimpleDateFormat();
+      return dateFormat.parse(dateString).getTime();
+    }
+  }
+
 }
@@ -0,0 +1,155 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.text.ParseException;
+
+import org.mymedialite.data.IEntityMapping;
+import org.mymedialite.data.ITimedRatingStream;
+import org.mymedialite.data.IdentityMapping;
+
+/**
+ * A stream of rating events read line by line, in the format of TimedRatingData.
+ *
+ * The lines must be in chronological order.
+ * When the end of the input is reached, next() returns false; if the input grows later,
+ * e.g. a log file that is still being written, the following calls to next() return the new events.
+ * While following such an input, a last line without a line terminator may still be incomplete,
+ * so it is kept until its terminator has been written.
+ * @version 2.03
+ */
+public class TimedRatingStreamReader implements ITimedRatingStream {
+
+  private final BufferedReader reader;
+  private final IEntityMapping user_mapping;
+  private final IEntityMapping item_mapping;
+  private final boolean follow;
+
+  // The characters read but not yet consumed, and the incomplete current line
+  private final char[] buffer = new char[8192];
+  private int position;
+  private int limit;
+  private final StringBuilder partial_line = new StringBuilder();
+  private boolean skip_lf;
+
+  private int user_id;
+  private int item_id;
+  private double rating;
+  private long time;
+
+  /**
+   * Create a stream reader that follows a growing input.
+   * @param reader the reader to read from
+   * @param user_mapping mapping object for user IDs, may be null
+   * @param item_mapping mapping object for item IDs, may be null
+   */
+  public TimedRatingStreamReader(BufferedReader reader, IEntityMapping user_mapping, IEntityMapping item_mapping) {
+    this(reader, user_mapping, item_mapping, true);
+  }
+
+  /**
+   * Create a stream reader.
+   * @param reader the reader to read from
+   * @param user_mapping mapping object for user IDs, may be null
+   * @param item_mapping mapping object for item IDs, may be null
+   * @param follow if true, a last line without a line terminator is kept until its terminator arrives;
+   *               if false, the input is complete and such a line is read at the end of the input
+   */
+  public TimedRatingStreamReader(BufferedReader reader, IEntityMapping user_mapping, IEntityMapping item_mapping, boolean follow) {
+    this.reader = reader;
+    this.user_mapping = user_mapping != null ? user_mapping : new IdentityMapping();
+    this.item_mapping = item_mapping != null ? item_mapping : new IdentityMapping();
+    this.follow = follow;
+  }
+
+  public boolean next() throws IOException {
+    String line;
+    do {
+      line = readLine();
+      if (line == null)
+        return false;
+    } while (line.length() == 0);
+
+    String[] tokens = line.split("[,\\s]+");
+    if (tokens.length < 4)
+      throw new IOException("Expected at least 4 columns: " + line);
+
+    user_id = user_mapping.toInternalID(tokens[0]);
+    item_id = item_mapping.toInternalID(tokens[1]);
+    rating  = Double.parseDouble(tokens[2]);
+    try {
+      time = TimedRatingData.parseTime(tokens);
+    } catch (ParseException e) {
+      throw new IOException("Could not parse time: " + line);
+    }
+    return true;
+  }
+
+  /**
+   * Read the next line that is terminated by '\n', '\r' or "\r\n".
+   * @return the line without its terminator, or null if no complete line is available yet
+   */
+  private String readLine() throws IOException {
+    while (true) {
+      if (position == limit) {
+        int num_read = reader.read(buffer, 0, buffer.length);
+        if (num_read <= 0) {
+          if (follow || partial_line.length() == 0)
+            return null;
+          break;
+        }
+        position = 0;
+        limit = num_read;
+      }
+      char c = buffer[position++];
+      if (skip_lf) {
+        skip_lf = false;
+        if (c == '\n')
+          continue;
+      }
+      if (c == '\n' || c == '\r') {
+        skip_lf = c == '\r';
+        break;
+      }
+      partial_line.append(c);
+    }
+    String result = partial_line.toString();
+    partial_line.setLength(0);
+    return result;
+  }
+
+  public int user() {
+    return user_id;
+  }
+
+  public int item() {
+    return item_id;
+  }
+
+  public double rating() {
+    return rating;
+  }
+
+  public long time() {
+    return time;
+  }
+
+}
@@ -20,21 +20,18 @@ package org.mymedialite.itemrec;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Collection;
+import java.util.Arrays;
 
-import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntArraySet;
-import it.unimi.dsi.fastutil.ints.IntCollection;
 import it.unimi.dsi.fastutil.ints.IntList;
-import it.unimi.dsi.fastutil.ints.IntSet;
 
-import org.mymedialite.util.Random;
+import org.mymedialite.IBatchRecommender;
 import org.mymedialite.IItemAttributeAwareRecommender;
 import org.mymedialite.IIterativeModel;
-import org.mymedialite.datatype.Matrix;
+import org.mymedialite.datatype.CompressedSparseRows;
 import org.mymedialite.datatype.SparseBooleanMatrix;
 import org.mymedialite.io.IMatrixExtensions;
 import org.mymedialite.io.Model;
+import org.mymedialite.util.Parallel;
 
 /**
  * Linear model optimized for BPR.
@@ -45,10 +42,16 @@ import org.mymedialite.io.Model;
  *     ICDM 2011.
  *     http://www.ismll.uni-hildesheim.de/pub/pdfs/Gantner_et_al2010Mapping.pdf
  *
+ * The weights are kept in one primitive array per user, and the item attributes in compressed sparse rows,
+ * so an update only touches the attributes in which the two items differ, found by merging their sorted rows.
+ * With numThreads greater than 1, several threads run the stochastic gradient steps at the same time,
+ * sharing the thread-safe sampler and updating the weights without locks, as in Hogwild!:
+ * two threads only interfere if they happen to update the same user at the same time.
+ *
  * This recommender does NOT support incremental updates.
  * @version 2.03
  */
-public class BPRLinear extends ItemRecommender implements IItemAttributeAwareRecommender, IIterativeModel {
+public class BPRLinear extends ItemRecommender implements IItemAttributeAwareRecommender, IIterativeModel, IBatchRecommender {
 
   private static final String VERSION = "2.03";
   
@@ -61,6 +64,8 @@ public class BPRLinear extends ItemRecommender implements IItemAttributeAwareRec
   public void setItemAttributes(SparseBooleanMatrix itemAttributes) {
     this.itemAttributes = itemAttributes;
     this.maxItemID = Math.max(maxItemID, itemAttributes.numberOfRows() - 1);
+    this.attributes_by_item = null;
+    this.items_by_attribute = null;
   }
 
   /**
@@ -71,18 +76,20 @@ public class BPRLinear extends ItemRecommender implements IItemAttributeAwareRec
     return itemAttributes.numberOfColumns();
   }
 
-  // Item attribute weights
-  private Matrix<Double> itemAttributeWeightByUser;
+  // Item attribute weights, one row per user
+  private double[][] itemAttributeWeightByUser;
+
+  // Item attributes in compressed sparse rows, and the transpose, built on demand
+  private CompressedSparseRows attributes_by_item;
+  private CompressedSparseRows items_by_attribute;
 
   /**
    * One iteration = iterationLength * number of entries in the training matrix.
    */
   protected int iterationLength = 5;
 
-  private Random random;
-  
-  // Fast, but memory-intensive sampling
-  private boolean fastSampling = false;
+  // Sampler for users and positive and negative items
+  private BPRSampler sampler;
 
   /**
    * Number of iterations over the training data.
@@ -90,7 +97,7 @@ public class BPRLinear extends ItemRecommender implements IItemAttributeAwareRec
   public int numIter = 10;
 
   /**
-   * Fast sampling memory limit, in MiB.
+   * Memory limit for the item bitsets of dense users used by the sampler, in MiB.
    */
   public int fastSamplingMemoryLimit = 1024;
 
@@ -114,11 +121,10 @@ public class BPRLinear extends ItemRecommender implements IItemAttributeAwareRec
    */
   public double regularization = 0.015;
 
-  // Support data structure for fast sampling
-  private IntList[] userPosItems;
-
-  // Support data structure for fast sampling
-  private IntList[] userNegItems;
+  /**
+   * The number of threads used for training, 0 for the number of available processors.
+   */
+  public int numThreads = 1;
 
   @Override
   public void setNumIter(int numIter) {
@@ -135,127 +141,136 @@ public class BPRLinear extends ItemRecommender implements IItemAttributeAwareRec
    */
   @Override
   public void train() {
-    random = org.mymedialite.util.Random.getInstance();
-
-    // Prepare fast sampling, if necessary
-    int fast_sampling_memory_size = ((maxUserID + 1) * (maxItemID + 1) * 4) / (1024 * 1024);
-    System.err.println("fast_sampling_memory_size=" + fast_sampling_memory_size);
-    
-    if (fast_sampling_memory_size <= fastSamplingMemoryLimit) {
-      fastSampling = true;
-
-      this.userPosItems = new IntArrayList[maxUserID + 1];
-      this.userNegItems = new IntArrayList[maxUserID + 1];
-      for (int u = 0; u < maxUserID + 1; u++) {
-        IntList pos_list = new IntArrayList(feedback.userMatrix().get(u));
-        userPosItems[u] = pos_list;
-        IntList neg_list = new IntArrayList();
-        for (int i = 0; i < maxItemID; i++)
-          if (!feedback.userMatrix().get(u).contains(i) && feedback.itemMatrix().get(i).size() != 0)
-            neg_list.add(i);
-        
-          userNegItems[u] = neg_list;
-      }
-    }
+    // Items that have never been viewed are not used as negative items (maybe unknown items!)
+    sampler = new BPRSampler(feedback, maxUserID, maxItemID, fastSamplingMemoryLimit, 0, true);
 
-    itemAttributeWeightByUser = new Matrix<Double>(maxUserID + 1, numItemAttributes(), 0.0);
-    //itemAttributeWeightByUser.init(0.0);
+    itemAttributeWeightByUser = new double[maxUserID + 1][numItemAttributes()];
+    attributesByItem();
     for (int i = 0; i < numIter; i++)
       iterate();
   }
 
-  /**
-   * 
-   * Perform one iteration of stochastic gradient ascent over the training data.
-   * One iteration is <see cref="iteration_length"/> * number of entries in the training matrix.
+  /**
+   * Get the item attributes in compressed sparse rows.
+   * @return the attributes by item
    */
-  @Override
-  public void iterate() {
-    int num_pos_events = feedback.size();
-
-    for (int i = 0; i < num_pos_events * iterationLength; i++) {
-      if (i % 1000000 == 999999)
-        System.err.print(".");
-      if (i % 100000000 == 99999999)
-        System.err.println();
-
-      // user_id u, item_id_1 i, item_id_2 j
-      SampleTriple triple = new SampleTriple();
-      updateFeatures(triple);
-      
-    }
-  }
-
-  /**
-   * Sample a pair of items, given a user.
-   * @param t a SampleTriple specifying a user ID
-   */
-  protected  void sampleItemPair(SampleTriple t) {
-    if (fastSampling) {
-      t.i = userPosItems[t.u].get(random.nextInt(userPosItems[t.u].size()));
-      t.j = userNegItems[t.u].get(random.nextInt(userNegItems[t.u].size()));
-    } else {
-      IntList user_items = new IntArrayList(feedback.userMatrix().get(t.u));
-      t.i = user_items.get(random.nextInt(user_items.size()));
-      do
-        t.j = random.nextInt(0, maxItemID + 1);
-      while (feedback.userMatrix().get(t.u, t.j) || feedback.itemMatrix().get(t.j).size() == 0); // don't sample the item if it never has been viewed (maybe unknown item!)
+  private CompressedSparseRows attributesByItem() {
+    CompressedSparseRows attributes_by_item = this.attributes_by_item;
+    if (attributes_by_item == null) {
+      int num_items = itemAttributes.numberOfRows();
+      int[] rows = new int[itemAttributes.numberOfEntries()];
+      int[] columns = new int[rows.length];
+      int n = 0;
+      for (int i = 0; i < num_items; i++) {
+        IntList row = itemAttributes.getEntriesByRow(i);
+        for (int k = 0; k < row.size(); k++) {
+          rows[n] = i;
+          columns[n++] = row.getInt(k);
+        }
+      }
+      attributes_by_item = new CompressedSparseRows(num_items, numItemAttributes(), Arrays.copyOf(rows, n), Arrays.copyOf(columns, n), null);
+      this.attributes_by_item = attributes_by_item;
     }
+    return attributes_by_item;
   }
 
-  /**
-   * Sample a user that has viewed at least one and not all items.
-   * @return the user ID
-   */
-  protected int sampleUser() {
-    while (true) {
-      int u = random.nextInt(maxUserID + 1);
-      IntCollection user_items = feedback.userMatrix().get(u);
-      if (user_items.size() == 0 || user_items.size() == maxItemID + 1)
-        continue;
-      
-      return u;
+  /**
+   * Get the items of each attribute in compressed sparse rows.
+   * @return the items by attribute
+   */
+  private CompressedSparseRows itemsByAttribute() {
+    CompressedSparseRows items_by_attribute = this.items_by_attribute;
+    if (items_by_attribute == null) {
+      CompressedSparseRows attributes_by_item = attributesByItem();
+      int[] rows = new int[attributes_by_item.size()];
+      int[] columns = new int[rows.length];
+      for (int i = 0; i < attributes_by_item.numberOfRows(); i++)
+        for (int pos = attributes_by_item.rowStart(i); pos < attributes_by_item.rowEnd(i); pos++) {
+          rows[pos] = attributes_by_item.column(pos);
+          columns[pos] = i;
+        }
+      items_by_attribute = new CompressedSparseRows(attributes_by_item.numberOfColumns(), attributes_by_item.numberOfRows(), rows, columns, null);
+      this.items_by_attribute = items_by_attribute;
     }
+    return items_by_attribute;
   }
 
   /**
-   * Sample a triple for BPR learning.
-   * @param t the SampleTriple to configure
-   */
-  protected void sampleTriple(SampleTriple t) {
-    t.u = sampleUser();
-    sampleItemPair(t);
+   * 
+   * Perform one iteration of stochastic gradient ascent over the training data.
+   * One iteration is <see cref="iteration_length"/> * number of entries in the training matrix.
+   */
+  @Override
+  public void iterate() {
+    final long num_steps = (long) feedback.size() * iterationLength;
+    // Build the attribute rows before the worker threads start, e.g. after new item attributes were set
+    attributesByItem();
+
+    Parallel.run(numThreads, new Parallel.Worker() {
+      public void run(int thread_id, int num_threads) {
+        long thread_steps = num_steps / num_threads + (thread_id < num_steps % num_threads ? 1 : 0);
+        for (long i = 0; i < thread_steps; i++) {
+          if (thread_id == 0 && i % 1000000 == 999999)
+            System.err.print(".");
+          if (thread_id == 0 && i % 100000000 == 99999999)
+            System.err.println();
+
+          // user_id u, item_id_1 i, item_id_2 j
+          int u = sampler.sampleUser();
+          updateFeatures(u, sampler.samplePositiveItem(u), sampler.sampleNegativeItem(u));
+        }
+      }
+    });
   }
 
   /**
    * Modified feature update method that exploits attribute sparsity.
-   * @param t a SampleTriple specifying the user ID and the first and second item IDs
+   * @param u the user ID
+   * @param i the ID of the first item
+   * @param j the ID of the second item
    */
-  protected void updateFeatures(SampleTriple t) {
-    double x_uij = predict(t.u, t.i) - predict(t.u, t.j);
-
-    IntCollection attr_i = itemAttributes.get(t.i);
-    IntCollection attr_j = itemAttributes.get(t.j);
-
-    // Assumption: attributes are sparse
-    IntSet attr_i_over_j = new IntArraySet(attr_i);
-    attr_i_over_j.removeAll(attr_j);
-
-    IntSet attr_j_over_i = new IntArraySet(attr_j);
-    attr_j_over_i.removeAll(attr_i);
+  protected void updateFeatures(int u, int i, int j) {
+    double[] weights = itemAttributeWeightByUser[u];
+    CompressedSparseRows attributes = attributesByItem();
+    int start_i = i < attributes.numberOfRows() ? attributes.rowStart(i) : 0;
+    int end_i   = i < attributes.numberOfRows() ? attributes.rowEnd(i) : 0;
+    int start_j = j < attributes.numberOfRows() ? attributes.rowStart(j) : 0;
+    int end_j   = j < attributes.numberOfRows() ? attributes.rowEnd(j) : 0;
+
+    // The shared attributes cancel out in the score difference
+    double x_uij = 0;
+    for (int pi = start_i, pj = start_j; pi < end_i || pj < end_j; ) {
+      int a_i = pi < end_i ? attributes.column(pi) : Integer.MAX_VALUE;
+      int a_j = pj < end_j ? attributes.column(pj) : Integer.MAX_VALUE;
+      if (a_i < a_j) {
+        x_uij += weights[a_i];
+        pi++;
+      } else if (a_j < a_i) {
+        x_uij -= weights[a_j];
+        pj++;
+      } else {
+        pi++;
+        pj++;
+      }
+    }
 
     double one_over_one_plus_ex = 1 / (1 + Math.exp(x_uij));
 
-    for (int a : attr_i_over_j) {
-      double w_uf = itemAttributeWeightByUser.get(t.u, a);
-      double uf_update = one_over_one_plus_ex - regularization * w_uf;
-      itemAttributeWeightByUser.set(t.u, a, w_uf + learnRate * uf_update);
-    }
-    
-    for (int a : attr_j_over_i) {
-      double w_uf = itemAttributeWeightByUser.get(t.u, a);
-      double uf_update = -one_over_one_plus_ex - regularization * w_uf;
-      itemAttributeWeightByUser.set(t.u, a, w_uf + learnRate * uf_update);
+    for (int pi = start_i, pj = start_j; pi < end_i || pj < end_j; ) {
+      int a_i = pi < end_i ? attributes.column(pi) : Integer.MAX_VALUE;
+      int a_j = pj < end_j ? attributes.column(pj) : Integer.MAX_VALUE;
+      if (a_i < a_j) {
+        double w_uf = weights[a_i];
+        weights[a_i] = w_uf + learnRate * (one_over_one_plus_ex - regularization * w_uf);
+        pi++;
+      } else if (a_j < a_i) {
+        double w_uf = weights[a_j];
+        weights[a_j] = w_uf + learnRate * (-one_over_one_plus_ex - regularization * w_uf);
+        pj++;
+      } else {
+        pi++;
+        pj++;
+      }
     }
   }
 
@@ -264,15 +279,68 @@ public class BPRLinear extends ItemRecommender implements IItemAttributeAwareRec
    */
   @Override
   public double predict(int user_id, int item_id) {
-    if ((user_id < 0) || (user_id >= itemAttributeWeightByUser.dim1))
+    if ((user_id < 0) || (user_id >= itemAttributeWeightByUser.length))
       return Double.MIN_VALUE;
     if ((item_id < 0) || (item_id > maxItemID))
       return Double.MIN_VALUE;
 
+    return score(itemAttributeWeightByUser[user_id], attributesByItem(), item_id);
+  }
+
+  /**
+   * Predict the scores of a given user for several items.
+   * @param user_id the user ID
+   * @param item_ids the item IDs
+   * @return the predicted scores, in the order of item_ids
+   */
+  public double[] predict(int user_id, int[] item_ids) {
+    double[] result = new double[item_ids.length];
+    if ((user_id < 0) || (user_id >= itemAttributeWeightByUser.length)) {
+      Arrays.fill(result, Double.MIN_VALUE);
+      return result;
+    }
+    double[] weights = itemAttributeWeightByUser[user_id];
+    CompressedSparseRows attributes = attributesByItem();
+    for (int i = 0; i < item_ids.length; i++) {
+      int item_id = item_ids[i];
+      result[i] = (item_id < 0) || (item_id > maxItemID) ? Double.MIN_VALUE : score(weights, attributes, item_id);
+    }
+    return result;
+  }
+
+  /**
+   * Compute the scores of a given user for all items.
+   *
+   * The user's weight of each attribute is read once and added to the scores of the attribute's items;
+   * attributes with a weight of zero, e.g. the ones that never occurred in training, are skipped.
+   *
+   * @param user_id the user ID
+   * @return the score of each item, indexed by item ID from 0 to maxItemID
+   */
+  public double[] scoreAllItems(int user_id) {
+    double[] scores = new double[maxItemID + 1];
+    if ((user_id < 0) || (user_id >= itemAttributeWeightByUser.length)) {
+      Arrays.fill(scores, Double.MIN_VALUE);
+      return scores;
+    }
+    double[] weights = itemAttributeWeightByUser[user_id];
+    CompressedSparseRows items_by_attribute = itemsByAttribute();
+    for (int a = 0; a < items_by_attribute.numberOfRows(); a++) {
+      double weight = weights[a];
+      if (weight == 0)
+        continue;
+      for (int pos = items_by_attribute.rowStart(a); pos < items_by_attribute.rowEnd(a); pos++)
+        scores[items_by_attribute.column(pos)] += weight;
+    }
+    return scores;
+  }
+
+  private static double score(double[] weights, CompressedSparseRows attributes, int item_id) {
+    if (item_id >= attributes.numberOfRows())
+      return 0;
     double result = 0;
-    for (int a : itemAttributes.get(item_id))
-      result += itemAttributeWeightByUser.get(user_id, a);
-    
+    for (int pos = attributes.rowStart(item_id); pos < attributes.rowEnd(item_id); pos++)
+      result += weights[attributes.column(pos)];
     return result;
   }
 
@@ -289,7 +357,7 @@ public class BPRLinear extends ItemRecommender implements IItemAttributeAwareRec
 
   @Override
   public void saveModel(PrintWriter writer) {
-    IMatrixExtensions.writeMatrix(writer, itemAttributeWeightByUser);
+    IMatrixExtensions.writeMatrix(writer, itemAttributeWeightByUser, numItemAttributes());
   }
 
   /**
@@ -307,7 +375,7 @@ public class BPRLinear extends ItemRecommender implements IItemAttributeAwareRec
    */
   @Override
   public void loadModel(BufferedReader reader) throws IOException {
-    this.itemAttributeWeightByUser = (Matrix<Double>) IMatrixExtensions.readDoubleMatrix(reader, new Matrix<Double>(0, 0, 0.0));
+    this.itemAttributeWeightByUser = IMatrixExtensions.readDoubleArrays(reader);
   }
 
   /**
@@ -327,17 +395,11 @@ public class BPRLinear extends ItemRecommender implements IItemAttributeAwareRec
         this.getClass().getName()
         + " reg=" + regularization
         + " numIter=" + numIter
+        + " numThreads=" + numThreads
         + " learnRate=" + learnRate
         + " fastSamplingMemoryLimit=" + fastSamplingMemoryLimit
         + " initMean=" + initMean
         + " initStdev=" + initStdev;
   }
-  
-  private class SampleTriple {
-    int u;  // user_id
-    int i;  // item_id positive item
-    int j;  // item_id negative item
-  }
 
 }
-
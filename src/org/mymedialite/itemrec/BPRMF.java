@@ -18,15 +18,14 @@
 
 package org.mymedialite.itemrec;
 
-import it.unimi.dsi.fastutil.ints.IntArraySet;
-import it.unimi.dsi.fastutil.ints.IntCollection;
-import it.unimi.dsi.fastutil.ints.IntSet;
 import java.io.*;
 import java.util.*;
 
 import org.mymedialite.datatype.*;
 import org.mymedialite.io.IMatrixExtensions;
 import org.mymedialite.io.Model;
+import org.mymedialite.optimization.Optimizer;
+import org.mymedialite.optimization.OptimizerState;
 import org.mymedialite.util.*;
 import org.mymedialite.util.Random;
 
@@ -45,6 +44,7 @@ import org.mymedialite.util.Random;
  * To get the strategy from the original paper, set uniformUserSampling=false and withReplacement=false.
  * withReplacement=true (default) gives you usually a slightly faster convergence, and uniformUserSampling=true (default)
  * (approximately) optimizes the average AUC over all users.
+ * Users and items are drawn by a BPRSampler.
  * 
  * This recommender supports incremental updates.
  * @version 2.03
@@ -53,19 +53,11 @@ public class BPRMF extends MF {
 
   private static final String VERSION = "2.03";
 
-  /** Fast, but memory-intensive sampling */
-  protected boolean fastSampling = false;
-
   /** Item bias terms */
   protected double[] itemBias;
 
-  /** 
-   * Fast sampling memory limit, in MiB
-   * 
-   * TODO find out why fast sampling does not improve performance
-   */
-  //public int fastSamplingMemoryLimit = 1200;
-  public int fastSamplingMemoryLimit = 0;
+  /** Memory limit for the item bitsets of dense users used by the sampler, in MiB */
+  public int fastSamplingMemoryLimit = 64;
 
   /** Sample positive observations with (true) or without (false) replacement */
   public boolean withReplacement = false;
@@ -79,6 +71,15 @@ public class BPRMF extends MF {
   /** Learning rate alpha */
   public double learnRate = 0.05;
 
+  /**
+   * Optimizer: sgd, momentum, adagrad or adam.
+   * Hyperparameters can be given in parentheses, e.g. momentum(0.95), see Optimizer.create().
+   */
+  public String optimizer = "sgd";
+
+  /** Number of sampled triples per mini-batch, 1 for online updates */
+  public int batchSize = 1;
+
   /** Regularization parameter for user factors */
   public double regU = 0.0025;
 
@@ -91,11 +92,20 @@ public class BPRMF extends MF {
   /** If set (default), update factors for negative sampled items during learning */
   protected boolean updateJ = true;
 
-  /** Support data structure for fast sampling */
-  protected ArrayList<int[]> userPosItems;
+  /** The optimizer used for the gradient steps */
+  protected Optimizer gradientOptimizer;
+
+  /** Optimizer state of the user factors */
+  protected OptimizerState userFactorsState;
+
+  /** Optimizer state of the item factors */
+  protected OptimizerState itemFactorsState;
 
-  /** Support data structure for fast sampling */
-  protected ArrayList<int[]> userNegItems;
+  /** Optimizer state of the item biases */
+  protected OptimizerState itemBiasState;
+
+  /** Sampler for users and positive and negative items */
+  protected BPRSampler sampler;
 
   /**
    * Use bold driver heuristics for learning rate adaption.
@@ -126,9 +136,6 @@ public class BPRMF extends MF {
    */
   int[] lossSampleJ;
 
-  /** Random number generator */
-  protected org.mymedialite.util.Random random = Random.getInstance();
-
   /**
    * Default constructor.
    */
@@ -139,14 +146,43 @@ public class BPRMF extends MF {
   protected void initModel() {
     super.initModel();
     itemBias = new double[maxItemID + 1];
+    initOptimizer();
+  }
+
+  /**
+   * Create the optimizer and its states from the optimizer and batchSize settings.
+   */
+  protected void initOptimizer() {
+    gradientOptimizer = Optimizer.create(optimizer);
+    gradientOptimizer.batchSize = batchSize;
+    userFactorsState = gradientOptimizer.createState();
+    itemFactorsState = gradientOptimizer.createState();
+    itemBiasState = gradientOptimizer.createState();
+  }
+
+  /**
+   * Apply the updates accumulated in the current mini-batch.
+   */
+  protected void applyUpdates() {
+    userFactorsState.apply(userFactors);
+    itemFactorsState.apply(itemFactors);
+    itemBiasState.apply(itemBias);
+  }
+
+  /**
+   * Apply the remaining updates of an incomplete mini-batch, e.g. at the end of an iteration.
+   */
+  protected void finishBatch() {
+    if (gradientOptimizer.isBatched()) {
+      applyUpdates();
+      gradientOptimizer.resetBatch();
+    }
   }
 
   public void train() {
     initModel();
 
-    checkSampling();
-
-    random = Random.getInstance();
+    sampler = createSampler();
 
     if (boldDriver) {
       int num_sample_triples = (int) Math.sqrt(maxUserID) * 100;
@@ -158,10 +194,10 @@ public class BPRMF extends MF {
       lossSampleJ = new int[num_sample_triples];
 
       for (int c = 0; c < num_sample_triples; c++) {
-        SampleTriple triple = sampleTriple();
-        lossSampleU[c] = triple.u;
-        lossSampleI[c] = triple.i;
-        lossSampleJ[c] = triple.j;
+        int u = sampler.sampleUser();
+        lossSampleU[c] = u;
+        lossSampleI[c] = sampler.samplePositiveItem(u);
+        lossSampleJ[c] = sampler.sampleNegativeItem(u);
       }
 
       lastLoss = computeLoss();
@@ -171,47 +207,53 @@ public class BPRMF extends MF {
       iterate();
   }
 
+  /**
+   * Create the sampler for the current feedback.
+   * @return the sampler
+   */
+  protected BPRSampler createSampler() {
+    return new BPRSampler(feedback, maxUserID, maxItemID, fastSamplingMemoryLimit);
+  }
+
   /**
    * Perform one iteration of stochastic gradient ascent over the training data.
    * One iteration is iteration_length * number of entries in the training matrix
    */
   public void iterate() {
-    int num_pos_events = feedback.size();
-
-    int user_id, pos_item_id, neg_item_id;
+    int num_pos_events = sampler.numPairs();
 
     if (uniformUserSampling) {
       if (withReplacement) {
-        // Case 1: uniform user sampling, with replacement
-        IBooleanMatrix user_matrix = feedback.getUserMatrixCopy();
+        // Case 1: uniform user sampling, positive items of a user are drawn without replacement until all have been used
+        int[][] remaining_items = new int[maxUserID + 1][];
+        int[] num_remaining = new int[maxUserID + 1];
+        Random random = sampler.random();
 
         for (int i = 0; i < num_pos_events; i++) {
-          while (true) {
-            // Sampling with replacement
-            user_id = sampleUser();
-            IntCollection user_items = user_matrix.get(user_id);
-
-            // Reset user if already exhausted
-            if (user_items.size() == 0)
-              for (int item_id : feedback.userMatrix().get(user_id))
-                user_matrix.set(user_id, item_id, true);
-
-            pos_item_id = user_items.toIntArray()[random.nextInt(user_items.size())];
-            user_matrix.set(user_id, pos_item_id, false); // temporarily forget positive observation
-            do
-              neg_item_id = random.nextInt(maxItemID + 1);
-            while (feedback.userMatrix().get(user_id).contains(neg_item_id));
-            break;
+          int user_id = sampler.sampleUser();
+
+          // Reset user if exhausted
+          if (num_remaining[user_id] == 0) {
+            if (remaining_items[user_id] == null)
+              remaining_items[user_id] = sampler.positiveItems(user_id).clone();
+            num_remaining[user_id] = remaining_items[user_id].length;
           }
-          SampleTriple triple = new SampleTriple(user_id, pos_item_id, neg_item_id);
-          updateFactors(triple, true, true, updateJ);
+
+          int[] items = remaining_items[user_id];
+          int index = random.nextInt(num_remaining[user_id]);
+          int pos_item_id = items[index];
+          items[index] = items[num_remaining[user_id] - 1];
+          items[num_remaining[user_id] - 1] = pos_item_id;
+          num_remaining[user_id]--;
+
+          updateFactors(user_id, pos_item_id, sampler.sampleNegativeItem(user_id), true, true, updateJ);
         }
 
       } else {
-        // Case 2: uniform user sampling, without replacement
+        // Case 2: uniform user sampling, with replacement
         for (int i = 0; i < num_pos_events; i++) {
-          SampleTriple triple = sampleTriple();
-          updateFactors(triple, true, true, true);
+          int user_id = sampler.sampleUser();
+          updateFactors(user_id, sampler.samplePositiveItem(user_id), sampler.sampleNegativeItem(user_id), true, true, true);
         }
       }
 
@@ -219,28 +261,23 @@ public class BPRMF extends MF {
       if (withReplacement) {
         // Case 3: uniform pair sampling, with replacement
         for (int i = 0; i < num_pos_events; i++) {
-          int index = random.nextInt(num_pos_events);
-          user_id = feedback.users().get(index);
-          pos_item_id = feedback.items().get(index);
-          neg_item_id = -1;
-          SampleTriple triple = new SampleTriple(user_id, pos_item_id, neg_item_id);
-          sampleOtherItem(triple);
-          updateFactors(triple, true, true, updateJ);
+          int index = sampler.samplePair();
+          int user_id = sampler.pairUser(index);
+          if (sampler.canSample(user_id))
+            updateFactors(user_id, sampler.pairItem(index), sampler.sampleNegativeItem(user_id), true, true, updateJ);
         }
 
       } else {
         // Case 4: uniform pair sampling, without replacement
-        for (int index : feedback.randomIndex()) {
-          user_id = feedback.users().get(index);
-          pos_item_id = feedback.items().get(index);
-          neg_item_id = -1;
-          SampleTriple triple = new SampleTriple(user_id, pos_item_id, neg_item_id);
-          sampleOtherItem(triple);
-          updateFactors(triple, true, true, updateJ);
+        for (int index : sampler.pairPermutation()) {
+          int user_id = sampler.pairUser(index);
+          if (sampler.canSample(user_id))
+            updateFactors(user_id, sampler.pairItem(index), sampler.sampleNegativeItem(user_id), true, true, updateJ);
         }
       }
 
     }
+    finishBatch();
 
     if (boldDriver) {
       double loss = computeLoss();
@@ -255,125 +292,60 @@ public class BPRMF extends MF {
     }
   }
 
-  /**
-   * Sample another item, given the first one and the user
-   * @param triple a SampleTriple consisting of a user ID and two item IDs
-   * @return true if the given item was already seen by the user
-   */
-  protected boolean sampleOtherItem(SampleTriple triple) {
-    boolean itemIsPositive = feedback.userMatrix().get(triple.u, triple.i);
-    if (fastSampling) {
-      if (itemIsPositive) {
-        int rindex = random.nextInt(userNegItems.get(triple.u).length);
-        triple.j = userNegItems.get(triple.u)[rindex];
-      } else {
-        int rindex = random.nextInt(userPosItems.get(triple.u).length);
-        triple.j = userPosItems.get(triple.u)[rindex];
-      }
-    } else {
-      do
-        triple.j = random.nextInt(maxItemID + 1);
-      while (feedback.userMatrix().get(triple.u, triple.j) != itemIsPositive);
-    }
-    return itemIsPositive;
-  }
-
-  /**
-   * Sample a pair of items, given a user
-   * @param triple a SampleTriple consisting of a user ID and two item IDs
-   */
-  protected void sampleItemPair(SampleTriple triple) {
-    if (fastSampling) {
-      int rindex = random.nextInt(userPosItems.get(triple.u).length);
-      triple.i = userPosItems.get(triple.u)[rindex];
-
-      rindex = random.nextInt (userNegItems.get(triple.u).length);
-      triple.j = userNegItems.get(triple.u)[rindex];
-    } else {
-      IntCollection user_items = feedback.userMatrix().get(triple.u);
-      triple.i = user_items.toIntArray()[random.nextInt(user_items.size())];
-      do
-        triple.j = random.nextInt (maxItemID + 1);
-      //while (feedback.userMatrix().get(triple.u, triple.j));
-      while (user_items.contains(triple.j));
-    }
-  }
-
-  /**
-   * Sample a user that has viewed at least one and not all items.
-   * @return the user ID
-   */
-  protected int sampleUser() {
-    while (true) {
-      int u = random.nextInt(maxUserID + 1);
-      IntCollection user_items = feedback.userMatrix().get(u);
-      if (user_items.size() == 0 || user_items.size() == maxItemID + 1)
-        continue;
-      return u;
-    }
-  }
-
-  /**
-   * Sample a triple for BPR learning.
-   * @return a SampleTriple consisting of a user ID and two item IDs
-   */
-  protected SampleTriple sampleTriple() {
-    SampleTriple triple = new SampleTriple();
-    triple.u = sampleUser();
-    sampleItemPair(triple);
-    return triple;
-  }
-
   /**
    * Update features according to the stochastic gradient descent update rule.
-   * @param t a SampleTriple specifying the user ID and the first and second itemIDs
-   * @param updateU if true, update the user features
-   * @param updateI if true, update the features of the first item
-   * @param updateJ if true, update the features of the second item
+   * @param u the user ID
+   * @param i the ID of the first item
+   * @param j the ID of the second item
+   * @param update_u if true, update the user features
+   * @param update_i if true, update the features of the first item
+   * @param update_j if true, update the features of the second item
    */
-  protected void updateFactors(SampleTriple t, boolean updateU, boolean updateI, boolean updateJ) {
-    double x_uij = itemBias[t.i] - itemBias[t.j] + MatrixExtensions.rowScalarProductWithRowDifference(userFactors, t.u, itemFactors,t.i, itemFactors, t.j);
+  protected void updateFactors(int u, int i, int j, boolean update_u, boolean update_i, boolean update_j) {
+    double x_uij = itemBias[i] - itemBias[j] + MatrixExtensions.rowScalarProductWithRowDifference(userFactors, u, itemFactors, i, itemFactors, j);
     double one_over_one_plus_ex = 1 / (1 + Math.exp(x_uij));
 
     // Adjust bias terms.
-    if (updateI) {
-      double bias_update = one_over_one_plus_ex - biasReg * itemBias[t.i];
-      itemBias[t.i] += learnRate * bias_update;
+    if (update_i) {
+      double bias_update = one_over_one_plus_ex - biasReg * itemBias[i];
+      itemBias[i] += itemBiasState.update(i, bias_update, learnRate);
     }
 
-    if (updateJ) {
-      double bias_update = -one_over_one_plus_ex - biasReg * itemBias[t.j];
-      itemBias[t.j] += learnRate * bias_update;
+    if (update_j) {
+      double bias_update = -one_over_one_plus_ex - biasReg * itemBias[j];
+      itemBias[j] += itemBiasState.update(j, bias_update, learnRate);
     }
 
     // Adjust factors.
     for (int f = 0; f < numFactors; f++) {
-      double w_uf = userFactors.get(t.u, f);
-      double h_if = itemFactors.get(t.i, f);
-      double h_jf = itemFactors.get(t.j, f);
+      double w_uf = userFactors.get(u, f);
+      double h_if = itemFactors.get(i, f);
+      double h_jf = itemFactors.get(j, f);
 
-      if (updateU) {
+      if (update_u) {
         double uf_update = (h_if - h_jf) * one_over_one_plus_ex - regU * w_uf;
-        userFactors.set(t.u, f, w_uf + learnRate * uf_update);
+        userFactors.set(u, f, w_uf + userFactorsState.update(u * numFactors + f, uf_update, learnRate));
       }
 
-      if (updateI) {
+      if (update_i) {
         double if_update = w_uf * one_over_one_plus_ex - regI * h_if;
-        itemFactors.set(t.i, f, h_if + learnRate * if_update);
+        itemFactors.set(i, f, h_if + itemFactorsState.update(i * numFactors + f, if_update, learnRate));
       }
 
-      if (updateJ) {
+      if (update_j) {
         double jf_update = -w_uf * one_over_one_plus_ex - regJ * h_jf;
-        itemFactors.set(t.j, f, h_jf + learnRate * jf_update);
+        itemFactors.set(j, f, h_jf + itemFactorsState.update(j * numFactors + f, jf_update, learnRate));
       }
     }
+
+    if (gradientOptimizer.exampleDone())
+      applyUpdates();
   }
 
   @Override
   public void addFeedback(int user_id, int item_id) {
     super.addFeedback(user_id, item_id);
-    if (fastSampling)
-      createFastSamplingData(user_id);
+    updateSampler(user_id);
 
     // retrain
     retrainUser(user_id);
@@ -384,7 +356,7 @@ public class BPRMF extends MF {
   @Override
   public void addFeedback(int user_id, List<Integer> item_ids) {
     super.addFeedback(user_id, item_ids);
-    if (fastSampling) createFastSamplingData(user_id);
+    updateSampler(user_id);
     
     // retrain
     retrainUser(user_id);
@@ -394,8 +366,7 @@ public class BPRMF extends MF {
   
   public void removeFeedback(int user_id, int item_id) {
     super.removeFeedback(user_id, item_id);
-    if (fastSampling)
-      createFastSamplingData(user_id);
+    updateSampler(user_id);
 
     // retrain
     retrainUser(user_id);
@@ -422,49 +393,43 @@ public class BPRMF extends MF {
 
   public void removeUser(int user_id) {
     super.removeUser(user_id);
-    if (fastSampling) {
-      userPosItems.set(user_id, null);
-      userNegItems.set(user_id, null);
-    }
+    updateSampler(user_id);
     // set user latent factors to zero
     userFactors.setRowToOneValue(user_id, 0.0);
   }
 
   public void removeItem(int item_id) {
     super.removeItem(item_id);
-    // TODO remove from fast sampling data structures
-    // (however: not needed if all feedback events have been removed properly before)
+    // The sampler needs no update if all feedback events have been removed properly before
 
     // set item latent factors to zero
     itemFactors.setRowToOneValue(item_id, 0.0);
   }
 
+  /**
+   * Update the sampler after the feedback of a user has changed.
+   * @param user_id the user ID
+   */
+  protected void updateSampler(int user_id) {
+    if (sampler == null || sampler.numItems() <= maxItemID)
+      sampler = createSampler();
+    else
+      sampler.updateUser(user_id, feedback.userMatrix().get(user_id));
+  }
+
   /**
    * Retrain the latent factors of a given user</summary>
    * @param user_id the user ID
    */
   protected void retrainUser(int user_id) {
     MatrixExtensions.rowInitNormal(userFactors, user_id, initMean, initStDev);
-    IntCollection user_items = feedback.userMatrix().get(user_id);
-
-    for (int i = 0; i < userFactors.data.length; i++)
-      if (userFactors.data[i] == null)
-        System.err.println("uf: " + i);
-
-    for (int i = 0; i < itemFactors.data.length; i++)
-      if (itemFactors.data[i] == null) {
-        System.err.print( "if: " + i);
-        System.err.print( " x " + (i / itemFactors.dim1));
-        System.err.println(" y " + (i % itemFactors.dim1));
-      }
-    System.err.flush();
+    if (!sampler.canSample(user_id))
+      return;
 
-    for (int i = 0; i < user_items.size(); i++) {
-      SampleTriple triple = new SampleTriple();
-      triple.u = user_id;
-      sampleItemPair(triple);
-      updateFactors(triple, true, false, false);
-    }
+    int num_user_items = sampler.positiveItems(user_id).length;
+    for (int i = 0; i < num_user_items; i++)
+      updateFactors(user_id, sampler.samplePositiveItem(user_id), sampler.sampleNegativeItem(user_id), true, false, false);
+    finishBatch();
   }
 
   /**
@@ -477,18 +442,15 @@ public class BPRMF extends MF {
     int num_item_iterations = num_pos_events / (maxItemID + 1);
     for (int i = 0; i < num_item_iterations; i++) {
       // remark: the item may be updated more or less frequently than in the normal from-scratch training
-      SampleTriple triple = new SampleTriple();
-      triple.u = sampleUser();
-      triple.i = item_id;
-      boolean item_is_positive = sampleOtherItem(triple);
-
-      if (item_is_positive) {
-        int j = triple.j;
-        triple.j = triple.i;
-        triple.i = j;
-      }
-      updateFactors(triple, false, false, true);
+      int user_id = sampler.sampleUser();
+      int other_item_id = sampler.sampleOtherItem(user_id, item_id);
+
+      if (sampler.isPositive(user_id, item_id))
+        updateFactors(user_id, item_id, other_item_id, false, true, false);
+      else
+        updateFactors(user_id, other_item_id, item_id, false, false, true);
     }
+    finishBatch();
   }
 
   /**
@@ -551,45 +513,28 @@ public class BPRMF extends MF {
     return auc;
   }
 
-  protected void createFastSamplingData(int u) {
-    while (u >= userPosItems.size())
-      userPosItems.add(null);
-    while (u >= userNegItems.size())
-      userNegItems.add(null);
-
-    userPosItems.set(u, feedback.userMatrix().get(u).toIntArray());
-
-    IntSet neg_list = new IntArraySet();
-    for (int i=0; i < maxItemID; i++)
-      if (!feedback.userMatrix().get(u).contains(i))
-        neg_list.add(i);
-    userNegItems.set(u, neg_list.toIntArray());
-  }
-
-  protected void checkSampling() {
-    try {
-      int fast_sampling_memory_size = ((maxUserID + 1) * (maxItemID + 1) * 4) / (1024 * 1024);
-      System.out.println("fast_sampling_memory_size=" + fast_sampling_memory_size);
-
-      if (fast_sampling_memory_size <= fastSamplingMemoryLimit) {
-        fastSampling = true;
-        this.userPosItems = new ArrayList<int[]>(maxUserID + 1);
-        this.userNegItems = new ArrayList<int[]>(maxUserID + 1);
-        for (int u = 0; u < maxUserID + 1; u++)
-          createFastSamplingData(u);
-      }
-    } catch (Exception e) {
-      System.out.println("fast_sampling_memory_size=TOO_MUCH");
-      // Do nothing - don't use fast sampling
-    }
-  }
-
   public double predict(int user_id, int item_id) {
     if (item_id >= itemBias.length)
       throw new IllegalArgumentException("item_id is too big: " + item_id + ", itemBias.length: " + itemBias.length);
     return itemBias[item_id] + MatrixExtensions.rowScalarProduct(userFactors, user_id, itemFactors, item_id);
   }
 
+  /**
+   * 
+   */
+  public double[] predict(int user_id, int[] item_ids) {
+    double[] result = new double[item_ids.length];
+    double[] user_vector = (user_id >= 0 && user_id < userFactors.dim1) ? MatrixExtensions.rowToArray(userFactors, user_id) : null;
+    for (int i = 0; i < item_ids.length; i++) {
+      int item_id = item_ids[i];
+      if (user_vector != null && item_id >= 0 && item_id < itemBias.length && item_id < itemFactors.dim1)
+        result[i] = itemBias[item_id] + MatrixExtensions.rowScalarProduct(itemFactors, item_id, user_vector);
+      else
+        result[i] = predict(user_id, item_id);
+    }
+    return result;
+  }
+
   public void saveModel(String filename) throws IOException {
     PrintWriter writer = Model.getWriter(filename, this.getClass(), VERSION);
     saveModel(writer);
@@ -635,7 +580,7 @@ public class BPRMF extends MF {
     this.userFactors = user_factors;
     this.itemBias = item_bias;
     this.itemFactors = item_factors;
-    random = Random.getInstance();
+    initOptimizer();
   }
 
   public String toString() {
@@ -648,24 +593,12 @@ public class BPRMF extends MF {
         + " regJ=" + regJ
         + " numIter=" + numIter
         + " learnRate=" + learnRate
+        + " optimizer=" + optimizer
+        + " batchSize=" + batchSize
         + " boldDriver=" + boldDriver
         + " fastSamplingMemoryLimit=" + fastSamplingMemoryLimit
         + " initMean=" + initMean
         + " initStDev=" + initStDev ;
   }
 
-  private class SampleTriple {
-    int u; // user_id
-    int i; // item_id positive item
-    int j; // item_id negative item
-
-    SampleTriple() { }
-
-    SampleTriple(int u, int i, int j) {
-      this.u = u;
-      this.i = i;
-      this.j = j;
-    }
-  }
-
 }
@@ -0,0 +1,486 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.mymedialite.itemrec;
+
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mymedialite.data.IPosOnlyFeedback;
+import org.mymedialite.util.Random;
+
+/**
+ * Draws users, positive items and negative items for BPR-style learning from positive-only feedback.
+ *
+ * The positive items of every user are kept in a sorted int array; membership is tested by binary search,
+ * or, for dense users, with a bitset over all items as long as the bitsets fit into the given memory limit.
+ * Negative items are drawn uniformly from all items, or from a popularity-weighted distribution using
+ * Walker's alias method, and rejected if they are positive for the user.
+ *
+ * Users can be sampled uniformly from all users that have at least one positive and one negative item,
+ * or pairs can be sampled uniformly from all positive user-item pairs.
+ *
+ * All sampling methods are thread-safe: every thread uses its own random number generator, and the
+ * sampling data is only modified by updateUser(), which must not run concurrently with sampling.
+ * The generators are seeded in the order in which the threads first use them, so single-threaded
+ * sampling is deterministic.
+ * @version 2.03
+ */
+public class BPRSampler {
+
+  /** Number of items (maximum item ID + 1) */
+  private final int numItems;
+
+  /** Sorted positive items by user */
+  private int[][] userItems;
+
+  /** Bitsets of positive items by user, null for users where binary search is used */
+  private long[][] userBits;
+
+  /** Remaining memory for bitsets, in longs */
+  private long bitsBudget;
+
+  /** Users with at least one positive and one negative item */
+  private int[] sampleUsers;
+
+  /** Offsets of the users' positive pairs in the pair index, numUsers + 1 entries */
+  private int[] pairOffsets;
+
+  /** User ID by pair index */
+  private int[] pairUsers;
+
+  /** true if the pair index or the user list must be rebuilt */
+  private volatile boolean stale;
+
+  /** true if negative items are drawn uniformly from all item IDs */
+  private final boolean uniformNegatives;
+
+  /** Alias table: probability of keeping the drawn slot */
+  private double[] aliasProbability;
+
+  /** Alias table: item to use if the drawn slot is not kept */
+  private int[] alias;
+
+  /** Items with a positive sampling weight, as used by the alias table */
+  private int[] aliasItems;
+
+  /** Number of positive items by user that are also in aliasItems, null for uniform negatives */
+  private int[] positiveCandidates;
+
+  /** Number of draws from the negative item distribution before falling back to a uniform draw from the user's negative items */
+  private static final int MAX_REJECTIONS = 64;
+
+  /** Seed source for the random number generators of the threads */
+  private final AtomicLong seeds;
+
+  private final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+    protected Random initialValue() {
+      return new Random(seeds.getAndIncrement());
+    }
+  };
+
+  /**
+   * Create a sampler that draws negative items uniformly from all item IDs.
+   * @param feedback the positive-only feedback
+   * @param max_user_id the maximum user ID
+   * @param max_item_id the maximum item ID
+   * @param memory_limit the memory limit for the membership bitsets, in MiB
+   */
+  public BPRSampler(IPosOnlyFeedback feedback, int max_user_id, int max_item_id, int memory_limit) {
+    this(feedback, max_user_id, max_item_id, memory_limit, 0, false);
+  }
+
+  /**
+   * Create a sampler.
+   *
+   * The weight of a candidate negative item is its number of positive events to the power of popularity_exponent.
+   * With an exponent of 0 all items are equally likely; if observed_items_only is set, items without any positive
+   * event are never drawn. Items without events are never drawn for an exponent greater than 0.
+   *
+   * @param feedback the positive-only feedback
+   * @param max_user_id the maximum user ID
+   * @param max_item_id the maximum item ID
+   * @param memory_limit the memory limit for the membership bitsets, in MiB
+   * @param popularity_exponent the exponent of the item popularity in the negative item distribution
+   * @param observed_items_only if true, only items with at least one positive event are used as negative items
+   */
+  public BPRSampler(IPosOnlyFeedback feedback, int max_user_id, int max_item_id, int memory_limit, double popularity_exponent, boolean observed_items_only) {
+    if (popularity_exponent < 0)
+      throw new IllegalArgumentException("popularity_exponent must not be negative: " + popularity_exponent);
+
+    this.numItems = max_item_id + 1;
+    this.seeds = new AtomicLong(Random.getInstance().nextLong());
+    this.bitsBudget = (long) memory_limit * 1024 * 1024 / 8;
+
+    int num_users = max_user_id + 1;
+    userItems = new int[num_users][];
+    userBits = new long[num_users][];
+    int[] item_counts = new int[numItems];
+    for (int u = 0; u < num_users; u++) {
+      setUserItems(u, feedback.userMatrix().get(u));
+      for (int i : userItems[u])
+        item_counts[i]++;
+    }
+
+    uniformNegatives = popularity_exponent == 0 && !observed_items_only;
+    if (!uniformNegatives) {
+      createAliasTable(item_counts, popularity_exponent);
+      positiveCandidates = new int[num_users];
+      for (int u = 0; u < num_users; u++)
+        positiveCandidates[u] = countCandidates(userItems[u]);
+    }
+
+    rebuild();
+  }
+
+  /**
+   * Get the random number generator of the current thread.
+   * @return the random number generator of the current thread
+   */
+  public Random random() {
+    return random.get();
+  }
+
+  /**
+   * Get the number of items the sampler draws from.
+   * @return the maximum item ID + 1
+   */
+  public int numItems() {
+    return numItems;
+  }
+
+  /**
+   * Get the number of positive user-item pairs.
+   * @return the number of positive pairs
+   */
+  public int numPairs() {
+    if (stale)
+      rebuild();
+    return pairUsers.length;
+  }
+
+  /**
+   * Check whether a user-item pair is positive.
+   * @param user_id the user ID
+   * @param item_id the item ID
+   * @return true if the item is positive for the user
+   */
+  public boolean isPositive(int user_id, int item_id) {
+    if (user_id < 0 || user_id >= userItems.length || item_id < 0 || item_id >= numItems)
+      return false;
+    long[] bits = userBits[user_id];
+    if (bits != null)
+      return (bits[item_id >>> 6] & (1L << item_id)) != 0;
+    return Arrays.binarySearch(userItems[user_id], item_id) >= 0;
+  }
+
+  /**
+   * Get the positive items of a user.
+   * @param user_id the user ID
+   * @return the sorted positive item IDs, must not be modified
+   */
+  public int[] positiveItems(int user_id) {
+    return userItems[user_id];
+  }
+
+  /**
+   * Check whether a user has at least one positive and one negative item.
+   * @param user_id the user ID
+   * @return true if item pairs can be sampled for the user
+   */
+  public boolean canSample(int user_id) {
+    if (user_id < 0 || user_id >= userItems.length)
+      return false;
+    int num_positive = uniformNegatives ? userItems[user_id].length : positiveCandidates[user_id];
+    return userItems[user_id].length > 0 && num_positive < numCandidates();
+  }
+
+  /**
+   * Draw a user that has at least one positive and one negative item.
+   * @return the user ID
+   */
+  public int sampleUser() {
+    if (stale)
+      rebuild();
+    if (sampleUsers.length == 0)
+      throw new IllegalStateException("no user has both positive and negative items");
+    return sampleUsers[random().nextInt(sampleUsers.length)];
+  }
+
+  /**
+   * Draw a positive item of a user.
+   * @param user_id the user ID
+   * @return the item ID
+   */
+  public int samplePositiveItem(int user_id) {
+    int[] items = userItems[user_id];
+    return items[random().nextInt(items.length)];
+  }
+
+  /**
+   * Draw a negative item of a user.
+   * The user must have at least one negative item, see canSample().
+   * If MAX_REJECTIONS draws from the negative item distribution are all positive for the user,
+   * the item is drawn uniformly from the user's negative items instead.
+   * @param user_id the user ID
+   * @return the item ID
+   */
+  public int sampleNegativeItem(int user_id) {
+    Random r = random();
+    for (int k = 0; k < MAX_REJECTIONS; k++) {
+      int item_id = drawItem(r);
+      if (!isPositive(user_id, item_id))
+        return item_id;
+    }
+    return sampleUniformNegativeItem(user_id, r);
+  }
+
+  /**
+   * Draw uniformly from all negative items of a user, in time linear in the number of positive items.
+   * @param user_id the user ID
+   * @param r the random number generator
+   * @return the item ID
+   */
+  private int sampleUniformNegativeItem(int user_id, Random r) {
+    int[] items = user_id >= 0 && user_id < userItems.length ? userItems[user_id] : new int[0];
+    if (items.length >= numItems)
+      throw new IllegalStateException("user " + user_id + " has no negative items");
+    // The k-th negative item is k plus the number of positive items up to it
+    int item_id = r.nextInt(numItems - items.length);
+    for (int i : items) {
+      if (i > item_id)
+        break;
+      item_id++;
+    }
+    return item_id;
+  }
+
+  /**
+   * Draw an item that is positive for a user if the given item is negative, and negative otherwise.
+   * @param user_id the user ID
+   * @param item_id the given item ID
+   * @return the other item ID
+   */
+  public int sampleOtherItem(int user_id, int item_id) {
+    return isPositive(user_id, item_id) ? sampleNegativeItem(user_id) : samplePositiveItem(user_id);
+  }
+
+  /**
+   * Draw the index of a positive user-item pair, uniformly from all pairs.
+   * @return the pair index, see pairUser() and pairItem()
+   */
+  public int samplePair() {
+    return random().nextInt(numPairs());
+  }
+
+  /**
+   * Get a random permutation of all pair indices, for sampling pairs without replacement.
+   * @return the pair indices in random order
+   */
+  public int[] pairPermutation() {
+    int num_pairs = numPairs();
+    int[] permutation = new int[num_pairs];
+    for (int k = 0; k < num_pairs; k++)
+      permutation[k] = k;
+    Random r = random();
+    for (int k = num_pairs - 1; k > 0; k--) {
+      int l = r.nextInt(k + 1);
+      int tmp = permutation[k];
+      permutation[k] = permutation[l];
+      permutation[l] = tmp;
+    }
+    return permutation;
+  }
+
+  /**
+   * Get the user of a positive pair.
+   * @param index the pair index
+   * @return the user ID
+   */
+  public int pairUser(int index) {
+    if (stale)
+      rebuild();
+    return pairUsers[index];
+  }
+
+  /**
+   * Get the item of a positive pair.
+   * @param index the pair index
+   * @return the item ID
+   */
+  public int pairItem(int index) {
+    if (stale)
+      rebuild();
+    int user_id = pairUsers[index];
+    return userItems[user_id][index - pairOffsets[user_id]];
+  }
+
+  /**
+   * Update the positive items of a user after feedback has been added or removed.
+   * The distribution of the negative items is not updated, and items beyond the maximum item ID
+   * given at construction time are ignored.
+   * @param user_id the user ID
+   * @param items the new positive items of the user
+   */
+  public synchronized void updateUser(int user_id, IntCollection items) {
+    if (user_id >= userItems.length) {
+      int old_length = userItems.length;
+      userItems = Arrays.copyOf(userItems, user_id + 1);
+      userBits = Arrays.copyOf(userBits, user_id + 1);
+      if (positiveCandidates != null)
+        positiveCandidates = Arrays.copyOf(positiveCandidates, user_id + 1);
+      for (int u = old_length; u < user_id; u++)
+        userItems[u] = new int[0];
+    }
+    if (userBits[user_id] != null)
+      bitsBudget += userBits[user_id].length;
+    setUserItems(user_id, items);
+    if (positiveCandidates != null)
+      positiveCandidates[user_id] = countCandidates(userItems[user_id]);
+    stale = true;
+  }
+
+  /** Count the items of a sorted array that are in aliasItems */
+  private int countCandidates(int[] items) {
+    int count = 0;
+    int k = 0;
+    for (int i : items) {
+      while (k < aliasItems.length && aliasItems[k] < i)
+        k++;
+      if (k == aliasItems.length)
+        break;
+      if (aliasItems[k] == i)
+        count++;
+    }
+    return count;
+  }
+
+  private void setUserItems(int user_id, IntCollection items) {
+    int[] sorted = items.toIntArray();
+    Arrays.sort(sorted);
+    // Ignore items beyond the known item IDs
+    int length = sorted.length;
+    while (length > 0 && sorted[length - 1] >= numItems)
+      length--;
+    if (length < sorted.length)
+      sorted = Arrays.copyOf(sorted, length);
+    userItems[user_id] = sorted;
+
+    // Use a bitset if it is not larger than the sorted array
+    int num_words = (numItems + 63) >>> 6;
+    long[] bits = null;
+    if (sorted.length > 0 && num_words <= sorted.length / 2 && num_words <= bitsBudget) {
+      bits = new long[num_words];
+      for (int i : sorted)
+        bits[i >>> 6] |= 1L << i;
+      bitsBudget -= num_words;
+    }
+    userBits[user_id] = bits;
+  }
+
+  /** Rebuild the pair index and the list of users that can be sampled */
+  private synchronized void rebuild() {
+    int num_users = userItems.length;
+    int[] offsets = new int[num_users + 1];
+    int num_sample_users = 0;
+    for (int u = 0; u < num_users; u++) {
+      offsets[u + 1] = offsets[u] + userItems[u].length;
+      if (canSample(u))
+        num_sample_users++;
+    }
+
+    int[] users = new int[offsets[num_users]];
+    int[] sample_users = new int[num_sample_users];
+    num_sample_users = 0;
+    for (int u = 0; u < num_users; u++) {
+      Arrays.fill(users, offsets[u], offsets[u + 1], u);
+      if (canSample(u))
+        sample_users[num_sample_users++] = u;
+    }
+
+    pairOffsets = offsets;
+    pairUsers = users;
+    sampleUsers = sample_users;
+    stale = false;
+  }
+
+  /** Number of items that can be drawn as negative items */
+  private int numCandidates() {
+    return uniformNegatives ? numItems : aliasItems.length;
+  }
+
+  private int drawItem(Random r) {
+    if (uniformNegatives)
+      return r.nextInt(numItems);
+    int slot = r.nextInt(aliasItems.length);
+    return r.nextDouble() < aliasProbability[slot] ? aliasItems[slot] : alias[slot];
+  }
+
+  /**
+   * Create the alias table (Vose's variant of Walker's method) for the negative item distribution.
+   */
+  private void createAliasTable(int[] item_counts, double exponent) {
+    int num_candidates = 0;
+    for (int i = 0; i < numItems; i++)
+      if (item_counts[i] > 0)
+        num_candidates++;
+
+    aliasItems = new int[num_candidates];
+    double[] weights = new double[num_candidates];
+    double sum = 0;
+    int k = 0;
+    for (int i = 0; i < numItems; i++)
+      if (item_counts[i] > 0) {
+        aliasItems[k] = i;
+        weights[k] = Math.pow(item_counts[i], exponent);
+        sum += weights[k];
+        k++;
+      }
+
+    aliasProbability = new double[num_candidates];
+    alias = new int[num_candidates];
+    int[] small = new int[num_candidates];
+    int[] large = new int[num_candidates];
+    int num_small = 0;
+    int num_large = 0;
+    for (k = 0; k < num_candidates; k++) {
+      weights[k] *= num_candidates / sum;
+      if (weights[k] < 1)
+        small[num_small++] = k;
+      else
+        large[num_large++] = k;
+    }
+
+    while (num_small > 0 && num_large > 0) {
+      int s = small[--num_small];
+      int l = large[--num_large];
+      aliasProbability[s] = weights[s];
+      alias[s] = aliasItems[l];
+      weights[l] = weights[l] + weights[s] - 1;
+      if (weights[l] < 1)
+        small[num_small++] = l;
+      else
+        large[num_large++] = l;
+    }
+    // Remaining slots are kept with probability 1, up to rounding errors
+    while (num_large > 0)
+      aliasProbability[large[--num_large]] = 1;
+    while (num_small > 0)
+      aliasProbability[small[--num_small]] = 1;
+  }
+
+}
@@ -26,6 +26,9 @@ import org.mymedialite.datatype.SparseBooleanMatrix;
 /**
  * k-nearest neighbor item-based collaborative filtering using cosine-similarity over the item attibutes.
  * 
+ * Only the k most similar items of each item are computed and stored, so items without common attributes
+ * are never compared, and only items that share at least one attribute become neighbors.
+ * 
  * This recommender does NOT support incremental updates.
  * @version 2.03
  */
@@ -33,6 +36,9 @@ public class ItemAttributeKNN extends ItemKNN implements IItemAttributeAwareReco
 
   private SparseBooleanMatrix itemAttributes;
 
+  /** The number of threads used for training, 0 for the number of available processors */
+  public int numThreads = 0;
+
   @Override
   public SparseBooleanMatrix getItemAttributes() {
     return itemAttributes;
@@ -53,7 +59,7 @@ public class ItemAttributeKNN extends ItemKNN implements IItemAttributeAwareReco
 
   @Override
   public void train() {
-    this.correlation = BinaryCosine.create(itemAttributes);
+    this.correlation = BinaryCosine.createSparse(itemAttributes, k, numThreads);
 
     int num_items = maxItemID + 1;
     this.nearest_neighbors = new int[num_items][];
@@ -21,6 +21,7 @@ package org.mymedialite.itemrec;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.mymedialite.IBatchRecommender;
 import org.mymedialite.IItemSimilarityProvider;
 import org.mymedialite.correlation.BinaryCosine;
 import org.mymedialite.correlation.Jaccard;
@@ -32,7 +33,7 @@ import org.mymedialite.data.WeightedItem;
  * This recommender does NOT support incremental updates.
  * @version 2.03
  */
-public class ItemKNN extends KNN implements IItemSimilarityProvider {
+public class ItemKNN extends KNN implements IItemSimilarityProvider, IBatchRecommender {
 
   @Override
   public void train() {
@@ -58,6 +59,45 @@ public class ItemKNN extends KNN implements IItemSimilarityProvider {
     }
     return (double) count / k;
   }
+
+  /**
+   * Predict the scores of a given user for several items.
+   * The user's items are marked in a dense array once, so that the neighbors of each item are checked without lookups.
+   * @param user_id the user ID
+   * @param item_ids the item IDs
+   * @return the predicted scores, in the order of item_ids
+   */
+  public double[] predict(int user_id, int[] item_ids) {
+    double[] result = new double[item_ids.length];
+    if ((user_id < 0) || (user_id > maxUserID))
+      return result;
+
+    boolean[] user_items = userItems(user_id);
+    for (int i = 0; i < item_ids.length; i++) {
+      int item_id = item_ids[i];
+      if ((item_id < 0) || (item_id > maxItemID))
+        continue;
+      int count = 0;
+      for (int neighbor : nearest_neighbors[item_id])
+        if (user_items[neighbor])
+          count++;
+      result[i] = (double) count / k;
+    }
+    return result;
+  }
+
+  /**
+   * Mark the items of a user in a dense array.
+   * @param user_id the user ID
+   * @return an array that is true at the IDs of the user's items
+   */
+  protected boolean[] userItems(int user_id) {
+    boolean[] user_items = new boolean[maxItemID + 1];
+    for (int item_id : feedback.userMatrix().get(user_id))
+      if (item_id <= maxItemID)
+        user_items[item_id] = true;
+    return user_items;
+  }
   
   // TODO experimental - REMOVE
 //  @Override
@@ -93,8 +133,8 @@ public class ItemKNN extends KNN implements IItemSimilarityProvider {
     if (n == k)
       return nearest_neighbors[item_id];
     else if (n < k) {
-      int[] mostSimilarItems = new int[n];
-      System.arraycopy(nearest_neighbors, 0, mostSimilarItems, 0, n);
+      int[] mostSimilarItems = new int[Math.min(n, nearest_neighbors[item_id].length)];
+      System.arraycopy(nearest_neighbors[item_id], 0, mostSimilarItems, 0, mostSimilarItems.length);
       return mostSimilarItems;
     } else {
       return correlation.getNearestNeighbors(item_id, n);
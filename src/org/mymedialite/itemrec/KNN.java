@@ -21,8 +21,11 @@ package org.mymedialite.itemrec;
 import java.io.*;
 import java.util.List;
 
+import it.unimi.dsi.fastutil.ints.IntCollection;
+
 import org.mymedialite.correlation.CorrelationMatrix;
 import org.mymedialite.data.WeightedItem;
+import org.mymedialite.datatype.VectorExtensions;
 import org.mymedialite.io.Model;
 import org.mymedialite.itemrec.ItemRecommender;
 
@@ -61,9 +64,8 @@ public abstract class KNN extends IncrementalItemRecommender {
   public void saveModel(PrintWriter writer) {
     writer.println(nearest_neighbors.length);
     for (int[] nn : nearest_neighbors) {
-      writer.write(Integer.toString(nn[0]));
-      for (int i = 1; i < nn.length; i++)
-        writer.print(" " + Integer.toString(nn[i]));
+      for (int i = 0; i < nn.length; i++)
+        writer.print((i == 0 ? "" : " ") + Integer.toString(nn[i]));
 
       writer.println();
     }
@@ -83,19 +85,43 @@ public abstract class KNN extends IncrementalItemRecommender {
   public void loadModel(BufferedReader reader) throws IOException {
     int num_users = Integer.parseInt(reader.readLine());
     int[][] nearest_neighbors = new int[num_users][];
+    int k = 0;
     for (int u = 0; u < nearest_neighbors.length; u++) {
-      String[] numbers = reader.readLine().split(" ");
+      String line = reader.readLine();
+      String[] numbers = line.length() == 0 ? new String[0] : line.split(" ");
       nearest_neighbors[u] = new int[numbers.length];
+      k = Math.max(k, numbers.length);
       for (int i = 0; i < numbers.length; i++) {
         nearest_neighbors[u][i] = Integer.parseInt(numbers[i]);
       }
     }
     this.correlation = CorrelationMatrix.readCorrelationMatrix(reader);
     reader.close();
-    this.k = nearest_neighbors[0].length;
+    this.k = k;
     this.nearest_neighbors = nearest_neighbors;
   }
 
+  /**
+   * Select the n highest-scoring items from a dense score array.
+   *
+   * The items are selected with a min-heap of size n in O(|I| log n); items with equal scores are ordered by ID.
+   *
+   * @param scores the score of each item, indexed by item ID
+   * @param n the number of items
+   * @param ignore_items items that must not be returned, may be null
+   * @return the IDs of at most n items, highest score first
+   */
+  protected static int[] topItems(double[] scores, int n, IntCollection ignore_items) {
+    boolean[] ignore = null;
+    if (ignore_items != null) {
+      ignore = new boolean[scores.length];
+      for (int item_id : ignore_items)
+        if (item_id >= 0 && item_id < scores.length)
+          ignore[item_id] = true;
+    }
+    return VectorExtensions.topIndices(scores, n, ignore);
+  }
+
   @Override
   public void addItem(int item_id) {
     if (item_id > maxItemID)
@@ -21,6 +21,7 @@ package org.mymedialite.itemrec;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import org.mymedialite.IBatchRecommender;
 import org.mymedialite.IIterativeModel;
 import org.mymedialite.datatype.Matrix;
 import org.mymedialite.datatype.MatrixExtensions;
@@ -31,7 +32,7 @@ import org.mymedialite.io.Model;
  * Abstract class for Matrix Factorization based item predictors.
  * @version 2.03
  */
-public abstract class MF extends IncrementalItemRecommender implements IIterativeModel {
+public abstract class MF extends IncrementalItemRecommender implements IIterativeModel, IBatchRecommender {
     
   private static final String VERSION = "2.03";
   
@@ -116,6 +117,26 @@ public abstract class MF extends IncrementalItemRecommender implements IIterativ
 
     return MatrixExtensions.rowScalarProduct(userFactors, user_id, itemFactors, item_id);
   }
+
+  /**
+   * Predict the weights of a given user for several items.
+   * The user factors are unboxed once; unknown users and items are handled by predict(user_id, item_id).
+   * @param user_id the user ID
+   * @param item_ids the item IDs
+   * @return the predicted weights, in the order of item_ids
+   */
+  public double[] predict(int user_id, int[] item_ids) {
+    double[] result = new double[item_ids.length];
+    double[] user_vector = (user_id >= 0 && user_id < userFactors.dim1) ? MatrixExtensions.rowToArray(userFactors, user_id) : null;
+    for (int i = 0; i < item_ids.length; i++) {
+      int item_id = item_ids[i];
+      if (user_vector != null && item_id >= 0 && item_id < itemFactors.dim1)
+        result[i] = MatrixExtensions.rowScalarProduct(itemFactors, item_id, user_vector);
+      else
+        result[i] = predict(user_id, item_id);
+    }
+    return result;
+  }
   
   /** { @inheritDoc } */
   public void saveModel(String filename) throws IOException {
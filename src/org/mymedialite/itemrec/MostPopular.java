@@ -18,11 +18,11 @@
 
 package org.mymedialite.itemrec;
 
+import it.unimi.dsi.fastutil.ints.IntCollection;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.List;
+import org.mymedialite.datatype.IndexedMaxHeap;
 import org.mymedialite.io.Model;
 
 /** 
@@ -30,50 +30,176 @@ import org.mymedialite.io.Model;
  * Items are weighted by how often they have been seen in the past. 
  * This method is not personalized.
  * This recommender supports incremental updates.
+ *
+ * The popularity scores are kept in an indexed heap, so that incremental updates take O(log n) time
+ * and the top-n items can be read without scanning the catalog, see topItems() and recommend().
+ *
+ * If halfLife is set, the recommender returns trending items: each event is weighted by
+ * 2^(-age / halfLife), where the age is measured relative to the latest event time.
+ * Event times are given with addFeedback(user_id, item_id, time); events without time, including the
+ * training data, are assumed to happen at the latest known time.
+ * Events with time must be removed with removeFeedback(user_id, item_id, time), so that the weight they were
+ * added with is subtracted again.
+ * The decay is applied as forward decay (later events get larger weights), so that it does not change
+ * the order of the items and does not require touching all scores when time passes.
  * @version 2.03
  */
 public class MostPopular extends IncrementalItemRecommender {
 
   private static final String VERSION = "2.03";
-  
-  /** View count */
-  protected List<Integer> view_count;
+
+  /** Largest exponent of the forward decay weights before the scores are rescaled */
+  private static final double MAX_DECAY_EXPONENT = 300;
+
+  /** Half-life of the event weights in milliseconds, for trending lists; 0 (default) means no decay */
+  public double halfLife = 0;
+
+  /** Popularity index: the (decayed) view count of every item */
+  protected IndexedMaxHeap popularity;
+
+  /** Reference time of the forward decay weights, in milliseconds; Long.MIN_VALUE if no time was seen yet */
+  protected long referenceTime = Long.MIN_VALUE;
+
+  /** Latest event time, in milliseconds; Long.MIN_VALUE if no time was seen yet */
+  protected long latestTime = Long.MIN_VALUE;
 
   public void train() {
-    view_count = new ArrayList<Integer>(maxItemID + 1);
+    popularity = new IndexedMaxHeap(maxItemID + 1);
+    double[] view_count = new double[maxItemID + 1];
+    for (int i : feedback.items())
+      view_count[i]++;
     for (int i = 0; i <= maxItemID; i++)
-      view_count.add(0);
+      popularity.set(i, view_count[i]);
 
-     for(int i : feedback.items())
-       view_count.set(i, view_count.get(i) + 1);
+    referenceTime = latestTime;
   }
   
   public double predict(int user_id, int item_id) {
     if (item_id <= maxItemID) {
-      return view_count.get(item_id);
+      return popularity.get(item_id) / decayWeight(latestTime);
     } else {
         return 0;
     }
   }
+
+  /**
+   * Get the most popular items.
+   * @param n the number of items
+   * @return the IDs of the n most popular items, most popular first
+   */
+  public int[] topItems(int n) {
+    return popularity.top(n);
+  }
+
+  /**
+   * Get the most popular items, skipping some items.
+   * @param n the number of items
+   * @param ignore_items items that must not be returned, may be null
+   * @return the IDs of the n most popular items that are not in ignore_items, most popular first
+   */
+  public int[] topItems(int n, IntCollection ignore_items) {
+    return popularity.top(n, ignore_items);
+  }
+
+  /**
+   * Get the most popular items a user has not seen yet.
+   * @param user_id the user ID
+   * @param n the number of items
+   * @return the IDs of the n most popular items that are not in the user's feedback, most popular first
+   */
+  public int[] recommend(int user_id, int n) {
+    IntCollection seen_items = user_id >= 0 && user_id <= maxUserID ? feedback.userMatrix().get(user_id) : null;
+    return popularity.top(n, seen_items);
+  }
    
   protected void addItem(int item_id) {
     super.addItem(item_id);
-    while (view_count.size() <= maxItemID) view_count.add(0);
+    for (int i = popularity.size(); i <= maxItemID; i++)
+      popularity.set(i, 0);
   }
   
   public void removeItem (int item_id) {
     super.removeItem(item_id);
-    view_count.set(item_id,  0);
+    popularity.set(item_id, 0);
   }
 
   public void addFeedback(int user_id, int item_id) {
     super.addFeedback(user_id, item_id);
-    view_count.set(item_id, view_count.get(item_id) + 1);
+    popularity.add(item_id, weight(latestTime));
+  }
+
+  /**
+   * Add a new positive feedback event with time information.
+   * The time is only used if halfLife is set.
+   * @param user_id the user ID
+   * @param item_id the item ID
+   * @param time the time of the event, in milliseconds
+   */
+  public void addFeedback(int user_id, int item_id, long time) {
+    if (time > latestTime)
+      latestTime = time;
+    if (referenceTime == Long.MIN_VALUE)
+      referenceTime = time;
+    super.addFeedback(user_id, item_id);
+    popularity.add(item_id, weight(time));
   }
    
+  /**
+   * Remove a positive feedback event without time information.
+   * If halfLife is set and event times have been seen, the weight of the event is unknown;
+   * use removeFeedback(user_id, item_id, time) instead.
+   * @param user_id the user ID
+   * @param item_id the item ID
+   * @throws UnsupportedOperationException if halfLife is set and event times have been seen
+   */
   public void removeFeedback(int user_id, int item_id) {
+    if (halfLife > 0 && latestTime != Long.MIN_VALUE)
+      throw new UnsupportedOperationException("With halfLife set, use removeFeedback(user_id, item_id, time)");
+    super.removeFeedback(user_id, item_id);
+    popularity.set(item_id, Math.max(0, popularity.get(item_id) - 1));
+  }
+
+  /**
+   * Remove a positive feedback event with time information.
+   * The weight the event was added with is subtracted from the item's score.
+   * @param user_id the user ID
+   * @param item_id the item ID
+   * @param time the time the event was added with, in milliseconds
+   */
+  public void removeFeedback(int user_id, int item_id, long time) {
     super.removeFeedback(user_id, item_id);
-    view_count.set(item_id, view_count.get(item_id) - 1);
+    // Only guards against rounding errors
+    popularity.set(item_id, Math.max(0, popularity.get(item_id) - decayWeight(time)));
+  }
+
+  /**
+   * Compute the forward decay weight of a new event.
+   * Rescales all scores if the weights become too large to be represented, so it must only be called
+   * when the model is updated.
+   * @param time the time of the event, in milliseconds
+   * @return the weight, 1 if there is no decay
+   */
+  protected double weight(long time) {
+    if (halfLife > 0 && time != Long.MIN_VALUE) {
+      double exponent = Math.log(2) * (time - referenceTime) / halfLife;
+      if (exponent > MAX_DECAY_EXPONENT) {
+        popularity.scale(Math.exp(-exponent));
+        referenceTime = time;
+      }
+    }
+    return decayWeight(time);
+  }
+
+  /**
+   * Compute the forward decay weight of an event relative to the current reference time.
+   * Does not change the model, so it is safe for concurrent readers.
+   * @param time the time of the event, in milliseconds
+   * @return the weight, 1 if there is no decay
+   */
+  protected double decayWeight(long time) {
+    if (halfLife <= 0 || time == Long.MIN_VALUE)
+      return 1;
+    return Math.exp(Math.log(2) * (time - referenceTime) / halfLife);
   }
 
   public void saveModel(String filename) throws IOException {
@@ -83,10 +209,24 @@ public class MostPopular extends IncrementalItemRecommender {
     writer.close();
   }
   
+  /**
+   * Save the model.
+   * The first line holds the number of items, followed by the latest event time and the reference time
+   * of the decay weights if event times have been seen; the scores are saved relative to the reference time,
+   * so that timed events can still be added and removed after loading the model.
+   * @param writer the writer to save the model to
+   */
   public void saveModel(PrintWriter writer) {
-    writer.println(maxItemID + 1);
+    if (latestTime == Long.MIN_VALUE && referenceTime == Long.MIN_VALUE)
+      writer.println(maxItemID + 1);
+    else
+      writer.println((maxItemID + 1) + " " + latestTime + " " + referenceTime);
     for (int i = 0; i <= maxItemID; i++) {
-      writer.println(i + " " + view_count.get(i));
+      double score = popularity.get(i);
+      if (halfLife <= 0)
+        writer.println(i + " " + Math.round(score));
+      else
+        writer.println(i + " " + score);
     }
   }
 
@@ -99,22 +239,29 @@ public class MostPopular extends IncrementalItemRecommender {
   
   @Override
   public void loadModel(BufferedReader reader) throws IOException {
-    int size = Integer.parseInt(reader.readLine());
-    List<Integer> view_count = new ArrayList<Integer>(size);
+    String[] header = reader.readLine().split(" ");
+    int size = Integer.parseInt(header[0]);
+    long latest_time = header.length > 1 ? Long.parseLong(header[1]) : Long.MIN_VALUE;
+    long reference_time = header.length > 2 ? Long.parseLong(header[2]) : latest_time;
+    IndexedMaxHeap popularity = new IndexedMaxHeap(size);
+    for (int i = 0; i < size; i++)
+      popularity.set(i, 0);
     
     String line;
     while ((line = reader.readLine()) != null) {
       String[] numbers = line.split(" ");
       int item_id = Integer.parseInt(numbers[0]);
-      int count   = Integer.parseInt(numbers[1]);
-      view_count.add(item_id, count);
+      double count = Double.parseDouble(numbers[1]);
+      popularity.set(item_id, count);
     }
-    this.view_count = view_count;
-    maxItemID = view_count.size() - 1;
+    this.popularity = popularity;
+    maxItemID = size - 1;
+    referenceTime = reference_time;
+    latestTime = latest_time;
   }
 
   public String toString() {
-      return this.getClass().getName();
+      return this.getClass().getName() + " halfLife=" + halfLife;
   }
 
 }
\ No newline at end of file
@@ -65,12 +65,12 @@ public class SoftMarginRankingMF extends BPRMF {
     // Adjust bias terms
     if (update_i) {
       double biasUpdate = common_part - biasReg * itemBias[i];
-      itemBias[i] += learnRate * biasUpdate;
+      itemBias[i] += itemBiasState.update(i, biasUpdate, learnRate);
     }
 
     if (update_j) {
       double biasUpdate = -common_part - biasReg * itemBias[j];
-      itemBias[j] += learnRate * biasUpdate;
+      itemBias[j] += itemBiasState.update(j, biasUpdate, learnRate);
     }
 
     // Adjust factors
@@ -81,20 +81,23 @@ public class SoftMarginRankingMF extends BPRMF {
 
       if (update_u) {
         double uf_update = (h_if - h_jf) * common_part - regU * w_uf;
-        userFactors.set(u, f, w_uf + learnRate * uf_update);
+        userFactors.set(u, f, w_uf + userFactorsState.update(u * numFactors + f, uf_update, learnRate));
       }
 
       if (update_i) {
         double if_update = w_uf * common_part - regI * h_if;
-        itemFactors.set(i, f, h_if + learnRate * if_update);
+        itemFactors.set(i, f, h_if + itemFactorsState.update(i * numFactors + f, if_update, learnRate));
       }
 
       if (update_j) {
         double jf_update = -w_uf  * common_part - regJ * h_jf;
-        itemFactors.set(j, f, h_jf + learnRate * jf_update);
+        itemFactors.set(j, f, h_jf + itemFactorsState.update(j * numFactors + f, jf_update, learnRate));
       }
       
     }
+
+    if (gradientOptimizer.exampleDone())
+      applyUpdates();
   }
 
   /**
@@ -118,6 +121,8 @@ public class SoftMarginRankingMF extends BPRMF {
     + " regJ=" + regJ
     + " numIter=" + numIter
     + " learnRate=" + learnRate
+    + " optimizer=" + optimizer
+    + " batchSize=" + batchSize
     + " boldDriver=" + boldDriver
     + " fastSamplingMemoryLimit=" + fastSamplingMemoryLimit
     + " initMean=" + initMean
@@ -19,6 +19,7 @@ package org.mymedialite.itemrec;
 
 import java.util.List;
 
+import org.mymedialite.IBatchRecommender;
 import org.mymedialite.IUserSimilarityProvider;
 import org.mymedialite.correlation.BinaryCosine;
 
@@ -30,7 +31,7 @@ import org.mymedialite.correlation.BinaryCosine;
  * This recommender does NOT support incremental updates.
  * @version 2.03
  */
-public class UserKNN extends KNN implements IUserSimilarityProvider {
+public class UserKNN extends KNN implements IUserSimilarityProvider, IBatchRecommender {
 
   /**
    * 
@@ -61,6 +62,32 @@ public class UserKNN extends KNN implements IUserSimilarityProvider {
     return (double) count / k;
   }
 
+  /**
+   * Predict the scores of a given user for several items.
+   * The items of the user's neighbors are counted in one pass, instead of looking up every neighbor for every item.
+   * @param user_id the user ID
+   * @param item_ids the item IDs
+   * @return the predicted scores, in the order of item_ids
+   */
+  public double[] predict(int user_id, int[] item_ids) {
+    double[] result = new double[item_ids.length];
+    if ((user_id < 0) || (user_id > maxUserID))
+      return result;
+
+    int[] counts = new int[maxItemID + 1];
+    for (int neighbor : nearest_neighbors[user_id])
+      for (int item_id : feedback.userMatrix().get(neighbor))
+        if (item_id <= maxItemID)
+          counts[item_id]++;
+
+    for (int i = 0; i < item_ids.length; i++) {
+      int item_id = item_ids[i];
+      if ((item_id >= 0) && (item_id <= maxItemID))
+        result[i] = (double) counts[item_id] / k;
+    }
+    return result;
+  }
+
   /**
    * 
    */
@@ -21,6 +21,7 @@ package org.mymedialite.itemrec;
 import it.unimi.dsi.fastutil.ints.IntList;
 import org.mymedialite.datatype.IBooleanMatrix;
 import org.mymedialite.datatype.Matrix;
+import org.mymedialite.util.Parallel;
 
 import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.impl.DenseDoubleMatrix2D;
@@ -43,6 +44,14 @@ import cern.colt.matrix.linalg.Algebra;
  *     ICDM 2008.
  *     http://www.hpl.hp.com/techreports/2008/HPL-2008-48R1.pdf
  *
+ * Instead of solving each least squares problem exactly in O(f^3 + f^2|S_u|), the recommender can run
+ * a few conjugate gradient steps per row, warm-started from the current factors, as proposed by Takacs et al.
+ * Each step costs O(f^2 + f|S_u|), because the matrix HH + H^T(C-I)H is applied to a vector without being built.
+ *
+ *     G. Takacs, I. Pilaszy, D. Tikk: Applications of the conjugate gradient method for implicit feedback
+ *     collaborative filtering.
+ *     RecSys 2011.
+ *
  * This recommender does NOT support incremental updates.
  * @version 2.03
  */
@@ -59,6 +68,21 @@ public class WRMF extends MF {
    */
   public double regularization = 0.015;
 
+  /**
+   * Solver for the factor rows: exact or cg (conjugate gradient).
+   */
+  public String solver = "exact";
+
+  /**
+   * Number of conjugate gradient steps per row and iteration, if the cg solver is used.
+   */
+  public int cgSteps = 3;
+
+  /**
+   * The number of threads used for training, 0 for the number of available processors.
+   */
+  public int numThreads = 1;
+
   /**
    * 
    */
@@ -81,74 +105,198 @@ public class WRMF extends MF {
    * @param W W
    * @param H H
    */
-  protected void optimize(IBooleanMatrix data, Matrix<Double> W, Matrix<Double> H) {
-    Matrix<Double> HH          = new Matrix<Double>(numFactors, numFactors);
-    Matrix<Double> HC_minus_IH = new Matrix<Double>(numFactors, numFactors);
-    double[] HCp         = new double[numFactors];
+  protected void optimize(final IBooleanMatrix data, final Matrix<Double> W, Matrix<Double> H) {
+    final boolean conjugate_gradient;
+    if (solver.equals("cg"))
+      conjugate_gradient = true;
+    else if (solver.equals("exact"))
+      conjugate_gradient = false;
+    else
+      throw new IllegalArgumentException("Unknown solver: " + solver);
 
-    DenseDoubleMatrix2D m = new DenseDoubleMatrix2D(numFactors, numFactors);
+    final int num_factors = numFactors;
 
     // Source code comments are in terms of computing the user factors
     // Works the same with users and items exchanged
 
+    // Copy H to a primitive array, row by row
+    final double[] h = new double[H.dim1 * num_factors];
+    for (int i = 0; i < H.dim1; i++)
+      for (int f = 0; f < num_factors; f++)
+        h[i * num_factors + f] = H.get(i, f);
+
     // (1) Create HH in O(f^2|Items|)
     // HH is symmetric
-    for (int f_1 = 0; f_1 < numFactors; f_1++)
-      for (int f_2 = 0; f_2 < numFactors; f_2++) {
+    final double[] HH = new double[num_factors * num_factors];
+    for (int f_1 = 0; f_1 < num_factors; f_1++)
+      for (int f_2 = f_1; f_2 < num_factors; f_2++) {
         double d = 0;
         for (int i = 0; i < H.dim1; i++)
-          d += H.get(i, f_1) * H.get(i, f_2);
-        
-        HH.set(f_1, f_2, d);
+          d += h[i * num_factors + f_1] * h[i * num_factors + f_2];
+
+        HH[f_1 * num_factors + f_2] = d;
+        HH[f_2 * num_factors + f_1] = d;
       }
-    
-    // (2) Optimize all U
-    // HC_minus_IH is symmetric
-    for (int u = 0; u < W.dim1; u++) {
-      IntList row = data.getEntriesByRow(u);
-      
-      // Create HC_minus_IH in O(f^2|S_u|)
-      for (int f_1 = 0; f_1 < numFactors; f_1++)
-        for (int f_2 = 0; f_2 < numFactors; f_2++) {
-          double d = 0;
-          for (int i : row)
-            //d += H.get(i, f_1) * H.get(i, f_2) * (c_pos - 1);
-            d += H.get(i, f_1) * H.get(i, f_2) * cPos;
-        
-          HC_minus_IH.set(f_1, f_2, d);
+
+    // (2) Optimize all U, the rows are independent given H
+    Parallel.forRange(0, W.dim1, 64, numThreads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        double[] HCp = new double[num_factors];
+        double[] w = new double[num_factors];
+        if (conjugate_gradient) {
+          double[] r  = new double[num_factors];
+          double[] p  = new double[num_factors];
+          double[] ap = new double[num_factors];
+          for (int u = begin; u < end; u++) {
+            int[] row = data.getEntriesByRow(u).toIntArray();
+            for (int f = 0; f < num_factors; f++)
+              w[f] = W.get(u, f);
+            computeHCp(h, row, HCp);
+            conjugateGradient(HH, h, row, HCp, w, r, p, ap);
+            for (int f = 0; f < num_factors; f++)
+              W.set(u, f, w[f]);
+          }
+        } else {
+          DenseDoubleMatrix2D m = new DenseDoubleMatrix2D(num_factors, num_factors);
+          for (int u = begin; u < end; u++) {
+            int[] row = data.getEntriesByRow(u).toIntArray();
+            computeHCp(h, row, HCp);
+            solve(HH, h, row, HCp, m, w);
+            for (int f = 0; f < num_factors; f++)
+              W.set(u, f, w[f]);
+          }
         }
-      
-      // Create HCp in O(f|S_u|)
-      for (int f = 0; f < numFactors; f++) {
+      }
+    });
+  }
+
+  /**
+   * Create HCp in O(f|S_u|).
+   * @param h the factors of the other entity type, row by row
+   * @param row the entries of the row
+   * @param HCp receives H^T C p(u)
+   */
+  private void computeHCp(double[] h, int[] row, double[] HCp) {
+    int num_factors = HCp.length;
+    for (int f = 0; f < num_factors; f++)
+      HCp[f] = 0;
+    for (int i : row)
+      for (int f = 0; f < num_factors; f++)
+        //HCp[f] += h[i * num_factors + f] * c_pos;
+        HCp[f] += h[i * num_factors + f] * (1 + cPos);
+  }
+
+  /**
+   * Solve the least squares problem of one row exactly, in O(f^3 + f^2|S_u|).
+   * @param HH H^T H
+   * @param h the factors of the other entity type, row by row
+   * @param row the entries of the row
+   * @param HCp H^T C p(u)
+   * @param m buffer for the f x f matrix
+   * @param w receives the optimal factors
+   */
+  private void solve(double[] HH, double[] h, int[] row, double[] HCp, DenseDoubleMatrix2D m, double[] w) {
+    int num_factors = w.length;
+
+    // Create m = HH + HC_minus_IH + reg*I in O(f^2|S_u|)
+    // m is symmetric
+    // The inverse m_inv is symmetric
+    for (int f_1 = 0; f_1 < num_factors; f_1++)
+      for (int f_2 = f_1; f_2 < num_factors; f_2++) {
         double d = 0;
         for (int i : row)
-          //d += H.get(i, f) * c_pos;
-          d += H.get(i, f) * (1 + cPos);
-        
-        HCp[f] = d;
+          //d += h[i * num_factors + f_1] * h[i * num_factors + f_2] * (c_pos - 1);
+          d += h[i * num_factors + f_1] * h[i * num_factors + f_2] * cPos;
+
+        d += HH[f_1 * num_factors + f_2];
+        if (f_1 == f_2)
+          d += regularization;
+
+        m.set(f_1, f_2, d);
+        m.set(f_2, f_1, d);
       }
-      
-      // Create m = HH + HC_minus_IH + reg*I
-      // m is symmetric
-      // The inverse m_inv is symmetric
-      for (int f_1 = 0; f_1 < numFactors; f_1++)
-        for (int f_2 = 0; f_2 < numFactors; f_2++) {
-          double d = HH.get(f_1, f_2) + HC_minus_IH.get(f_1, f_2);
-          if (f_1 == f_2)
-            d += regularization;
-        
-          m.set(f_1, f_2, d);
-        }
-      
-      DoubleMatrix2D m_inv = Algebra.DEFAULT.inverse(m);
-      // Write back optimal W
-      for (int f = 0; f < numFactors; f++) {
-        double d = 0;
-        for (int f_2 = 0; f_2 < numFactors; f_2++)
-          d += m_inv.get(f, f_2) * HCp[f_2];
-       
-        W.set(u, f, d);
+
+    DoubleMatrix2D m_inv = Algebra.DEFAULT.inverse(m);
+    // Write back optimal W
+    for (int f = 0; f < num_factors; f++) {
+      double d = 0;
+      for (int f_2 = 0; f_2 < num_factors; f_2++)
+        d += m_inv.get(f, f_2) * HCp[f_2];
+
+      w[f] = d;
+    }
+  }
+
+  /**
+   * Run cgSteps conjugate gradient steps on the least squares problem of one row.
+   * @param HH H^T H
+   * @param h the factors of the other entity type, row by row
+   * @param row the entries of the row
+   * @param HCp H^T C p(u)
+   * @param w the current factors, receives the updated factors
+   * @param r buffer for the residual
+   * @param p buffer for the search direction
+   * @param ap buffer for the product of the matrix and the search direction
+   */
+  private void conjugateGradient(double[] HH, double[] h, int[] row, double[] HCp, double[] w, double[] r, double[] p, double[] ap) {
+    int num_factors = w.length;
+
+    // r = HCp - (HH + HC_minus_IH + reg*I) w
+    multiply(HH, h, row, w, r);
+    double rr = 0;
+    for (int f = 0; f < num_factors; f++) {
+      r[f] = HCp[f] - r[f];
+      p[f] = r[f];
+      rr += r[f] * r[f];
+    }
+
+    for (int step = 0; step < cgSteps && rr > 0; step++) {
+      multiply(HH, h, row, p, ap);
+      double pap = 0;
+      for (int f = 0; f < num_factors; f++)
+        pap += p[f] * ap[f];
+      if (pap <= 0)
+        break;
+
+      double alpha = rr / pap;
+      double rr_new = 0;
+      for (int f = 0; f < num_factors; f++) {
+        w[f] += alpha * p[f];
+        r[f] -= alpha * ap[f];
+        rr_new += r[f] * r[f];
       }
+
+      double beta = rr_new / rr;
+      for (int f = 0; f < num_factors; f++)
+        p[f] = r[f] + beta * p[f];
+      rr = rr_new;
+    }
+  }
+
+  /**
+   * Compute (HH + HC_minus_IH + reg*I) v in O(f^2 + f|S_u|), without creating HC_minus_IH.
+   * @param HH H^T H
+   * @param h the factors of the other entity type, row by row
+   * @param row the entries of the row
+   * @param v the vector
+   * @param result receives the product
+   */
+  private void multiply(double[] HH, double[] h, int[] row, double[] v, double[] result) {
+    int num_factors = v.length;
+    for (int f_1 = 0; f_1 < num_factors; f_1++) {
+      double d = regularization * v[f_1];
+      for (int f_2 = 0; f_2 < num_factors; f_2++)
+        d += HH[f_1 * num_factors + f_2] * v[f_2];
+      result[f_1] = d;
+    }
+    for (int i : row) {
+      int offset = i * num_factors;
+      double d = 0;
+      for (int f = 0; f < num_factors; f++)
+        d += h[offset + f] * v[f];
+      d *= cPos;
+      for (int f = 0; f < num_factors; f++)
+        result[f] += d * h[offset + f];
     }
   }
 
@@ -167,6 +315,9 @@ public class WRMF extends MF {
         "WRMF numFactors=" + numFactors +
         " regularization=" + regularization +
         " cPos="           + cPos +
+        " solver="         + solver +
+        " cgSteps="        + cgSteps +
+        " numThreads="     + numThreads +
         " numIter="        + numIter +
         " initMean="       + initMean +
         " initStDev="     + initStDev;
@@ -29,17 +29,6 @@ package org.mymedialite.itemrec;
  */
 public class WeightedBPRMF extends BPRMF {
 
-  // TODO offer this data structure from Feedback
-  /**
-   * array of user IDs of positive user-item pairs.
-   */
-  protected int[] users;
-  
-  /**
-   * array of item IDs of positive user-item pairs.
-   */
-  protected int[] items;
-
   /**
    * Default constructor.
    */
@@ -48,44 +37,19 @@ public class WeightedBPRMF extends BPRMF {
   /**
    */
   public void train() {
-    // Deactivate until supported
-    withReplacement = false;
-    
-    // Deactivate until false is supported
-    uniformUserSampling = true;
-
-    // prepare helper data structures for training
-    users = new int[feedback.size()];
-    items = new int[feedback.size()];
-
-    int index = 0;
-    for (int user_id : feedback.userMatrix().nonEmptyRowIDs())
-      for (int item_id : feedback.userMatrix().get(user_id)) {
-        users[index] = user_id;
-        items[index] = item_id;
-
-        index++;
-      }
-
-    // Suppress using user_neg_items in BPRMF
-    fastSamplingMemoryLimit = 0;
+    // Sample positive user-item pairs uniformly, with replacement
+    withReplacement = true;
+    uniformUserSampling = false;
 
     super.train();
   }
 
   /**
-   * 
+   * Create a sampler that draws negative items proportionally to their frequency.
+   * @return the sampler
    */
-  protected void sampleTriple(SampleTriple t) {
-    // ample user from positive user-item pairs
-    int index = random.nextInt(items.length - 1);
-    t.u = users[index];
-    t.i = items[index];
-
-    // Sample negative item
-    do
-      t.j = items[random.nextInt(items.length - 1)];
-    while (feedback.userMatrix().get(t.u, t.j));
+  protected BPRSampler createSampler() {
+    return new BPRSampler(feedback, maxUserID, maxItemID, fastSamplingMemoryLimit, 1, true);
   }
 
   /**
@@ -101,16 +65,12 @@ public class WeightedBPRMF extends BPRMF {
         + " regJ=" + regJ
         + " numIter=" + numIter
         + " learnRate=" + learnRate
+        + " optimizer=" + optimizer
+        + " batchSize=" + batchSize
         + " boldDriver=" + boldDriver
+        + " fastSamplingMemoryLimit=" + fastSamplingMemoryLimit
         + " initMean=" + initMean
         + " initStdev=" + initStDev ;
   }
-  
-  private class SampleTriple {
-    int u;  // user_id
-    int i;  // item_id positive item
-    int j;  // item_id negative item
-  } 
 
 }
-
@@ -46,6 +46,31 @@ public class WeightedItemAttributeKNN extends ItemAttributeKNN {
     }
   }
 
+  @Override
+  public double[] predict(int user_id, int[] item_ids) {
+    double[] result = new double[item_ids.length];
+    if ((user_id < 0) || (user_id > maxUserID))
+      return result;
+
+    if (k == Integer.MAX_VALUE) {
+      for (int i = 0; i < item_ids.length; i++)
+        result[i] = predict(user_id, item_ids[i]);
+    } else {
+      boolean[] user_items = userItems(user_id);
+      for (int i = 0; i < item_ids.length; i++) {
+        int item_id = item_ids[i];
+        if ((item_id < 0) || (item_id > maxItemID))
+          continue;
+        double sum = 0;
+        for (int neighbor : nearest_neighbors[item_id])
+          if (user_items[neighbor])
+            sum += correlation.get(item_id, neighbor);
+        result[i] = sum;
+      }
+    }
+    return result;
+  }
+
   @Override
   public String toString() {
     return "WeightedItemAttributeKNN k=" + (k == Integer.MAX_VALUE ? "inf" : Integer.toString(k));
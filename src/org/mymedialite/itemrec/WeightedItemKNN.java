@@ -18,14 +18,42 @@
 
 package org.mymedialite.itemrec;
 
+import org.mymedialite.datatype.CompressedSparseRows;
+
 /**
  * Weighted k-nearest neighbor item-based collaborative filtering using cosine similarity.
  * 
+ * To score many items for one user, the neighbor lists are inverted once into compressed sparse rows
+ * that hold, for each item, the items that have it as a neighbor and the correlations.
+ * The user's items then scatter their weights into a dense score array in a single pass,
+ * in O(|S_u| k) sequential additions instead of O(|I| k) lookups, see scoreAllItems() and recommend().
+ *
  * This recommender does NOT support incremental updates.
  * @version 2.03
  */
 public class WeightedItemKNN extends ItemKNN {
 
+  /** The inverted neighbor lists, built on demand */
+  private ReverseNeighbors reverse_neighbors;
+
+  /**
+   * The items that have a given item among their nearest neighbors, with the correlations.
+   */
+  private static final class ReverseNeighbors {
+    /** The neighbor lists the index was built from */
+    final int[][] nearest_neighbors;
+    /** Rows: neighbor IDs, columns: IDs of the items that have the neighbor */
+    final CompressedSparseRows structure;
+    /** Correlation of each entry, by position */
+    final float[] weights;
+
+    ReverseNeighbors(int[][] nearest_neighbors, CompressedSparseRows structure, float[] weights) {
+      this.nearest_neighbors = nearest_neighbors;
+      this.structure = structure;
+      this.weights = weights;
+    }
+  }
+
   /**
    * 
    */
@@ -46,6 +74,125 @@ public class WeightedItemKNN extends ItemKNN {
     }
   }
 
+  @Override
+  public double[] predict(int user_id, int[] item_ids) {
+    double[] result = new double[item_ids.length];
+    if ((user_id < 0) || (user_id > maxUserID))
+      return result;
+
+    if (k == Integer.MAX_VALUE) {
+      for (int i = 0; i < item_ids.length; i++)
+        result[i] = predict(user_id, item_ids[i]);
+    } else if (scatterSize(user_id, reverseNeighbors()) < (long) item_ids.length * k) {
+      double[] scores = scoreAllItems(user_id);
+      for (int i = 0; i < item_ids.length; i++) {
+        int item_id = item_ids[i];
+        if ((item_id >= 0) && (item_id <= maxItemID))
+          result[i] = scores[item_id];
+      }
+    } else {
+      boolean[] user_items = userItems(user_id);
+      for (int i = 0; i < item_ids.length; i++) {
+        int item_id = item_ids[i];
+        if ((item_id < 0) || (item_id > maxItemID))
+          continue;
+        double sum = 0;
+        for (int neighbor : nearest_neighbors[item_id])
+          if (user_items[neighbor])
+            sum += correlation.get(item_id, neighbor);
+        result[i] = sum;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Compute the scores of a given user for all items.
+   * @param user_id the user ID
+   * @return the score of each item, indexed by item ID from 0 to maxItemID
+   */
+  public double[] scoreAllItems(int user_id) {
+    double[] scores = new double[maxItemID + 1];
+    if ((user_id < 0) || (user_id > maxUserID))
+      return scores;
+
+    if (k == Integer.MAX_VALUE) {
+      for (int item_id = 0; item_id <= maxItemID; item_id++)
+        scores[item_id] = predict(user_id, item_id);
+    } else {
+      // Scatter the correlations of the items that have the user's items as neighbors
+      ReverseNeighbors reverse_neighbors = reverseNeighbors();
+      CompressedSparseRows structure = reverse_neighbors.structure;
+      float[] weights = reverse_neighbors.weights;
+      for (int neighbor : feedback.userMatrix().get(user_id))
+        if (neighbor < structure.numberOfRows())
+          for (int pos = structure.rowStart(neighbor); pos < structure.rowEnd(neighbor); pos++)
+            scores[structure.column(pos)] += weights[pos];
+    }
+    return scores;
+  }
+
+  /**
+   * Get the items with the highest scores that a user has not seen yet.
+   * @param user_id the user ID
+   * @param n the number of items
+   * @return the IDs of at most n items that are not in the user's feedback, highest score first
+   */
+  public int[] recommend(int user_id, int n) {
+    boolean known_user = (user_id >= 0) && (user_id <= maxUserID);
+    return topItems(scoreAllItems(user_id), n, known_user ? feedback.userMatrix().get(user_id) : null);
+  }
+
+  /**
+   * Count the additions needed to scatter the weights of a user's items.
+   */
+  private long scatterSize(int user_id, ReverseNeighbors reverse_neighbors) {
+    CompressedSparseRows structure = reverse_neighbors.structure;
+    long size = 0;
+    for (int neighbor : feedback.userMatrix().get(user_id))
+      if (neighbor < structure.numberOfRows())
+        size += structure.rowEnd(neighbor) - structure.rowStart(neighbor);
+    return size;
+  }
+
+  /**
+   * Get the inverted neighbor lists, and build them if the neighbors have changed.
+   * @return the inverted neighbor lists
+   */
+  private ReverseNeighbors reverseNeighbors() {
+    ReverseNeighbors reverse_neighbors = this.reverse_neighbors;
+    if (reverse_neighbors == null || reverse_neighbors.nearest_neighbors != nearest_neighbors) {
+      int[][] nearest_neighbors = this.nearest_neighbors;
+      int num_entries = 0;
+      for (int[] neighbors : nearest_neighbors)
+        num_entries += neighbors.length;
+
+      int[] rows = new int[num_entries];
+      int[] columns = new int[num_entries];
+      int[] positions = new int[num_entries];
+      int num_items = 0;
+      int n = 0;
+      for (int item_id = 0; item_id < nearest_neighbors.length; item_id++)
+        for (int neighbor : nearest_neighbors[item_id]) {
+          rows[n] = neighbor;
+          columns[n++] = item_id;
+          num_items = Math.max(num_items, neighbor + 1);
+        }
+      num_items = Math.max(num_items, nearest_neighbors.length);
+      CompressedSparseRows structure = new CompressedSparseRows(num_items, num_items, rows, columns, positions);
+
+      float[] weights = new float[structure.size()];
+      n = 0;
+      for (int item_id = 0; item_id < nearest_neighbors.length; item_id++)
+        for (int neighbor : nearest_neighbors[item_id])
+          weights[positions[n++]] = correlation.get(item_id, neighbor);
+
+      reverse_neighbors = new ReverseNeighbors(nearest_neighbors, structure, weights);
+      this.reverse_neighbors = reverse_neighbors;
+    }
+    return reverse_neighbors;
+  }
+
   /**
    */
   public String toString() {
@@ -25,6 +25,9 @@ import org.mymedialite.data.WeightedItem;
 /**
  * Weighted k-nearest neighbor user-based collaborative filtering using cosine-similarity.
  * 
+ * To score many items for one user, the neighbors scatter their weights to their items
+ * in a dense score array in a single pass, see scoreAllItems() and recommend().
+ *
  * This recommender does NOT support incremental updates.
  * @version 2.03
  */
@@ -51,6 +54,83 @@ public class WeightedUserKNN extends UserKNN {
   }
 
   @Override
+  public double[] predict(int user_id, int[] item_ids) {
+    double[] result = new double[item_ids.length];
+    if ((user_id < 0) || (user_id > maxUserID))
+      return result;
+
+    if (k == Integer.MAX_VALUE) {
+      // Gather the correlations of each item's users from a dense copy of the user's correlations
+      int num_users = correlation.numberOfRows();
+      double[] weights = new double[num_users];
+      for (int user_id2 = 0; user_id2 < num_users; user_id2++)
+        weights[user_id2] = correlation.get(user_id, user_id2);
+      for (int i = 0; i < item_ids.length; i++) {
+        int item_id = item_ids[i];
+        if ((item_id < 0) || (item_id > maxItemID))
+          continue;
+        double sum = 0;
+        for (int user_id2 : feedback.itemMatrix().get(item_id))
+          if (user_id2 >= 0 && user_id2 < num_users)
+            sum += weights[user_id2];
+        result[i] = sum;
+      }
+    } else {
+      double[] sums = scoreAllItems(user_id);
+      for (int i = 0; i < item_ids.length; i++) {
+        int item_id = item_ids[i];
+        if ((item_id >= 0) && (item_id <= maxItemID))
+          result[i] = sums[item_id];
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Compute the scores of a given user for all items.
+   * @param user_id the user ID
+   * @return the score of each item, indexed by item ID from 0 to maxItemID
+   */
+  public double[] scoreAllItems(int user_id) {
+    double[] scores = new double[maxItemID + 1];
+    if ((user_id < 0) || (user_id > maxUserID))
+      return scores;
+
+    if (k == Integer.MAX_VALUE) {
+      // Scatter the correlation of each other user to the user's items
+      int num_users = Math.min(correlation.numberOfRows(), feedback.userMatrix().numberOfRows());
+      for (int user_id2 = 0; user_id2 < num_users; user_id2++) {
+        double weight = correlation.get(user_id, user_id2);
+        if (weight == 0)
+          continue;
+        for (int item_id : feedback.userMatrix().get(user_id2))
+          if (item_id <= maxItemID)
+            scores[item_id] += weight;
+      }
+    } else {
+      // Scatter the correlation of each neighbor to the neighbor's items
+      for (int neighbor : nearest_neighbors[user_id]) {
+        double weight = correlation.get(user_id, neighbor);
+        for (int item_id : feedback.userMatrix().get(neighbor))
+          if (item_id <= maxItemID)
+            scores[item_id] += weight;
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * Get the items with the highest scores that a user has not seen yet.
+   * @param user_id the user ID
+   * @param n the number of items
+   * @return the IDs of at most n items that are not in the user's feedback, highest score first
+   */
+  public int[] recommend(int user_id, int n) {
+    boolean known_user = (user_id >= 0) && (user_id <= maxUserID);
+    return topItems(scoreAllItems(user_id), n, known_user ? feedback.userMatrix().get(user_id) : null);
+  }
+
+  @Override
   public String toString() {
     return "WeightedUserKNN k=" + (k == Integer.MAX_VALUE ? "inf" : Integer.toString(k));
   }
@@ -0,0 +1,50 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.optimization;
+
+/**
+ * AdaGrad: the learn rate of every parameter is divided by the root of its sum of squared gradients,
+ * so that parameters of rare users and items take larger steps than those of frequent ones.
+ *
+ * Literature:
+ *     John Duchi, Elad Hazan, Yoram Singer:
+ *     Adaptive Subgradient Methods for Online Learning and Stochastic Optimization.
+ *     Journal of Machine Learning Research 12, 2011.
+ * @version 2.03
+ */
+public class AdaGrad extends Optimizer {
+
+  /** Constant added to the denominator for numerical stability */
+  public double epsilon = 1E-8;
+
+  protected int numSlots() {
+    return 1;
+  }
+
+  protected double step(double[][] slots, int index, double gradient, double learn_rate) {
+    double sum_squares = slots[0][index] + gradient * gradient;
+    slots[0][index] = sum_squares;
+    return learn_rate * gradient / (Math.sqrt(sum_squares) + epsilon);
+  }
+
+  public String toString() {
+    return "adagrad(" + epsilon + ")";
+  }
+
+}
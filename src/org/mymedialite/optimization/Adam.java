@@ -0,0 +1,67 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.optimization;
+
+/**
+ * Adam: adaptive moment estimation.
+ *
+ * Every parameter keeps exponentially decayed averages of its gradients and squared gradients.
+ * The bias correction uses the number of updates of the parameter itself, so that the parameters
+ * of rare users and items, which are updated only sporadically by SGD, are corrected properly.
+ *
+ * Literature:
+ *     Diederik P. Kingma, Jimmy Ba:
+ *     Adam: A Method for Stochastic Optimization.
+ *     ICLR 2015.
+ * @version 2.03
+ */
+public class Adam extends Optimizer {
+
+  /** Decay of the first moment estimate */
+  public double beta1 = 0.9;
+
+  /** Decay of the second moment estimate */
+  public double beta2 = 0.999;
+
+  /** Constant added to the denominator for numerical stability */
+  public double epsilon = 1E-8;
+
+  protected int numSlots() {
+    return 4;
+  }
+
+  protected double step(double[][] slots, int index, double gradient, double learn_rate) {
+    double m = beta1 * slots[0][index] + (1 - beta1) * gradient;
+    double v = beta2 * slots[1][index] + (1 - beta2) * gradient * gradient;
+    // Bias corrections 1 - beta^t, kept per parameter; 0 before the first update
+    double correction1 = 1 - beta1 * (1 - slots[2][index]);
+    double correction2 = 1 - beta2 * (1 - slots[3][index]);
+    slots[0][index] = m;
+    slots[1][index] = v;
+    slots[2][index] = correction1;
+    slots[3][index] = correction2;
+
+    return learn_rate * (m / correction1) / (Math.sqrt(v / correction2) + epsilon);
+  }
+
+  public String toString() {
+    return "adam(" + beta1 + "," + beta2 + "," + epsilon + ")";
+  }
+
+}
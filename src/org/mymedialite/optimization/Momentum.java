@@ -0,0 +1,51 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.optimization;
+
+/**
+ * Gradient descent with momentum.
+ *
+ * Every parameter keeps a velocity, which is the decayed sum of its past changes.
+ *
+ * Literature:
+ *     Boris T. Polyak:
+ *     Some methods of speeding up the convergence of iteration methods.
+ *     USSR Computational Mathematics and Mathematical Physics 4(5), 1964.
+ * @version 2.03
+ */
+public class Momentum extends Optimizer {
+
+  /** Decay of the velocity */
+  public double momentum = 0.9;
+
+  protected int numSlots() {
+    return 1;
+  }
+
+  protected double step(double[][] slots, int index, double gradient, double learn_rate) {
+    double velocity = momentum * slots[0][index] + learn_rate * gradient;
+    slots[0][index] = velocity;
+    return velocity;
+  }
+
+  public String toString() {
+    return "momentum(" + momentum + ")";
+  }
+
+}
@@ -0,0 +1,152 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.optimization;
+
+/**
+ * Base class for gradient-based optimizers.
+ *
+ * A model creates one OptimizerState for every group of parameters (e.g. the user factors) and asks it for the
+ * change of a parameter, given the gradient of the objective. Gradients follow the convention of the recommenders:
+ * they point in the direction in which the parameter should move, i.e. they already include the sign, and the
+ * returned change is added to the parameter.
+ *
+ * If batchSize is greater than 1, the gradients of batchSize examples are summed up and applied together,
+ * see exampleDone() and OptimizerState.apply().
+ *
+ * Optimizers are created from a name using create(), e.g. "sgd", "momentum", "adagrad" or "adam".
+ * The hyperparameters of an optimizer can be given in parentheses, e.g. "momentum(0.95)" or "adam(0.9,0.999,1e-8)".
+ * @version 2.03
+ */
+public abstract class Optimizer {
+
+  /** Number of examples whose gradients are accumulated before the parameters are updated, 1 for online updates */
+  public int batchSize = 1;
+
+  /** Number of examples in the current mini-batch */
+  private int numBatchExamples;
+
+  /**
+   * Create an optimizer from its name.
+   * @param spec the name of the optimizer, optionally followed by its hyperparameters in parentheses
+   * @return the optimizer
+   */
+  public static Optimizer create(String spec) {
+    String name = spec.trim().toLowerCase();
+    double[] args = new double[0];
+    int open = name.indexOf('(');
+    if (open != -1) {
+      if (!name.endsWith(")"))
+        throw new IllegalArgumentException("Missing ')' in optimizer '" + spec + "'");
+      String arg_string = name.substring(open + 1, name.length() - 1).trim();
+      name = name.substring(0, open).trim();
+      if (arg_string.length() > 0) {
+        String[] tokens = arg_string.split(",");
+        args = new double[tokens.length];
+        for (int i = 0; i < tokens.length; i++)
+          args[i] = Double.parseDouble(tokens[i].trim());
+      }
+    }
+
+    if (name.equals("sgd")) {
+      checkNumArgs(spec, args, 0);
+      return new SGD();
+    } else if (name.equals("momentum")) {
+      checkNumArgs(spec, args, 1);
+      Momentum optimizer = new Momentum();
+      if (args.length > 0)
+        optimizer.momentum = args[0];
+      return optimizer;
+    } else if (name.equals("adagrad")) {
+      checkNumArgs(spec, args, 1);
+      AdaGrad optimizer = new AdaGrad();
+      if (args.length > 0)
+        optimizer.epsilon = args[0];
+      return optimizer;
+    } else if (name.equals("adam")) {
+      checkNumArgs(spec, args, 3);
+      Adam optimizer = new Adam();
+      if (args.length > 0)
+        optimizer.beta1 = args[0];
+      if (args.length > 1)
+        optimizer.beta2 = args[1];
+      if (args.length > 2)
+        optimizer.epsilon = args[2];
+      return optimizer;
+    }
+    throw new IllegalArgumentException("Unknown optimizer '" + spec + "', use sgd, momentum, adagrad or adam");
+  }
+
+  private static void checkNumArgs(String spec, double[] args, int max_args) {
+    if (args.length > max_args)
+      throw new IllegalArgumentException("Too many arguments for optimizer '" + spec + "'");
+  }
+
+  /**
+   * Create the state for a group of parameters.
+   * @return the state
+   */
+  public OptimizerState createState() {
+    return new OptimizerState(this);
+  }
+
+  /**
+   * Check whether the gradients are accumulated in mini-batches.
+   * @return true if batchSize is greater than 1
+   */
+  public boolean isBatched() {
+    return batchSize > 1;
+  }
+
+  /**
+   * Signal that all gradients of one example have been passed to the states.
+   * @return true if the mini-batch is complete and the accumulated updates should be applied
+   */
+  public boolean exampleDone() {
+    if (batchSize <= 1)
+      return false;
+    if (++numBatchExamples < batchSize)
+      return false;
+    numBatchExamples = 0;
+    return true;
+  }
+
+  /**
+   * Start a new mini-batch, e.g. at the end of an iteration after the remaining updates have been applied.
+   */
+  public void resetBatch() {
+    numBatchExamples = 0;
+  }
+
+  /**
+   * Get the number of state values the optimizer keeps per parameter.
+   * @return the number of state values per parameter
+   */
+  protected abstract int numSlots();
+
+  /**
+   * Compute the change of a parameter and update its state.
+   * @param slots the state values, by slot and parameter index
+   * @param index the parameter index
+   * @param gradient the gradient, pointing in the direction of the desired change
+   * @param learn_rate the learn rate
+   * @return the change of the parameter
+   */
+  protected abstract double step(double[][] slots, int index, double gradient, double learn_rate);
+
+}
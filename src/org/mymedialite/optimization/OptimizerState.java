@@ -0,0 +1,165 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.optimization;
+
+import java.util.Arrays;
+import org.mymedialite.datatype.Matrix;
+
+/**
+ * The optimizer state of a group of parameters, e.g. of the user factors of a model.
+ *
+ * Parameters are identified by an index; for a Matrix the index of entry (i, j) is i * dim2 + j.
+ * The state arrays grow as needed, so models can add users and items without notifying the state.
+ *
+ * In online mode (batchSize 1), update() returns the change of the parameter, which the caller adds.
+ * In mini-batch mode, update() adds the gradient to an accumulator and returns 0; apply() computes the
+ * changes of all parameters touched since the last call and adds them to the parameters.
+ * @version 2.03
+ */
+public class OptimizerState {
+
+  private final Optimizer optimizer;
+
+  /** Optimizer state by slot and parameter index */
+  private final double[][] slots;
+
+  /** Accumulated gradients by parameter index, for mini-batches */
+  private double[] gradients = new double[0];
+
+  /** true for the parameters that have accumulated gradients */
+  private boolean[] pending = new boolean[0];
+
+  /** Indices of the parameters that have accumulated gradients */
+  private int[] touched = new int[16];
+
+  /** Number of parameters that have accumulated gradients */
+  private int numTouched;
+
+  /** Learn rate of the last call to update() */
+  private double learnRate;
+
+  /**
+   * Create a state.
+   * @param optimizer the optimizer
+   */
+  OptimizerState(Optimizer optimizer) {
+    this.optimizer = optimizer;
+    this.slots = new double[optimizer.numSlots()][0];
+  }
+
+  /**
+   * Pass the gradient of a parameter for one example.
+   * @param index the parameter index
+   * @param gradient the gradient, pointing in the direction of the desired change
+   * @param learn_rate the learn rate
+   * @return the change of the parameter in online mode, 0 in mini-batch mode
+   */
+  public double update(int index, double gradient, double learn_rate) {
+    if (!optimizer.isBatched())
+      return step(index, gradient, learn_rate);
+
+    if (index >= pending.length)
+      grow(index + 1);
+    learnRate = learn_rate;
+    if (!pending[index]) {
+      pending[index] = true;
+      if (numTouched == touched.length)
+        touched = Arrays.copyOf(touched, 2 * touched.length);
+      touched[numTouched++] = index;
+    }
+    gradients[index] += gradient;
+    return 0;
+  }
+
+  /**
+   * Compute the change of a parameter immediately, ignoring the mini-batch size.
+   * This is meant for batch gradient descent, where the caller computes the full gradient itself.
+   * @param index the parameter index
+   * @param gradient the gradient, pointing in the direction of the desired change
+   * @param learn_rate the learn rate
+   * @return the change of the parameter
+   */
+  public double step(int index, double gradient, double learn_rate) {
+    if (slots.length > 0 && index >= slots[0].length)
+      grow(index + 1);
+    return optimizer.step(slots, index, gradient, learn_rate);
+  }
+
+  /**
+   * Make room for a number of parameters.
+   * After this, step() can be called concurrently for different indices below the given size.
+   * @param size the number of parameters
+   */
+  public void ensureCapacity(int size) {
+    if ((slots.length > 0 && slots[0].length < size) || (optimizer.isBatched() && pending.length < size))
+      grow(size);
+  }
+
+  /**
+   * Apply the accumulated gradients to a parameter vector.
+   * @param parameters the parameters
+   */
+  public void apply(double[] parameters) {
+    for (int k = 0; k < numTouched; k++) {
+      int index = touched[k];
+      parameters[index] += step(index, gradients[index], learnRate);
+      clear(index);
+    }
+    numTouched = 0;
+  }
+
+  /**
+   * Apply the accumulated gradients to a parameter matrix.
+   * @param parameters the parameters
+   */
+  public void apply(Matrix<Double> parameters) {
+    Object[] data = parameters.data;
+    for (int k = 0; k < numTouched; k++) {
+      int index = touched[k];
+      data[index] = (Double) data[index] + step(index, gradients[index], learnRate);
+      clear(index);
+    }
+    numTouched = 0;
+  }
+
+  /**
+   * Check whether there are accumulated gradients that have not been applied yet.
+   * @return true if apply() would change parameters
+   */
+  public boolean hasPendingUpdates() {
+    return numTouched > 0;
+  }
+
+  private void clear(int index) {
+    gradients[index] = 0;
+    pending[index] = false;
+  }
+
+  private void grow(int min_size) {
+    int size = Math.max(min_size, 2 * Math.max(pending.length, slots.length > 0 ? slots[0].length : 0));
+    for (int s = 0; s < slots.length; s++)
+      if (slots[s].length < min_size)
+        slots[s] = Arrays.copyOf(slots[s], size);
+    if (optimizer.isBatched() && pending.length < min_size) {
+      gradients = Arrays.copyOf(gradients, size);
+      pending = Arrays.copyOf(pending, size);
+    }
+  }
+
+}
@@ -0,0 +1,39 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.optimization;
+
+/**
+ * Plain stochastic gradient descent: the change of a parameter is the learn rate times the gradient.
+ * @version 2.03
+ */
+public class SGD extends Optimizer {
+
+  protected int numSlots() {
+    return 0;
+  }
+
+  protected double step(double[][] slots, int index, double gradient, double learn_rate) {
+    return learn_rate * gradient;
+  }
+
+  public String toString() {
+    return "sgd";
+  }
+
+}
@@ -0,0 +1,6 @@
+/**
+ * Provides gradient-based optimizers (SGD, momentum, AdaGrad, Adam) for the iterative recommenders.
+ * 
+ * The optimizers keep their per-parameter state in primitive arrays and can accumulate the gradients of mini-batches.
+ */
+package org.mymedialite.optimization;
@@ -17,15 +17,15 @@
 
 package org.mymedialite.ratingprediction;
 
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-import org.mymedialite.datatype.SkewSymmetricSparseMatrix;
-import org.mymedialite.datatype.SymmetricSparseMatrix;
-import org.mymedialite.io.IMatrixExtensions;
 import org.mymedialite.io.Model;
 import org.mymedialite.io.VectorExtensions;
 
@@ -38,32 +38,39 @@ import org.mymedialite.io.VectorExtensions;
  *     SIAM Data Mining (SDM 2005).
  *     http://www.daniel-lemire.com/fr/abstracts/SDM2005.html
  *
- * This recommender does NOT support incremental updates. They would be easy to implement, though.
+ * The item pair deviations of liked and disliked items are accumulated in parallel and stored
+ * in two SlopeOneDeviations objects.
+ *
+ * This recommender supports incremental updates. As a change of a rating can change the average rating
+ * of the user, and thus which of the user's items count as liked, an update also updates the pairs of
+ * the other items of the user whose like/dislike class changed.
  * @version 2.03
  */
-public class BiPolarSlopeOne extends RatingPredictor {
+public class BiPolarSlopeOne extends IncrementalRatingPredictor {
   
   private static final String VERSION = "2.03";
-  
-  private SkewSymmetricSparseMatrix  diff_matrix_like;
-  private SymmetricSparseMatrix<Integer> freq_matrix_like;
-  private SkewSymmetricSparseMatrix  diff_matrix_dislike;
-  private SymmetricSparseMatrix<Integer> freq_matrix_dislike;
+
+  /** The number of threads used for training, 0 for the number of available processors */
+  public int numThreads = 0;
+
+  private SlopeOneDeviations deviations_like;
+  private SlopeOneDeviations deviations_dislike;
 
   private double global_average;
-  private List<Double> user_average;
+  private DoubleArrayList user_average;
 
   /**
    * 
    */
   public boolean canPredict(int user_id, int item_id) {
-    if (user_id > maxUserID || item_id > maxItemID)
+    if (user_id > maxUserID || item_id > maxItemID || user_id >= ratings.byUser().size())
       return false;
 
+    IntList items = ratings.items();
     for (int index : ratings.byUser().get(user_id)) {
-      if (freq_matrix_like.get(item_id, ratings.items().get(index)) != 0)
+      if (deviations_like.frequency(item_id, items.getInt(index)) != 0)
         return true;
-      if (freq_matrix_dislike.get(item_id, ratings.items().get(index)) != 0)
+      if (deviations_dislike.frequency(item_id, items.getInt(index)) != 0)
         return true;
     }
     return false;
@@ -73,32 +80,26 @@ public class BiPolarSlopeOne extends RatingPredictor {
    * 
    */
   public double predict(int user_id, int item_id) {
-    if (item_id > maxItemID || user_id > maxUserID)
+    if (item_id > maxItemID || user_id > maxUserID || user_id >= ratings.byUser().size())
       return global_average;
 
-    double prediction = 0.0;
-    int frequencies = 0;
-
-    for (int index : ratings.byUser().get(user_id)) {
-      if (ratings.get(index) > user_average.get(user_id)) {
-        int f = freq_matrix_like.get(item_id, ratings.items().get(index));
-        if (f != 0) {
-          prediction  += ( diff_matrix_like.get(item_id, ratings.items().get(index)) + ratings.get(index) ) * f;
-          frequencies += f;
-        }
-      } else {
-        int f = freq_matrix_dislike.get(item_id, ratings.items().get(index));
-        if (f != 0) {
-          prediction  += ( diff_matrix_dislike.get(item_id, ratings.items().get(index)) + ratings.get(index) ) * f;
-          frequencies += f;
-        }
-      }
+    double[] sums = new double[2];
+    double user_avg = user_average.getDouble(user_id);
+    IntList items = ratings.items();
+    IntList user_indices = ratings.byUser().get(user_id);
+    for (int k = 0; k < user_indices.size(); k++) {
+      int index = user_indices.getInt(k);
+      double rating = ratings.get(index);
+      if (rating > user_avg)
+        deviations_like.accumulate(item_id, items.getInt(index), rating, sums);
+      else
+        deviations_dislike.accumulate(item_id, items.getInt(index), rating, sums);
     }
 
-    if (frequencies == 0)
+    if (sums[1] == 0)
       return global_average;
 
-    double result = prediction / frequencies;
+    double result = sums[0] / sums[1];
 
     if (result > maxRating)
       return maxRating;
@@ -115,39 +116,52 @@ public class BiPolarSlopeOne extends RatingPredictor {
     // Default value if no prediction can be made
     global_average = ratings.average();
 
-    // Compute difference sums and frequencies
-    for (int user_id : ratings.allUsers()) {
-      double user_avg = 0;
-      for (int index : ratings.byUser().get(user_id))
-        user_avg += ratings.get(index);
- 
-      user_avg = user_avg / ratings.byUser().get(user_id).size();
+    // Split the ratings of every user into liked and disliked items
+    List<IntList> by_user = ratings.byUser();
+    int[][] like_items = new int[by_user.size()][];
+    float[][] like_ratings = new float[by_user.size()][];
+    int[][] dislike_items = new int[by_user.size()][];
+    float[][] dislike_ratings = new float[by_user.size()][];
+    for (int user_id = 0; user_id < by_user.size(); user_id++) {
+      IntList user_indices = by_user.get(user_id);
+      if (user_indices.size() == 0)
+        continue;
+      double user_avg = computeUserAverage(user_id);
 
       // Store for later use
       user_average.set(user_id, user_avg);
 
-      for (int index : ratings.byUser().get(user_id)) {
-        for (int index2 : ratings.byUser().get(user_id)) {
-          if (ratings.get(index) > user_avg && ratings.get(index2) > user_avg) {
-            freq_matrix_like.set(ratings.items().get(index), ratings.items().get(index2), freq_matrix_like.get(ratings.items().get(index), ratings.items().get(index2)) + 1);
-            diff_matrix_like.set(ratings.items().get(index), ratings.items().get(index2), diff_matrix_like.get(ratings.items().get(index), ratings.items().get(index2)) + (float) (ratings.get(index) - ratings.get(index2)));
-          } else if (ratings.get(index) < user_avg && ratings.get(index2) < user_avg) {
-            
-            freq_matrix_dislike.set(ratings.items().get(index), ratings.items().get(index2), freq_matrix_dislike.get(ratings.items().get(index), ratings.items().get(index2)) + 1);
-            diff_matrix_dislike.set(ratings.items().get(index), ratings.items().get(index2), diff_matrix_dislike.get(ratings.items().get(index), ratings.items().get(index2)) + (float) (ratings.get(index) - ratings.get(index2)));
-          }
+      int num_like = 0;
+      int num_dislike = 0;
+      for (int k = 0; k < user_indices.size(); k++) {
+        double rating = ratings.get(user_indices.getInt(k));
+        if (rating > user_avg)
+          num_like++;
+        else if (rating < user_avg)
+          num_dislike++;
+      }
+      like_items[user_id] = new int[num_like];
+      like_ratings[user_id] = new float[num_like];
+      dislike_items[user_id] = new int[num_dislike];
+      dislike_ratings[user_id] = new float[num_dislike];
+      num_like = 0;
+      num_dislike = 0;
+      for (int k = 0; k < user_indices.size(); k++) {
+        int index = user_indices.getInt(k);
+        double rating = ratings.get(index);
+        if (rating > user_avg) {
+          like_items[user_id][num_like] = ratings.items().getInt(index);
+          like_ratings[user_id][num_like++] = (float) rating;
+        } else if (rating < user_avg) {
+          dislike_items[user_id][num_dislike] = ratings.items().getInt(index);
+          dislike_ratings[user_id][num_dislike++] = (float) rating;
         }
       }
     }
 
-    // Compute average differences
-    for (int i = 0; i <= maxItemID; i++) {
-      for (int j : freq_matrix_like.get(i).keySet())
-        diff_matrix_like.set(i, j, diff_matrix_like.get(i, j) / freq_matrix_like.get(i, j));
-      
-      for (int j : freq_matrix_dislike.get(i).keySet())
-        diff_matrix_dislike.set(i, j, diff_matrix_dislike.get(i, j) / freq_matrix_dislike.get(i, j));
-    }
+    // Compute average differences and frequencies
+    deviations_like = SlopeOneDeviations.compute(maxItemID + 1, like_items, like_ratings, numThreads);
+    deviations_dislike = SlopeOneDeviations.compute(maxItemID + 1, dislike_items, dislike_ratings, numThreads);
   }
 
   /**
@@ -155,12 +169,221 @@ public class BiPolarSlopeOne extends RatingPredictor {
    */
   public void initModel() {
     // Create data structure
-    diff_matrix_like = new SkewSymmetricSparseMatrix(maxItemID + 1);
-    freq_matrix_like = new SymmetricSparseMatrix<Integer>(maxItemID + 1, 0);
-    diff_matrix_dislike = new SkewSymmetricSparseMatrix(maxItemID + 1);
-    freq_matrix_dislike = new SymmetricSparseMatrix<Integer>(maxItemID + 1, 0);
-    user_average = new ArrayList<Double>(maxUserID + 1);
-    for(int i=0; i < maxUserID + 1; i++) user_average.add(null);
+    deviations_like = new SlopeOneDeviations(maxItemID + 1);
+    deviations_dislike = new SlopeOneDeviations(maxItemID + 1);
+    user_average = new DoubleArrayList(maxUserID + 1);
+    user_average.size(maxUserID + 1);
+  }
+
+  /**
+   * 
+   */
+  public void addRating(int user_id, int item_id, double rating) {
+    int[] items = userItems(user_id);
+    double[] old_ratings = userRatings(user_id);
+    double old_avg = user_id < user_average.size() ? user_average.getDouble(user_id) : 0;
+
+    super.addRating(user_id, item_id, rating);
+    global_average += (rating - global_average) / ratings.size();
+
+    items = Arrays.copyOf(items, items.length + 1);
+    items[items.length - 1] = item_id;
+    old_ratings = Arrays.copyOf(old_ratings, items.length);
+    old_ratings[items.length - 1] = Double.NaN;
+    double[] new_ratings = Arrays.copyOf(userRatings(user_id), items.length);
+    updateUserPairs(user_id, items, old_ratings, old_avg, new_ratings);
+  }
+
+  /**
+   * 
+   */
+  public void updateRating(int user_id, int item_id, double rating) {
+    int[] items = userItems(user_id);
+    double[] old_ratings = userRatings(user_id);
+    double old_avg = user_average.getDouble(user_id);
+    Integer index = ratings.tryGetIndex(user_id, item_id, ratings.byUser().get(user_id));
+    double old_rating = index == null ? 0 : ratings.get(index);
+
+    super.updateRating(user_id, item_id, rating);
+    global_average += (rating - old_rating) / ratings.size();
+
+    updateUserPairs(user_id, items, old_ratings, old_avg, userRatings(user_id));
+  }
+
+  /**
+   * 
+   */
+  public void removeRating(int user_id, int item_id) {
+    if (user_id >= ratings.byUser().size())
+      return;
+    Integer index = ratings.tryGetIndex(user_id, item_id, ratings.byUser().get(user_id));
+    if (index == null)
+      return;
+    double rating = ratings.get(index);
+    int[] items = userItems(user_id);
+    double[] old_ratings = userRatings(user_id);
+    double old_avg = user_average.getDouble(user_id);
+
+    super.removeRating(user_id, item_id);
+    global_average = ratings.size() == 0 ? 0 : (global_average * (ratings.size() + 1) - rating) / ratings.size();
+
+    double[] new_ratings = old_ratings.clone();
+    for (int k = 0; k < items.length; k++)
+      if (items[k] == item_id)
+        new_ratings[k] = Double.NaN;
+    updateUserPairs(user_id, items, old_ratings, old_avg, new_ratings);
+  }
+
+  /**
+   * 
+   */
+  public void addUser(int user_id) {
+    super.addUser(user_id);
+    if (user_average.size() <= maxUserID)
+      user_average.size(maxUserID + 1);
+  }
+
+  /**
+   * 
+   */
+  public void addItem(int item_id) {
+    super.addItem(item_id);
+    deviations_like.grow(maxItemID + 1);
+    deviations_dislike.grow(maxItemID + 1);
+  }
+
+  /**
+   * 
+   */
+  public void removeUser(int user_id) {
+    int[] items = userItems(user_id);
+    double[] old_ratings = userRatings(user_id);
+    double[] new_ratings = new double[items.length];
+    Arrays.fill(new_ratings, Double.NaN);
+    if (items.length > 0)
+      updateUserPairs(user_id, items, old_ratings, user_average.getDouble(user_id), new_ratings);
+    super.removeUser(user_id);
+    global_average = ratings.average();
+  }
+
+  /**
+   * 
+   */
+  public void removeItem(int item_id) {
+    // The averages of the users of the item change, so collect their ratings first
+    IntList item_users = new IntArrayList();
+    if (item_id < ratings.byItem().size())
+      for (int index : ratings.byItem().get(item_id))
+        item_users.add(ratings.users().getInt(index));
+    int[][] items = new int[item_users.size()][];
+    double[][] old_ratings = new double[item_users.size()][];
+    for (int k = 0; k < item_users.size(); k++) {
+      items[k] = userItems(item_users.getInt(k));
+      old_ratings[k] = userRatings(item_users.getInt(k));
+    }
+
+    super.removeItem(item_id);
+    global_average = ratings.average();
+
+    for (int k = 0; k < item_users.size(); k++) {
+      double[] new_ratings = old_ratings[k].clone();
+      for (int n = 0; n < items[k].length; n++)
+        if (items[k][n] == item_id)
+          new_ratings[n] = Double.NaN;
+      updateUserPairs(item_users.getInt(k), items[k], old_ratings[k], user_average.getDouble(item_users.getInt(k)), new_ratings);
+    }
+    deviations_like.removeItem(item_id);
+    deviations_dislike.removeItem(item_id);
+  }
+
+  private double computeUserAverage(int user_id) {
+    IntList user_indices = ratings.byUser().get(user_id);
+    double user_avg = 0;
+    for (int k = 0; k < user_indices.size(); k++)
+      user_avg += ratings.get(user_indices.getInt(k));
+    return user_avg / user_indices.size();
+  }
+
+  /** the items rated by a user, in the order of ratings.byUser() */
+  private int[] userItems(int user_id) {
+    if (user_id >= ratings.byUser().size())
+      return new int[0];
+    IntList user_indices = ratings.byUser().get(user_id);
+    int[] items = new int[user_indices.size()];
+    for (int k = 0; k < items.length; k++)
+      items[k] = ratings.items().getInt(user_indices.getInt(k));
+    return items;
+  }
+
+  /** the ratings of a user, in the order of ratings.byUser() */
+  private double[] userRatings(int user_id) {
+    if (user_id >= ratings.byUser().size())
+      return new double[0];
+    IntList user_indices = ratings.byUser().get(user_id);
+    double[] user_ratings = new double[user_indices.size()];
+    for (int k = 0; k < user_ratings.length; k++)
+      user_ratings[k] = ratings.get(user_indices.getInt(k));
+    return user_ratings;
+  }
+
+  /**
+   * Update the pairs of a user after a change of the user's ratings.
+   *
+   * The new average rating of the user is computed and stored.
+   * Only the pairs of items whose rating or like/dislike class changed are updated,
+   * so the cost is proportional to the number of changed items times the number of items of the user.
+   *
+   * @param user_id the user ID
+   * @param items the items of the user before and after the change
+   * @param old_ratings the ratings before the change, NaN for items that were not rated
+   * @param old_avg the average rating of the user before the change
+   * @param new_ratings the ratings after the change, NaN for items that are not rated any more
+   */
+  private void updateUserPairs(int user_id, int[] items, double[] old_ratings, double old_avg, double[] new_ratings) {
+    double new_avg = 0;
+    int num_ratings = 0;
+    for (double rating : new_ratings)
+      if (!Double.isNaN(rating)) {
+        new_avg += rating;
+        num_ratings++;
+      }
+    new_avg = num_ratings == 0 ? 0 : new_avg / num_ratings;
+    if (user_id < user_average.size())
+      user_average.set(user_id, new_avg);
+
+    boolean[] changed = new boolean[items.length];
+    for (int k = 0; k < items.length; k++)
+      changed[k] = Double.compare(old_ratings[k], new_ratings[k]) != 0
+                || polarity(old_ratings[k], old_avg) != polarity(new_ratings[k], new_avg);
+
+    for (int a = 0; a < items.length; a++) {
+      if (!changed[a])
+        continue;
+      for (int b = 0; b < items.length; b++) {
+        // Count pairs of two changed items only once
+        if (b == a || (changed[b] && b < a))
+          continue;
+        updatePair(items[a], items[b], old_ratings[a], old_ratings[b], old_avg, -1);
+        updatePair(items[a], items[b], new_ratings[a], new_ratings[b], new_avg, 1);
+      }
+    }
+  }
+
+  /** 1 for liked, -1 for disliked, 0 for neutral or unrated items */
+  private static int polarity(double rating, double user_avg) {
+    if (rating > user_avg)
+      return 1;
+    if (rating < user_avg)
+      return -1;
+    return 0;
+  }
+
+  private void updatePair(int item_id1, int item_id2, double rating1, double rating2, double user_avg, int weight) {
+    int polarity = polarity(rating1, user_avg);
+    if (polarity == 0 || polarity != polarity(rating2, user_avg))
+      return;
+    SlopeOneDeviations deviations = polarity > 0 ? deviations_like : deviations_dislike;
+    deviations.add(item_id1, item_id2, weight * (rating1 - rating2), weight);
   }
 
   @Override
@@ -172,23 +395,16 @@ public class BiPolarSlopeOne extends RatingPredictor {
   
   @Override
   public void loadModel(BufferedReader reader) throws IOException {
-    initModel();
     double global_average = Double.parseDouble(reader.readLine());
-
-    SkewSymmetricSparseMatrix diff_matrix_like = (SkewSymmetricSparseMatrix) IMatrixExtensions.readFloatMatrix(reader, this.diff_matrix_like);
-    SymmetricSparseMatrix<Integer> freq_matrix_like = (SymmetricSparseMatrix<Integer>) IMatrixExtensions.readIntegerMatrix(reader, this.freq_matrix_like);
-    SkewSymmetricSparseMatrix diff_matrix_dislike = (SkewSymmetricSparseMatrix) IMatrixExtensions.readFloatMatrix(reader, this.diff_matrix_dislike);
-    SymmetricSparseMatrix<Integer> freq_matrix_dislike = (SymmetricSparseMatrix<Integer>) IMatrixExtensions.readIntegerMatrix(reader, this.freq_matrix_dislike);
+    SlopeOneDeviations deviations_like = SlopeOneDeviations.read(reader);
+    SlopeOneDeviations deviations_dislike = SlopeOneDeviations.read(reader);
     List<Double> user_average = VectorExtensions.readVector(reader);
-    reader.close();
     
     // Assign new model
     this.global_average = global_average;
-    this.diff_matrix_like = diff_matrix_like;
-    this.freq_matrix_like = freq_matrix_like;
-    this.diff_matrix_dislike = diff_matrix_dislike;
-    this.freq_matrix_dislike = freq_matrix_dislike;
-    this.user_average = user_average;
+    this.deviations_like = deviations_like;
+    this.deviations_dislike = deviations_dislike;
+    this.user_average = new DoubleArrayList(user_average);
   }
 
   @Override
@@ -202,11 +418,13 @@ public class BiPolarSlopeOne extends RatingPredictor {
   @Override
   public void saveModel(PrintWriter writer)  throws IOException {
     writer.println(Double.toString(global_average));
-    IMatrixExtensions.writeSparseMatrix(writer, diff_matrix_like);
-    IMatrixExtensions.writeSparseMatrix(writer, freq_matrix_like);
-    IMatrixExtensions.writeSparseMatrix(writer, diff_matrix_dislike);
-    IMatrixExtensions.writeSparseMatrix(writer, freq_matrix_dislike);
+    deviations_like.write(writer);
+    deviations_dislike.write(writer);
     VectorExtensions.writeVector(writer, user_average);
   }
+
+  public String toString() {
+    return "BiPolarSlopeOne num_threads=" + numThreads;
+  }
   
 }
@@ -27,6 +27,7 @@ import org.mymedialite.datatype.Matrix;
 import org.mymedialite.datatype.MatrixExtensions;
 import org.mymedialite.io.IMatrixExtensions;
 import org.mymedialite.io.Model;
+import org.mymedialite.optimization.OptimizerState;
 import org.mymedialite.io.VectorExtensions;
 import org.mymedialite.util.Recommender;
 
@@ -71,6 +72,12 @@ public class BiasedMatrixFactorization extends MatrixFactorization {
   /** The item biases */
   protected double[] itemBias;
 
+  /** Optimizer state of the user biases */
+  protected OptimizerState userBiasState;
+
+  /** Optimizer state of the item biases */
+  protected OptimizerState itemBiasState;
+
   /** Default constructor */
   public BiasedMatrixFactorization() {
     super();
@@ -118,6 +125,18 @@ public class BiasedMatrixFactorization extends MatrixFactorization {
       last_loss = computeLoss();
   }
 
+  protected void initOptimizer() {
+    super.initOptimizer();
+    userBiasState = gradientOptimizer.createState();
+    itemBiasState = gradientOptimizer.createState();
+  }
+
+  protected void applyUpdates() {
+    super.applyUpdates();
+    userBiasState.apply(userBias);
+    itemBiasState.apply(itemBias);
+  }
+
   public void train() {
     initModel();
 
@@ -170,9 +189,9 @@ public class BiasedMatrixFactorization extends MatrixFactorization {
 
       // Adjust biases
       if (update_user)
-        userBias[u] += learnRate * (userBias[u] * gradient_common - biasReg * userBias[u]);
+        userBias[u] += userBiasState.update(u, userBias[u] * gradient_common - biasReg * userBias[u], learnRate);
       if (update_item)
-        itemBias[i] += learnRate * (itemBias[i] * gradient_common - biasReg * itemBias[i]);
+        itemBias[i] += itemBiasState.update(i, itemBias[i] * gradient_common - biasReg * itemBias[i], learnRate);
 
       // Adjust latent factors
       for (int f = 0; f < numFactors; f++) {
@@ -181,14 +200,18 @@ public class BiasedMatrixFactorization extends MatrixFactorization {
 
         if (update_user) {
           double delta_u = i_f * gradient_common - regU * u_f;
-          MatrixExtensions.inc(userFactors, u, f, learnRate * delta_u);
+          MatrixExtensions.inc(userFactors, u, f, userFactorsState.update(u * numFactors + f, delta_u, learnRate));
         }
         if (update_item) {
           double delta_i = u_f * gradient_common - regI * i_f;
-          MatrixExtensions.inc(itemFactors, i, f, learnRate * delta_i);
+          MatrixExtensions.inc(itemFactors, i, f, itemFactorsState.update(i * numFactors + f, delta_i, learnRate));
         }
       }
+
+      if (gradientOptimizer.exampleDone())
+        applyUpdates();
     }
+    finishBatch();
   }
 
   protected void iterateRMSE(List<Integer> rating_indices, boolean update_user, boolean update_item) {
@@ -208,9 +231,9 @@ public class BiasedMatrixFactorization extends MatrixFactorization {
 
       // Adjust biases
       if (update_user)
-        userBias[u] += learnRate * (gradient_common - biasReg * userBias[u]);
+        userBias[u] += userBiasState.update(u, gradient_common - biasReg * userBias[u], learnRate);
       if (update_item)
-        itemBias[i] += learnRate * (gradient_common - biasReg * itemBias[i]);
+        itemBias[i] += itemBiasState.update(i, gradient_common - biasReg * itemBias[i], learnRate);
 
       // Adjust latent factors
       for (int f = 0; f < numFactors; f++) {
@@ -219,17 +242,21 @@ public class BiasedMatrixFactorization extends MatrixFactorization {
 
         if (update_user) {
           double delta_u = gradient_common * i_f - regU * u_f;
-          MatrixExtensions.inc(userFactors, u, f, learnRate * delta_u);
+          MatrixExtensions.inc(userFactors, u, f, userFactorsState.update(u * numFactors + f, delta_u, learnRate));
           // this is faster (190 vs. 260 seconds per iteration on Netflix w/ k=30) than
           //    user_factors[u, f] += learn_rate * delta_u;
         }
 
         if (update_item) {
           double delta_i = gradient_common * u_f - regI * i_f;
-          MatrixExtensions.inc(itemFactors, i, f, learnRate * delta_i);
+          MatrixExtensions.inc(itemFactors, i, f, itemFactorsState.update(i * numFactors + f, delta_i, learnRate));
         }
       }
+
+      if (gradientOptimizer.exampleDone())
+        applyUpdates();
     }
+    finishBatch();
   }
 
   public double predict(int user_id, int item_id) {
@@ -241,6 +268,21 @@ public class BiasedMatrixFactorization extends MatrixFactorization {
     return getMinRating() + ( 1 / (1 + Math.exp(-score)) ) * (getMaxRating() - getMinRating());
   }
 
+  public double[] predict(int user_id, int[] item_ids) {
+    double[] result = new double[item_ids.length];
+    double[] user_vector = (user_id >= 0 && user_id < userFactors.dim1) ? MatrixExtensions.rowToArray(userFactors, user_id) : null;
+    for (int i = 0; i < item_ids.length; i++) {
+      int item_id = item_ids[i];
+      if (user_vector == null || item_id < 0 || item_id >= itemFactors.dim1) {
+        result[i] = predict(user_id, item_id);
+        continue;
+      }
+      double score = userBias[user_id] + itemBias[item_id] + MatrixExtensions.rowScalarProduct(itemFactors, item_id, user_vector);
+      result[i] = getMinRating() + ( 1 / (1 + Math.exp(-score)) ) * (getMaxRating() - getMinRating());
+    }
+    return result;
+  }
+
   public void saveModel(String filename) throws IOException {
     PrintWriter writer = Model.getWriter(filename, this.getClass(), VERSION);
     writer.println(Double.toString(globalBias));
@@ -287,6 +329,7 @@ public class BiasedMatrixFactorization extends MatrixFactorization {
     this.itemFactors = item_factors;
     this.userBias = user_bias;
     this.itemBias = item_bias;
+    initOptimizer();
   }
 
   /** {@inheritDoc} */
@@ -343,6 +386,8 @@ public class BiasedMatrixFactorization extends MatrixFactorization {
         + " biasReg=" + biasReg
         + " regularization=" + regularization
         + " learnRate=" + learnRate
+        + " optimizer=" + optimizer
+        + " batchSize=" + batchSize
         + " numIter=" + numIter
         + " initMean=" + initMean
         + " initStDev=" + initStDev;   
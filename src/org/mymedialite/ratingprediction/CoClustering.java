@@ -25,8 +25,6 @@ import it.unimi.dsi.fastutil.ints.IntList;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.List;
 import org.mymedialite.IIterativeModel;
 import org.mymedialite.datatype.IMatrix;
 import org.mymedialite.datatype.Matrix;
@@ -34,11 +32,12 @@ import org.mymedialite.eval.Ratings;
 import org.mymedialite.io.IMatrixExtensions;
 import org.mymedialite.io.Model;
 import org.mymedialite.io.VectorExtensions;
+import org.mymedialite.util.Parallel;
 import org.mymedialite.util.Random;
 
 /**
  * Co-clustering for rating prediction.
- * 
+ *
  * Literature:
  *
  *     Thomas George, Srujana Merugu
@@ -46,6 +45,12 @@ import org.mymedialite.util.Random;
  *     ICDM 2005.
  *     http://hercules.ece.utexas.edu/~srujana/papers/icdm05.pdf
  *
+ * Each iteration first reassigns all users and then all items. The best cluster of a user only depends
+ * on the item clustering and the cluster averages, which do not change while the users are reassigned,
+ * so the users are processed concurrently; the same holds for the items.
+ * The cluster averages are summed up in blocks of fixed size and the blocks are combined in a fixed order,
+ * so the result for a given random seed does not depend on the number of threads.
+ *
  * This recommender does NOT support incremental updates.
  * @version 2.03
  */
@@ -53,6 +58,9 @@ public class CoClustering extends RatingPredictor implements IIterativeModel {
 
   private static final String VERSION = "2.03";
 
+  /** Number of users or items that are processed by a thread at once */
+  private static final int CHUNK_SIZE = 1024;
+
   /**
    * Random number generator.
    */
@@ -72,6 +80,17 @@ public class CoClustering extends RatingPredictor implements IIterativeModel {
 
   double global_average;
 
+  // Training data: the ratings grouped by user and by item
+  private int[] by_user_offsets;
+  private int[] by_user_items;
+  private double[] by_user_ratings;
+  private int[] by_item_offsets;
+  private int[] by_item_users;
+  private double[] by_item_ratings;
+
+  /** The co-cluster averages during training, row-major by user cluster */
+  private double[] cocluster_average_values;
+
   /**
    * The number of user clusters.
    */
@@ -88,6 +107,11 @@ public class CoClustering extends RatingPredictor implements IIterativeModel {
    */
   public int numIter;
 
+  /**
+   * The number of threads to use for training, 0 for the number of available processors.
+   */
+  public int numThreads = 0;
+
   /**
    * Default constructor.
    */
@@ -106,46 +130,98 @@ public class CoClustering extends RatingPredictor implements IIterativeModel {
   public int getNumIter() {
     return numIter;
   }
-  
+
   public void initModel() {
-    this.user_clustering = new IntArrayList();
-    user_clustering.size(maxUserID + 1);
-    this.item_clustering = new IntArrayList();
-    item_clustering.size(maxItemID + 1);
-
-    this.user_cluster_averages = new DoubleArrayList();
-    user_cluster_averages.size(numUserClusters);
-    this.item_cluster_averages = new DoubleArrayList();
-    item_cluster_averages.size(numItemClusters);
+    this.user_clustering = IntArrayList.wrap(new int[maxUserID + 1]);
+    this.item_clustering = IntArrayList.wrap(new int[maxItemID + 1]);
+
+    this.user_cluster_averages = DoubleArrayList.wrap(new double[numUserClusters]);
+    this.item_cluster_averages = DoubleArrayList.wrap(new double[numItemClusters]);
     this.cocluster_averages    = new Matrix<Double>(numUserClusters, numItemClusters, 0.0);
+    this.cocluster_average_values = new double[numUserClusters * numItemClusters];
+  }
+
+  /**
+   * Copy the ratings into primitive arrays, grouped by user and by item.
+   * Within a group, the ratings keep the order of the rating indices.
+   */
+  void initTrainingData() {
+    int num_ratings = ratings.size();
+
+    by_user_offsets = new int[maxUserID + 2];
+    by_item_offsets = new int[maxItemID + 2];
+    for (int index = 0; index < num_ratings; index++) {
+      by_user_offsets[ratings.users().getInt(index) + 1]++;
+      by_item_offsets[ratings.items().getInt(index) + 1]++;
+    }
+    for (int u = 0; u <= maxUserID; u++)
+      by_user_offsets[u + 1] += by_user_offsets[u];
+    for (int i = 0; i <= maxItemID; i++)
+      by_item_offsets[i + 1] += by_item_offsets[i];
+
+    by_user_items   = new int[num_ratings];
+    by_user_ratings = new double[num_ratings];
+    by_item_users   = new int[num_ratings];
+    by_item_ratings = new double[num_ratings];
+    int[] user_pos = new int[maxUserID + 1];
+    int[] item_pos = new int[maxItemID + 1];
+    for (int index = 0; index < num_ratings; index++) {
+      int user_id   = ratings.users().getInt(index);
+      int item_id   = ratings.items().getInt(index);
+      double rating = ratings.get(index);
+
+      int pos = by_user_offsets[user_id] + user_pos[user_id]++;
+      by_user_items[pos]   = item_id;
+      by_user_ratings[pos] = rating;
+
+      pos = by_item_offsets[item_id] + item_pos[item_id]++;
+      by_item_users[pos]   = user_id;
+      by_item_ratings[pos] = rating;
+    }
   }
 
   boolean iterateCheckModified() {
-    boolean clustering_modified = false;
+    final boolean[] modified = new boolean[Parallel.numThreads(numThreads)];
     computeClusterAverages();
 
     // Dimension users
-    for (int u = 0; u < maxUserID; u++)
-      if (findOptimalUserClustering(u))
-        clustering_modified = true;
+    Parallel.forRange(0, maxUserID + 1, CHUNK_SIZE, numThreads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        double[] errors = new double[numUserClusters];
+        for (int u = begin; u < end; u++)
+          if (findOptimalUserClustering(u, errors))
+            modified[thread_id] = true;
+      }
+    });
 
     // Dimension items
-    for (int i = 0; i < maxItemID; i++)
-      if (findOptimalItemClustering(i))
-        clustering_modified = true;
+    Parallel.forRange(0, maxItemID + 1, CHUNK_SIZE, numThreads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        double[] errors = new double[numItemClusters];
+        for (int i = begin; i < end; i++)
+          if (findOptimalItemClustering(i, errors))
+            modified[thread_id] = true;
+      }
+    });
 
-    return clustering_modified;
+    for (boolean thread_modified : modified)
+      if (thread_modified)
+        return true;
+    return false;
   }
 
   /**
-   * 
+   *
    */
   public void iterate() {
+    // After loadModel(), the training data has not been grouped yet
+    if (by_user_offsets == null)
+      initTrainingData();
     iterateCheckModified();
   }
 
   /**
-   * 
+   *
    */
   public void train() {
     random = Random.getInstance();
@@ -156,6 +232,7 @@ public class CoClustering extends RatingPredictor implements IIterativeModel {
     for (int i = 0; i < item_clustering.size(); i++)
       item_clustering.set(i, random.nextInt(numItemClusters));
 
+    initTrainingData();
     computeAverages();
 
     for (int i = 0; i < numIter; i++)
@@ -164,17 +241,17 @@ public class CoClustering extends RatingPredictor implements IIterativeModel {
   }
 
   /**
-   * 
+   *
    */
   public double predict(int u, int i) {
     if (u > maxUserID && i > maxItemID)
       return global_average;
     if (u > maxUserID)
-      return item_cluster_averages.get(item_clustering.get(i));
+      return item_cluster_averages.getDouble(item_clustering.getInt(i));
     if (i > maxItemID)
-      return user_cluster_averages.get(user_clustering.get(u));
+      return user_cluster_averages.getDouble(user_clustering.getInt(u));
 
-    double prediction = predict(u, i, user_clustering.get(u), item_clustering.get(i));
+    double prediction = predict(u, i, user_clustering.getInt(u), item_clustering.getInt(i));
     if (prediction < minRating)
       return minRating;
     if (prediction > maxRating)
@@ -184,136 +261,200 @@ public class CoClustering extends RatingPredictor implements IIterativeModel {
 
   double predict(int u, int i, int uc, int ic) {
     return cocluster_averages.get(uc, ic)
-        + user_averages.get(u)
-        - user_cluster_averages.get(uc)
-        + item_averages.get(i)
-        - item_cluster_averages.get(ic);
+        + user_averages.getDouble(u)
+        - user_cluster_averages.getDouble(uc)
+        + item_averages.getDouble(i)
+        - item_cluster_averages.getDouble(ic);
   }
 
-  boolean findOptimalUserClustering(int user_id) {
-    boolean modified = false;
+  /**
+   * Assign a user to the cluster with the smallest squared error on the user's ratings.
+   * @param user_id the user ID
+   * @param errors buffer for the errors per user cluster
+   * @return true if the cluster of the user has changed
+   */
+  boolean findOptimalUserClustering(int user_id, double[] errors) {
+    int[] user_cluster = ((IntArrayList) user_clustering).elements();
+    int[] item_cluster = ((IntArrayList) item_clustering).elements();
+    double[] user_cluster_average = ((DoubleArrayList) user_cluster_averages).elements();
+    double[] item_cluster_average = ((DoubleArrayList) item_cluster_averages).elements();
+    double[] item_average = ((DoubleArrayList) item_averages).elements();
+    double user_average = user_averages.getDouble(user_id);
 
-    double[] errors = new double[numUserClusters];
-    
     for (int uc = 0; uc < numUserClusters; uc++)
-      for (int index : ratings.byUser().get(user_id)) {
-        int item_id   = ratings.items().get(index);
-        double rating = ratings.get(index);
-
-        errors[uc] += Math.pow(rating - predict(user_id, item_id, uc, item_clustering.get(item_id)), 2);
+      errors[uc] = 0;
+
+    for (int pos = by_user_offsets[user_id]; pos < by_user_offsets[user_id + 1]; pos++) {
+      int item_id = by_user_items[pos];
+      int ic = item_cluster[item_id];
+      // The part of the error that does not depend on the user cluster
+      double residual = by_user_ratings[pos] - user_average - item_average[item_id] + item_cluster_average[ic];
+      for (int uc = 0; uc < numUserClusters; uc++) {
+        double error = residual - cocluster_average_values[uc * numItemClusters + ic] + user_cluster_average[uc];
+        errors[uc] += error * error;
       }
-
-    int minimum_index = getMinimumIndex(errors, user_clustering.get(user_id));
-    if (minimum_index != user_clustering.get(user_id)) {
-      user_clustering.set(user_id, minimum_index);
-      modified = true;
     }
 
-    return modified;
+    int minimum_index = getMinimumIndex(errors, user_cluster[user_id]);
+    if (minimum_index != user_cluster[user_id]) {
+      user_cluster[user_id] = minimum_index;
+      return true;
+    }
+    return false;
   }
 
-  boolean findOptimalItemClustering(int item_id) {
-    boolean modified = false;
+  /**
+   * Assign an item to the cluster with the smallest squared error on the item's ratings.
+   * @param item_id the item ID
+   * @param errors buffer for the errors per item cluster
+   * @return true if the cluster of the item has changed
+   */
+  boolean findOptimalItemClustering(int item_id, double[] errors) {
+    int[] user_cluster = ((IntArrayList) user_clustering).elements();
+    int[] item_cluster = ((IntArrayList) item_clustering).elements();
+    double[] user_cluster_average = ((DoubleArrayList) user_cluster_averages).elements();
+    double[] item_cluster_average = ((DoubleArrayList) item_cluster_averages).elements();
+    double[] user_average = ((DoubleArrayList) user_averages).elements();
+    double item_average = item_averages.getDouble(item_id);
 
-    double[] errors = new double[numItemClusters];
     for (int ic = 0; ic < numItemClusters; ic++)
-      for (int index : ratings.byItem().get(item_id)) {
-        int user_id = ratings.users().get(index);
-        double rating = ratings.get(index);
-
-        errors[ic] += Math.pow(rating - predict(user_id, item_id, user_clustering.get(user_id), ic), 2);
+      errors[ic] = 0;
+
+    for (int pos = by_item_offsets[item_id]; pos < by_item_offsets[item_id + 1]; pos++) {
+      int user_id = by_item_users[pos];
+      int uc = user_cluster[user_id];
+      // The part of the error that does not depend on the item cluster
+      double residual = by_item_ratings[pos] - user_average[user_id] + user_cluster_average[uc] - item_average;
+      int offset = uc * numItemClusters;
+      for (int ic = 0; ic < numItemClusters; ic++) {
+        double error = residual - cocluster_average_values[offset + ic] + item_cluster_average[ic];
+        errors[ic] += error * error;
       }
-
-    int minimum_index = getMinimumIndex(errors, item_clustering.get(item_id));
-    if (minimum_index != item_clustering.get(item_id)) {
-      item_clustering.set(item_id, minimum_index);
-      modified = true;
     }
 
-    return modified;
+    int minimum_index = getMinimumIndex(errors, item_cluster[item_id]);
+    if (minimum_index != item_cluster[item_id]) {
+      item_cluster[item_id] = minimum_index;
+      return true;
+    }
+    return false;
   }
 
   void computeAverages() {
-    double[] user_sums = new double[maxUserID + 1];
-    double[] item_sums = new double[maxItemID + 1];
+    int[] user_count_values = new int[maxUserID + 1];
+    int[] item_count_values = new int[maxItemID + 1];
+    double[] user_average_values = new double[maxUserID + 1];
+    double[] item_average_values = new double[maxItemID + 1];
     double sum = 0;
 
-    this.user_counts = new IntArrayList();
-    user_counts.size(maxUserID + 1);
-    
-    this.item_counts = new IntArrayList();
-    item_counts.size(maxItemID + 1);
-
-    for (int i = 0; i < ratings.size(); i++) {
-      int user_id   = ratings.users().get(i);
-      int item_id   = ratings.items().get(i);
-      double rating = ratings.get(i);
-
-      user_sums[user_id] += rating;
-      item_sums[item_id] += rating;
-      sum += rating;
+    for (int u = 0; u <= maxUserID; u++) {
+      double user_sum = 0;
+      for (int pos = by_user_offsets[u]; pos < by_user_offsets[u + 1]; pos++)
+        user_sum += by_user_ratings[pos];
+      user_count_values[u] = by_user_offsets[u + 1] - by_user_offsets[u];
+      user_average_values[u] = user_sum;
+      sum += user_sum;
+    }
 
-      user_counts.set(user_id, user_counts.get(user_id) + 1);
-      item_counts.set(item_id, item_counts.get(item_id) + 1);
+    for (int i = 0; i <= maxItemID; i++) {
+      double item_sum = 0;
+      for (int pos = by_item_offsets[i]; pos < by_item_offsets[i + 1]; pos++)
+        item_sum += by_item_ratings[pos];
+      item_count_values[i] = by_item_offsets[i + 1] - by_item_offsets[i];
+      item_average_values[i] = item_sum;
     }
 
     this.global_average = sum / ratings.size();
 
-    this.user_averages = new DoubleArrayList();
-    user_averages.size(maxUserID + 1);
-
     for (int u = 0; u <= maxUserID; u++)
-      if (user_counts.get(u) > 0)
-        user_averages.set(u, user_sums[u] / user_counts.get(u));
+      if (user_count_values[u] > 0)
+        user_average_values[u] /= user_count_values[u];
       else
-        user_averages.set(u, global_average);
+        user_average_values[u] = global_average;
 
-    this.item_averages = new DoubleArrayList();
-    item_averages.size(maxItemID + 1);
     for (int i = 0; i <= maxItemID; i++)
-      if (item_counts.get(i) > 0)
-        item_averages.set(i, item_sums[i] / item_counts.get(i));
+      if (item_count_values[i] > 0)
+        item_average_values[i] /= item_count_values[i];
       else
-        item_averages.set(i, global_average);
+        item_average_values[i] = global_average;
+
+    this.user_counts   = IntArrayList.wrap(user_count_values);
+    this.item_counts   = IntArrayList.wrap(item_count_values);
+    this.user_averages = DoubleArrayList.wrap(user_average_values);
+    this.item_averages = DoubleArrayList.wrap(item_average_values);
   }
 
   void computeClusterAverages() {
-    int[] user_cluster_counts = new int[numUserClusters];
-    int[] item_cluster_counts = new int[numItemClusters];
-    int[][] cocluster_counts  = new int[numUserClusters][numItemClusters];
-
-    for (int i = 0; i < ratings.size(); i++) {
-      int user_id = ratings.users().get(i);
-      int item_id = ratings.items().get(i);
-      double rating = ratings.get(i);
-
-      user_cluster_averages.set(user_clustering.getInt(user_id), user_cluster_averages.getDouble(user_clustering.get(user_id)) + rating);
-      item_cluster_averages.set(item_clustering.getInt(item_id), item_cluster_averages.getDouble(item_clustering.get(item_id)) + rating);
-      cocluster_averages.set(user_clustering.get(user_id), item_clustering.get(item_id), cocluster_averages.get(user_clustering.get(user_id), item_clustering.get(item_id))  + rating);
-
-      user_cluster_counts[user_clustering.get(user_id)]++;
-      item_cluster_counts[item_clustering.get(item_id)]++;
-      cocluster_counts[user_clustering.get(user_id)][ item_clustering.get(item_id)]++;
-    }
+    final int[] user_cluster = ((IntArrayList) user_clustering).elements();
+    final int[] item_cluster = ((IntArrayList) item_clustering).elements();
+    final int num_coclusters = numUserClusters * numItemClusters;
+
+    // Sum up the ratings of each block of users separately ...
+    int num_blocks = (maxUserID + CHUNK_SIZE) / CHUNK_SIZE;
+    final double[][] block_sums = new double[num_blocks][];
+    final int[][] block_counts  = new int[num_blocks][];
+    Parallel.forRange(0, maxUserID + 1, CHUNK_SIZE, numThreads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        double[] sums = new double[num_coclusters];
+        int[] counts  = new int[num_coclusters];
+        for (int u = begin; u < end; u++) {
+          int offset = user_cluster[u] * numItemClusters;
+          for (int pos = by_user_offsets[u]; pos < by_user_offsets[u + 1]; pos++) {
+            int cocluster = offset + item_cluster[by_user_items[pos]];
+            sums[cocluster] += by_user_ratings[pos];
+            counts[cocluster]++;
+          }
+        }
+        block_sums[begin / CHUNK_SIZE]   = sums;
+        block_counts[begin / CHUNK_SIZE] = counts;
+      }
+    });
+
+    // ... and combine the blocks in a fixed order
+    double[] cocluster_sums = new double[num_coclusters];
+    int[] cocluster_counts  = new int[num_coclusters];
+    for (int b = 0; b < num_blocks; b++)
+      for (int c = 0; c < num_coclusters; c++) {
+        cocluster_sums[c]   += block_sums[b][c];
+        cocluster_counts[c] += block_counts[b][c];
+      }
+
+    double[] user_cluster_sums = new double[numUserClusters];
+    double[] item_cluster_sums = new double[numItemClusters];
+    int[] user_cluster_counts  = new int[numUserClusters];
+    int[] item_cluster_counts  = new int[numItemClusters];
+    for (int uc = 0; uc < numUserClusters; uc++)
+      for (int ic = 0; ic < numItemClusters; ic++) {
+        int c = uc * numItemClusters + ic;
+        user_cluster_sums[uc]   += cocluster_sums[c];
+        user_cluster_counts[uc] += cocluster_counts[c];
+        item_cluster_sums[ic]   += cocluster_sums[c];
+        item_cluster_counts[ic] += cocluster_counts[c];
+      }
 
-    for (int i = 0; i < numUserClusters; i++)
-      if (user_cluster_counts[i] > 0)
-        user_cluster_averages.set(i, user_cluster_averages.get(i) / user_cluster_counts[i]);
+    double[] user_cluster_average = ((DoubleArrayList) user_cluster_averages).elements();
+    for (int uc = 0; uc < numUserClusters; uc++)
+      if (user_cluster_counts[uc] > 0)
+        user_cluster_average[uc] = user_cluster_sums[uc] / user_cluster_counts[uc];
       else
-        user_cluster_averages.set(i, global_average);
+        user_cluster_average[uc] = global_average;
 
-    for (int i = 0; i < numItemClusters; i++)
-      if (item_cluster_counts[i] > 0)
-        item_cluster_averages.set(i, item_cluster_averages.get(i) / item_cluster_counts[i]);
+    double[] item_cluster_average = ((DoubleArrayList) item_cluster_averages).elements();
+    for (int ic = 0; ic < numItemClusters; ic++)
+      if (item_cluster_counts[ic] > 0)
+        item_cluster_average[ic] = item_cluster_sums[ic] / item_cluster_counts[ic];
       else
-        item_cluster_averages.set(i, global_average);
+        item_cluster_average[ic] = global_average;
 
-    for (int i = 0; i < numUserClusters; i++)
-      for (int j = 0; j < numItemClusters; j++)
-        if (cocluster_counts[i][j] > 0)
-          cocluster_averages.set(i, j, cocluster_averages.get(i, j) / cocluster_counts[i][j]);
+    for (int uc = 0; uc < numUserClusters; uc++)
+      for (int ic = 0; ic < numItemClusters; ic++) {
+        int c = uc * numItemClusters + ic;
+        if (cocluster_counts[c] > 0)
+          cocluster_average_values[c] = cocluster_sums[c] / cocluster_counts[c];
         else
-          cocluster_averages.set(i, j, global_average);
+          cocluster_average_values[c] = global_average;
+        cocluster_averages.set(uc, ic, cocluster_average_values[c]);
+      }
   }
 
   int getMinimumIndex(double[] array, int default_index) {
@@ -393,6 +534,15 @@ public class CoClustering extends RatingPredictor implements IIterativeModel {
     this.item_averages = item_averages;
     this.user_clustering = user_clustering;
     this.item_clustering = item_clustering;
+    this.cocluster_average_values = new double[num_user_clusters * num_item_clusters];
+
+    // The training data is grouped again for the new maximum IDs when iterate() is called
+    this.by_user_offsets = null;
+    this.by_user_items   = null;
+    this.by_user_ratings = null;
+    this.by_item_offsets = null;
+    this.by_item_users   = null;
+    this.by_item_ratings = null;
   }
 
   /**
@@ -410,7 +560,8 @@ public class CoClustering extends RatingPredictor implements IIterativeModel {
       this.getClass().getName()
       + " numUserClusters=" + numUserClusters
       + " numItemClusters=" + numItemClusters
-      + " numIter=" + numIter;
+      + " numIter=" + numIter
+      + " numThreads=" + numThreads;
   }
 
 }
@@ -57,7 +57,9 @@ public abstract class IncrementalRatingPredictor extends RatingPredictor impleme
 
   /**  */
   public void removeRating(int userId, int itemId) {
-    Integer index = ratings.tryGetIndex(userId, itemId);
+    if (userId >= ratings.byUser().size())
+      return;
+    Integer index = ratings.tryGetIndex(userId, itemId, ratings.byUser().get(userId));
     if (index != null)
       ratings.removeAt(index);
   }
@@ -22,11 +22,14 @@ import java.util.List;
 import org.mymedialite.IItemAttributeAwareRecommender;
 import org.mymedialite.correlation.BinaryCosine;
 import org.mymedialite.datatype.SparseBooleanMatrix;
-import org.mymedialite.util.Memoizer;
 
 /**
  * Attribute-aware weighted item-based kNN recommender.
  * 
+ * The cosine similarities of the item attributes are computed only for items that share attributes,
+ * and only the storedNeighborsFactor * k highest of each item are stored. The k neighbors used for a prediction
+ * are the most similar of them that the user has rated, so a larger factor covers more rated neighbors at the cost of memory.
+ * 
  * This recommender does NOT support incremental updates.
  * @version 2.03
  */
@@ -34,6 +37,12 @@ public class ItemAttributeKNN extends ItemKNN implements IItemAttributeAwareReco
 
   private SparseBooleanMatrix itemAttributes;
   private int numItemAttributes;
+
+  /** The number of threads used for computing the similarities, 0 for the number of available processors */
+  public int numThreads = 0;
+
+  /** The number of similarities stored for each item, as a multiple of k */
+  public int storedNeighborsFactor = 10;
   
   public SparseBooleanMatrix getItemAttributes() {
     return itemAttributes;
@@ -64,8 +73,7 @@ public class ItemAttributeKNN extends ItemKNN implements IItemAttributeAwareReco
    */
   public void train() {
     baseline_predictor.train();
-    this.correlation = BinaryCosine.create(itemAttributes);
-    memoizer = new Memoizer<Integer, List<Integer>>(correlation, "getPositivelyCorrelatedEntities", Integer.TYPE);
+    this.correlation = BinaryCosine.createSparse(itemAttributes, (int) Math.min(Integer.MAX_VALUE, (long) k * storedNeighborsFactor), numThreads);
   }
 
   /**
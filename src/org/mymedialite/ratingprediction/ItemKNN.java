@@ -17,31 +17,27 @@
 
 package org.mymedialite.ratingprediction;
 
-import java.io.IOException;
-import java.util.List;
+import it.unimi.dsi.fastutil.ints.IntList;
+import java.util.Arrays;
 
+import org.mymedialite.IBatchRecommender;
 import org.mymedialite.IItemSimilarityProvider;
-import org.mymedialite.correlation.CorrelationMatrix;
 import org.mymedialite.data.IRatings;
 import org.mymedialite.datatype.SparseBooleanMatrix;
-import org.mymedialite.util.Memoizer;
 
 /**
  * Weighted item-based kNN.
+ *
+ * The residuals are cached per user, the neighbors per item.
  * @version 2.03
  */
-public abstract class ItemKNN extends KNN implements IItemSimilarityProvider {
+public abstract class ItemKNN extends KNN implements IItemSimilarityProvider, IBatchRecommender {
 
   /**
    * Matrix indicating which item was rated by which user.
    */
   protected SparseBooleanMatrix data_item;
   
-  /**
-   * Source of positively correlated entities.
-   */
-  protected Memoizer<Integer, List<Integer>> memoizer;
-  
   /**
    * 
    */
@@ -67,33 +63,97 @@ public abstract class ItemKNN extends KNN implements IItemSimilarityProvider {
     if ((user_id > maxUserID) || (item_id > correlation.numberOfRows() - 1))
       return baseline_predictor.predict(user_id, item_id);
 
-    List<Integer> relevant_items = memoizer.get(item_id);
-
-    double sum = 0;
-    double weight_sum = 0;
-    int neighbors = k;
-    for (int item_id2 : relevant_items)
-      if (data_item.get(item_id2, user_id)) {
-        double rating = ratings.get(user_id, item_id2, ratings.byItem().get(item_id2));
-        double weight = correlation.get(item_id, item_id2);
-        weight_sum += weight;
-        sum += weight * (rating - baseline_predictor.predict(user_id, item_id2));
- 
-        if (--neighbors == 0)
-          break;
-      }
-
     double result = baseline_predictor.predict(user_id, item_id);
-    if (weight_sum != 0)
-      result += sum / weight_sum;
-    
-    if (result > maxRating)
-      result = maxRating;
-    if (result < minRating)
-      result = minRating;
+    result += weightedAverage(neighbors(item_id), residuals(user_id));
+    return clip(result);
+  }
+
+  /**
+   * Predict the ratings of a given user for several items.
+   *
+   * The residuals of the user are scattered into a dense array once, so that scoring an item
+   * is a loop over the item's neighbors without any lookups.
+   * 
+   * @param user_id the user ID
+   * @param item_ids the item IDs
+   * @return the predicted ratings, in the order of item_ids
+   */
+  public double[] predict(int user_id, int[] item_ids) {
+    double[] result = new double[item_ids.length];
+    if (user_id > maxUserID || k != Integer.MAX_VALUE) {
+      for (int i = 0; i < item_ids.length; i++)
+        result[i] = predict(user_id, item_ids[i]);
+      return result;
+    }
+
+    int num_items = correlation.numberOfRows();
+    ResidualVector user_residuals = residuals(user_id);
+    double[] dense_residuals = new double[num_items];
+    double[] rated = new double[num_items];
+    for (int r = 0; r < user_residuals.ids.length; r++) {
+      int item_id = user_residuals.ids[r];
+      if (item_id < num_items) {
+        dense_residuals[item_id] = user_residuals.residuals[r];
+        rated[item_id] = 1;
+      }
+    }
+
+    for (int i = 0; i < item_ids.length; i++) {
+      int item_id = item_ids[i];
+      double prediction = baseline_predictor.predict(user_id, item_id);
+      if (item_id < num_items) {
+        NeighborArray neighbors = neighbors(item_id);
+        int[] ids = neighbors.ids;
+        float[] weights = neighbors.weights;
+        double sum = 0;
+        double weight_sum = 0;
+        for (int n = 0; n < ids.length; n++) {
+          sum += weights[n] * dense_residuals[ids[n]];
+          weight_sum += weights[n] * rated[ids[n]];
+        }
+        if (weight_sum != 0)
+          prediction += sum / weight_sum;
+        prediction = clip(prediction);
+      }
+      result[i] = prediction;
+    }
     return result;
   }
 
+  /**
+   * 
+   */
+  protected ResidualVector computeResiduals(int user_id) {
+    if (user_id >= ratings.byUser().size())
+      return new ResidualVector(new int[0], new double[0]);
+    IntList indices = ratings.byUser().get(user_id);
+    long[] order = new long[indices.size()];
+    for (int n = 0; n < order.length; n++)
+      order[n] = ((long) ratings.items().getInt(indices.getInt(n)) << 32) | n;
+    Arrays.sort(order);
+
+    int[] ids = new int[order.length];
+    double[] residuals = new double[order.length];
+    for (int n = 0; n < order.length; n++) {
+      int index = indices.getInt((int) order[n]);
+      ids[n] = (int) (order[n] >>> 32);
+      residuals[n] = ratings.get(index) - baseline_predictor.predict(user_id, ids[n]);
+    }
+    return new ResidualVector(ids, residuals);
+  }
+
+  /**
+   * Drop the cached residuals that depend on the baseline biases of a user and an item.
+   * @param user_id the user ID
+   * @param item_id the item ID
+   */
+  private void clearResiduals(int user_id, int item_id) {
+    clearResiduals(user_id);
+    if (item_id < ratings.byItem().size())
+      for (int index : ratings.byItem().get(item_id))
+        clearResiduals(ratings.users().getInt(index));
+  }
+
   /**
    * Retrain model for a given item.
    * @param item_id the item ID
@@ -106,6 +166,8 @@ public abstract class ItemKNN extends KNN implements IItemSimilarityProvider {
     baseline_predictor.addRating(user_id, item_id, rating);
     data_item.set(item_id, user_id, true);
     retrainItem(item_id);
+    clearNeighbors();
+    clearResiduals(user_id, item_id);
   }
 
   /**
@@ -113,6 +175,8 @@ public abstract class ItemKNN extends KNN implements IItemSimilarityProvider {
   public void updateRating(int user_id, int item_id, double rating) {
     baseline_predictor.updateRating(user_id, item_id, rating);
     retrainItem(item_id);
+    clearNeighbors();
+    clearResiduals(user_id, item_id);
   }
 
   /**
@@ -120,7 +184,9 @@ public abstract class ItemKNN extends KNN implements IItemSimilarityProvider {
   public void removeRating(int user_id, int item_id) {
     baseline_predictor.removeRating(user_id, item_id);
     data_item.set(item_id, user_id, false);
-    retrainItem(user_id);
+    retrainItem(item_id);
+    clearNeighbors();
+    clearResiduals(user_id, item_id);
   }
 
   /**
@@ -23,7 +23,6 @@ import java.util.List;
 
 import org.mymedialite.correlation.BinaryCosine;
 import org.mymedialite.correlation.CorrelationMatrix;
-import org.mymedialite.util.Memoizer;
 
 /**
  * Weighted item-based kNN with cosine similarity.
@@ -39,7 +38,6 @@ public class ItemKNNCosine extends ItemKNN {
   public void train() {
     baseline_predictor.train();
     correlation = BinaryCosine.create(data_item);
-    memoizer = new Memoizer<Integer, List<Integer>>(correlation, "getPositivelyCorrelatedEntities", Integer.TYPE);
   }
 
   /**
@@ -58,7 +56,6 @@ public class ItemKNNCosine extends ItemKNN {
   public void loadModel(String filename) throws IOException {
     super.loadModel(filename);
     correlation = BinaryCosine.create(data_item);
-    memoizer = new Memoizer<Integer, List<Integer>>(correlation, "getPositivelyCorrelatedEntities", Integer.TYPE);
   }
   
   /**
@@ -22,7 +22,6 @@ import java.util.List;
 import org.mymedialite.correlation.BinaryCosine;
 import org.mymedialite.correlation.Pearson;
 import org.mymedialite.taxonomy.EntityType;
-import org.mymedialite.util.Memoizer;
 
 /**
  * Weighted item-based kNN with pearson correlation.
@@ -43,7 +42,6 @@ public class ItemKNNPearson extends ItemKNN {
   public void train() {
     baseline_predictor.train();
     correlation = Pearson.create(ratings, EntityType.ITEM, shrinkage);
-    memoizer = new Memoizer<Integer, List<Integer>>(correlation, "getPositivelyCorrelatedEntities", Integer.TYPE);
   }
 
   /**
@@ -61,7 +59,6 @@ public class ItemKNNPearson extends ItemKNN {
   public void loadModel(String filename) throws IOException {
     super.loadModel(filename);
     correlation = Pearson.create(ratings, EntityType.ITEM, shrinkage);
-    memoizer = new Memoizer<Integer, List<Integer>>(correlation, "getPositivelyCorrelatedEntities", Integer.TYPE);
   }
 
   /**
@@ -20,10 +20,14 @@ package org.mymedialite.ratingprediction;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
 
 import org.mymedialite.correlation.CorrelationMatrix;
+import org.mymedialite.correlation.SparseCorrelations;
 import org.mymedialite.data.IRatings;
+import org.mymedialite.datatype.CompressedSparseRows;
 import org.mymedialite.io.Model;
+import org.mymedialite.util.Memoizer;
 
 /**
  * Base class for rating predictors that use some kind of kNN.
@@ -39,6 +43,11 @@ import org.mymedialite.io.Model;
  *   http://public.research.att.com/~volinsky/netflix/factorizedNeighborhood.pdf
  *         
  * This recommender supports incremental updates.
+ *
+ * Predictions join two sorted sparse vectors: the positively correlated neighbors of an entity,
+ * and the rating residuals (rating minus baseline prediction) of the other entity.
+ * Both are computed on demand and kept in bounded, thread-safe caches until the correlation
+ * or the ratings of an entity change.
  * 
  * See also org.mymedialite.itemrec.KNN
  * @version 2.03
@@ -107,6 +116,314 @@ public abstract class KNN extends IncrementalRatingPredictor {
    */
   protected CorrelationMatrix correlation;
 
+  /**
+   * The positively correlated neighbors of an entity, sorted by ID.
+   */
+  protected static final class NeighborArray {
+    /** the neighbor IDs, ascending */
+    final int[] ids;
+    /** the correlation with each neighbor */
+    final float[] weights;
+    /** the rank of each neighbor by descending correlation, ties broken by ascending ID */
+    final int[] ranks;
+
+    NeighborArray(int[] ids, float[] weights, int[] ranks) {
+      this.ids = ids;
+      this.weights = weights;
+      this.ranks = ranks;
+    }
+  }
+
+  /**
+   * The rating residuals of an entity, i.e. the ratings minus the baseline predictions, sorted by the ID of the other entity.
+   */
+  protected static final class ResidualVector {
+    /** the IDs of the other entities, ascending */
+    final int[] ids;
+    /** the residuals */
+    final double[] residuals;
+
+    ResidualVector(int[] ids, double[] residuals) {
+      this.ids = ids;
+      this.residuals = residuals;
+    }
+  }
+
+  /**
+   * Maximum total number of neighbors, and of residuals, kept in the caches.
+   * Each cached entry takes about 12 bytes.
+   */
+  public int maxCacheEntries = 10000000;
+
+  /** cached neighbor arrays by entity ID */
+  private volatile Memoizer<NeighborArray> neighbor_cache;
+
+  /** cached residual vectors by entity ID */
+  private volatile Memoizer<ResidualVector> residual_cache;
+
+  /** the correlation matrix the caches were computed from */
+  private volatile CorrelationMatrix cached_correlation;
+
+  /**
+   * Get the positively correlated neighbors of an entity.
+   * @param entity_id the entity ID
+   * @return the neighbors, sorted by ID
+   */
+  protected NeighborArray neighbors(int entity_id) {
+    return neighborCache().get(entity_id);
+  }
+
+  /**
+   * Compute the positively correlated neighbors of an entity.
+   * @param entity_id the entity ID
+   * @return the neighbors, sorted by ID
+   */
+  protected NeighborArray computeNeighbors(int entity_id) {
+    CorrelationMatrix correlation = this.correlation;
+    if (correlation instanceof SparseCorrelations)
+      return computeNeighbors((SparseCorrelations) correlation, entity_id);
+
+    int num_entities = correlation.numberOfRows();
+    int num_neighbors = 0;
+    for (int id = 0; id < num_entities; id++)
+      if (id != entity_id && correlation.get(id, entity_id) > 0)
+        num_neighbors++;
+
+    int[] ids = new int[num_neighbors];
+    float[] weights = new float[num_neighbors];
+    long[] order = new long[num_neighbors];
+    int pos = 0;
+    for (int id = 0; id < num_entities && pos < num_neighbors; id++) {
+      float weight = correlation.get(id, entity_id);
+      if (id != entity_id && weight > 0) {
+        ids[pos] = id;
+        weights[pos] = weight;
+        // For positive floats, the bit patterns have the same order as the values
+        order[pos] = ((long) (Integer.MAX_VALUE - Float.floatToIntBits(weight)) << 32) | pos;
+        pos++;
+      }
+    }
+    return neighborArray(ids, weights, order, pos);
+  }
+
+  /**
+   * Read the neighbors of an entity from the stored row of a sparse correlation matrix.
+   * @param correlation the sparse correlations
+   * @param entity_id the entity ID
+   * @return the neighbors, sorted by ID
+   */
+  private NeighborArray computeNeighbors(SparseCorrelations correlation, int entity_id) {
+    CompressedSparseRows structure = correlation.structure();
+    if (entity_id >= structure.numberOfRows())
+      return neighborArray(new int[0], new float[0], new long[0], 0);
+    int start = structure.rowStart(entity_id);
+    int num_neighbors = structure.rowEnd(entity_id) - start;
+    int[] ids = new int[num_neighbors];
+    float[] weights = new float[num_neighbors];
+    long[] order = new long[num_neighbors];
+    for (int pos = 0; pos < num_neighbors; pos++) {
+      ids[pos] = structure.column(start + pos);
+      weights[pos] = correlation.value(start + pos);
+      order[pos] = ((long) (Integer.MAX_VALUE - Float.floatToIntBits(weights[pos])) << 32) | pos;
+    }
+    return neighborArray(ids, weights, order, num_neighbors);
+  }
+
+  /**
+   * Rank the neighbors by their correlation keys.
+   * @param ids the neighbor IDs, ascending
+   * @param weights the correlations
+   * @param order the sort keys of the neighbors
+   * @param pos the number of neighbors that were filled in
+   * @return the neighbor array
+   */
+  private static NeighborArray neighborArray(int[] ids, float[] weights, long[] order, int pos) {
+    int num_neighbors = ids.length;
+    if (pos < num_neighbors) {
+      // The correlation changed concurrently
+      ids = Arrays.copyOf(ids, pos);
+      weights = Arrays.copyOf(weights, pos);
+      order = Arrays.copyOf(order, pos);
+    }
+    Arrays.sort(order);
+    int[] ranks = new int[pos];
+    for (int rank = 0; rank < pos; rank++)
+      ranks[(int) order[rank]] = rank;
+
+    return new NeighborArray(ids, weights, ranks);
+  }
+
+  /**
+   * Get the rating residuals of an entity.
+   * @param entity_id the entity ID
+   * @return the residuals, sorted by the ID of the other entity
+   */
+  protected ResidualVector residuals(int entity_id) {
+    return residualCache().get(entity_id);
+  }
+
+  /**
+   * Compute the rating residuals of an entity.
+   * @param entity_id the entity ID
+   * @return the residuals, sorted by the ID of the other entity
+   */
+  protected abstract ResidualVector computeResiduals(int entity_id);
+
+  /**
+   * Get the cache of neighbor arrays, e.g. to read its statistics.
+   * @return the cache of neighbor arrays
+   */
+  public Memoizer<NeighborArray> neighborCache() {
+    if (cached_correlation != correlation)
+      checkCaches();
+    return neighbor_cache;
+  }
+
+  /**
+   * Get the cache of residual vectors, e.g. to read its statistics.
+   * @return the cache of residual vectors
+   */
+  public Memoizer<ResidualVector> residualCache() {
+    if (cached_correlation != correlation)
+      checkCaches();
+    return residual_cache;
+  }
+
+  /**
+   * Drop the cached neighbors of all entities, e.g. after a correlation has changed.
+   */
+  protected void clearNeighbors() {
+    neighborCache().invalidateAll();
+  }
+
+  /**
+   * Drop the cached residuals of an entity.
+   * @param entity_id the entity ID
+   */
+  protected void clearResiduals(int entity_id) {
+    residualCache().invalidate(entity_id);
+  }
+
+  /** Create new caches if the correlation matrix was replaced. */
+  private synchronized void checkCaches() {
+    if (cached_correlation == correlation)
+      return;
+    neighbor_cache = new Memoizer<NeighborArray>(
+        new Memoizer.Loader<NeighborArray>() {
+          public NeighborArray load(int entity_id) { return computeNeighbors(entity_id); }
+        },
+        maxCacheEntries,
+        new Memoizer.Weigher<NeighborArray>() {
+          public int weigh(int entity_id, NeighborArray neighbors) { return neighbors.ids.length + 1; }
+        });
+    residual_cache = new Memoizer<ResidualVector>(
+        new Memoizer.Loader<ResidualVector>() {
+          public ResidualVector load(int entity_id) { return computeResiduals(entity_id); }
+        },
+        maxCacheEntries,
+        new Memoizer.Weigher<ResidualVector>() {
+          public int weigh(int entity_id, ResidualVector residuals) { return residuals.ids.length + 1; }
+        });
+    cached_correlation = correlation;
+  }
+
+  /**
+   * Compute the correlation-weighted average of the residuals of the neighbors that appear in a residual vector.
+   *
+   * The two sorted arrays are joined with a merge, or with binary searches of the shorter one
+   * if the lengths are very different. If more than k neighbors appear in the residual vector,
+   * only the k most correlated ones are used.
+   *
+   * @param neighbors the neighbors
+   * @param residuals the residuals
+   * @return the weighted average, 0 if no neighbor appears in the residual vector
+   */
+  protected double weightedAverage(NeighborArray neighbors, ResidualVector residuals) {
+    int[] n_ids = neighbors.ids;
+    int[] r_ids = residuals.ids;
+    int num_matches = 0;
+    int[] n_match = new int[Math.min(n_ids.length, r_ids.length)];
+    int[] r_match = new int[n_match.length];
+
+    if (n_ids.length > 16 * r_ids.length) {
+      int from = 0;
+      for (int r = 0; r < r_ids.length; r++) {
+        int n = Arrays.binarySearch(n_ids, from, n_ids.length, r_ids[r]);
+        if (n >= 0) {
+          n_match[num_matches] = n;
+          r_match[num_matches++] = r;
+          from = n + 1;
+        } else {
+          from = -n - 1;
+        }
+      }
+    } else if (r_ids.length > 16 * n_ids.length) {
+      int from = 0;
+      for (int n = 0; n < n_ids.length; n++) {
+        int r = Arrays.binarySearch(r_ids, from, r_ids.length, n_ids[n]);
+        if (r >= 0) {
+          n_match[num_matches] = n;
+          r_match[num_matches++] = r;
+          from = r + 1;
+        } else {
+          from = -r - 1;
+        }
+      }
+    } else {
+      int n = 0;
+      int r = 0;
+      while (n < n_ids.length && r < r_ids.length) {
+        if (n_ids[n] < r_ids[r])
+          n++;
+        else if (n_ids[n] > r_ids[r])
+          r++;
+        else {
+          n_match[num_matches] = n++;
+          r_match[num_matches++] = r++;
+        }
+      }
+    }
+
+    if (num_matches > k) {
+      // Keep the k matches with the best ranks
+      long[] order = new long[num_matches];
+      for (int m = 0; m < num_matches; m++)
+        order[m] = ((long) neighbors.ranks[n_match[m]] << 32) | m;
+      Arrays.sort(order);
+      int[] n_top = new int[k];
+      int[] r_top = new int[k];
+      for (int m = 0; m < k; m++) {
+        n_top[m] = n_match[(int) order[m]];
+        r_top[m] = r_match[(int) order[m]];
+      }
+      n_match = n_top;
+      r_match = r_top;
+      num_matches = k;
+    }
+
+    double sum = 0;
+    double weight_sum = 0;
+    for (int m = 0; m < num_matches; m++) {
+      double weight = neighbors.weights[n_match[m]];
+      weight_sum += weight;
+      sum += weight * residuals.residuals[r_match[m]];
+    }
+    return weight_sum == 0 ? 0 : sum / weight_sum;
+  }
+
+  /**
+   * Clip a prediction to the rating scale.
+   * @param result the prediction
+   * @return the clipped prediction
+   */
+  protected double clip(double result) {
+    if (result > maxRating)
+      result = maxRating;
+    if (result < minRating)
+      result = minRating;
+    return result;
+  }
+
   @Override
   public void saveModel(String filename) throws IOException {
     baseline_predictor.saveModel(filename + "-global-effects");
@@ -60,9 +60,9 @@ public class LogisticRegressionMatrixFactorization extends BiasedMatrixFactoriza
 
       // Adjust biases
       if (update_user)
-        userBias[u] = userBias[u] + learnRate * (gradient_common - biasReg * userBias[u]);
+        userBias[u] += userBiasState.update(u, gradient_common - biasReg * userBias[u], learnRate);
       if (update_item)
-        itemBias[i] = learnRate * (gradient_common - biasReg * itemBias[i]);
+        itemBias[i] += itemBiasState.update(i, gradient_common - biasReg * itemBias[i], learnRate);
 
       // Adjust latent factors
       for (int f = 0; f < numFactors; f++) {
@@ -71,16 +71,20 @@ public class LogisticRegressionMatrixFactorization extends BiasedMatrixFactoriza
 
         if (update_user) {
           double delta_u = gradient_common * i_f - regU * u_f;
-          MatrixExtensions.inc(userFactors, u, f, learnRate * delta_u);
+          MatrixExtensions.inc(userFactors, u, f, userFactorsState.update(u * numFactors + f, delta_u, learnRate));
           // this is faster (190 vs. 260 seconds per iteration on Netflix w/ k=30) than
           //    userFactorsu, f) += learn_rate * delta_u;
         }
         if (update_item) {
           double delta_i = gradient_common * u_f - regI * i_f;
-          MatrixExtensions.inc(itemFactors, i, f, learnRate * delta_i);
+          MatrixExtensions.inc(itemFactors, i, f, itemFactorsState.update(i * numFactors + f, delta_i, learnRate));
         }
       }
+
+      if (gradientOptimizer.exampleDone())
+        applyUpdates();
     }
+    finishBatch();
   }
 
   /**
@@ -127,6 +131,8 @@ public class LogisticRegressionMatrixFactorization extends BiasedMatrixFactoriza
     	+ " regI=" + regI
     	+ " regU=" + regU
     	+ " learnRate=" + learnRate
+    	+ " optimizer=" + optimizer
+    	+ " batchSize=" + batchSize
     	+ " numIter=" + numIter
     	+ " boldDriver=" + boldDriver
     	+ " initMean=" + initMean
@@ -17,14 +17,12 @@
 
 package org.mymedialite.ratingprediction;
 
+import it.unimi.dsi.fastutil.ints.IntList;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.List;
 
-import org.mymedialite.datatype.SkewSymmetricSparseMatrix;
-import org.mymedialite.datatype.SymmetricSparseMatrix;
-import org.mymedialite.io.IMatrixExtensions;
 import org.mymedialite.io.Model;
 
 /**
@@ -35,26 +33,32 @@ import org.mymedialite.io.Model;
  * SIAM Data Mining (SDM 2005).
  * http://www.daniel-lemire.com/fr/abstracts/SDM2005.html
  *
- * This recommender does NOT support incremental updates. They would be easy to implement, though.
+ * The item pair deviations are accumulated in parallel and stored in a SlopeOneDeviations object.
+ *
+ * This recommender supports incremental updates: adding, updating or removing a rating of a user
+ * updates the pairs of the item with the other items of the user.
  * @version 2.03
  */
-public class SlopeOne extends RatingPredictor {
+public class SlopeOne extends IncrementalRatingPredictor {
 
   private static final String VERSION = "2.03";
-  
-  private SkewSymmetricSparseMatrix diff_matrix;
-  private SymmetricSparseMatrix<Integer> freq_matrix;
+
+  /** The number of threads used for training, 0 for the number of available processors */
+  public int numThreads = 0;
+
+  private SlopeOneDeviations deviations;
   private double global_average;
 
   /**
    * 
    */
   public boolean canPredict(int user_id, int item_id) {
-    if (user_id > maxUserID || item_id > maxItemID)
+    if (user_id > maxUserID || item_id > maxItemID || user_id >= ratings.byUser().size())
       return false;
 
+    IntList items = ratings.items();
     for (int index : ratings.byUser().get(user_id))
-      if (freq_matrix.get(item_id, ratings.items().get(index)) != 0)
+      if (deviations.frequency(item_id, items.getInt(index)) != 0)
         return true;
     return false;
   }
@@ -63,64 +67,137 @@ public class SlopeOne extends RatingPredictor {
    * 
    */
   public double predict(int user_id, int item_id) {
-    if (item_id > maxItemID || user_id > maxUserID)
+    if (item_id > maxItemID || user_id > maxUserID || user_id >= ratings.byUser().size())
       return global_average;
 
-    double prediction = 0.0;
-    int frequency = 0;
-
-    for (int index : ratings.byUser().get(user_id)) {
-      int other_item_id = ratings.items().get(index);
-      int f = freq_matrix.get(item_id, other_item_id);
-      if (f != 0) {
-        prediction += ( diff_matrix.get(item_id, other_item_id) + ratings.get(index) ) * f;
-        frequency += f;
-      }
+    double[] sums = new double[2];
+    IntList items = ratings.items();
+    IntList user_indices = ratings.byUser().get(user_id);
+    for (int k = 0; k < user_indices.size(); k++) {
+      int index = user_indices.getInt(k);
+      deviations.accumulate(item_id, items.getInt(index), ratings.get(index), sums);
     }
 
-    if (frequency == 0)
+    if (sums[1] == 0)
       return global_average;
 
-    return prediction / frequency;
+    return sums[0] / sums[1];
   }
 
   public void initModel() {
-    diff_matrix = new SkewSymmetricSparseMatrix(maxItemID + 1);
-    freq_matrix = new SymmetricSparseMatrix<Integer>(maxItemID + 1, 0);
+    deviations = new SlopeOneDeviations(maxItemID + 1);
   }
 
   /**
    * 
    */
   public void train() {
-    initModel();
-
     // Default value if no prediction can be made
     global_average = ratings.average();
 
-    // Compute difference sums and frequencies
-    for (List<Integer> by_user_indices : ratings.byUser()) {
-      for (int i = 0; i < by_user_indices.size(); i++) {
-        int index1 = by_user_indices.get(i);
+    // Compute average differences and frequencies
+    List<IntList> by_user = ratings.byUser();
+    int[][] user_items = new int[by_user.size()][];
+    float[][] user_ratings = new float[by_user.size()][];
+    for (int user_id = 0; user_id < by_user.size(); user_id++) {
+      IntList user_indices = by_user.get(user_id);
+      user_items[user_id] = new int[user_indices.size()];
+      user_ratings[user_id] = new float[user_indices.size()];
+      for (int k = 0; k < user_indices.size(); k++) {
+        int index = user_indices.getInt(k);
+        user_items[user_id][k] = ratings.items().getInt(index);
+        user_ratings[user_id][k] = (float) ratings.get(index);
+      }
+    }
+    deviations = SlopeOneDeviations.compute(maxItemID + 1, user_items, user_ratings, numThreads);
+  }
+
+  /**
+   * 
+   */
+  public void addRating(int user_id, int item_id, double rating) {
+    super.addRating(user_id, item_id, rating);
+    global_average += (rating - global_average) / ratings.size();
+    updatePairs(user_id, item_id, rating, 1);
+  }
 
-        for (int j = i + 1; j < by_user_indices.size(); j++) {
-          int index2 = by_user_indices.get(j);
+  /**
+   * 
+   */
+  public void updateRating(int user_id, int item_id, double rating) {
+    Integer index = ratings.tryGetIndex(user_id, item_id);
+    double old_rating = index == null ? 0 : ratings.get(index);
+    super.updateRating(user_id, item_id, rating);
+    global_average += (rating - old_rating) / ratings.size();
+    updatePairs(user_id, item_id, rating - old_rating, 0);
+  }
 
-          freq_matrix.set(ratings.items().get(index1), ratings.items().get(index2), freq_matrix.get(ratings.items().get(index1), ratings.items().get(index2)) + 1);
-          diff_matrix.set(ratings.items().get(index1), ratings.items().get(index2), diff_matrix.get(ratings.items().get(index1), ratings.items().get(index2)) + (float) (ratings.get(index1) - ratings.get(index2)));
+  /**
+   * 
+   */
+  public void removeRating(int user_id, int item_id) {
+    Integer index = ratings.tryGetIndex(user_id, item_id);
+    if (index == null)
+      return;
+    double rating = ratings.get(index);
+    updatePairs(user_id, item_id, -rating, -1);
+    super.removeRating(user_id, item_id);
+    global_average = ratings.size() == 0 ? 0 : (global_average * (ratings.size() + 1) - rating) / ratings.size();
+  }
+
+  /**
+   * 
+   */
+  public void addItem(int item_id) {
+    super.addItem(item_id);
+    deviations.grow(maxItemID + 1);
+  }
+
+  /**
+   * 
+   */
+  public void removeUser(int user_id) {
+    if (user_id < ratings.byUser().size()) {
+      IntList user_indices = ratings.byUser().get(user_id);
+      for (int a = 0; a < user_indices.size(); a++)
+        for (int b = a + 1; b < user_indices.size(); b++) {
+          int index1 = user_indices.getInt(a);
+          int index2 = user_indices.getInt(b);
+          deviations.add(ratings.items().getInt(index1), ratings.items().getInt(index2), ratings.get(index2) - ratings.get(index1), -1);
         }
-      }
     }
+    super.removeUser(user_id);
+    global_average = ratings.average();
+  }
 
-    // Compute average differences
-    for (int i = 0; i <= maxItemID; i++)
-      for (int j : freq_matrix.get(i).keySet())
-        diff_matrix.set(i, j, diff_matrix.get(i, j) / freq_matrix.get(i, j));
+  /**
+   * 
+   */
+  public void removeItem(int item_id) {
+    deviations.removeItem(item_id);
+    super.removeItem(item_id);
+    global_average = ratings.average();
+  }
+
+  /**
+   * Update the pairs of an item with the other items rated by a user.
+   * @param user_id the user ID
+   * @param item_id the item ID
+   * @param rating_change the change of the rating of the item (the rating itself for new and removed ratings)
+   * @param weight 1 for a new rating, -1 for a removed rating, 0 for an updated rating
+   */
+  private void updatePairs(int user_id, int item_id, double rating_change, int weight) {
+    IntList user_indices = ratings.byUser().get(user_id);
+    for (int k = 0; k < user_indices.size(); k++) {
+      int index = user_indices.getInt(k);
+      int other_item_id = ratings.items().getInt(index);
+      if (other_item_id != item_id)
+        deviations.add(item_id, other_item_id, rating_change - weight * ratings.get(index), weight);
+    }
   }
 
   @Override
   public void loadModel(String filename) throws IOException {
-    initModel();
     BufferedReader reader = Model.getReader(filename, this.getClass());
     loadModel(reader);
     reader.close();
@@ -129,16 +206,11 @@ public class SlopeOne extends RatingPredictor {
   @Override
   public void loadModel(BufferedReader reader) throws IOException {
     double global_average = Double.parseDouble(reader.readLine());
-
-    SkewSymmetricSparseMatrix diff_matrix = (SkewSymmetricSparseMatrix) IMatrixExtensions.readFloatMatrix(reader, this.diff_matrix);
-    SymmetricSparseMatrix<Integer> freq_matrix = (SymmetricSparseMatrix<Integer>) IMatrixExtensions.readIntegerMatrix(reader, this.freq_matrix);
-    reader.close();
+    SlopeOneDeviations deviations = SlopeOneDeviations.read(reader);
     
     // assign new model
     this.global_average = global_average;
-    this.diff_matrix = diff_matrix;
-    this.freq_matrix = freq_matrix;
-
+    this.deviations = deviations;
   }
 
   @Override
@@ -152,10 +224,12 @@ public class SlopeOne extends RatingPredictor {
   @Override
   public void saveModel(PrintWriter writer)  throws IOException {
     writer.println(Double.toString(global_average));
-    IMatrixExtensions.writeSparseMatrix(writer, diff_matrix);
-    IMatrixExtensions.writeSparseMatrix(writer, freq_matrix);
+    deviations.write(writer);
     writer.flush();
-    writer.close();
+  }
+
+  public String toString() {
+    return "SlopeOne num_threads=" + numThreads;
   }
 
 }
@@ -0,0 +1,504 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.ratingprediction;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import org.mymedialite.util.Parallel;
+
+/**
+ * Average rating differences and co-rating frequencies of item pairs, as used by Slope One.
+ *
+ * The pairs are stored in compressed sparse row (CSR) layout: the entries of item i are at the positions
+ * rowOffsets[i] to rowOffsets[i + 1] - 1, sorted by the other item ID.
+ * Both directions of every pair are stored, with deviation(j, i) = -deviation(i, j), so that a lookup is
+ * a single binary search within one row.
+ *
+ * The deviations and frequencies can be updated after creation. Updates of pairs that are already stored change
+ * the arrays in place; new pairs are kept in small per-row hash maps and merged into the CSR arrays once there
+ * are enough of them.
+ *
+ * Lookups may be performed concurrently, updates must not run concurrently with any other method.
+ * @version 2.03
+ */
+public class SlopeOneDeviations {
+
+  /** Minimum number of pending pairs before they are merged into the CSR arrays */
+  private static final int MIN_PENDING = 1024;
+
+  private int numItems;
+
+  /** start of the entries of each item, length numItems + 1 */
+  private int[] rowOffsets;
+
+  /** other item IDs, sorted within each row */
+  private int[] columns;
+
+  /** average rating difference r_i - r_j */
+  private float[] deviations;
+
+  /** number of users who rated both items */
+  private int[] frequencies;
+
+  /** pairs that are not in the CSR arrays yet, by item, may be null */
+  private RowMap[] pending;
+
+  /** number of entries in pending */
+  private int numPending;
+
+  /**
+   * Create an empty set of deviations.
+   * @param num_items the number of items
+   */
+  public SlopeOneDeviations(int num_items) {
+    numItems = num_items;
+    rowOffsets = new int[num_items + 1];
+    columns = new int[0];
+    deviations = new float[0];
+    frequencies = new int[0];
+    pending = new RowMap[num_items];
+  }
+
+  /**
+   * Compute the deviations from the ratings of a set of users.
+   *
+   * Every thread accumulates the rows of the items i with i % num_threads equal to its ID, so no locking is needed,
+   * and the rows are accumulated in user order, so the result does not depend on the number of threads.
+   *
+   * @param num_items the number of items
+   * @param user_items the rated items of each user, may contain null entries
+   * @param user_ratings the ratings of each user, in the same order as user_items
+   * @param num_threads the number of threads, 0 or less for the number of available processors
+   * @return the deviations
+   */
+  public static SlopeOneDeviations compute(final int num_items, final int[][] user_items, final float[][] user_ratings, int num_threads) {
+    final RowMap[] rows = new RowMap[num_items];
+    Parallel.run(Math.min(Parallel.numThreads(num_threads), Math.max(num_items, 1)), new Parallel.Worker() {
+      public void run(int thread_id, int num_threads) {
+        for (int u = 0; u < user_items.length; u++) {
+          int[] items = user_items[u];
+          if (items == null || items.length < 2)
+            continue;
+          float[] ratings = user_ratings[u];
+          for (int a = 0; a < items.length; a++) {
+            int item_id = items[a];
+            if (item_id % num_threads != thread_id)
+              continue;
+            RowMap row = rows[item_id];
+            if (row == null)
+              row = rows[item_id] = new RowMap(8);
+            double rating = ratings[a];
+            for (int b = 0; b < items.length; b++)
+              if (b != a)
+                row.add(items[b], rating - ratings[b], 1);
+          }
+        }
+      }
+    });
+
+    SlopeOneDeviations result = new SlopeOneDeviations(num_items);
+    result.freeze(rows, num_threads);
+    return result;
+  }
+
+  /**
+   * Get the number of items.
+   * @return the number of items
+   */
+  public int numItems() {
+    return numItems;
+  }
+
+  /**
+   * Get the number of stored (directed) item pairs, including pairs whose frequency dropped to 0.
+   * @return the number of stored pairs
+   */
+  public int numEntries() {
+    return columns.length + numPending;
+  }
+
+  /**
+   * Get the number of users who rated both items.
+   * @param item_id1 the first item ID
+   * @param item_id2 the second item ID
+   * @return the frequency, 0 if the pair is unknown
+   */
+  public int frequency(int item_id1, int item_id2) {
+    if (item_id1 < 0 || item_id1 >= numItems)
+      return 0;
+    int pos = find(item_id1, item_id2);
+    if (pos >= 0)
+      return frequencies[pos];
+    RowMap row = pending[item_id1];
+    if (row == null)
+      return 0;
+    int slot = row.find(item_id2);
+    return slot < 0 ? 0 : row.counts[slot];
+  }
+
+  /**
+   * Get the average rating difference of two items.
+   * @param item_id1 the first item ID
+   * @param item_id2 the second item ID
+   * @return the average of r_{item_id1} - r_{item_id2} over the users who rated both items, 0 if there are none
+   */
+  public double deviation(int item_id1, int item_id2) {
+    if (item_id1 < 0 || item_id1 >= numItems)
+      return 0;
+    int pos = find(item_id1, item_id2);
+    if (pos >= 0)
+      return deviations[pos];
+    RowMap row = pending[item_id1];
+    if (row == null)
+      return 0;
+    int slot = row.find(item_id2);
+    return slot < 0 || row.counts[slot] == 0 ? 0 : row.sums[slot] / row.counts[slot];
+  }
+
+  /**
+   * Add the Slope One prediction term of one rated item to a running sum.
+   * @param item_id the item to predict
+   * @param other_item_id the rated item
+   * @param rating the rating of the rated item
+   * @param sums sums[0] is increased by (deviation + rating) * frequency, sums[1] by the frequency
+   * @return true if the items have a non-zero frequency
+   */
+  public boolean accumulate(int item_id, int other_item_id, double rating, double[] sums) {
+    if (item_id < 0 || item_id >= numItems)
+      return false;
+    int pos = find(item_id, other_item_id);
+    int f;
+    double deviation;
+    if (pos >= 0) {
+      f = frequencies[pos];
+      deviation = deviations[pos];
+    } else {
+      RowMap row = pending[item_id];
+      if (row == null)
+        return false;
+      int slot = row.find(other_item_id);
+      if (slot < 0)
+        return false;
+      f = row.counts[slot];
+      deviation = f == 0 ? 0 : row.sums[slot] / f;
+    }
+    if (f == 0)
+      return false;
+    sums[0] += (deviation + rating) * f;
+    sums[1] += f;
+    return true;
+  }
+
+  /**
+   * Add or remove rating differences of a pair of items.
+   * The pair is updated in both directions.
+   * @param item_id1 the first item ID
+   * @param item_id2 the second item ID, must be different from the first one
+   * @param difference the sum of the rating differences r_{item_id1} - r_{item_id2} to add, negative to remove differences
+   * @param weight the number of users to add, negative to remove users, 0 to change only the differences
+   */
+  public void add(int item_id1, int item_id2, double difference, int weight) {
+    if (item_id1 == item_id2)
+      throw new IllegalArgumentException("The items of a pair must be different: " + item_id1);
+    int max_item_id = Math.max(item_id1, item_id2);
+    if (max_item_id >= numItems)
+      grow(max_item_id + 1);
+
+    addDirected(item_id1, item_id2, difference, weight);
+    addDirected(item_id2, item_id1, -difference, weight);
+
+    if (numPending > Math.max(MIN_PENDING, columns.length / 8))
+      compact();
+  }
+
+  /**
+   * Remove all pairs of an item.
+   * @param item_id the item ID
+   */
+  public void removeItem(int item_id) {
+    if (item_id < 0 || item_id >= numItems)
+      return;
+    compact();
+    for (int pos = rowOffsets[item_id]; pos < rowOffsets[item_id + 1]; pos++) {
+      int other_pos = find(columns[pos], item_id);
+      if (other_pos >= 0) {
+        frequencies[other_pos] = 0;
+        deviations[other_pos] = 0;
+      }
+      frequencies[pos] = 0;
+      deviations[pos] = 0;
+    }
+  }
+
+  /**
+   * Increase the number of items.
+   * @param num_items the new number of items
+   */
+  public void grow(int num_items) {
+    if (num_items <= numItems)
+      return;
+    int nnz = rowOffsets[numItems];
+    rowOffsets = Arrays.copyOf(rowOffsets, num_items + 1);
+    Arrays.fill(rowOffsets, numItems + 1, num_items + 1, nnz);
+    pending = Arrays.copyOf(pending, num_items);
+    numItems = num_items;
+  }
+
+  /**
+   * Merge the pending pairs into the CSR arrays and drop pairs with frequency 0.
+   */
+  public void compact() {
+    if (numPending == 0 && !hasZeroFrequencies())
+      return;
+
+    RowMap[] rows = new RowMap[numItems];
+    for (int i = 0; i < numItems; i++) {
+      int length = rowOffsets[i + 1] - rowOffsets[i] + (pending[i] == null ? 0 : pending[i].size);
+      if (length == 0)
+        continue;
+      RowMap row = new RowMap(length);
+      for (int pos = rowOffsets[i]; pos < rowOffsets[i + 1]; pos++)
+        if (frequencies[pos] != 0)
+          row.add(columns[pos], (double) deviations[pos] * frequencies[pos], frequencies[pos]);
+      if (pending[i] != null)
+        row.addAll(pending[i]);
+      rows[i] = row;
+    }
+    freeze(rows, 1);
+  }
+
+  /**
+   * Write the deviations to a text stream.
+   * The first line contains the number of items and the number of pairs,
+   * followed by one line per pair i < j with i, j, the frequency and the deviation of i and j.
+   * @param writer the writer
+   */
+  public void write(PrintWriter writer) {
+    compact();
+    writer.println(numItems + " " + columns.length / 2);
+    for (int i = 0; i < numItems; i++)
+      for (int pos = rowOffsets[i]; pos < rowOffsets[i + 1]; pos++)
+        if (columns[pos] > i)
+          writer.println(i + " " + columns[pos] + " " + frequencies[pos] + " " + deviations[pos]);
+  }
+
+  /**
+   * Read deviations written by write().
+   * @param reader the reader
+   * @return the deviations
+   * @throws IOException if the data cannot be read
+   */
+  public static SlopeOneDeviations read(BufferedReader reader) throws IOException {
+    String line = reader.readLine();
+    if (line == null)
+      throw new IOException("Unexpected end of file");
+    String[] fields = line.trim().split(" ");
+    int num_items = Integer.parseInt(fields[0]);
+    int num_pairs = Integer.parseInt(fields[1]);
+
+    RowMap[] rows = new RowMap[num_items];
+    for (int p = 0; p < num_pairs; p++) {
+      line = reader.readLine();
+      if (line == null)
+        throw new IOException("Unexpected end of file after " + p + " of " + num_pairs + " pairs");
+      fields = line.trim().split(" ");
+      int i = Integer.parseInt(fields[0]);
+      int j = Integer.parseInt(fields[1]);
+      int frequency = Integer.parseInt(fields[2]);
+      double deviation = Float.parseFloat(fields[3]);
+      if (rows[i] == null)
+        rows[i] = new RowMap(8);
+      if (rows[j] == null)
+        rows[j] = new RowMap(8);
+      rows[i].add(j, deviation * frequency, frequency);
+      rows[j].add(i, -deviation * frequency, frequency);
+    }
+
+    SlopeOneDeviations result = new SlopeOneDeviations(num_items);
+    result.freeze(rows, 1);
+    return result;
+  }
+
+  private void addDirected(int item_id1, int item_id2, double difference, int weight) {
+    int pos = find(item_id1, item_id2);
+    if (pos >= 0) {
+      int f = frequencies[pos];
+      int new_f = f + weight;
+      deviations[pos] = new_f == 0 ? 0 : (float) (((double) deviations[pos] * f + difference) / new_f);
+      frequencies[pos] = new_f;
+      return;
+    }
+
+    RowMap row = pending[item_id1];
+    if (row == null)
+      row = pending[item_id1] = new RowMap(8);
+    if (row.add(item_id2, difference, weight))
+      numPending++;
+  }
+
+  /** position of the pair in the CSR arrays, -1 if it is not there */
+  private int find(int item_id1, int item_id2) {
+    int low = rowOffsets[item_id1];
+    int high = rowOffsets[item_id1 + 1] - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int column = columns[mid];
+      if (column < item_id2)
+        low = mid + 1;
+      else if (column > item_id2)
+        high = mid - 1;
+      else
+        return mid;
+    }
+    return -1;
+  }
+
+  private boolean hasZeroFrequencies() {
+    for (int f : frequencies)
+      if (f == 0)
+        return true;
+    return false;
+  }
+
+  /** Replace the CSR arrays with the non-zero entries of the given rows, sorted by column. */
+  private void freeze(final RowMap[] rows, int num_threads) {
+    int[] offsets = new int[numItems + 1];
+    for (int i = 0; i < numItems; i++)
+      offsets[i + 1] = offsets[i] + (rows[i] == null ? 0 : rows[i].nonZero());
+
+    final int[] new_offsets = offsets;
+    final int[] new_columns = new int[offsets[numItems]];
+    final float[] new_deviations = new float[new_columns.length];
+    final int[] new_frequencies = new int[new_columns.length];
+    Parallel.forRange(0, numItems, 256, num_threads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        for (int i = begin; i < end; i++) {
+          RowMap row = rows[i];
+          if (row == null)
+            continue;
+          int pos = new_offsets[i];
+          for (int slot = 0; slot < row.keys.length; slot++)
+            if (row.keys[slot] != RowMap.FREE && row.counts[slot] != 0)
+              new_columns[pos++] = row.keys[slot];
+          Arrays.sort(new_columns, new_offsets[i], pos);
+          for (pos = new_offsets[i]; pos < new_offsets[i + 1]; pos++) {
+            int slot = row.find(new_columns[pos]);
+            new_frequencies[pos] = row.counts[slot];
+            new_deviations[pos] = (float) (row.sums[slot] / row.counts[slot]);
+          }
+          rows[i] = null;
+        }
+      }
+    });
+
+    rowOffsets = new_offsets;
+    columns = new_columns;
+    deviations = new_deviations;
+    frequencies = new_frequencies;
+    Arrays.fill(pending, null);
+    numPending = 0;
+  }
+
+  /**
+   * Open-addressing hash map from item IDs to a count and a sum of differences.
+   */
+  private static final class RowMap {
+    static final int FREE = -1;
+
+    int[] keys;
+    int[] counts;
+    double[] sums;
+    int size;
+
+    RowMap(int expected_size) {
+      int capacity = 4;
+      while (capacity < 2 * expected_size)
+        capacity <<= 1;
+      keys = new int[capacity];
+      Arrays.fill(keys, FREE);
+      counts = new int[capacity];
+      sums = new double[capacity];
+    }
+
+    /** slot of the key, -1 if it is not in the map */
+    int find(int key) {
+      int mask = keys.length - 1;
+      for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+        if (keys[slot] == key)
+          return slot;
+        if (keys[slot] == FREE)
+          return -1;
+      }
+    }
+
+    /** Add to the entry of a key; returns true if the key is new. */
+    boolean add(int key, double sum, int count) {
+      int mask = keys.length - 1;
+      int slot = hash(key) & mask;
+      while (keys[slot] != key && keys[slot] != FREE)
+        slot = (slot + 1) & mask;
+      boolean is_new = keys[slot] == FREE;
+      if (is_new) {
+        keys[slot] = key;
+        size++;
+      }
+      counts[slot] += count;
+      sums[slot] += sum;
+      if (is_new && 2 * size > keys.length)
+        rehash();
+      return is_new;
+    }
+
+    void addAll(RowMap other) {
+      for (int slot = 0; slot < other.keys.length; slot++)
+        if (other.keys[slot] != FREE)
+          add(other.keys[slot], other.sums[slot], other.counts[slot]);
+    }
+
+    int nonZero() {
+      int n = 0;
+      for (int slot = 0; slot < keys.length; slot++)
+        if (keys[slot] != FREE && counts[slot] != 0)
+          n++;
+      return n;
+    }
+
+    private void rehash() {
+      int[] old_keys = keys;
+      int[] old_counts = counts;
+      double[] old_sums = sums;
+      keys = new int[2 * old_keys.length];
+      Arrays.fill(keys, FREE);
+      counts = new int[keys.length];
+      sums = new double[keys.length];
+      size = 0;
+      for (int slot = 0; slot < old_keys.length; slot++)
+        if (old_keys[slot] != FREE)
+          add(old_keys[slot], old_sums[slot], old_counts[slot]);
+    }
+
+    private static int hash(int key) {
+      int h = key * 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+  }
+
+}
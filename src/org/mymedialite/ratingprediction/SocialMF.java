@@ -18,6 +18,7 @@
 
 package org.mymedialite.ratingprediction;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.mymedialite.IUserRelationAwareRecommender;
@@ -25,6 +26,7 @@ import org.mymedialite.datatype.Matrix;
 import org.mymedialite.datatype.MatrixExtensions;
 import org.mymedialite.datatype.SparseBooleanMatrix;
 import org.mymedialite.datatype.VectorExtensions;
+import org.mymedialite.util.Parallel;
 
 /**
  * Social-network-aware matrix factorization.
@@ -63,11 +65,49 @@ public class SocialMF extends BiasedMatrixFactorization implements IUserRelation
    */
   public void setUserRelation(SparseBooleanMatrix user_neighbors) {
     this.user_neighbors = user_neighbors;
+    batch_data_stale = true;
   }
 
   private SparseBooleanMatrix user_neighbors;
 
   /**
+   * The number of threads used for training, 0 for the number of available processors.
+   */
+  public int numThreads = 0;
+
+  /** Number of users, items or ratings processed by a thread at a time */
+  private static final int CHUNK_SIZE = 1024;
+
+  // Training data and gradient buffers as primitive arrays, created by train() and reused by every iteration
+  // until the ratings, the relation or the number of users or items change
+  private boolean batch_data_stale = true;
+  private SparseBooleanMatrix batch_relation;
+  private int batch_relation_entries;
+  private int[] rating_users;
+  private int[] rating_items;
+  private double[] rating_values;
+  /** rating indices grouped by user */
+  private int[] by_user_offsets;
+  private int[] by_user_indices;
+  /** rating indices grouped by item */
+  private int[] by_item_offsets;
+  private int[] by_item_indices;
+  /** the user relation in compressed sparse row layout */
+  private int[] relation_offsets;
+  private int[] relation_ids;
+  private double[] user_factors;
+  private double[] item_factors;
+  private double[] user_factors_gradient;
+  private double[] item_factors_gradient;
+  private double[] user_bias_gradient;
+  private double[] item_bias_gradient;
+  /** the common part of the gradient of each rating */
+  private double[] rating_gradients;
+  /** the social regularization terms of each user as a neighbor of other users */
+  private double[] social_factor_terms;
+  private double[] social_bias_terms;
+
+  /**
    * The number of users.
    */
   public int numUsers() {
@@ -107,6 +147,7 @@ public class SocialMF extends BiasedMatrixFactorization implements IUserRelation
 
     // Learn model parameters
     globalBias = Math.log((global_average - minRating) / (maxRating - global_average));
+    initBatchData();
     for (int current_iter = 0; current_iter < numIter; current_iter++)
       iterate(ratings.randomIndex(), true, true);
   }
@@ -118,125 +159,309 @@ public class SocialMF extends BiasedMatrixFactorization implements IUserRelation
     iterateBatch();
   }
 
-  private void iterateBatch() {
-    // I. compute gradients
-    Matrix<Double> userFactors_gradient = new Matrix<Double>(userFactors.dim1, userFactors.dim2);
-    Matrix<Double> itemFactors_gradient = new Matrix<Double>(itemFactors.dim1, itemFactors.dim2);
-    double[] user_bias_gradient    = new double[userFactors.dim1];
-    double[] item_bias_gradient    = new double[itemFactors.dim1];
-
-    // I.1 prediction error
-    double rating_range_size = maxRating - minRating;
-    for (int index = 0; index < ratings.size(); index++) {
-      int u = ratings.users().get(index);
-      int i = ratings.items().get(index);
-
-      // Prediction
-      double score = globalBias;
-      score += userBias[u];
-      score += itemBias[i];
-      for (int f = 0; f < numFactors; f++)
-        score += userFactors.get(u, f) * itemFactors.get(i, f);
-      double sig_score = 1 / (1 + Math.exp(-score));
-
-      double prediction = minRating + sig_score * rating_range_size;
-      double error      = ratings.get(index) - prediction;
-
-      double gradient_common = error * sig_score * (1 - sig_score) * rating_range_size;
-
-      // Add up error gradient
-      for (int f = 0; f < numFactors; f++) {
-        double u_f = userFactors.get(u, f);
-        double i_f = itemFactors.get(i, f);
-
-        if (f != 0)
-          MatrixExtensions.inc(userFactors_gradient, u, f, gradient_common * i_f);
-        if (f != 1)
-          MatrixExtensions.inc(itemFactors_gradient, i, f, gradient_common * u_f);
-      }
-    }
-
-    // I.2 L2 regularization
-    //        biases
-    for (int u = 0; u < user_bias_gradient.length; u++)
-      user_bias_gradient[u] += userBias[u] * regularization;
-
-    for (int i = 0; i < item_bias_gradient.length; i++)
-      item_bias_gradient[i] += itemBias[i] * regularization;
-
-    //        latent factors
-    for (int u = 0; u < userFactors_gradient.dim1; u++)
-      for (int f = 2; f < numFactors; f++)
-        MatrixExtensions.inc(userFactors_gradient, u, f, userFactors.get(u, f) * regularization);
-
-    for (int i = 0; i < itemFactors_gradient.dim1; i++)
-      for (int f = 2; f < numFactors; f++)
-        MatrixExtensions.inc(itemFactors_gradient, i, f, itemFactors.get(i, f) * regularization);
-
-    // I.3 social network regularization
-    for (int u = 0; u < userFactors_gradient.dim1; u++) {
-      // see eq. (13) in the paper
-      double[] sum_neighbors    = new double[numFactors];
-      double bias_sum_neighbors = 0;
-      int num_neighbors = user_neighbors.get(u).size();
+  /**
+   * Check whether the primitive training data no longer matches the ratings, the relation or the factors.
+   * @return true if initBatchData() must be called before the next iteration
+   */
+  private boolean batchDataStale() {
+    return batch_data_stale
+        || rating_values == null
+        || rating_values.length != ratings.size()
+        || user_factors.length != userFactors.dim1 * numFactors
+        || item_factors.length != itemFactors.dim1 * numFactors
+        || batch_relation != user_neighbors
+        || batch_relation_entries != user_neighbors.numberOfEntries();
+  }
 
-      // User bias part
+  /**
+   * Copy the training data into primitive arrays and allocate the gradient buffers.
+   * This is done once per training run, and again only after the data has changed,
+   * so that the iterations do not allocate memory.
+   */
+  private void initBatchData() {
+    int num_users = userFactors.dim1;
+    int num_items = itemFactors.dim1;
+    int num_ratings = ratings.size();
+
+    rating_users = new int[num_ratings];
+    rating_items = new int[num_ratings];
+    rating_values = new double[num_ratings];
+    for (int index = 0; index < num_ratings; index++) {
+      rating_users[index] = ratings.users().getInt(index);
+      rating_items[index] = ratings.items().getInt(index);
+      rating_values[index] = ratings.get(index);
+    }
+    by_user_offsets = new int[num_users + 1];
+    by_user_indices = groupBy(rating_users, by_user_offsets);
+    by_item_offsets = new int[num_items + 1];
+    by_item_indices = groupBy(rating_items, by_item_offsets);
+
+    relation_offsets = new int[num_users + 1];
+    for (int u = 0; u < num_users; u++)
+      relation_offsets[u + 1] = relation_offsets[u] + (u < user_neighbors.numberOfRows() ? user_neighbors.get(u).size() : 0);
+    relation_ids = new int[relation_offsets[num_users]];
+    for (int u = 0; u < num_users && u < user_neighbors.numberOfRows(); u++) {
+      int pos = relation_offsets[u];
       for (int v : user_neighbors.get(u))
-        bias_sum_neighbors += userBias[v];
-
-      if (num_neighbors != 0)
-        user_bias_gradient[u] += socialRegularization * (userBias[u] - bias_sum_neighbors / num_neighbors);
+        relation_ids[pos++] = v;
+    }
 
-      for (int v : user_neighbors.get(u))
-        if (user_neighbors.get(v).size() != 0) {
-          double trust_v = (double) 1 / user_neighbors.get(v).size();
-          double diff = 0;
-          for (int w : user_neighbors.get(v))
-            diff -= userBias[w];
+    user_factors = new double[num_users * numFactors];
+    item_factors = new double[num_items * numFactors];
+    user_factors_gradient = new double[user_factors.length];
+    item_factors_gradient = new double[item_factors.length];
+    user_bias_gradient = new double[num_users];
+    item_bias_gradient = new double[num_items];
+    rating_gradients = new double[num_ratings];
+    social_factor_terms = new double[user_factors.length];
+    social_bias_terms = new double[num_users];
+
+    userFactorsState.ensureCapacity(user_factors.length);
+    itemFactorsState.ensureCapacity(item_factors.length);
+    userBiasState.ensureCapacity(num_users);
+    itemBiasState.ensureCapacity(num_items);
+
+    batch_relation = user_neighbors;
+    batch_relation_entries = user_neighbors.numberOfEntries();
+    batch_data_stale = false;
+  }
 
-          diff = diff * trust_v;
-          diff += userBias[v];
+  /**
+   * Group the positions of an array by their value.
+   * @param keys the values, from 0 to offsets.length - 2
+   * @param offsets filled with the start of each group in the result
+   * @return the positions, grouped by value and ascending within each group
+   */
+  private static int[] groupBy(int[] keys, int[] offsets) {
+    for (int key : keys)
+      offsets[key + 1]++;
+    for (int k = 1; k < offsets.length; k++)
+      offsets[k] += offsets[k - 1];
+    int[] positions = new int[keys.length];
+    int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+    for (int pos = 0; pos < keys.length; pos++)
+      positions[next[keys[pos]]++] = pos;
+    return positions;
+  }
 
-          if (num_neighbors != 0)
-            user_bias_gradient[u] -= socialRegularization * trust_v * diff / num_neighbors;
+  /**
+   * One iteration of batch gradient descent.
+   *
+   * Every step is split into ranges of users, items or ratings, which are processed in parallel.
+   * Each gradient entry is computed by the thread that owns its user or item, using the ratings grouped
+   * by user and by item, so no locking or reduction is needed and the result does not depend on the
+   * number of threads.
+   *
+   * The social regularization term of eq. (13) in the paper is computed in two passes over the relation:
+   * the first one computes, for every user v, (U_v - mean of the neighbors of v) / |N(v)|, the second one
+   * sums these terms over the neighbors of every user. This takes time linear in the number of relations,
+   * instead of quadratic in the number of neighbors.
+   */
+  private void iterateBatch() {
+    if (batchDataStale())
+      initBatchData();
+
+    final int num_users = userFactors.dim1;
+    final int num_items = itemFactors.dim1;
+
+    // Copy the factors into primitive arrays
+    copyFactors(userFactors, user_factors);
+    copyFactors(itemFactors, item_factors);
+
+    // I.1 prediction error, the common part of the gradient of each rating
+    final double rating_range_size = maxRating - minRating;
+    Parallel.forRange(0, rating_values.length, CHUNK_SIZE, numThreads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        for (int index = begin; index < end; index++) {
+          int u = rating_users[index];
+          int i = rating_items[index];
+
+          // Prediction
+          double score = globalBias + userBias[u] + itemBias[i];
+          int u_offset = u * numFactors;
+          int i_offset = i * numFactors;
+          for (int f = 0; f < numFactors; f++)
+            score += user_factors[u_offset + f] * item_factors[i_offset + f];
+          double sig_score = 1 / (1 + Math.exp(-score));
+
+          double prediction = minRating + sig_score * rating_range_size;
+          double error      = rating_values[index] - prediction;
+
+          rating_gradients[index] = error * sig_score * (1 - sig_score) * rating_range_size;
         }
+      }
+    });
+
+    // I.3a social network regularization: the terms of the users as neighbors of other users
+    Parallel.forRange(0, num_users, CHUNK_SIZE, numThreads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        for (int v = begin; v < end; v++) {
+          int v_offset = v * numFactors;
+          int num_neighbors = relation_offsets[v + 1] - relation_offsets[v];
+          if (num_neighbors == 0) {
+            social_bias_terms[v] = 0;
+            for (int f = 0; f < numFactors; f++)
+              social_factor_terms[v_offset + f] = 0;
+            continue;
+          }
+          double trust_v = (double) 1 / num_neighbors;
+
+          double bias_sum = 0;
+          for (int pos = relation_offsets[v]; pos < relation_offsets[v + 1]; pos++)
+            bias_sum += userBias[relation_ids[pos]];
+          social_bias_terms[v] = trust_v * (userBias[v] - trust_v * bias_sum);
+
+          for (int f = 0; f < numFactors; f++)
+            social_factor_terms[v_offset + f] = 0;
+          for (int pos = relation_offsets[v]; pos < relation_offsets[v + 1]; pos++) {
+            int w_offset = relation_ids[pos] * numFactors;
+            for (int f = 0; f < numFactors; f++)
+              social_factor_terms[v_offset + f] += user_factors[w_offset + f];
+          }
+          for (int f = 0; f < numFactors; f++)
+            social_factor_terms[v_offset + f] = trust_v * (user_factors[v_offset + f] - trust_v * social_factor_terms[v_offset + f]);
+        }
+      }
+    });
+
+    // User gradients
+    Parallel.forRange(0, num_users, CHUNK_SIZE, numThreads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        for (int u = begin; u < end; u++) {
+          int u_offset = u * numFactors;
+          for (int f = 0; f < numFactors; f++)
+            user_factors_gradient[u_offset + f] = 0;
+
+          // I.1 prediction error
+          for (int pos = by_user_offsets[u]; pos < by_user_offsets[u + 1]; pos++) {
+            int index = by_user_indices[pos];
+            double gradient_common = rating_gradients[index];
+            int i_offset = rating_items[index] * numFactors;
+            for (int f = 1; f < numFactors; f++)
+              user_factors_gradient[u_offset + f] += gradient_common * item_factors[i_offset + f];
+          }
 
-      // Latent factor part
-      for (int v : user_neighbors.get(u))
-        for (int f = 0; f < numFactors; f++)
-          sum_neighbors[f] += userFactors.get(v, f);
-
-      if (num_neighbors != 0)
-        for (int f = 0; f < numFactors; f++)
-          MatrixExtensions.inc(userFactors_gradient, u, f, socialRegularization * (userFactors.get(u, f) - sum_neighbors[f] / num_neighbors));
+          // I.2 L2 regularization
+          user_bias_gradient[u] = userBias[u] * regularization;
+          for (int f = 2; f < numFactors; f++)
+            user_factors_gradient[u_offset + f] += user_factors[u_offset + f] * regularization;
+
+          // I.3b social network regularization, see eq. (13) in the paper
+          int num_neighbors = relation_offsets[u + 1] - relation_offsets[u];
+          if (num_neighbors == 0)
+            continue;
+          double bias_sum = 0;
+          double bias_terms = 0;
+          for (int pos = relation_offsets[u]; pos < relation_offsets[u + 1]; pos++) {
+            int v = relation_ids[pos];
+            bias_sum += userBias[v];
+            bias_terms += social_bias_terms[v];
+          }
+          user_bias_gradient[u] += socialRegularization * (userBias[u] - bias_sum / num_neighbors);
+          user_bias_gradient[u] -= socialRegularization * bias_terms / num_neighbors;
 
-      for (int v : user_neighbors.get(u))
-        if (user_neighbors.get(v).size() != 0) {
-          double trust_v = (double) 1 / user_neighbors.get(v).size();
           for (int f = 0; f < numFactors; f++) {
-            double diff = 0;
-            for (int w : user_neighbors.get(v))
-              diff -= userFactors.get(w, f);
-            
-            diff = diff * trust_v;
-            diff += userFactors.get(v, f);
-            if (num_neighbors != 0)
-              MatrixExtensions.inc(userFactors_gradient, u, f, -socialRegularization * trust_v * diff / num_neighbors);
+            double sum_neighbors = 0;
+            double terms = 0;
+            for (int pos = relation_offsets[u]; pos < relation_offsets[u + 1]; pos++) {
+              int v_offset = relation_ids[pos] * numFactors;
+              sum_neighbors += user_factors[v_offset + f];
+              terms += social_factor_terms[v_offset + f];
+            }
+            user_factors_gradient[u_offset + f] += socialRegularization * (user_factors[u_offset + f] - sum_neighbors / num_neighbors);
+            user_factors_gradient[u_offset + f] -= socialRegularization * terms / num_neighbors;
           }
         }
-    }
+      }
+    });
+
+    // Item gradients
+    Parallel.forRange(0, num_items, CHUNK_SIZE, numThreads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        for (int i = begin; i < end; i++) {
+          int i_offset = i * numFactors;
+          for (int f = 0; f < numFactors; f++)
+            item_factors_gradient[i_offset + f] = 0;
+
+          // I.1 prediction error
+          for (int pos = by_item_offsets[i]; pos < by_item_offsets[i + 1]; pos++) {
+            int index = by_item_indices[pos];
+            double gradient_common = rating_gradients[index];
+            int u_offset = rating_users[index] * numFactors;
+            for (int f = 0; f < numFactors; f++)
+              if (f != 1)
+                item_factors_gradient[i_offset + f] += gradient_common * user_factors[u_offset + f];
+          }
 
-    // II. apply gradient descent step
-    for (int u = 0; u < userFactors_gradient.dim1; u++) {
-      userBias[u] += user_bias_gradient[u] * learnRate;
-      for (int f = 2; f < numFactors; f++)
-        MatrixExtensions.inc(userFactors, u, f, userFactors_gradient.get(u, f) * learnRate);
-    }
-    for (int i = 0; i < itemFactors_gradient.dim1; i++) {
-      itemBias[i] += item_bias_gradient[i] * learnRate;
-      for (int f = 2; f < numFactors; f++)
-        MatrixExtensions.inc(itemFactors, i, f, itemFactors_gradient.get(i, f) * learnRate);
-    }
+          // I.2 L2 regularization
+          item_bias_gradient[i] = itemBias[i] * regularization;
+          for (int f = 2; f < numFactors; f++)
+            item_factors_gradient[i_offset + f] += item_factors[i_offset + f] * regularization;
+        }
+      }
+    });
+
+    // II. apply gradient descent step; the whole dataset is one batch, so the optimizer steps are applied directly
+    Parallel.forRange(0, num_users, CHUNK_SIZE, numThreads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        Object[] data = userFactors.data;
+        for (int u = begin; u < end; u++) {
+          userBias[u] += userBiasState.step(u, user_bias_gradient[u], learnRate);
+          for (int f = 2; f < numFactors; f++) {
+            int index = u * numFactors + f;
+            data[index] = user_factors[index] + userFactorsState.step(index, user_factors_gradient[index], learnRate);
+          }
+        }
+      }
+    });
+    Parallel.forRange(0, num_items, CHUNK_SIZE, numThreads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        Object[] data = itemFactors.data;
+        for (int i = begin; i < end; i++) {
+          itemBias[i] += itemBiasState.step(i, item_bias_gradient[i], learnRate);
+          for (int f = 2; f < numFactors; f++) {
+            int index = i * numFactors + f;
+            data[index] = item_factors[index] + itemFactorsState.step(index, item_factors_gradient[index], learnRate);
+          }
+        }
+      }
+    });
+  }
+
+  /** Copy a factor matrix into a primitive array, in parallel; rows added but not yet initialized are read as 0. */
+  private void copyFactors(final Matrix<Double> factors, final double[] values) {
+    Parallel.forRange(0, factors.dim1, CHUNK_SIZE, numThreads, new Parallel.RangeBody() {
+      public void run(int begin, int end, int thread_id) {
+        Object[] data = factors.data;
+        for (int index = begin * factors.dim2; index < end * factors.dim2; index++)
+          values[index] = data[index] == null ? 0 : (Double) data[index];
+      }
+    });
+  }
+
+  /** {@inheritDoc} */
+  protected void initOptimizer() {
+    super.initOptimizer();
+    // the new optimizer states must be sized by initBatchData(), e.g. after loadModel()
+    batch_data_stale = true;
+  }
+
+  /** {@inheritDoc} */
+  public void addRating(int user_id, int item_id, double rating) {
+    batch_data_stale = true;
+    super.addRating(user_id, item_id, rating);
+  }
+
+  /** {@inheritDoc} */
+  public void updateRating(int user_id, int item_id, double rating) {
+    batch_data_stale = true;
+    super.updateRating(user_id, item_id, rating);
+  }
+
+  /** {@inheritDoc} */
+  public void removeRating(int user_id, int item_id) {
+    batch_data_stale = true;
+    super.removeRating(user_id, item_id);
   }
 
   /**
@@ -277,7 +502,9 @@ public class SocialMF extends BiasedMatrixFactorization implements IUserRelation
         + " regularization=" + regularization
         + " socialRegularization=" + socialRegularization
         + " learnRate=" + learnRate
+        + " optimizer=" + optimizer
         + " numIter=" + numIter
+        + " numThreads=" + numThreads
         + " initMean=" + initMean
         + " initStDev=" + initStDev;   
   }
@@ -21,18 +21,14 @@ package org.mymedialite.ratingprediction;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.List;
 
 import org.mymedialite.IIterativeModel;
-import org.mymedialite.datatype.Matrix;
-import org.mymedialite.datatype.MatrixExtensions;
-import org.mymedialite.datatype.SparseMatrix;
-import org.mymedialite.datatype.SparseMatrixExtensions;
+import org.mymedialite.datatype.CompressedSparseRows;
 import org.mymedialite.datatype.VectorExtensions;
 import org.mymedialite.eval.Ratings;
+import org.mymedialite.optimization.Optimizer;
+import org.mymedialite.optimization.OptimizerState;
 
 /**
  * Time-aware bias model.
@@ -40,6 +36,9 @@ import org.mymedialite.eval.Ratings;
  * Model described in equation (10) of BellKor Grand Prize documentation for the Netflix Prize (see below).
  * The optimization problem is described in equation (12).
  *
+ * The day-wise parameters are only stored for the days on which a user has rated,
+ * in primitive arrays indexed by the position of the user and day in a CompressedSparseRows structure.
+ *
  * The default hyper-parameter values are set to the ones shown in the report.
  * For datasets other than Netflix, you may want to find better parameters.
  *
@@ -55,13 +54,25 @@ public class TimeAwareBaseline extends TimeAwareRatingPredictor implements IIter
   // Parameters
   
   double global_average;
-  List<Double> user_bias;
-  List<Double> item_bias;
-  List<Double> alpha;
-  Matrix<Double> item_bias_by_time_bin;  // items : rows, bins : columns
-  SparseMatrix<Double> user_bias_by_day; // users : rows, days : columns
-  List<Double> user_scaling;               // c_u
-  SparseMatrix<Double> user_scaling_by_day; // c_ut
+  double[] user_bias;
+  double[] item_bias;
+  double[] alpha;
+  double[] item_bias_by_time_bin;         // items : rows, bins : columns, row by row
+  int number_of_bins;
+  CompressedSparseRows user_days;         // users : rows, days : columns; the days on which each user has rated
+  double[] user_bias_by_day;              // b_ut, by position in user_days
+  double[] user_scaling;                  // c_u
+  double[] user_scaling_by_day;           // c_ut, by position in user_days
+
+  // Optimizer states
+  Optimizer gradientOptimizer;
+  OptimizerState userBiasState;
+  OptimizerState itemBiasState;
+  OptimizerState alphaState;
+  OptimizerState itemBiasByTimeBinState;
+  OptimizerState userBiasByDayState;
+  OptimizerState userScalingState;
+  OptimizerState userScalingByDayState;
 
   // Hyperparameters
 
@@ -80,6 +91,17 @@ public class TimeAwareBaseline extends TimeAwareRatingPredictor implements IIter
    */
   public double beta;
 
+  /**
+   * Optimizer: sgd, momentum, adagrad or adam.
+   * Hyperparameters can be given in parentheses, e.g. momentum(0.95), see Optimizer.create().
+   */
+  public String optimizer = "sgd";
+
+  /**
+   * Number of ratings per mini-batch, 1 for online updates.
+   */
+  public int batchSize = 1;
+
   // Parameter-specific learn rates
 
   /**
@@ -155,7 +177,10 @@ public class TimeAwareBaseline extends TimeAwareRatingPredictor implements IIter
   public double regUserScalingByDay;
 
   // Helper data structures
-  List<Double> userMeanDay;
+  double[] userMeanDay;
+  int[] rating_days;           // relative day by rating index, see ITimedDataSet.days()
+  int[] rating_bins;           // day bin by rating index
+  int[] rating_day_positions;  // position of the user and day in user_days by rating index
 
   /**
    * Default constructor.
@@ -197,20 +222,21 @@ public class TimeAwareBaseline extends TimeAwareRatingPredictor implements IIter
   public void train() {
     initModel();
     global_average = ratings.average();
-    
+
     // Compute mean day of rating by user
-    userMeanDay = new ArrayList<Double>(maxUserID + 1);
-    for(int i = 0; i <= maxUserID; i++)
-      userMeanDay.add(0.0);
+    userMeanDay = new double[maxUserID + 1];
+    int[] user_counts = new int[maxUserID + 1];
+    for (int index = 0; index < timed_ratings.size(); index++) {
+      int u = timed_ratings.users().getInt(index);
+      userMeanDay[u] += rating_days[index];
+      user_counts[u]++;
+    }
 
-    for (int i = 0; i < timed_ratings.size(); i++)
-      userMeanDay.set(ratings.users().get(i), userMeanDay.get(ratings.users().get(i)) + relativeDay(timed_ratings.times().get(i)));  
-    
     for (int u = 0; u <= maxUserID; u++)
-      if (ratings.countByUser().get(u) != 0)
-        userMeanDay.set(u, userMeanDay.get(u) / ratings.countByUser().get(u));
+      if (user_counts[u] != 0)
+        userMeanDay[u] /= user_counts[u];
       else // no ratings yet?
-        userMeanDay.set(u, new Double(relativeDay(timed_ratings.latestTime()))); // set to latest day
+        userMeanDay[u] = relativeDay(timed_ratings.latestTime()); // set to latest day
 
     for (int i = 0; i < numIter; i++)
       iterate();
@@ -229,42 +255,76 @@ public class TimeAwareBaseline extends TimeAwareRatingPredictor implements IIter
    * Initialize the model parameters.
    */
   protected void initModel() {
-    
+
     int number_of_days = (int)((timed_ratings.latestTime().getTime() - timed_ratings.earliestTime().getTime()) / (24 * 3600000));
 
-    int number_of_bins = number_of_days / binSize + 1;
+    number_of_bins = number_of_days / binSize + 1;
     System.out.println(number_of_days + " days, " + number_of_bins + " bins");
 
+    // Find the days on which each user has rated
+    rating_days = timed_ratings.days();
+    rating_bins = timed_ratings.bins(binSize);
+    int[] rating_users = new int[timed_ratings.size()];
+    for (int index = 0; index < timed_ratings.size(); index++)
+      rating_users[index] = timed_ratings.users().getInt(index);
+    rating_day_positions = new int[timed_ratings.size()];
+    user_days = new CompressedSparseRows(maxUserID + 1, number_of_days + 1, rating_users, rating_days, rating_day_positions);
+
     // Initialize parameters
-    user_bias = new ArrayList<Double>(maxUserID + 1);    
-    item_bias = new ArrayList<Double>(maxItemID + 1);
-    alpha = new ArrayList<Double>(maxUserID + 1);
-
-    item_bias_by_time_bin = new Matrix<Double>(maxItemID + 1, number_of_bins, 0.0);
-    user_bias_by_day = new SparseMatrix<Double>(maxUserID + 1, number_of_days, 0.0);
-    user_scaling = new ArrayList<Double>(maxUserID + 1);
-    user_scaling_by_day = new SparseMatrix<Double>(maxUserID + 1, number_of_days, 0.0);
-
-    for (int i = 0; i <= maxUserID; i++) {
-      user_bias.add(0.0);
-      item_bias.add(0.0);
-      alpha.add(0.0);
-      user_scaling.add(0.0);
-    }
+    user_bias = new double[maxUserID + 1];
+    item_bias = new double[maxItemID + 1];
+    alpha = new double[maxUserID + 1];
+
+    item_bias_by_time_bin = new double[(maxItemID + 1) * number_of_bins];
+    user_bias_by_day = new double[user_days.size()];
+    user_scaling = new double[maxUserID + 1];
+    user_scaling_by_day = new double[user_days.size()];
+
+    gradientOptimizer = Optimizer.create(optimizer);
+    gradientOptimizer.batchSize = batchSize;
+    userBiasState = gradientOptimizer.createState();
+    itemBiasState = gradientOptimizer.createState();
+    alphaState = gradientOptimizer.createState();
+    itemBiasByTimeBinState = gradientOptimizer.createState();
+    userBiasByDayState = gradientOptimizer.createState();
+    userScalingState = gradientOptimizer.createState();
+    userScalingByDayState = gradientOptimizer.createState();
+  }
+
+  /**
+   * Apply the updates accumulated in the current mini-batch.
+   */
+  protected void applyUpdates() {
+    userBiasState.apply(user_bias);
+    itemBiasState.apply(item_bias);
+    alphaState.apply(alpha);
+    itemBiasByTimeBinState.apply(item_bias_by_time_bin);
+    userBiasByDayState.apply(user_bias_by_day);
+    userScalingState.apply(user_scaling);
+    userScalingByDayState.apply(user_scaling_by_day);
   }
 
   /**
    */
   public void iterate() {
     for (int index : timed_ratings.randomIndex()) {
-      int u = timed_ratings.users().get(index);
-      int i = timed_ratings.items().get(index);
-      int day = relativeDay(timed_ratings.times().get(index));
-      int bin = day / binSize;
-      
+      int u = timed_ratings.users().getInt(index);
+      int i = timed_ratings.items().getInt(index);
+      int day = rating_days[index];
+      int bin = rating_bins[index];
+      int day_position = rating_day_positions[index];
+
       // Compute error
-      double err = timed_ratings.get(index) - predict(u, i, day, bin);
-      updateParameters(u, i, day, bin, err);
+      double err = timed_ratings.get(index) - predict(u, i, day, bin, day_position);
+      updateParameters(u, i, day, bin, day_position, err);
+
+      if (gradientOptimizer.exampleDone())
+        applyUpdates();
+    }
+
+    if (gradientOptimizer.isBatched()) {
+      applyUpdates();
+      gradientOptimizer.resetBatch();
     }
   }
 
@@ -274,24 +334,27 @@ public class TimeAwareBaseline extends TimeAwareRatingPredictor implements IIter
    * <param name='i'>the item ID
    * <param name='day'>the day of the rating
    * <param name='bin'>the day bin of the rating
+   * <param name='day_position'>the position of the user and day in user_days
    * <param name='err'>the current error made for this rating
    */
-  protected void updateParameters(int u, int i, int day, int bin, double err) {
+  protected void updateParameters(int u, int i, int day, int bin, int day_position, double err) {
     // Update user biases
-    double dev_u = Math.signum(day - userMeanDay.get(u)) * Math.pow(Math.abs(day - userMeanDay.get(u)), beta);
-    alpha.set(u, alpha.get(u)                                 + 2 * alphaLearnRate         * (err                    * dev_u - regAlpha * alpha.get(u)));
-    user_bias.set(u, user_bias.get(u)                         + 2 * userBiasLearnRate      * (err - regU             * user_bias.get(u)));
-    user_bias_by_day.set(u, day, user_bias_by_day.get(u, day) + 2 * userBiasByDayLearnRate * (err - regUserBiasByDay * user_bias_by_day.get(u, day)));
+    double dev_u = Math.signum(day - userMeanDay[u]) * Math.pow(Math.abs(day - userMeanDay[u]), beta);
+    double b_ud  = user_bias_by_day[day_position];
+    alpha[u]     += alphaState.update(u,    err * dev_u - regAlpha * alpha[u], 2 * alphaLearnRate);
+    user_bias[u] += userBiasState.update(u, err - regU * user_bias[u],         2 * userBiasLearnRate);
+    user_bias_by_day[day_position] += userBiasByDayState.update(day_position, err - regUserBiasByDay * b_ud, 2 * userBiasByDayLearnRate);
 
     // Update item biases and user scalings
-    double b_i  = item_bias.get(i);
-    double b_ib = item_bias_by_time_bin.get(i, bin);
-    double c_u  = user_scaling.get(u);
-    double c_ud = user_scaling_by_day.get(u, day);
-    item_bias.set(i,                   item_bias.get(i)                 + 2 * itemBiasLearnRate          * (err * (c_u + c_ud) - regI                 * b_i));
-    item_bias_by_time_bin.set(i, bin, item_bias_by_time_bin.get(i, bin) + 2 * itemBiasByTimeBinLearnRate * (err * (c_u + c_ud) - regItemBiasByTimeBin * b_ib));
-    user_scaling.set(u,               user_scaling.get(u)               + 2 * userScalingLearnRate       * (err * (b_i + b_ib) - regUserScaling       * (c_u - 1)));
-    user_scaling_by_day.set(u, day,   user_scaling_by_day.get(u, day)   + 2 * userScalingByDayLearnRate  * (err * (b_i + b_ib) - regUserScalingByDay  * c_ud));
+    int bin_index = i * number_of_bins + bin;
+    double b_i  = item_bias[i];
+    double b_ib = item_bias_by_time_bin[bin_index];
+    double c_u  = user_scaling[u];
+    double c_ud = user_scaling_by_day[day_position];
+    item_bias[i]    += itemBiasState.update(i, err * (c_u + c_ud) - regI * b_i, 2 * itemBiasLearnRate);
+    item_bias_by_time_bin[bin_index] += itemBiasByTimeBinState.update(bin_index, err * (c_u + c_ud) - regItemBiasByTimeBin * b_ib, 2 * itemBiasByTimeBinLearnRate);
+    user_scaling[u] += userScalingState.update(u, err * (b_i + b_ib) - regUserScaling * (c_u - 1), 2 * userScalingLearnRate);
+    user_scaling_by_day[day_position] += userScalingByDayState.update(day_position, err * (b_i + b_ib) - regUserScalingByDay * c_ud, 2 * userScalingByDayLearnRate);
   }
 
   /**
@@ -299,73 +362,80 @@ public class TimeAwareBaseline extends TimeAwareRatingPredictor implements IIter
   public double predict(int user_id, int item_id) {
     double result = global_average;
     if (user_id <= maxUserID)
-      result += user_bias.get(user_id);
+      result += user_bias[user_id];
     if (item_id <= maxItemID)
-      result += item_bias.get(item_id);
+      result += item_bias[item_id];
 
     return result;
   }
 
   /**
    * Predict the specified user_id, item_id, day and bin.
-   * 
+   *
    * Assumes user and item IDs are valid.
-   * 
+   *
    * <param name='user_id'>the user ID
    * <param name='item_id'>the item ID
    * <param name='day'>the day of the rating
    * <param name='bin'>the day bin of the rating
+   * <param name='day_position'>the position of the user and day in user_days
    */
-  protected double predict(int user_id, int item_id, int day, int bin) {
+  protected double predict(int user_id, int item_id, int day, int bin, int day_position) {
     double result = global_average;
 
-    double dev_u = Math.signum(day - userMeanDay.get(user_id)) * Math.pow(Math.abs(day - userMeanDay.get(user_id)), beta);
-    result += user_bias.get(user_id) + alpha.get(user_id) * dev_u + user_bias_by_day.get(user_id, day);    
-    result += (item_bias.get(item_id) + item_bias_by_time_bin.get(item_id, bin)) ;  //  * (user_scaling.get(user_id) + user_scaling_by_day.get(user_id, day));
+    double dev_u = Math.signum(day - userMeanDay[user_id]) * Math.pow(Math.abs(day - userMeanDay[user_id]), beta);
+    result += user_bias[user_id] + alpha[user_id] * dev_u + user_bias_by_day[day_position];
+    result += (item_bias[item_id] + item_bias_by_time_bin[item_id * number_of_bins + bin]) ;  //  * (user_scaling.get(user_id) + user_scaling_by_day.get(user_id, day));
 
     return result;
   }
 
   /**
-   * 
+   *
    */
-  @SuppressWarnings("deprecation")
   public double predict(int user_id, int item_id, Date time) {
     int day = relativeDay(time);
     int bin = day / binSize;
 
     // Use latest day bin if the rating time is after the training time period
-    if (bin >= item_bias_by_time_bin.numberOfColumns())
-      bin = item_bias_by_time_bin.numberOfColumns() - 1;
+    if (bin >= number_of_bins)
+      bin = number_of_bins - 1;
+    if (bin < 0)
+      bin = 0;
+
+    // -1 for new users and for days on which the user has not rated
+    int day_position = user_days.find(user_id, day);
 
     double result = global_average;
     if (user_id <= maxUserID) {
-      double dev_u = Math.signum(day - userMeanDay.get(user_id)) * Math.pow(Math.abs(day - userMeanDay.get(user_id)), beta);
-      result += user_bias.get(user_id) + alpha.get(user_id) * dev_u;
-      if (day <= timed_ratings.latestTime().getDay())
-        result += user_bias_by_day.get(user_id, day);
+      double dev_u = Math.signum(day - userMeanDay[user_id]) * Math.pow(Math.abs(day - userMeanDay[user_id]), beta);
+      result += user_bias[user_id] + alpha[user_id] * dev_u;
+      if (day_position != -1)
+        result += user_bias_by_day[day_position];
     }
 
-    if (item_id <= maxItemID && user_id > maxUserID)
-      result += item_bias.get(item_id) + item_bias_by_time_bin.get(item_id, bin);
-    if (item_id <= maxItemID && user_id <= maxUserID && day < user_scaling_by_day.numberOfColumns())
-      result += (item_bias.get(item_id) + item_bias_by_time_bin.get(item_id, bin)) * (user_scaling.get(user_id) + user_scaling_by_day.get(user_id, day));
+    if (item_id <= maxItemID) {
+      double item_term = item_bias[item_id] + item_bias_by_time_bin[item_id * number_of_bins + bin];
+      if (user_id <= maxUserID)
+        item_term *= user_scaling[user_id] + (day_position != -1 ? user_scaling_by_day[day_position] : 0);
+      result += item_term;
+    }
 
     return result;
   }
 
   /**
-   * 
+   *
    */
   public double computeLoss() {
     double loss =
         2 * Ratings.evaluate(this, ratings).get("RMSE")
-            + regU                 * Math.pow(VectorExtensions.euclideanNorm(user_bias),                 2)
-            + regI                 * Math.pow(VectorExtensions.euclideanNorm(item_bias),                 2)
-            + regAlpha             * Math.pow(VectorExtensions.euclideanNorm(alpha),                     2)
-            + regUserBiasByDay     * Math.pow(SparseMatrixExtensions.frobeniusNorm(user_bias_by_day),    2)
-            + regItemBiasByTimeBin * Math.pow(MatrixExtensions.frobeniusNorm(item_bias_by_time_bin)    , 2)
-            + regUserScalingByDay  * Math.pow(SparseMatrixExtensions.frobeniusNorm(user_scaling_by_day), 2);
+            + regU                 * Math.pow(VectorExtensions.euclideanNorm(user_bias),             2)
+            + regI                 * Math.pow(VectorExtensions.euclideanNorm(item_bias),             2)
+            + regAlpha             * Math.pow(VectorExtensions.euclideanNorm(alpha),                 2)
+            + regUserBiasByDay     * Math.pow(VectorExtensions.euclideanNorm(user_bias_by_day),      2)
+            + regItemBiasByTimeBin * Math.pow(VectorExtensions.euclideanNorm(item_bias_by_time_bin), 2)
+            + regUserScalingByDay  * Math.pow(VectorExtensions.euclideanNorm(user_scaling_by_day),   2);
 
     double user_scaling_reg_term = 0;
     for (double e : user_scaling)
@@ -384,6 +454,8 @@ public class TimeAwareBaseline extends TimeAwareRatingPredictor implements IIter
         + " num_iter="                         + numIter
         + " bin_size="                         + binSize
         + " beta="                             + beta
+        + " optimizer="                        + optimizer
+        + " batch_size="                       + batchSize
         + " user_bias_learn_rate="             + userBiasLearnRate
         + " item_bias_learn_rate="             + itemBiasLearnRate
         + " alpha_learn_rate="                 + alphaLearnRate
@@ -19,11 +19,8 @@ package org.mymedialite.ratingprediction;
 
 import java.util.Date;
 
-import org.mymedialite.datatype.MatrixExtensions;
-import org.mymedialite.datatype.Pair;
-import org.mymedialite.datatype.SparseMatrix;
-import org.mymedialite.datatype.SparseMatrixExtensions;
 import org.mymedialite.datatype.VectorExtensions;
+import org.mymedialite.optimization.OptimizerState;
 
 /**
  * Time-aware bias model with frequencies.
@@ -42,7 +39,8 @@ import org.mymedialite.datatype.VectorExtensions;
 public class TimeAwareBaselineWithFrequencies extends TimeAwareBaseline {
 
   // Additional parameters
-  SparseMatrix<Double> item_bias_at_frequency;
+  double[] item_bias_at_frequency;  // items : rows, log frequencies : columns, row by row
+  OptimizerState itemBiasAtFrequencyState;
 
   // Additional hyper-parameters
 
@@ -62,7 +60,8 @@ public class TimeAwareBaselineWithFrequencies extends TimeAwareBaseline {
   public double ItemBiasAtFrequencyLearnRate;
 
   // Additional helper data structures
-  SparseMatrix<Integer> log_frequency_by_day;
+  int[] log_frequency_by_day;  // by position in user_days
+  int number_of_frequencies;
 
   /**
    * Default constructor.
@@ -97,56 +96,51 @@ public class TimeAwareBaselineWithFrequencies extends TimeAwareBaseline {
 
   /**
    */
-  public void train() {
-    // TODO check for better way to do this.
-    int number_of_days = (int)((timed_ratings.latestTime().getTime() - timed_ratings.earliestTime().getTime()) / (24 * 3600000));
+  protected void initModel() {
+    super.initModel();
 
-    // Compute log rating frequencies
-    log_frequency_by_day = new SparseMatrix<Integer>(maxUserID + 1, number_of_days, 0);
-
-    // First count the frequencies ...
-    for (int i = 0; i < timed_ratings.size(); i++) {
-      int day = relativeDay(timed_ratings.times().get(i));
-      log_frequency_by_day.set(timed_ratings.users().get(i), day, log_frequency_by_day.get(timed_ratings.users().get(i), day) + 1);
-    }
+    // Compute log rating frequencies: first count the frequencies ...
+    log_frequency_by_day = new int[user_days.size()];
+    for (int index = 0; index < timed_ratings.size(); index++)
+      log_frequency_by_day[rating_day_positions[index]]++;
 
     // ... then apply (rounded) logarithm
-    for (Pair<Integer, Integer> index_pair : log_frequency_by_day.nonEmptyEntryIDs())
-      log_frequency_by_day.set(index_pair.first, index_pair.second, 
-          (int) Math.ceil(Math.log(log_frequency_by_day.get(index_pair.first, index_pair.second)) / Math.log(FrequencyLogBase)));
+    int max_log_frequency = 0;
+    for (int pos = 0; pos < log_frequency_by_day.length; pos++) {
+      log_frequency_by_day[pos] = (int) Math.ceil(Math.log(log_frequency_by_day[pos]) / Math.log(FrequencyLogBase));
+      max_log_frequency = Math.max(max_log_frequency, log_frequency_by_day[pos]);
+    }
 
-    super.train();
+    number_of_frequencies = max_log_frequency + 1;
+    item_bias_at_frequency = new double[(maxItemID + 1) * number_of_frequencies];
+    itemBiasAtFrequencyState = gradientOptimizer.createState();
   }
 
   /**
    */
-  protected void initModel() {
-    super.initModel();
-    item_bias_at_frequency = new SparseMatrix<Double>(maxItemID + 1, SparseMatrixExtensions.maxInteger(log_frequency_by_day), 0.0);
+  protected void applyUpdates() {
+    super.applyUpdates();
+    itemBiasAtFrequencyState.apply(item_bias_at_frequency);
   }
 
   /**
    * 
    */
-  protected void updateParameters(int u, int i, int day, int bin, double err) {
-    super.updateParameters(u, i, day, bin, err);
+  protected void updateParameters(int u, int i, int day, int bin, int day_position, double err) {
+    super.updateParameters(u, i, day, bin, day_position, err);
 
     // Update additional bias
-    int f = log_frequency_by_day.get(u, day);
-    double b_i_f_ui  = item_bias_at_frequency.get(i, f);
-    item_bias_at_frequency.set(i, f, item_bias_at_frequency.get(i, f) + 2 * ItemBiasAtFrequencyLearnRate * (err * b_i_f_ui - RegItemBiasAtFrequency * b_i_f_ui));
+    int index = i * number_of_frequencies + log_frequency_by_day[day_position];
+    double b_i_f_ui = item_bias_at_frequency[index];
+    item_bias_at_frequency[index] += itemBiasAtFrequencyState.update(index, err * b_i_f_ui - RegItemBiasAtFrequency * b_i_f_ui, 2 * ItemBiasAtFrequencyLearnRate);
   }
 
   /**
    * 
    */
-  protected double predict(int user_id, int item_id, int day, int bin) {
-    double result = super.predict(user_id, item_id, day, bin);
-    // TODO should this be relative day?
-    if (day <= timed_ratings.latestTime().getDay())
-      result += item_bias_at_frequency.get(item_id, log_frequency_by_day.get(user_id, day));
-
-      return result;
+  protected double predict(int user_id, int item_id, int day, int bin, int day_position) {
+    return super.predict(user_id, item_id, day, bin, day_position)
+        + item_bias_at_frequency[item_id * number_of_frequencies + log_frequency_by_day[day_position]];
   }
 
   /**
@@ -154,10 +148,12 @@ public class TimeAwareBaselineWithFrequencies extends TimeAwareBaseline {
    */
   public double predict(int user_id, int item_id, Date time) {
     double result = super.predict(user_id, item_id, time);
-    int day = relativeDay(time);
-    // TODO should this be relative day?
-    if (day <= timed_ratings.latestTime().getDay())
-      result += item_bias_at_frequency.get(item_id, log_frequency_by_day.get(user_id, day));
+    if (item_id <= maxItemID) {
+      // Days on which the user has not rated count as frequency 1, i.e. log frequency 0
+      int day_position = user_days.find(user_id, relativeDay(time));
+      int f = day_position != -1 ? log_frequency_by_day[day_position] : 0;
+      result += item_bias_at_frequency[item_id * number_of_frequencies + f];
+    }
 
     return result;
   }
@@ -167,7 +163,7 @@ public class TimeAwareBaselineWithFrequencies extends TimeAwareBaseline {
    */
   public double computeLoss() {
     return super.computeLoss()
-        + RegItemBiasAtFrequency * Math.pow(SparseMatrixExtensions.frobeniusNorm(item_bias_at_frequency), 2);
+        + RegItemBiasAtFrequency * Math.pow(VectorExtensions.euclideanNorm(item_bias_at_frequency), 2);
   }
 
 /**
@@ -178,6 +174,8 @@ public String toString() {
       + " num_iter="                         + numIter
       + " bin_size="                         + binSize
       + " beta="                             + beta
+      + " optimizer="                        + optimizer
+      + " batch_size="                       + batchSize
       + " user_bias_learn_rate="             + userBiasLearnRate
       + " item_bias_learn_rate="             + itemBiasLearnRate
       + " alpha_learn_rate="                 + alphaLearnRate
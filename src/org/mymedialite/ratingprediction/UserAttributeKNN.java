@@ -24,6 +24,10 @@ import org.mymedialite.datatype.SparseBooleanMatrix;
 /**
  * Weighted kNN recommender based on user attributes.
  * 
+ * The cosine similarities of the user attributes are computed only for users that share attributes,
+ * and only the storedNeighborsFactor * k highest of each user are stored. The k neighbors used for a prediction
+ * are the most similar of them that have rated the item, so a larger factor covers more rated neighbors at the cost of memory.
+ * 
  * This recommender does NOT support incremental updates.
  * @version 2.03
  */
@@ -31,6 +35,12 @@ public class UserAttributeKNN extends UserKNN implements IUserAttributeAwareReco
 
   private SparseBooleanMatrix userAttributes;
   private int numUserAttributes;
+
+  /** The number of threads used for computing the similarities, 0 for the number of available processors */
+  public int numThreads = 0;
+
+  /** The number of similarities stored for each user, as a multiple of k */
+  public int storedNeighborsFactor = 10;
   
   public SparseBooleanMatrix getUserAttributes() { 
     return userAttributes;
@@ -58,7 +68,7 @@ public class UserAttributeKNN extends UserKNN implements IUserAttributeAwareReco
    */
   public void train() {
     baseline_predictor.train();
-    this.correlation = BinaryCosine.create(userAttributes);
+    this.correlation = BinaryCosine.createSparse(userAttributes, (int) Math.min(Integer.MAX_VALUE, (long) k * storedNeighborsFactor), numThreads);
   }
 
   public String toString() {
@@ -18,18 +18,20 @@
 package org.mymedialite.ratingprediction;
 
 import it.unimi.dsi.fastutil.ints.IntList;
+import java.util.Arrays;
 
-import java.util.List;
-
+import org.mymedialite.IBatchRecommender;
 import org.mymedialite.IUserSimilarityProvider;
 import org.mymedialite.data.IRatings;
 import org.mymedialite.datatype.SparseBooleanMatrix;
 
 /**
  * Weighted user-based kNN.
+ *
+ * The residuals are cached per item, the neighbors per user.
  * @version 2.03
  */
-public abstract class UserKNN extends KNN implements IUserSimilarityProvider {
+public abstract class UserKNN extends KNN implements IUserSimilarityProvider, IBatchRecommender {
 
   /**
    * boolean matrix indicating which user rated which item.
@@ -59,36 +61,92 @@ public abstract class UserKNN extends KNN implements IUserSimilarityProvider {
     if ((user_id > correlation.numberOfRows() - 1) || (item_id > maxItemID))
       return baseline_predictor.predict(user_id, item_id);
 
-    IntList relevant_users = correlation.getPositivelyCorrelatedEntities(user_id);
-
-    double sum = 0;
-    double weight_sum = 0;
-    int neighbors = k;
-    for (int user_id2 : relevant_users) {
-      if (data_user.get(user_id2, item_id)) {
-        
-        double rating = ratings.get(user_id2, item_id, ratings.byUser().get(user_id2));
+    double result = baseline_predictor.predict(user_id, item_id);
+    result += weightedAverage(neighbors(user_id), residuals(item_id));
+    return clip(result);
+  }
 
-        double weight = correlation.get(user_id, user_id2);
-        weight_sum += weight;
-        sum += weight * (rating - baseline_predictor.predict(user_id2, item_id));
+  /**
+   * Predict the ratings of a given user for several items.
+   *
+   * The neighbor weights of the user are scattered into a dense array once, so that scoring an item
+   * is a loop over the item's residuals without any lookups.
+   * 
+   * @param user_id the user ID
+   * @param item_ids the item IDs
+   * @return the predicted ratings, in the order of item_ids
+   */
+  public double[] predict(int user_id, int[] item_ids) {
+    double[] result = new double[item_ids.length];
+    int num_users = correlation.numberOfRows();
+    if (user_id > num_users - 1 || k != Integer.MAX_VALUE) {
+      for (int i = 0; i < item_ids.length; i++)
+        result[i] = predict(user_id, item_ids[i]);
+      return result;
+    }
 
-        if (--neighbors == 0)
-          break;
+    NeighborArray neighbors = neighbors(user_id);
+    double[] dense_weights = new double[num_users];
+    for (int n = 0; n < neighbors.ids.length; n++)
+      dense_weights[neighbors.ids[n]] = neighbors.weights[n];
+
+    for (int i = 0; i < item_ids.length; i++) {
+      int item_id = item_ids[i];
+      double prediction = baseline_predictor.predict(user_id, item_id);
+      if (item_id <= maxItemID) {
+        ResidualVector item_residuals = residuals(item_id);
+        int[] ids = item_residuals.ids;
+        double[] residuals = item_residuals.residuals;
+        double sum = 0;
+        double weight_sum = 0;
+        for (int r = 0; r < ids.length; r++) {
+          int user_id2 = ids[r];
+          if (user_id2 < num_users) {
+            sum += dense_weights[user_id2] * residuals[r];
+            weight_sum += dense_weights[user_id2];
+          }
+        }
+        if (weight_sum != 0)
+          prediction += sum / weight_sum;
+        prediction = clip(prediction);
       }
+      result[i] = prediction;
     }
+    return result;
+  }
 
-    double result = baseline_predictor.predict(user_id, item_id);
-    if (weight_sum != 0) {
-      double modification = sum / weight_sum;
-      result += modification;
+  /**
+   * 
+   */
+  protected ResidualVector computeResiduals(int item_id) {
+    if (item_id >= ratings.byItem().size())
+      return new ResidualVector(new int[0], new double[0]);
+    IntList indices = ratings.byItem().get(item_id);
+    long[] order = new long[indices.size()];
+    for (int n = 0; n < order.length; n++)
+      order[n] = ((long) ratings.users().getInt(indices.getInt(n)) << 32) | n;
+    Arrays.sort(order);
+
+    int[] ids = new int[order.length];
+    double[] residuals = new double[order.length];
+    for (int n = 0; n < order.length; n++) {
+      int index = indices.getInt((int) order[n]);
+      ids[n] = (int) (order[n] >>> 32);
+      residuals[n] = ratings.get(index) - baseline_predictor.predict(ids[n], item_id);
     }
+    return new ResidualVector(ids, residuals);
+  }
 
-    if (result > maxRating)
-      result = maxRating;
-    if (result < minRating)
-      result = minRating;
-    return result;
+  /**
+   * Drop the cached residuals that depend on the baseline biases of a user and an item.
+   * @param user_id the user ID
+   * @param item_id the item ID
+   */
+  private void clearResiduals(int user_id, int item_id) {
+    clearResiduals(item_id);
+    if (user_id < ratings.byUser().size())
+      for (int index : ratings.byUser().get(user_id))
+        clearResiduals(ratings.items().getInt(index));
   }
 
   /**
@@ -103,6 +161,8 @@ public abstract class UserKNN extends KNN implements IUserSimilarityProvider {
     baseline_predictor.addRating(user_id, item_id, rating);
     data_user.set(user_id, item_id, true);
     retrainUser(user_id);
+    clearNeighbors();
+    clearResiduals(user_id, item_id);
   }
 
   /**
@@ -110,6 +170,8 @@ public abstract class UserKNN extends KNN implements IUserSimilarityProvider {
   public void updateRating(int user_id, int item_id, double rating) {
     baseline_predictor.updateRating(user_id, item_id, rating);
     retrainUser(user_id);
+    clearNeighbors();
+    clearResiduals(user_id, item_id);
   }
 
   /**
@@ -118,6 +180,8 @@ public abstract class UserKNN extends KNN implements IUserSimilarityProvider {
     baseline_predictor.removeRating(user_id, item_id);
     data_user.set(user_id, item_id, false);
     retrainUser(user_id);
+    clearNeighbors();
+    clearResiduals(user_id, item_id);
   }
 
   /**
@@ -0,0 +1,222 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Lightweight local HTTP endpoint for a recommender service, e.g. for load testing.
+ *
+ * Requests:
+ *   GET /predict?user=U&amp;items=I1,I2,...[&amp;timeout=MS]
+ *     returns one line "item score" per item
+ *   GET /recommend?user=U&amp;n=N[&amp;items=I1,I2,...][&amp;timeout=MS]
+ *     returns one line per recommended item ID, best first; without items, all candidate items are ranked
+ *
+ * The handlers do not wait for the results: the response is written by the service's callback,
+ * so the HTTP dispatcher thread is free for the next request, and concurrent requests can be coalesced.
+ * Bad requests get status 400, rejected requests 503 and timed out requests 504.
+ * @version 2.03
+ */
+public class RecommenderHttpServer {
+
+  private final RecommenderService service;
+  private final int[] candidate_items;
+  private final HttpServer server;
+
+  /**
+   * Create an endpoint on the loopback interface.
+   * @param service the service
+   * @param candidate_items the items that /recommend ranks if the request has no items
+   * @param port the port, 0 for any free port
+   * @throws IOException if the port cannot be bound
+   */
+  public RecommenderHttpServer(RecommenderService service, int[] candidate_items, int port) throws IOException {
+    this(service, candidate_items, new InetSocketAddress("127.0.0.1", port));
+  }
+
+  /**
+   * Create an endpoint.
+   * @param service the service
+   * @param candidate_items the items that /recommend ranks if the request has no items
+   * @param address the address to bind to
+   * @throws IOException if the address cannot be bound
+   */
+  public RecommenderHttpServer(RecommenderService service, int[] candidate_items, InetSocketAddress address) throws IOException {
+    this.service = service;
+    this.candidate_items = candidate_items.clone();
+    this.server = HttpServer.create(address, 0);
+    server.createContext("/predict", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handlePredict(exchange);
+      }
+    });
+    server.createContext("/recommend", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handleRecommend(exchange);
+      }
+    });
+  }
+
+  /**
+   * Start serving requests.
+   */
+  public void start() {
+    server.start();
+  }
+
+  /**
+   * Stop serving requests.
+   * @param delay the maximum time in seconds to wait for open exchanges to finish
+   */
+  public void stop(int delay) {
+    server.stop(delay);
+  }
+
+  /**
+   * Get the port the endpoint is bound to.
+   * @return the port
+   */
+  public int port() {
+    return server.getAddress().getPort();
+  }
+
+  private void handlePredict(final HttpExchange exchange) throws IOException {
+    final int[] item_ids;
+    int user_id;
+    long timeout;
+    try {
+      Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+      user_id = Integer.parseInt(required(parameters, "user"));
+      item_ids = parseIDs(required(parameters, "items"));
+      timeout = parameters.containsKey("timeout") ? Long.parseLong(parameters.get("timeout")) : 0;
+    } catch (IllegalArgumentException e) {
+      respond(exchange, 400, e.getMessage() + "\n");
+      return;
+    }
+
+    service.predict(user_id, item_ids, timeout, new RecommenderService.Callback<double[]>() {
+      public void completed(double[] scores) {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < item_ids.length; i++)
+          body.append(item_ids[i]).append(' ').append(scores[i]).append('\n');
+        respond(exchange, 200, body.toString());
+      }
+      public void failed(Throwable error) {
+        respondError(exchange, error);
+      }
+    });
+  }
+
+  private void handleRecommend(final HttpExchange exchange) throws IOException {
+    int[] item_ids;
+    int user_id;
+    int n;
+    long timeout;
+    try {
+      Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+      user_id = Integer.parseInt(required(parameters, "user"));
+      n = Integer.parseInt(required(parameters, "n"));
+      item_ids = parameters.containsKey("items") ? parseIDs(parameters.get("items")) : candidate_items;
+      timeout = parameters.containsKey("timeout") ? Long.parseLong(parameters.get("timeout")) : 0;
+    } catch (IllegalArgumentException e) {
+      respond(exchange, 400, e.getMessage() + "\n");
+      return;
+    }
+
+    service.recommend(user_id, item_ids, n, timeout, new RecommenderService.Callback<int[]>() {
+      public void completed(int[] top_items) {
+        StringBuilder body = new StringBuilder();
+        for (int item_id : top_items)
+          body.append(item_id).append('\n');
+        respond(exchange, 200, body.toString());
+      }
+      public void failed(Throwable error) {
+        respondError(exchange, error);
+      }
+    });
+  }
+
+  private static void respondError(HttpExchange exchange, Throwable error) {
+    if (error instanceof ExecutionException && error.getCause() != null)
+      error = error.getCause();
+    int status = 500;
+    if (error instanceof RejectedExecutionException)
+      status = 503;
+    else if (error instanceof TimeoutException)
+      status = 504;
+    respond(exchange, status, error.toString() + "\n");
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) {
+    try {
+      byte[] bytes = body.getBytes("UTF-8");
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    } catch (IOException e) {
+      // The client has gone away
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static String required(Map<String, String> parameters, String name) {
+    String value = parameters.get(name);
+    if (value == null)
+      throw new IllegalArgumentException("missing parameter: " + name);
+    return value;
+  }
+
+  private static Map<String, String> parseQuery(String query) {
+    Map<String, String> parameters = new HashMap<String, String>();
+    if (query == null)
+      return parameters;
+    for (String pair : query.split("&")) {
+      int pos = pair.indexOf('=');
+      if (pos > 0)
+        parameters.put(pair.substring(0, pos), pair.substring(pos + 1));
+    }
+    return parameters;
+  }
+
+  private static int[] parseIDs(String value) {
+    if (value.length() == 0)
+      return new int[0];
+    String[] tokens = value.split(",|%2C|%2c");
+    int[] ids = new int[tokens.length];
+    for (int i = 0; i < tokens.length; i++)
+      ids[i] = Integer.parseInt(tokens[i]);
+    return ids;
+  }
+
+}
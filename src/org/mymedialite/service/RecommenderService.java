@@ -0,0 +1,528 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.service;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mymedialite.IBatchRecommender;
+import org.mymedialite.IRecommender;
+import org.mymedialite.datatype.VectorExtensions;
+import org.mymedialite.util.Parallel;
+
+/**
+ * Asynchronous in-process service over a trained recommender.
+ *
+ * All calls return at once with a Future, and report the result to an optional Callback when it is ready,
+ * so callers do not need threads of their own.
+ * The work runs on a fixed number of worker threads with a bounded queue: when the queue is full,
+ * a call fails at once with a RejectedExecutionException, so overload is pushed back to the callers
+ * instead of piling up.
+ *
+ * Concurrent single-item predictions for the same user are coalesced: while a batch of the user waits in the queue,
+ * new requests join it, and the whole batch is scored with one call of IBatchRecommender.predict()
+ * if the recommender supports it.
+ * Each call can have a timeout: at its deadline the call fails with a TimeoutException, even if it is still
+ * waiting in the queue, and it is not computed any more.
+ *
+ * The recommender must not be trained or updated while the service is running.
+ * @version 2.03
+ */
+public class RecommenderService {
+
+  /**
+   * Receives the result of an asynchronous call.
+   * The methods are called on a worker thread, on a separate callback thread if the call times out,
+   * or on the calling thread if the call is rejected,
+   * and should return quickly.
+   * Exceptions thrown by a callback are passed to the uncaught exception handler of the thread,
+   * and do not affect other calls.
+   * @param <T> the type of the result
+   */
+  public interface Callback<T> {
+
+    /**
+     * Called with the result of a successful call.
+     * @param result the result
+     */
+    void completed(T result);
+
+    /**
+     * Called if the call failed, was rejected, timed out or was cancelled.
+     * @param error the cause
+     */
+    void failed(Throwable error);
+
+  }
+
+  private final IRecommender recommender;
+  private final ThreadPoolExecutor executor;
+  private final int max_batch_size;
+
+  /** Fails the calls at their deadlines */
+  private final ScheduledThreadPoolExecutor timer;
+
+  /** Runs the callbacks of timed out calls, so that a slow callback does not delay the other deadlines */
+  private final ThreadPoolExecutor callback_executor;
+
+  /** Batches of single-item predictions that have not been started yet, by user */
+  private final Map<Integer, Batch> pending_batches = new HashMap<Integer, Batch>();
+
+  /**
+   * Create a service with one worker thread per processor, a queue of 1024 tasks, and batches of at most 256 items.
+   * @param recommender the trained recommender
+   */
+  public RecommenderService(IRecommender recommender) {
+    this(recommender, 0, 1024, 256);
+  }
+
+  /**
+   * Create a service.
+   * @param recommender the trained recommender
+   * @param num_threads the number of worker threads, 0 for the number of available processors
+   * @param queue_capacity the maximum number of tasks waiting for a worker
+   * @param max_batch_size the maximum number of single-item predictions that are coalesced into one batch
+   */
+  public RecommenderService(IRecommender recommender, int num_threads, int queue_capacity, int max_batch_size) {
+    this(recommender, num_threads, queue_capacity, max_batch_size, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "recommender-service-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Create a service whose worker threads come from the given factory,
+   * e.g. a factory of virtual threads on Java versions that have them.
+   * @param recommender the trained recommender
+   * @param num_threads the number of worker threads, 0 for the number of available processors
+   * @param queue_capacity the maximum number of tasks waiting for a worker
+   * @param max_batch_size the maximum number of single-item predictions that are coalesced into one batch
+   * @param thread_factory the factory for the worker threads
+   */
+  public RecommenderService(IRecommender recommender, int num_threads, int queue_capacity, int max_batch_size, ThreadFactory thread_factory) {
+    if (queue_capacity < 1)
+      throw new IllegalArgumentException("queue_capacity must be at least 1: " + queue_capacity);
+    if (max_batch_size < 1)
+      throw new IllegalArgumentException("max_batch_size must be at least 1: " + max_batch_size);
+    this.recommender = recommender;
+    this.max_batch_size = max_batch_size;
+    num_threads = Parallel.numThreads(num_threads);
+    this.executor = new ThreadPoolExecutor(
+        num_threads, num_threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queue_capacity), thread_factory, new ThreadPoolExecutor.AbortPolicy());
+    this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "recommender-service-timer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // Remove cancelled deadlines from the queue at once, so that they do not keep finished calls
+    // and their callbacks alive until they expire; the policy is only available on Java 7 and later
+    try {
+      ScheduledThreadPoolExecutor.class.getMethod("setRemoveOnCancelPolicy", boolean.class).invoke(timer, true);
+    } catch (Exception e) {
+      // Cancelled deadlines stay queued until their delay has elapsed
+    }
+    this.callback_executor = new ThreadPoolExecutor(
+        0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "recommender-service-callback-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Get the recommender.
+   * @return the recommender
+   */
+  public IRecommender getRecommender() {
+    return recommender;
+  }
+
+  /**
+   * Predict the score of a user for an item.
+   * @param user_id the user ID
+   * @param item_id the item ID
+   * @param timeout the timeout in milliseconds, 0 for none
+   * @param callback receives the result, may be null
+   * @return the future result
+   */
+  public Future<Double> predict(int user_id, int item_id, long timeout, Callback<Double> callback) {
+    Result<Double> result = newResult(timeout, callback);
+    Batch batch;
+    synchronized (pending_batches) {
+      batch = pending_batches.get(user_id);
+      if (batch != null && batch.item_ids.size() < max_batch_size) {
+        batch.add(item_id, result);
+        return result;
+      }
+      batch = new Batch(user_id);
+      batch.add(item_id, result);
+      pending_batches.put(user_id, batch);
+    }
+    try {
+      executor.execute(batch);
+    } catch (RejectedExecutionException e) {
+      // Requests may have joined the batch in the meantime
+      batch.close();
+      for (Result<Double> joined : batch.results)
+        joined.fail(e);
+    }
+    return result;
+  }
+
+  /**
+   * Predict the scores of a user for several items.
+   * @param user_id the user ID
+   * @param item_ids the item IDs
+   * @param timeout the timeout in milliseconds, 0 for none
+   * @param callback receives the result, may be null
+   * @return the future predicted scores, in the order of item_ids
+   */
+  public Future<double[]> predict(final int user_id, int[] item_ids, long timeout, Callback<double[]> callback) {
+    final int[] items = item_ids.clone();
+    return submit(new Task<double[]>(newResult(timeout, callback)) {
+      double[] compute() {
+        return score(user_id, items);
+      }
+    });
+  }
+
+  /**
+   * Rank candidate items for a user.
+   * @param user_id the user ID
+   * @param candidate_items the candidate items
+   * @param n the number of items to return
+   * @param timeout the timeout in milliseconds, 0 for none
+   * @param callback receives the result, may be null
+   * @return the future IDs of at most n items, highest score first; items with equal scores keep their order
+   */
+  public Future<int[]> recommend(final int user_id, int[] candidate_items, final int n, long timeout, Callback<int[]> callback) {
+    final int[] items = candidate_items.clone();
+    return submit(new Task<int[]>(newResult(timeout, callback)) {
+      int[] compute() {
+        int[] positions = VectorExtensions.topIndices(score(user_id, items), n, null);
+        int[] top_items = new int[positions.length];
+        for (int i = 0; i < top_items.length; i++)
+          top_items[i] = items[positions[i]];
+        return top_items;
+      }
+    });
+  }
+
+  /**
+   * Stop accepting calls; calls that were already accepted are still computed.
+   */
+  public void shutdown() {
+    executor.shutdown();
+    // Deadlines that are already scheduled still fire
+    timer.shutdown();
+  }
+
+  /**
+   * Wait until all accepted calls have been computed after a shutdown.
+   * @param timeout the maximum time to wait in milliseconds
+   * @return true if the service has terminated, false if the timeout elapsed first
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean awaitTermination(long timeout) throws InterruptedException {
+    return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Get the number of tasks waiting for a worker.
+   * @return the queue length
+   */
+  public int queueLength() {
+    return executor.getQueue().size();
+  }
+
+  private double[] score(int user_id, int[] item_ids) {
+    if (recommender instanceof IBatchRecommender)
+      return ((IBatchRecommender) recommender).predict(user_id, item_ids);
+    double[] scores = new double[item_ids.length];
+    for (int i = 0; i < item_ids.length; i++)
+      scores[i] = recommender.predict(user_id, item_ids[i]);
+    return scores;
+  }
+
+  private <T> Result<T> newResult(long timeout, Callback<T> callback) {
+    final Result<T> result = new Result<T>(callback);
+    if (timeout > 0) {
+      try {
+        result.setTimer(timer.schedule(new Runnable() {
+          public void run() {
+            result.timeOut(callback_executor);
+          }
+        }, timeout, TimeUnit.MILLISECONDS));
+      } catch (RejectedExecutionException e) {
+        // The service has been shut down, the call will be rejected as well
+      }
+    }
+    return result;
+  }
+
+  private <T> Future<T> submit(Task<T> task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.result.fail(e);
+    }
+    return task.result;
+  }
+
+  /**
+   * A call that is computed by a worker unless it has been cancelled or has timed out.
+   */
+  private abstract static class Task<T> implements Runnable {
+    final Result<T> result;
+
+    Task(Result<T> result) {
+      this.result = result;
+    }
+
+    abstract T compute();
+
+    public void run() {
+      if (result.isDone())
+        return;
+      T value;
+      try {
+        value = compute();
+      } catch (Throwable t) {
+        result.fail(t);
+        return;
+      }
+      result.complete(value);
+    }
+  }
+
+  /**
+   * Single-item predictions of one user that are scored together.
+   */
+  private final class Batch implements Runnable {
+    final int user_id;
+    final IntArrayList item_ids = new IntArrayList();
+    final List<Result<Double>> results = new ArrayList<Result<Double>>();
+
+    Batch(int user_id) {
+      this.user_id = user_id;
+    }
+
+    /** Must be called while holding the lock on pending_batches. */
+    void add(int item_id, Result<Double> result) {
+      item_ids.add(item_id);
+      results.add(result);
+    }
+
+    /** Stop other requests from joining the batch. */
+    void close() {
+      synchronized (pending_batches) {
+        if (pending_batches.get(user_id) == this)
+          pending_batches.remove(user_id);
+      }
+    }
+
+    public void run() {
+      close();
+
+      // Drop the requests that have been cancelled or have timed out
+      IntArrayList live_items = new IntArrayList(item_ids.size());
+      List<Result<Double>> live_results = new ArrayList<Result<Double>>(results.size());
+      for (int k = 0; k < results.size(); k++) {
+        Result<Double> result = results.get(k);
+        if (result.isDone())
+          continue;
+        live_items.add(item_ids.getInt(k));
+        live_results.add(result);
+      }
+      if (live_results.isEmpty())
+        return;
+
+      double[] scores;
+      try {
+        scores = score(user_id, live_items.toIntArray());
+      } catch (Throwable t) {
+        for (Result<Double> result : live_results)
+          result.fail(t);
+        return;
+      }
+      for (int k = 0; k < scores.length; k++)
+        live_results.get(k).complete(scores[k]);
+    }
+  }
+
+  /**
+   * The future result of a call.
+   */
+  private static final class Result<T> implements Future<T> {
+    private final Callback<T> callback;
+    private Future<?> timer;
+    private boolean done;
+    private boolean cancelled;
+    private T value;
+    private Throwable error;
+
+    Result(Callback<T> callback) {
+      this.callback = callback;
+    }
+
+    void setTimer(Future<?> timer) {
+      synchronized (this) {
+        if (!done) {
+          this.timer = timer;
+          return;
+        }
+      }
+      timer.cancel(false);
+    }
+
+    void complete(T value) {
+      if (finish(value, null, false) && callback != null)
+        try {
+          callback.completed(value);
+        } catch (Throwable t) {
+          callbackFailed(t);
+        }
+    }
+
+    void fail(Throwable error) {
+      if (finish(null, error, false))
+        notifyFailed(error);
+    }
+
+    /**
+     * Fail the call with a TimeoutException, and call the callback on the given executor.
+     * @param executor the executor for the callback; if it rejects the callback, it is called on this thread
+     */
+    void timeOut(Executor executor) {
+      final TimeoutException error = new TimeoutException("deadline passed");
+      if (!finish(null, error, false) || callback == null)
+        return;
+      Runnable notification = new Runnable() {
+        public void run() {
+          notifyFailed(error);
+        }
+      };
+      try {
+        executor.execute(notification);
+      } catch (RejectedExecutionException e) {
+        notification.run();
+      }
+    }
+
+    private void notifyFailed(Throwable error) {
+      if (callback != null)
+        try {
+          callback.failed(error);
+        } catch (Throwable t) {
+          callbackFailed(t);
+        }
+    }
+
+    private boolean finish(T value, Throwable error, boolean cancelled) {
+      Future<?> timer;
+      synchronized (this) {
+        if (done)
+          return false;
+        this.value = value;
+        this.error = error;
+        this.cancelled = cancelled;
+        this.done = true;
+        timer = this.timer;
+        this.timer = null;
+        notifyAll();
+      }
+      if (timer != null)
+        timer.cancel(false);
+      return true;
+    }
+
+    private static void callbackFailed(Throwable t) {
+      Thread thread = Thread.currentThread();
+      thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+    }
+
+    public boolean cancel(boolean may_interrupt) {
+      if (!finish(null, null, true))
+        return false;
+      notifyFailed(new CancellationException());
+      return true;
+    }
+
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+      return done;
+    }
+
+    public synchronized T get() throws InterruptedException, ExecutionException {
+      while (!done)
+        wait();
+      return report();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      long end = System.nanoTime() + unit.toNanos(timeout);
+      while (!done) {
+        long remaining = end - System.nanoTime();
+        if (remaining <= 0)
+          throw new TimeoutException();
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return report();
+    }
+
+    private T report() throws ExecutionException {
+      if (cancelled)
+        throw new CancellationException();
+      if (error != null)
+        throw new ExecutionException(error);
+      return value;
+    }
+  }
+
+}
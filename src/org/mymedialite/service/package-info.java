@@ -0,0 +1,4 @@
+/**
+ * Provides an asynchronous in-process service layer over trained recommenders. 
+ */
+package org.mymedialite.service;
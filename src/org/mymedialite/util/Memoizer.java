@@ -17,54 +17,412 @@
 
 package org.mymedialite.util;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class to Memoize a function.
  *
- * Provides a version of a function that remembers past function results.
+ * Provides a version of a function over int keys that remembers past function results.
  *
- * @param <A> the type of the single argument
- * @param <R> the type of the return value
+ * The memoizer is safe for concurrent use. The entries are spread over several segments,
+ * each with its own lock and least-recently-used list, so that the total weight of the entries
+ * can be bounded. The loader is called outside of the locks; two threads missing the same key
+ * at the same time may both call it, and one of the results is kept.
+ *
+ * Results that were loaded while their key was invalidated are returned, but not kept.
+ *
+ * @param <V> the type of the return value
  * 
  * @version 2.03
  */
-public class Memoizer<A, R> {
-
-  private Object object;
-  private Method method;
-  private HashMap<A, R> map = new HashMap<A, R>();
-  
-  /**
-   * Create a Memoizer
-   * 
-   * @param object the object on which to invoke the method
-   * @param methodName the method to call
-   * @param argType the single argument type
-   * @throws NoSuchMethodException
-   */
-  public Memoizer(Object object, String methodName, Class<A> argType) {
-    this.object = object;
-    try {
-      this.method = object.getClass().getMethod(methodName, argType);
-    } catch (NoSuchMethodException e) {
-      e.printStackTrace();
-    }  
-  }
-  
+public class Memoizer<V> {
+
+  /**
+   * The function to memoize.
+   * @param <V> the type of the return value
+   */
+  public interface Loader<V> {
+    /**
+     * Compute the value for a key.
+     * @param key the key
+     * @return the value, must not be null
+     */
+    V load(int key);
+  }
+
+  /**
+   * Computes the weight of an entry, e.g. its approximate memory usage.
+   * @param <V> the type of the value
+   */
+  public interface Weigher<V> {
+    /**
+     * Compute the weight of an entry.
+     * @param key the key
+     * @param value the value
+     * @return the weight, at least 0
+     */
+    int weigh(int key, V value);
+  }
+
+  private static final int NUM_SEGMENTS = 16;
+
+  private final Loader<V> loader;
+  private final Weigher<V> weigher;
+  private final Segment[] segments;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Create an unbounded Memoizer.
+   * @param loader the function to memoize
+   */
+  public Memoizer(Loader<V> loader) {
+    this(loader, Long.MAX_VALUE, null);
+  }
+
+  /**
+   * Create a Memoizer that keeps at most a given number of entries.
+   * @param loader the function to memoize
+   * @param max_size the maximum number of entries
+   */
+  public Memoizer(Loader<V> loader, long max_size) {
+    this(loader, max_size, null);
+  }
+
+  /**
+   * Create a Memoizer that keeps entries up to a given total weight.
+   * The least recently used entries are evicted first.
+   * @param loader the function to memoize
+   * @param max_weight the maximum total weight of the entries
+   * @param weigher computes the weight of an entry, null to count entries
+   */
+  public Memoizer(Loader<V> loader, long max_weight, Weigher<V> weigher) {
+    if (max_weight < 1)
+      throw new IllegalArgumentException("max_weight must be at least 1: " + max_weight);
+    this.loader = loader;
+    this.weigher = weigher;
+    segments = new Segment[NUM_SEGMENTS];
+    long segment_weight = Math.max(1, max_weight / NUM_SEGMENTS);
+    for (int s = 0; s < NUM_SEGMENTS; s++)
+      segments[s] = new Segment(segment_weight, evictions);
+  }
+
+  /**
+   * Get the value for a key, computing it if it is not in the memoizer.
+   * @param key the key
+   * @return the value
+   */
   @SuppressWarnings("unchecked")
-  public R get(A a) {
-    R value = map.get(a);
-    if (value != null) return value;
-    try {
-      value = (R) method.invoke(object, a);
-    } catch (Exception e) {
-      e.printStackTrace();
+  public V get(int key) {
+    int hash = hash(key);
+    Segment segment = segments[hash >>> 28];
+    int generation;
+    synchronized (segment) {
+      V value = (V) segment.get(key, hash);
+      if (value != null) {
+        hits.incrementAndGet();
+        return value;
+      }
+      generation = segment.generation;
+    }
+    misses.incrementAndGet();
+
+    V value = loader.load(key);
+    if (value == null)
+      throw new NullPointerException("The loader returned null for key " + key);
+    int weight = weigher == null ? 1 : weigher.weigh(key, value);
+    synchronized (segment) {
+      if (segment.generation != generation)
+        return value;
+      return (V) segment.put(key, hash, value, weight);
+    }
+  }
+
+  /**
+   * Get the value for a key if it is in the memoizer.
+   * This does not count as a hit or miss.
+   * @param key the key
+   * @return the value, null if the key is not in the memoizer
+   */
+  @SuppressWarnings("unchecked")
+  public V getIfPresent(int key) {
+    int hash = hash(key);
+    Segment segment = segments[hash >>> 28];
+    synchronized (segment) {
+      return (V) segment.get(key, hash);
+    }
+  }
+
+  /**
+   * Remove the value for a key.
+   * @param key the key
+   */
+  public void invalidate(int key) {
+    int hash = hash(key);
+    Segment segment = segments[hash >>> 28];
+    synchronized (segment) {
+      segment.remove(key, hash);
+      segment.generation++;
     }
-    map.put(a, value);
-    return value;
   }
-  
+
+  /**
+   * Remove all values.
+   */
+  public void invalidateAll() {
+    for (Segment segment : segments)
+      synchronized (segment) {
+        segment.clear();
+        segment.generation++;
+      }
+  }
+
+  /**
+   * Get the number of entries.
+   * @return the number of entries
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments)
+      synchronized (segment) {
+        size += segment.size;
+      }
+    return size;
+  }
+
+  /**
+   * Get the total weight of the entries.
+   * @return the total weight
+   */
+  public long weight() {
+    long weight = 0;
+    for (Segment segment : segments)
+      synchronized (segment) {
+        weight += segment.weight;
+      }
+    return weight;
+  }
+
+  /**
+   * Get the number of calls of get() that found their key.
+   * @return the number of hits
+   */
+  public long hitCount() {
+    return hits.get();
+  }
+
+  /**
+   * Get the number of calls of get() that had to call the loader.
+   * @return the number of misses
+   */
+  public long missCount() {
+    return misses.get();
+  }
+
+  /**
+   * Get the number of entries that were evicted to stay within the weight bound.
+   * @return the number of evictions
+   */
+  public long evictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * Get the fraction of calls of get() that found their key.
+   * @return the hit rate, 0 if there were no calls
+   */
+  public double hitRate() {
+    long hits = hitCount();
+    long total = hits + missCount();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * Reset the hit, miss and eviction counters.
+   */
+  public void resetStatistics() {
+    hits.set(0);
+    misses.set(0);
+    evictions.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return "size=" + size() + " weight=" + weight() + " hits=" + hitCount() + " misses=" + missCount() + " evictions=" + evictionCount();
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16) ^ (h << 16);
+  }
+
+  /**
+   * A hash table with chaining and a doubly linked LRU list, both stored in primitive arrays.
+   * All methods must be called while holding the lock of the segment.
+   */
+  private static final class Segment {
+    final long maxWeight;
+    final AtomicLong evictions;
+    int generation;
+    int size;
+    long weight;
+
+    /** first entry of each bucket, -1 if empty */
+    int[] buckets = new int[16];
+    /** next entry in the same bucket, or next free entry */
+    int[] chain = new int[16];
+    int[] keys = new int[16];
+    Object[] values = new Object[16];
+    int[] weights = new int[16];
+    /** LRU list, from the least to the most recently used entry */
+    int[] prev = new int[16];
+    int[] next = new int[16];
+    int lru_head = -1;
+    int lru_tail = -1;
+    /** first free entry, -1 if none */
+    int free = -1;
+    /** number of entries ever allocated */
+    int allocated;
+
+    Segment(long max_weight, AtomicLong evictions) {
+      maxWeight = max_weight;
+      this.evictions = evictions;
+      Arrays.fill(buckets, -1);
+    }
+
+    Object get(int key, int hash) {
+      int e = find(key, hash);
+      if (e == -1)
+        return null;
+      moveToTail(e);
+      return values[e];
+    }
+
+    Object put(int key, int hash, Object value, int entry_weight) {
+      int e = find(key, hash);
+      if (e != -1) {
+        // Another thread loaded the same key in the meantime
+        moveToTail(e);
+        return values[e];
+      }
+
+      if (size + 1 > buckets.length * 3 / 4)
+        rehash(2 * buckets.length);
+      e = allocate();
+      int bucket = hash & (buckets.length - 1);
+      keys[e] = key;
+      values[e] = value;
+      weights[e] = entry_weight;
+      chain[e] = buckets[bucket];
+      buckets[bucket] = e;
+      prev[e] = lru_tail;
+      next[e] = -1;
+      if (lru_tail != -1)
+        next[lru_tail] = e;
+      else
+        lru_head = e;
+      lru_tail = e;
+      size++;
+      weight += entry_weight;
+
+      // Evict the least recently used entries, but keep the new one
+      while (weight > maxWeight && lru_head != e) {
+        int victim = lru_head;
+        remove(keys[victim], hash(keys[victim]));
+        evictions.incrementAndGet();
+      }
+      return value;
+    }
+
+    void remove(int key, int hash) {
+      int bucket = hash & (buckets.length - 1);
+      int before = -1;
+      for (int e = buckets[bucket]; e != -1; before = e, e = chain[e]) {
+        if (keys[e] != key)
+          continue;
+        if (before == -1)
+          buckets[bucket] = chain[e];
+        else
+          chain[before] = chain[e];
+        unlink(e);
+        size--;
+        weight -= weights[e];
+        values[e] = null;
+        chain[e] = free;
+        free = e;
+        return;
+      }
+    }
+
+    void clear() {
+      Arrays.fill(buckets, -1);
+      Arrays.fill(values, null);
+      lru_head = lru_tail = -1;
+      free = -1;
+      allocated = 0;
+      size = 0;
+      weight = 0;
+    }
+
+    private int find(int key, int hash) {
+      for (int e = buckets[hash & (buckets.length - 1)]; e != -1; e = chain[e])
+        if (keys[e] == key)
+          return e;
+      return -1;
+    }
+
+    private void moveToTail(int e) {
+      if (e == lru_tail)
+        return;
+      unlink(e);
+      prev[e] = lru_tail;
+      next[e] = -1;
+      next[lru_tail] = e;
+      lru_tail = e;
+    }
+
+    private void unlink(int e) {
+      if (prev[e] != -1)
+        next[prev[e]] = next[e];
+      else
+        lru_head = next[e];
+      if (next[e] != -1)
+        prev[next[e]] = prev[e];
+      else
+        lru_tail = prev[e];
+    }
+
+    private int allocate() {
+      if (free != -1) {
+        int e = free;
+        free = chain[e];
+        return e;
+      }
+      if (allocated == keys.length) {
+        int capacity = 2 * keys.length;
+        chain = Arrays.copyOf(chain, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+        weights = Arrays.copyOf(weights, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+        next = Arrays.copyOf(next, capacity);
+      }
+      return allocated++;
+    }
+
+    private void rehash(int num_buckets) {
+      buckets = new int[num_buckets];
+      Arrays.fill(buckets, -1);
+      // Walk the LRU list, which contains exactly the used entries
+      for (int e = lru_head; e != -1; e = next[e]) {
+        int bucket = hash(keys[e]) & (num_buckets - 1);
+        chain[e] = buckets[bucket];
+        buckets[bucket] = e;
+      }
+    }
+  }
+
 }
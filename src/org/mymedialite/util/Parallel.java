@@ -0,0 +1,158 @@
+// Copyright (C) 2012 Chris Newell
+//
+// This file is part of MyMediaLite.
+//
+// MyMediaLite is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// MyMediaLite is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package org.mymedialite.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helper methods for running loops on several threads.
+ *
+ * The threads are started for every call and joined before the call returns,
+ * so the callers do not need to care about thread pools.
+ * If a worker throws an exception, it is rethrown by the calling thread after all workers have finished.
+ * @version 2.03
+ */
+public class Parallel {
+
+  // Prevent instantiation.
+  private Parallel() {}
+
+  /**
+   * A task that is run by each of several threads.
+   */
+  public interface Worker {
+    /**
+     * Run the part of the task of one thread.
+     * @param thread_id the ID of the thread, from 0 to num_threads - 1
+     * @param num_threads the number of threads
+     */
+    void run(int thread_id, int num_threads) throws Exception;
+  }
+
+  /**
+   * The body of a loop over a range of integers.
+   */
+  public interface RangeBody {
+    /**
+     * Process a chunk of the range.
+     * @param begin the first index of the chunk
+     * @param end the index after the last index of the chunk
+     * @param thread_id the ID of the thread that processes the chunk
+     */
+    void run(int begin, int end, int thread_id) throws Exception;
+  }
+
+  /**
+   * Get the number of threads to use.
+   * @param num_threads the requested number of threads, 0 or less for the number of available processors
+   * @return the number of threads
+   */
+  public static int numThreads(int num_threads) {
+    return num_threads > 0 ? num_threads : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Run a worker on several threads.
+   * With one thread, the worker runs on the calling thread.
+   * @param num_threads the number of threads, 0 or less for the number of available processors
+   * @param worker the worker
+   */
+  public static void run(int num_threads, final Worker worker) {
+    final int n = numThreads(num_threads);
+    if (n == 1) {
+      try {
+        worker.run(0, 1);
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      return;
+    }
+
+    final Throwable[] errors = new Throwable[n];
+    Thread[] threads = new Thread[n];
+    for (int t = 0; t < n; t++) {
+      final int thread_id = t;
+      threads[t] = new Thread("mymedialite-worker-" + t) {
+        public void run() {
+          try {
+            worker.run(thread_id, n);
+          } catch (Throwable e) {
+            errors[thread_id] = e;
+          }
+        }
+      };
+      threads[t].start();
+    }
+
+    boolean interrupted = false;
+    for (int t = 0; t < n; t++) {
+      while (true) {
+        try {
+          threads[t].join();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+
+    for (Throwable e : errors) {
+      if (e == null)
+        continue;
+      if (e instanceof RuntimeException)
+        throw (RuntimeException) e;
+      if (e instanceof Error)
+        throw (Error) e;
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Run a loop over a range of integers on several threads.
+   * The range is split into chunks, which the threads take one after the other, so uneven work is balanced.
+   * @param begin the first index
+   * @param end the index after the last index
+   * @param chunk_size the number of indices per chunk
+   * @param num_threads the number of threads, 0 or less for the number of available processors
+   * @param body the loop body
+   */
+  public static void forRange(final int begin, final int end, final int chunk_size, int num_threads, final RangeBody body) {
+    if (end <= begin)
+      return;
+    if (chunk_size < 1)
+      throw new IllegalArgumentException("chunk_size must be at least 1: " + chunk_size);
+    int num_chunks = (int) (((long) end - begin + chunk_size - 1) / chunk_size);
+    final AtomicInteger next_chunk = new AtomicInteger();
+    run(Math.min(numThreads(num_threads), num_chunks), new Worker() {
+      public void run(int thread_id, int num_threads) throws Exception {
+        while (true) {
+          long chunk_begin = begin + (long) next_chunk.getAndIncrement() * chunk_size;
+          if (chunk_begin >= end)
+            return;
+          body.run((int) chunk_begin, (int) Math.min(end, chunk_begin + chunk_size), thread_id);
+        }
+      }
+    });
+  }
+
+}
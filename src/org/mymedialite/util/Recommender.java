@@ -98,6 +98,8 @@ public class Recommender {
             field.set(recommender, Integer.parseInt(entry.getValue()));
           } else if (field.getType().getName().equals("boolean")) {
             field.set(recommender, Boolean.parseBoolean(entry.getValue()));
+          } else if (field.getType() == String.class) {
+            field.set(recommender, entry.getValue());
           } else {
             errorHandler.reportError("Parameter " + key + " has unknown type " + field.getType());  
           }
@@ -126,6 +128,8 @@ public class Recommender {
           field.set(recommender, Integer.parseInt(val));
         } else if (field.getType().getName().equals("boolean")) {
           field.set(recommender, Boolean.parseBoolean(val));
+        } else if (field.getType() == String.class) {
+          field.set(recommender, val);
         } else {
           throw new IllegalArgumentException("Parameter " + key + " has unknown type " + field.getType());  
         }